@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * Measures the memory allocated per class by the weaving hook. Each operation handles one class of a Faces jar, so
+ * when the benchmark is run with the GC profiler (see {@link WeaverBenchmarks}), <code>gc.alloc.rate.norm</code> is the
+ * number of bytes allocated per class. The <code>rejectClass</code> benchmark only measures the classes which are
+ * rejected by the {@link ConstantPoolScanner} (the majority of the classes of a Faces jar) while the <code>
+ * weaveClass</code> benchmark measures every class with a warm super type cache.
+ *
+ * @author  Kyle Stiemann
+ */
+@BenchmarkMode(Mode.AverageTime)
+@Fork(value = 1, jvmArgsAppend = "-XX:+UseParallelGC")
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 2)
+public class AllocationPerClassBenchmark {
+
+	// Public Data Members
+	@Param({ "mojarra", "primefaces" })
+	public String corpus;
+
+	// Private Data Members
+	private BundleWiring bundleWiring;
+	private ClassCorpus classCorpus;
+	private int index;
+	private JSF_OSGiWeavingHook jsfOSGiWeavingHook;
+	private int rejectedIndex;
+	private ClassCorpus rejectedClassCorpus;
+	private boolean weaveClassLoadingCalls;
+
+	@Benchmark
+	public boolean rejectClass() {
+
+		if (rejectedIndex == rejectedClassCorpus.size()) {
+			rejectedIndex = 0;
+		}
+
+		byte[] classBytes = rejectedClassCorpus.getClassBytes(rejectedIndex++);
+
+		return JSF_OSGiWeavingHook.isCompiledWithJava_1_6_OrGreater(classBytes) &&
+			new ConstantPoolScanner(classBytes, weaveClassLoadingCalls).containsWeaveTargets();
+	}
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws IOException {
+
+		classCorpus = ClassCorpus.load(corpus);
+
+		Version version = new Version(classCorpus.getVersion());
+		WeavingPolicy.BundleRule bundleRule = WeavingPolicy.getDefault().getBundleRule(
+				classCorpus.getBundleSymbolicName(), version);
+		weaveClassLoadingCalls = (bundleRule == null) || bundleRule.isWeaveClassLoadingCalls();
+		rejectedClassCorpus = classCorpus.getRejectedClasses(weaveClassLoadingCalls);
+		jsfOSGiWeavingHook = new JSF_OSGiWeavingHook(new LogServiceMockImpl(), new WeavingHookOptions());
+		bundleWiring = new BundleWiringMockImpl(getClass().getClassLoader(),
+				new BundleMockImpl(classCorpus.getBundleSymbolicName(), version), null);
+	}
+
+	@Benchmark
+	public WovenClass weaveClass() {
+
+		if (index == classCorpus.size()) {
+			index = 0;
+		}
+
+		WovenClass wovenClass = new WovenClassMockImpl(classCorpus.getClassName(index),
+				classCorpus.getClassBytes(index), bundleWiring);
+		index++;
+		jsfOSGiWeavingHook.weave(wovenClass);
+
+		return wovenClass;
+	}
+}
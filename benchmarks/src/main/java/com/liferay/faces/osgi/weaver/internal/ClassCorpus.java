@@ -0,0 +1,194 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+
+/**
+ * The class files of a Faces jar (Mojarra or PrimeFaces) on the benchmark classpath.
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class ClassCorpus {
+
+	// Private Final Data Members
+	private final String bundleSymbolicName;
+	private final List<String> classNames;
+	private final List<byte[]> classBytes;
+	private final String version;
+
+	private ClassCorpus(String bundleSymbolicName, String version, List<String> classNames, List<byte[]> classBytes) {
+
+		this.bundleSymbolicName = bundleSymbolicName;
+		this.version = version;
+		this.classNames = Collections.unmodifiableList(classNames);
+		this.classBytes = Collections.unmodifiableList(classBytes);
+	}
+
+	/**
+	 * Loads the class files of the named corpus: <code>mojarra</code> or <code>primefaces</code>.
+	 */
+	/* package-private */ static ClassCorpus load(String corpusName) throws IOException {
+
+		ClassCorpus classCorpus;
+
+		if ("mojarra".equals(corpusName)) {
+			classCorpus = load("org.glassfish.javax.faces", "2.2.18", "javax.faces.context.FacesContext");
+		}
+		else if ("primefaces".equals(corpusName)) {
+			classCorpus = load("org.primefaces", "6.2.0", "org.primefaces.util.Constants");
+		}
+		else {
+			throw new IllegalArgumentException("Unknown corpus: " + corpusName);
+		}
+
+		return classCorpus;
+	}
+
+	private static ClassCorpus load(String bundleSymbolicName, String version, String jarClassName)
+		throws IOException {
+
+		File jar;
+
+		try {
+
+			Class<?> jarClass = Class.forName(jarClassName);
+			jar = new File(jarClass.getProtectionDomain().getCodeSource().getLocation().toURI());
+		}
+		catch (ClassNotFoundException e) {
+			throw new IOException(e);
+		}
+		catch (URISyntaxException e) {
+			throw new IOException(e);
+		}
+
+		List<String> classNames = new ArrayList<String>();
+		List<byte[]> classBytes = new ArrayList<byte[]>();
+		JarFile jarFile = new JarFile(jar);
+
+		try {
+
+			Enumeration<JarEntry> jarEntries = jarFile.entries();
+
+			while (jarEntries.hasMoreElements()) {
+
+				JarEntry jarEntry = jarEntries.nextElement();
+				String entryName = jarEntry.getName();
+
+				if (entryName.endsWith(".class") && !entryName.startsWith("META-INF/")) {
+
+					String className = entryName.substring(0, entryName.length() - ".class".length()).replace('/',
+							'.');
+					byte[] bytes = readBytes(jarFile.getInputStream(jarEntry));
+
+					if (WeavingPolicy.getDefault().isWeaveClass(className) &&
+							JSF_OSGiWeavingHook.isCompiledWithJava_1_6_OrGreater(bytes)) {
+
+						classNames.add(className);
+						classBytes.add(bytes);
+					}
+				}
+			}
+		}
+		finally {
+			jarFile.close();
+		}
+
+		return new ClassCorpus(bundleSymbolicName, version, classNames, classBytes);
+	}
+
+	private static byte[] readBytes(InputStream inputStream) throws IOException {
+
+		try {
+
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int length;
+
+			while ((length = inputStream.read(buffer)) > -1) {
+				byteArrayOutputStream.write(buffer, 0, length);
+			}
+
+			return byteArrayOutputStream.toByteArray();
+		}
+		finally {
+			inputStream.close();
+		}
+	}
+
+	/* package-private */ String getBundleSymbolicName() {
+		return bundleSymbolicName;
+	}
+
+	/* package-private */ byte[] getClassBytes(int index) {
+		return classBytes.get(index);
+	}
+
+	/* package-private */ String getClassName(int index) {
+		return classNames.get(index);
+	}
+
+	/* package-private */ String getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns a corpus which only contains the classes which do not contain weave targets (see {@link
+	 * ConstantPoolScanner}).
+	 */
+	/* package-private */ ClassCorpus getRejectedClasses(boolean weaveClassLoadingCalls) {
+		return getClasses(weaveClassLoadingCalls, false);
+	}
+
+	/**
+	 * Returns a corpus which only contains the classes which contain weave targets (see {@link ConstantPoolScanner}).
+	 */
+	/* package-private */ ClassCorpus getWeaveTargetClasses(boolean weaveClassLoadingCalls) {
+		return getClasses(weaveClassLoadingCalls, true);
+	}
+
+	/* package-private */ int size() {
+		return classNames.size();
+	}
+
+	private ClassCorpus getClasses(boolean weaveClassLoadingCalls, boolean containsWeaveTargets) {
+
+		List<String> filteredClassNames = new ArrayList<String>();
+		List<byte[]> filteredClassBytes = new ArrayList<byte[]>();
+
+		for (int i = 0; i < size(); i++) {
+
+			ConstantPoolScanner constantPoolScanner = new ConstantPoolScanner(getClassBytes(i), weaveClassLoadingCalls);
+
+			if (constantPoolScanner.containsWeaveTargets() == containsWeaveTargets) {
+
+				filteredClassNames.add(getClassName(i));
+				filteredClassBytes.add(getClassBytes(i));
+			}
+		}
+
+		return new ClassCorpus(bundleSymbolicName, version, filteredClassNames, filteredClassBytes);
+	}
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * Measures {@link OSGiClassWriter#getCommonSuperClass(String, String)} for type pairs whose common super class is at
+ * different depths of their hierarchies. {@link #baseline()} measures ASM's default implementation (which loads both
+ * classes) for comparison.
+ *
+ * @author  Kyle Stiemann
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@Fork(1)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 2)
+public class CommonSuperClassBenchmark {
+
+	// Public Data Members
+	/**
+	 * <ul>
+	 *   <li>1: UIInput extends UIOutput.</li>
+	 *   <li>3: TextRenderer and ButtonRenderer share HtmlBasicRenderer.</li>
+	 *   <li>5: HtmlInputText and TextRenderer only share Object.</li>
+	 * </ul>
+	 */
+	@Param(
+		{
+			"javax/faces/component/UIInput,javax/faces/component/UIOutput",
+			"com/sun/faces/renderkit/html_basic/TextRenderer,com/sun/faces/renderkit/html_basic/ButtonRenderer",
+			"javax/faces/component/html/HtmlInputText,com/sun/faces/renderkit/html_basic/TextRenderer"
+		}
+	)
+	public String types;
+
+	/**
+	 * If true, a new super type cache is used for each operation (as if each class were woven right after the bundle
+	 * was refreshed).
+	 */
+	@Param({ "false", "true" })
+	public boolean coldSuperTypeCache;
+
+	// Private Data Members
+	private BaselineClassWriter baselineClassWriter;
+	private BundleWiring bundleWiring;
+	private OSGiClassWriter osgiClassWriter;
+	private String type1;
+	private String type2;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() {
+
+		String[] typeArray = types.split(",");
+		type1 = typeArray[0];
+		type2 = typeArray[1];
+		bundleWiring = new BundleWiringMockImpl(getClass().getClassLoader());
+		osgiClassWriter = new OSGiClassWriter(ClassWriter.COMPUTE_FRAMES, bundleWiring);
+		baselineClassWriter = new BaselineClassWriter(getClass().getClassLoader());
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpInvocation() {
+
+		if (coldSuperTypeCache) {
+			osgiClassWriter = new OSGiClassWriter(null, ClassWriter.COMPUTE_FRAMES, bundleWiring.getClassLoader(),
+					"benchmark", new SuperTypeCache());
+		}
+	}
+
+	@Benchmark
+	public String baseline() {
+		return baselineClassWriter.getCommonSuperClass(type1, type2);
+	}
+
+	@Benchmark
+	public String getCommonSuperClass() {
+		return osgiClassWriter.getCommonSuperClass(type1, type2);
+	}
+
+	/**
+	 * Exposes ASM's default {@link ClassWriter#getCommonSuperClass(String, String)}, which loads (and initializes the
+	 * hierarchy of) both classes through {@link #getClassLoader()}.
+	 */
+	private static final class BaselineClassWriter extends ClassWriter {
+
+		// Private Final Data Members
+		private final ClassLoader classLoader;
+
+		private BaselineClassWriter(ClassLoader classLoader) {
+
+			super(COMPUTE_FRAMES);
+			this.classLoader = classLoader;
+		}
+
+		@Override
+		protected ClassLoader getClassLoader() {
+			return classLoader;
+		}
+
+		@Override
+		protected String getCommonSuperClass(String type1, String type2) {
+			return super.getCommonSuperClass(type1, type2);
+		}
+	}
+}
@@ -13,16 +13,14 @@
  */
 package com.liferay.faces.osgi.weaver.internal;
 
-import java.io.IOException;
-import java.io.InputStream;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
-import org.objectweb.asm.ClassReader;
-
 
 /**
- * This class is not thread safe.
+ * Iterates over a type and its super classes. Super classes are obtained lazily from the {@link SuperTypeCache} of
+ * the bundle wiring. The weaver itself resolves common super classes through a {@link TypeGraph}, so this class only
+ * serves as the baseline of {@link IterableLazyTypeHierarchyBenchmark}. This class is not thread safe.
  *
  * @author  Kyle Stiemann
  */
@@ -31,35 +29,41 @@ import org.objectweb.asm.ClassReader;
 	// Private Final Data Members
 	private final String initialClassType;
 	private final ClassLoader classLoader;
+	private final SuperTypeCache superTypeCache;
 
-	/* package-private */ IterableLazyTypeHierarchy(String initialClassType, ClassLoader classLoader) {
+	/* package-private */ IterableLazyTypeHierarchy(String initialClassType, ClassLoader classLoader,
+		SuperTypeCache superTypeCache) {
 
 		this.initialClassType = initialClassType;
 		this.classLoader = classLoader;
+		this.superTypeCache = superTypeCache;
 	}
 
 	@Override
 	public Iterator<String> iterator() {
-		return new LazyTypeHierarchyIterator(initialClassType, classLoader);
+		return new LazyTypeHierarchyIterator(initialClassType, classLoader, superTypeCache);
 	}
 
 	private static final class LazyTypeHierarchyIterator implements Iterator<String> {
 
 		// Private Final Data Members
 		private final ClassLoader classLoader;
+		private final SuperTypeCache superTypeCache;
 
 		// Private Data Members
-		private InputStream nextTypeInputStream;
+		private String nextType;
 		private String previousType;
 		private boolean firstIteration;
 		private Boolean hasNext;
 
-		private LazyTypeHierarchyIterator(String initialClassType, ClassLoader classLoader) {
+		private LazyTypeHierarchyIterator(String initialClassType, ClassLoader classLoader,
+			SuperTypeCache superTypeCache) {
 
 			this.firstIteration = true;
 			this.hasNext = firstIteration;
 			this.previousType = initialClassType;
 			this.classLoader = classLoader;
+			this.superTypeCache = superTypeCache;
 		}
 
 		@Override
@@ -69,9 +73,9 @@ import org.objectweb.asm.ClassReader;
 
 				if (!previousType.equals(OSGiClassWriter.OBJECT_TYPE_STRING)) {
 
-					nextTypeInputStream = classLoader.getResourceAsStream(previousType + ".class");
+					nextType = superTypeCache.getSuperType(previousType, classLoader);
 
-					hasNext = (nextTypeInputStream != null);
+					hasNext = (nextType != null);
 				}
 				else {
 					hasNext = false;
@@ -99,30 +103,7 @@ import org.objectweb.asm.ClassReader;
 			}
 			else {
 
-				ClassReader typeClassReader;
-
-				try {
-					typeClassReader = new ClassReader(nextTypeInputStream);
-				}
-				catch (IOException e) {
-					throw new RuntimeException(e);
-				}
-				finally {
-
-					try {
-						nextTypeInputStream.close();
-					}
-					catch (IOException e) {
-						// do nothing.
-					}
-				}
-
-				type = typeClassReader.getSuperName();
-
-				if (type == null) {
-					type = OSGiClassWriter.OBJECT_TYPE_STRING;
-				}
-
+				type = nextType;
 				previousType = type;
 			}
 
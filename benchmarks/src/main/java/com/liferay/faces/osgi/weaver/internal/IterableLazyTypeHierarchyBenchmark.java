@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+
+/**
+ * Measures iterating the full {@link IterableLazyTypeHierarchy} of types at different depths.
+ *
+ * @author  Kyle Stiemann
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@Fork(1)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 2)
+public class IterableLazyTypeHierarchyBenchmark {
+
+	// Public Data Members
+	@Param(
+		{
+			"javax/faces/context/FacesContext", "javax/faces/component/html/HtmlInputText",
+			"com/sun/faces/renderkit/html_basic/TextRenderer"
+		}
+	)
+	public String type;
+
+	/**
+	 * If true, a new super type cache is used for each operation.
+	 */
+	@Param({ "false", "true" })
+	public boolean coldSuperTypeCache;
+
+	// Private Data Members
+	private ClassLoader classLoader;
+	private SuperTypeCache superTypeCache;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() {
+
+		classLoader = getClass().getClassLoader();
+		superTypeCache = new SuperTypeCache();
+	}
+
+	@Setup(Level.Invocation)
+	public void setUpInvocation() {
+
+		if (coldSuperTypeCache) {
+			superTypeCache = new SuperTypeCache();
+		}
+	}
+
+	@Benchmark
+	public void iterate(Blackhole blackhole) {
+
+		for (String superType : new IterableLazyTypeHierarchy(type, classLoader, superTypeCache)) {
+			blackhole.consume(superType);
+		}
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.objectweb.asm.ClassReader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * Measures the ASM visitor chain ({@link ClassReader}, {@link JSF_OSGiClassVisitor}, {@link JSF_OSGiMethodVisitor},
+ * and {@link OSGiClassWriter}) alone over the classes of a Faces jar which contain weave targets, without the
+ * {@link ConstantPoolScanner} pre-scan or the woven class cache. Each operation weaves one class.
+ *
+ * @author  Kyle Stiemann
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@Fork(1)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 2)
+public class VisitorChainBenchmark {
+
+	// Private Constants
+	private static final int CLASS_MAJOR_VERSION_BYTE_OFFSET = 6;
+
+	// Public Data Members
+	@Param({ "mojarra", "primefaces" })
+	public String corpus;
+
+	@Param({ "COMPUTE", "PRESERVE" })
+	public String stackMapFrameMode;
+
+	// Private Data Members
+	private BundleWiring bundleWiring;
+	private ClassCorpus classCorpus;
+	private int index;
+	private StackMapFrameMode mode;
+	private boolean weaveClassLoadingCalls;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws IOException {
+
+		ClassCorpus fullClassCorpus = ClassCorpus.load(corpus);
+		Version version = new Version(fullClassCorpus.getVersion());
+		WeavingPolicy.BundleRule bundleRule = WeavingPolicy.getDefault().getBundleRule(
+				fullClassCorpus.getBundleSymbolicName(), version);
+		weaveClassLoadingCalls = (bundleRule == null) || bundleRule.isWeaveClassLoadingCalls();
+		classCorpus = fullClassCorpus.getWeaveTargetClasses(weaveClassLoadingCalls);
+		mode = StackMapFrameMode.valueOf(stackMapFrameMode);
+		bundleWiring = new BundleWiringMockImpl(getClass().getClassLoader(),
+				new BundleMockImpl(fullClassCorpus.getBundleSymbolicName(), version), null);
+	}
+
+	@Benchmark
+	public byte[] weave() {
+
+		if (index == classCorpus.size()) {
+			index = 0;
+		}
+
+		byte[] bytes = classCorpus.getClassBytes(index);
+		String className = classCorpus.getClassName(index);
+		index++;
+
+		ClassReader classReader = new ClassReader(bytes);
+		OSGiClassWriter osgiClassWriter = new OSGiClassWriter(classReader, mode.getClassWriterFlags(), bundleWiring);
+		JSF_OSGiClassVisitor jsfOSGiClassVisitor = new JSF_OSGiClassVisitor(weaveClassLoadingCalls, osgiClassWriter,
+				className, "benchmark.bundle.symbolic.name", "1.0.0", null, false, false, false,
+				RewriteRuleTable.getBuiltInInstance());
+
+		try {
+			classReader.accept(jsfOSGiClassVisitor,
+				mode.getClassReaderFlags(classReader.readUnsignedShort(CLASS_MAJOR_VERSION_BYTE_OFFSET), false));
+		}
+		catch (CommonSuperClassNotFoundException e) {
+			// Measure the failed weave like the hook would perform it.
+		}
+
+		return osgiClassWriter.toByteArray();
+	}
+}
@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+/**
+ * Runs the weaver benchmarks (or those matching the JMH command line arguments) with the GC profiler, so that the
+ * allocation rate is reported along with throughput and latency.
+ *
+ * <p>Usage: <code>java -jar target/benchmarks.jar [JMH options]</code></p>
+ *
+ * @author  Kyle Stiemann
+ */
+public final class WeaverBenchmarks {
+
+	private WeaverBenchmarks() {
+		throw new AssertionError();
+	}
+
+	public static void main(String[] args) throws CommandLineOptionException, RunnerException {
+
+		CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+		Options options = new OptionsBuilder().parent(commandLineOptions).addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+}
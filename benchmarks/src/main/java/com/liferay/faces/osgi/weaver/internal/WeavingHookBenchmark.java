@@ -0,0 +1,108 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * Measures {@link JSF_OSGiWeavingHook#weave(WovenClass)} end-to-end over every class of a Faces jar (most of which
+ * are rejected by the {@link ConstantPoolScanner}). Each operation weaves one class.
+ *
+ * @author  Kyle Stiemann
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@Fork(1)
+@Measurement(iterations = 5, time = 2)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 2)
+public class WeavingHookBenchmark {
+
+	// Public Data Members
+	@Param({ "mojarra", "primefaces" })
+	public String corpus;
+
+	/**
+	 * If true, the super type cache is discarded before each pass over the corpus (as if the bundle had just been
+	 * refreshed).
+	 */
+	@Param({ "false", "true" })
+	public boolean coldSuperTypeCache;
+
+	@Param({ "COMPUTE", "PRESERVE" })
+	public String stackMapFrameMode;
+
+	// Private Data Members
+	private BundleWiring bundleWiring;
+	private ClassCorpus classCorpus;
+	private int index;
+	private JSF_OSGiWeavingHook jsfOSGiWeavingHook;
+
+	@Setup(Level.Trial)
+	public void setUpTrial() throws IOException {
+
+		classCorpus = ClassCorpus.load(corpus);
+		WeavingHookOptions weavingHookOptions = new WeavingHookOptions();
+		weavingHookOptions.setStackMapFrameMode(StackMapFrameMode.valueOf(stackMapFrameMode));
+		jsfOSGiWeavingHook = new JSF_OSGiWeavingHook(new LogServiceMockImpl(), weavingHookOptions);
+		bundleWiring = newBundleWiring();
+	}
+
+	@Benchmark
+	public WovenClass weave() {
+
+		if (index == classCorpus.size()) {
+
+			index = 0;
+
+			if (coldSuperTypeCache) {
+				bundleWiring = newBundleWiring();
+			}
+		}
+
+		WovenClass wovenClass = new WovenClassMockImpl(classCorpus.getClassName(index),
+				classCorpus.getClassBytes(index), bundleWiring);
+		index++;
+		jsfOSGiWeavingHook.weave(wovenClass);
+
+		return wovenClass;
+	}
+
+	private BundleWiring newBundleWiring() {
+
+		BundleMockImpl bundle = new BundleMockImpl(classCorpus.getBundleSymbolicName(),
+				new Version(classCorpus.getVersion()));
+
+		return new BundleWiringMockImpl(getClass().getClassLoader(), bundle, null);
+	}
+}
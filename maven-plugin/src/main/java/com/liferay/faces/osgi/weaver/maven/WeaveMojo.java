@@ -0,0 +1,137 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.maven;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+
+import com.liferay.faces.osgi.weaver.internal.JSF_OSGiJarWeaver;
+
+
+/**
+ * Weaves the classes of a Faces bundle jar (for example a Mojarra or PrimeFaces jar copied by the
+ * maven-dependency-plugin) so that the Liferay Faces OSGi Weaver does not need to weave them at runtime.
+ *
+ * @author  Kyle Stiemann
+ */
+@Mojo(
+	name = "weave", defaultPhase = LifecyclePhase.PACKAGE, requiresDependencyResolution = ResolutionScope.COMPILE,
+	threadSafe = true
+)
+public class WeaveMojo extends AbstractMojo {
+
+	/**
+	 * The jars and directories from which the type hierarchy of woven classes is resolved (in addition to the woven jar
+	 * itself).
+	 */
+	@Parameter(defaultValue = "${project.compileClasspathElements}", readonly = true, required = true)
+	private List<String> classpathElements;
+
+	/**
+	 * The jar to weave.
+	 */
+	@Parameter(
+		defaultValue = "${project.build.directory}/${project.build.finalName}.jar", property = "faces.osgi.weaver.inputFile",
+		required = true
+	)
+	private File inputFile;
+
+	/**
+	 * The woven jar. Defaults to replacing the input jar.
+	 */
+	@Parameter(property = "faces.osgi.weaver.outputFile")
+	private File outputFile;
+
+	/**
+	 * Skips weaving.
+	 */
+	@Parameter(defaultValue = "false", property = "faces.osgi.weaver.skip")
+	private boolean skip;
+
+	/**
+	 * How the stack map frames of woven classes are produced: <code>compute</code>, <code>preserve</code>, or <code>
+	 * drop-java-1-6</code>.
+	 */
+	@Parameter(defaultValue = "compute", property = "faces.osgi.weaver.stackMapFrames")
+	private String stackMapFrames;
+
+	/**
+	 * The number of threads used to weave classes. Defaults to the number of available processors.
+	 */
+	@Parameter(defaultValue = "0", property = "faces.osgi.weaver.threads")
+	private int threads;
+
+	@Override
+	public void execute() throws MojoExecutionException {
+
+		if (skip) {
+			getLog().info("Skipping weaving.");
+		}
+		else if (!inputFile.isFile()) {
+			throw new MojoExecutionException(inputFile + " does not exist.");
+		}
+		else {
+
+			List<File> classpath = new ArrayList<File>();
+
+			for (String classpathElement : classpathElements) {
+				classpath.add(new File(classpathElement));
+			}
+
+			int threadCount = threads;
+
+			if (threadCount < 1) {
+				threadCount = Runtime.getRuntime().availableProcessors();
+			}
+
+			File wovenFile = outputFile;
+
+			if (wovenFile == null) {
+				wovenFile = inputFile;
+			}
+
+			try {
+
+				JSF_OSGiJarWeaver jsfOSGiJarWeaver = new JSF_OSGiJarWeaver(classpath, stackMapFrames, threadCount);
+				long startTime = System.nanoTime();
+				int wovenClassCount = jsfOSGiJarWeaver.weave(inputFile, wovenFile,
+						new JSF_OSGiJarWeaver.WarningListener() {
+
+							@Override
+							public void warn(String message) {
+								getLog().warn(message);
+							}
+						});
+				long elapsedMillis = (System.nanoTime() - startTime) / 1000000L;
+				getLog().info("Wove " + wovenClassCount + " classes of " + inputFile + " into " + wovenFile + " in " +
+					elapsedMillis + "ms.");
+			}
+			catch (IllegalArgumentException e) {
+				throw new MojoExecutionException("Invalid weaver configuration: " + e.getMessage(), e);
+			}
+			catch (IOException e) {
+				throw new MojoExecutionException("Unable to weave " + inputFile + ":", e);
+			}
+		}
+	}
+}
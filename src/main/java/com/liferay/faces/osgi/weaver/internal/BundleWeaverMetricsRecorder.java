@@ -0,0 +1,123 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Records the metrics of a single bundle (see {@link BundleWeaverMetricsSnapshot}). The number of skipped classes is
+ * derived from the other class counters when a snapshot is taken so that classes which do not need to be woven (the
+ * vast majority) only cost a single atomic increment.
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class BundleWeaverMetricsRecorder {
+
+	// Private Final Data Members
+	private final AtomicLong bytesIn;
+	private final AtomicLong bytesOut;
+	private final AtomicLong classesFailed;
+	private final AtomicLong classesInspected;
+	private final AtomicLong classesWoven;
+	private final LatencyHistogramRecorder classReaderAcceptLatency;
+	private final AtomicLong commonSuperClassCalls;
+	private final AtomicLong hierarchyResourceStreamsOpened;
+	private final LatencyHistogramRecorder toByteArrayLatency;
+
+	/* package-private */ BundleWeaverMetricsRecorder() {
+
+		this.bytesIn = new AtomicLong();
+		this.bytesOut = new AtomicLong();
+		this.classesFailed = new AtomicLong();
+		this.classesInspected = new AtomicLong();
+		this.classesWoven = new AtomicLong();
+		this.classReaderAcceptLatency = new LatencyHistogramRecorder();
+		this.commonSuperClassCalls = new AtomicLong();
+		this.hierarchyResourceStreamsOpened = new AtomicLong();
+		this.toByteArrayLatency = new LatencyHistogramRecorder();
+	}
+
+	/**
+	 * Records the size of an inspected class which contains calls that may need to be woven.
+	 */
+	/* package-private */ void recordBytesIn(long bytes) {
+		bytesIn.addAndGet(bytes);
+	}
+
+	/* package-private */ void recordClassFailed() {
+		classesFailed.incrementAndGet();
+	}
+
+	/* package-private */ void recordClassInspected() {
+		classesInspected.incrementAndGet();
+	}
+
+	/* package-private */ void recordClassReaderAccept(long nanos) {
+		classReaderAcceptLatency.record(nanos);
+	}
+
+	/**
+	 * Records a woven class.
+	 *
+	 * @param  bytes  The size of the woven class file.
+	 */
+	/* package-private */ void recordClassWoven(long bytes) {
+
+		classesWoven.incrementAndGet();
+		bytesOut.addAndGet(bytes);
+	}
+
+	/* package-private */ void recordCommonSuperClassCall() {
+		commonSuperClassCalls.incrementAndGet();
+	}
+
+	/* package-private */ void recordHierarchyResourceStreamOpened() {
+		hierarchyResourceStreamsOpened.incrementAndGet();
+	}
+
+	/* package-private */ void recordToByteArray(long nanos) {
+		toByteArrayLatency.record(nanos);
+	}
+
+	/* package-private */ void reset() {
+
+		bytesIn.set(0);
+		bytesOut.set(0);
+		classesFailed.set(0);
+		classesInspected.set(0);
+		classesWoven.set(0);
+		classReaderAcceptLatency.reset();
+		commonSuperClassCalls.set(0);
+		hierarchyResourceStreamsOpened.set(0);
+		toByteArrayLatency.reset();
+	}
+
+	/* package-private */ BundleWeaverMetricsSnapshot snapshot() {
+
+		// Classes are counted as inspected before they are counted as woven or failed, so reading the woven and failed
+		// counters first ensures that the derived number of skipped classes is never negative (except after a
+		// concurrent reset).
+		long woven = classesWoven.get();
+		long failed = classesFailed.get();
+		long inspected = classesInspected.get();
+		long skipped = Math.max(0, inspected - woven - failed);
+
+		return new BundleWeaverMetricsSnapshot(inspected, skipped, woven, failed, bytesIn.get(), bytesOut.get(),
+				commonSuperClassCalls.get(), hierarchyResourceStreamsOpened.get(), classReaderAcceptLatency.snapshot(),
+				toByteArrayLatency.snapshot());
+	}
+}
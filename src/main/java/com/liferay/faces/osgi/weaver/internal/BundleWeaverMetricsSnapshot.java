@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import com.liferay.faces.osgi.weaver.metrics.BundleWeaverMetrics;
+import com.liferay.faces.osgi.weaver.metrics.LatencyHistogram;
+
+
+/**
+ * An immutable snapshot of a {@link BundleWeaverMetricsRecorder}.
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class BundleWeaverMetricsSnapshot implements BundleWeaverMetrics {
+
+	// Private Final Data Members
+	private final long bytesIn;
+	private final long bytesOut;
+	private final long classesFailed;
+	private final long classesInspected;
+	private final long classesSkipped;
+	private final long classesWoven;
+	private final LatencyHistogramSnapshot classReaderAcceptLatency;
+	private final long commonSuperClassCalls;
+	private final long hierarchyResourceStreamsOpened;
+	private final LatencyHistogramSnapshot toByteArrayLatency;
+
+	/* package-private */ BundleWeaverMetricsSnapshot(long classesInspected, long classesSkipped, long classesWoven,
+		long classesFailed, long bytesIn, long bytesOut, long commonSuperClassCalls,
+		long hierarchyResourceStreamsOpened, LatencyHistogramSnapshot classReaderAcceptLatency,
+		LatencyHistogramSnapshot toByteArrayLatency) {
+
+		this.classesInspected = classesInspected;
+		this.classesSkipped = classesSkipped;
+		this.classesWoven = classesWoven;
+		this.classesFailed = classesFailed;
+		this.bytesIn = bytesIn;
+		this.bytesOut = bytesOut;
+		this.commonSuperClassCalls = commonSuperClassCalls;
+		this.hierarchyResourceStreamsOpened = hierarchyResourceStreamsOpened;
+		this.classReaderAcceptLatency = classReaderAcceptLatency;
+		this.toByteArrayLatency = toByteArrayLatency;
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn;
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut;
+	}
+
+	@Override
+	public long getClassesFailed() {
+		return classesFailed;
+	}
+
+	@Override
+	public long getClassesInspected() {
+		return classesInspected;
+	}
+
+	@Override
+	public long getClassesSkipped() {
+		return classesSkipped;
+	}
+
+	@Override
+	public long getClassesWoven() {
+		return classesWoven;
+	}
+
+	@Override
+	public LatencyHistogram getClassReaderAcceptLatency() {
+		return classReaderAcceptLatency;
+	}
+
+	@Override
+	public long getCommonSuperClassCalls() {
+		return commonSuperClassCalls;
+	}
+
+	@Override
+	public long getHierarchyResourceStreamsOpened() {
+		return hierarchyResourceStreamsOpened;
+	}
+
+	@Override
+	public LatencyHistogram getToByteArrayLatency() {
+		return toByteArrayLatency;
+	}
+
+	/**
+	 * Returns a snapshot containing the metrics of both this snapshot and the specified snapshot.
+	 */
+	/* package-private */ BundleWeaverMetricsSnapshot add(BundleWeaverMetricsSnapshot snapshot) {
+		return new BundleWeaverMetricsSnapshot(classesInspected + snapshot.classesInspected,
+				classesSkipped + snapshot.classesSkipped, classesWoven + snapshot.classesWoven,
+				classesFailed + snapshot.classesFailed, bytesIn + snapshot.bytesIn, bytesOut + snapshot.bytesOut,
+				commonSuperClassCalls + snapshot.commonSuperClassCalls,
+				hierarchyResourceStreamsOpened + snapshot.hierarchyResourceStreamsOpened,
+				classReaderAcceptLatency.add(snapshot.classReaderAcceptLatency),
+				toByteArrayLatency.add(snapshot.toByteArrayLatency));
+	}
+}
@@ -0,0 +1,292 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.CRC32;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.namespace.BundleNamespace;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * Index of the headers of the class files in a bundle wiring's bundle, which is built by the {@link PreWeaver} threads
+ * (rather than the class loading threads) while they read each class file once after the bundle is resolved. For each
+ * class file, the index records the super class name, whether the constant pool contains weave targets (see {@link
+ * ConstantPoolScanner}), and the length and CRC-32 checksum of the class file.
+ *
+ * <p>The index is used in two ways:</p>
+ *
+ * <ul>
+ *   <li>{@link JSF_OSGiWeavingHook} rejects a class which does not contain weave targets with a single index probe
+ *     (see {@link #containsNoWeaveTargets(String, byte[], boolean, RewriteRuleTable)}) rather than scanning its
+ *     constant pool. Since another weaving hook may have modified the class, the probe only succeeds if the length and
+ *     checksum of the bytes being woven match the indexed class file. Computing the checksum is several times cheaper
+ *     than scanning the constant pool.</li>
+ *   <li>{@link SuperTypeCache} obtains the super classes of the bundle's own classes (see {@link
+ *     #getSuperName(String)}) without opening class file resources through the bundle wiring's class loader. Super
+ *     classes are only returned for classes which the class loader finds in the bundle itself: classes in packages
+ *     which are imported (or obtained from required bundles) and bundles whose class path does not begin with the
+ *     bundle itself are excluded. Classes which appear in more than one class file (for example in a fragment) are
+ *     excluded as well.</li>
+ * </ul>
+ *
+ * <p>In order to avoid keeping the bundle wiring (or its class loader) reachable, this class only stores names and
+ * class file headers.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class ClassHeaderIndex {
+
+	// Private Constants
+	private static final ClassHeader AMBIGUOUS_CLASS_HEADER = new ClassHeader(null, 0, -1, (byte) 0, null);
+	private static final byte CONTAINS_WEAVE_TARGETS = 1;
+	private static final byte WEAVE_CLASS_LOADING_CALLS = 2;
+	private static final byte WOVEN = 4;
+
+	// Private Final Data Members
+	private final ConcurrentMap<String, ClassHeader> classHeaders;
+	private final Set<String> nonLocalPackageNames;
+	private final boolean superNamesVisible;
+	private final ConcurrentMap<String, String> superNames;
+
+	/**
+	 * @param  nonLocalPackageNames  The binary names of the packages which the bundle wiring's class loader does not
+	 *                               load from the bundle itself.
+	 * @param  superNamesVisible     False if the class files of the bundle are not necessarily the class files which
+	 *                               the bundle wiring's class loader finds.
+	 */
+	/* package-private */ ClassHeaderIndex(Set<String> nonLocalPackageNames, boolean superNamesVisible) {
+
+		this.nonLocalPackageNames = nonLocalPackageNames;
+		this.superNamesVisible = superNamesVisible;
+		this.classHeaders = new ConcurrentHashMap<String, ClassHeader>();
+		this.superNames = new ConcurrentHashMap<String, String>();
+	}
+
+	/**
+	 * Returns an empty index for the classes of the bundle wiring.
+	 */
+	/* package-private */ static ClassHeaderIndex newInstance(BundleWiring bundleWiring) {
+
+		Set<String> nonLocalPackageNames = new HashSet<String>();
+		List<BundleWire> packageWires = bundleWiring.getRequiredWires(PackageNamespace.PACKAGE_NAMESPACE);
+
+		if (packageWires != null) {
+
+			for (BundleWire packageWire : packageWires) {
+				addPackageName(nonLocalPackageNames, packageWire.getCapability());
+			}
+		}
+
+		// Packages of required bundles are found before the bundle's own packages.
+		List<BundleWire> bundleWires = bundleWiring.getRequiredWires(BundleNamespace.BUNDLE_NAMESPACE);
+
+		if (bundleWires != null) {
+
+			for (BundleWire bundleWire : bundleWires) {
+
+				BundleWiring providerBundleWiring = bundleWire.getProviderWiring();
+				List<BundleCapability> capabilities = null;
+
+				if (providerBundleWiring != null) {
+					capabilities = providerBundleWiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE);
+				}
+
+				if (capabilities != null) {
+
+					for (BundleCapability capability : capabilities) {
+						addPackageName(nonLocalPackageNames, capability);
+					}
+				}
+			}
+		}
+
+		// The index is built from the bundle's entries, which are only the class files that the class loader finds if
+		// the bundle itself is the first element of its class path.
+		String bundleClassPath = bundleWiring.getBundle().getHeaders().get(Constants.BUNDLE_CLASSPATH);
+		boolean superNamesVisible = (bundleClassPath == null) || ".".equals(bundleClassPath.split(",")[0].trim());
+
+		return new ClassHeaderIndex(Collections.unmodifiableSet(nonLocalPackageNames), superNamesVisible);
+	}
+
+	private static void addPackageName(Set<String> packageNames, BundleCapability capability) {
+
+		Object packageName = capability.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
+
+		if (packageName instanceof String) {
+			packageNames.add((String) packageName);
+		}
+	}
+
+	private static int getChecksum(byte[] classBytes) {
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(classBytes, 0, classBytes.length);
+
+		return (int) crc32.getValue();
+	}
+
+	/**
+	 * Adds the header of the class file to the index.
+	 *
+	 * @param  className               The binary name of the class.
+	 * @param  classBytes              The class file.
+	 * @param  constantPoolScanner     The scanner of the class file or null if the class file cannot be woven (because
+	 *                                 it was compiled for Java 1.5 or below).
+	 * @param  weaveClassLoadingCalls  The argument that the scanner was created with.
+	 *
+	 * @throws  IOException  If the class file is invalid.
+	 */
+	/* package-private */ void add(String className, byte[] classBytes, ConstantPoolScanner constantPoolScanner,
+		boolean weaveClassLoadingCalls) throws IOException {
+
+		String superName = SuperClassReader.readSuperName(new ByteArrayInputStream(classBytes));
+
+		if (superName == null) {
+			superName = OSGiClassWriter.OBJECT_TYPE_STRING;
+		}
+
+		// Most classes of a bundle share a few super classes, so each super class name is only stored once.
+		String existingSuperName = superNames.putIfAbsent(superName, superName);
+
+		if (existingSuperName != null) {
+			superName = existingSuperName;
+		}
+
+		byte flags = 0;
+		RewriteRuleTable rewriteRuleTable = null;
+
+		if (weaveClassLoadingCalls) {
+			flags |= WEAVE_CLASS_LOADING_CALLS;
+		}
+
+		if (constantPoolScanner == null) {
+
+			// The weaving hook never probes the index for such classes, so they are recorded as containing weave
+			// targets.
+			flags |= CONTAINS_WEAVE_TARGETS;
+		}
+		else if (constantPoolScanner.isWoven()) {
+			flags |= WOVEN;
+		}
+		else if (constantPoolScanner.containsWeaveTargets()) {
+			flags |= CONTAINS_WEAVE_TARGETS;
+		}
+		else {
+			rewriteRuleTable = constantPoolScanner.getRewriteRuleTable();
+		}
+
+		ClassHeader classHeader = new ClassHeader(superName, getChecksum(classBytes), classBytes.length, flags,
+				rewriteRuleTable);
+		ClassHeader existingClassHeader = classHeaders.putIfAbsent(className, classHeader);
+
+		if ((existingClassHeader != null) &&
+				((existingClassHeader.checksum != classHeader.checksum) ||
+					(existingClassHeader.length != classHeader.length))) {
+			classHeaders.put(className, AMBIGUOUS_CLASS_HEADER);
+		}
+	}
+
+	/**
+	 * Returns true if the indexed class file of the class is identical to the specified bytes and neither contains
+	 * weave targets of the rules of the table nor has already been woven. Classes which were indexed with a different
+	 * table (before the rewrite rules changed) must be scanned again.
+	 *
+	 * @param  className               The binary name of the class.
+	 * @param  classBytes              The bytes of the class which is being woven.
+	 * @param  weaveClassLoadingCalls  True if class loading calls are woven in the class's bundle.
+	 * @param  rewriteRuleTable        The rules which the class is woven with.
+	 */
+	/* package-private */ boolean containsNoWeaveTargets(String className, byte[] classBytes,
+		boolean weaveClassLoadingCalls, RewriteRuleTable rewriteRuleTable) {
+
+		boolean containsNoWeaveTargets = false;
+		ClassHeader classHeader = classHeaders.get(className);
+
+		if ((classHeader != null) && (classHeader.rewriteRuleTable == rewriteRuleTable) &&
+				(classHeader.length == classBytes.length) &&
+				((classHeader.flags & (CONTAINS_WEAVE_TARGETS | WOVEN)) == 0) &&
+				(((classHeader.flags & WEAVE_CLASS_LOADING_CALLS) != 0) == weaveClassLoadingCalls)) {
+			containsNoWeaveTargets = classHeader.checksum == getChecksum(classBytes);
+		}
+
+		return containsNoWeaveTargets;
+	}
+
+	/**
+	 * Returns the internal name of the super class of the type or null if the type is not indexed (or the bundle
+	 * wiring's class loader does not necessarily find the indexed class file).
+	 *
+	 * @param  type  The internal name of the type.
+	 */
+	/* package-private */ String getSuperName(String type) {
+
+		String superName = null;
+
+		if (superNamesVisible && !classHeaders.isEmpty()) {
+
+			String className = type.replace('/', '.');
+			int packageEndIndex = className.lastIndexOf('.');
+
+			if ((packageEndIndex < 0) || !nonLocalPackageNames.contains(className.substring(0, packageEndIndex))) {
+
+				ClassHeader classHeader = classHeaders.get(className);
+
+				if (classHeader != null) {
+					superName = classHeader.superName;
+				}
+			}
+		}
+
+		return superName;
+	}
+
+	private static final class ClassHeader {
+
+		// Private Final Data Members
+		private final int checksum;
+		private final byte flags;
+		private final int length;
+		private final RewriteRuleTable rewriteRuleTable;
+		private final String superName;
+
+		/**
+		 * @param  rewriteRuleTable  The rules which the class file was found not to contain weave targets of or null
+		 *                           if the class file contains weave targets (or has already been woven).
+		 */
+		private ClassHeader(String superName, int checksum, int length, byte flags,
+			RewriteRuleTable rewriteRuleTable) {
+
+			this.superName = superName;
+			this.checksum = checksum;
+			this.length = length;
+			this.flags = flags;
+			this.rewriteRuleTable = rewriteRuleTable;
+		}
+	}
+}
@@ -0,0 +1,590 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+
+/**
+ * Determines whether a class file may contain calls which are rewritten by {@link JSF_OSGiMethodVisitor} by walking
+ * only the constant pool of the class file (for more details on the constant pool format, see: <a
+ * href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.4">
+ * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.4</a>). Since every method call instruction
+ * references a Methodref constant, a class without a Methodref constant matching one of the rewritten methods cannot
+ * be modified by the weaver, so it can be skipped without building the ASM visitor chain. For classes which do contain
+ * such constants, {@link #getWeaveTargetMethods()} additionally scans the Code attribute of each method to determine
+ * which methods may need to be rewritten.
+ *
+ * <p>The owner and name of each Methodref constant are looked up in the same {@link RewriteRuleTable} that the visitor
+ * uses. Matching is intentionally broader than {@link JSF_OSGiMethodVisitor} (opcodes and method descriptors are
+ * ignored and method code is scanned byte by byte rather than instruction by instruction) so that the scanner never
+ * rejects a class or method which the visitor would modify.</p>
+ *
+ * <p>Since most classes do not contain weave targets, the constant pool is scanned with arrays which are reused by
+ * each thread and the scanner only keeps its own copy of them if the class contains weave targets.</p>
+ *
+ * <p>This class is not thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class ConstantPoolScanner {
+
+	// Private Constants
+	private static final byte[] CODE_ATTRIBUTE_NAME_BYTES = toBytes("Code");
+	private static final int CONSTANT_POOL_COUNT_OFFSET = 8;
+	private static final int INVOKESTATIC = 0xB8;
+	private static final int INVOKEVIRTUAL = 0xB6;
+
+	// Scratch arrays larger than this are discarded after use so that each thread does not keep the arrays of the
+	// largest constant pool it has ever scanned in memory.
+	private static final int MAX_RETAINED_CONSTANT_POOL_COUNT = 16 * 1024;
+	private static final ThreadLocal<ScratchArrays> SCRATCH_ARRAYS = new ThreadLocal<ScratchArrays>() {
+
+			@Override
+			protected ScratchArrays initialValue() {
+				return new ScratchArrays();
+			}
+		};
+	private static final byte[] WOVEN_CLASS_ATTRIBUTE_NAME_BYTES = toBytes(
+			JSF_OSGiClassWeaver.WOVEN_CLASS_ATTRIBUTE_NAME);
+
+	// Constant Pool Tags
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_DYNAMIC = 17;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_MODULE = 19;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_PACKAGE = 20;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_UTF8 = 1;
+
+	// Private Final Data Members
+	private final byte[] classBytes;
+	private final RewriteRuleTable rewriteRuleTable;
+
+	// Private Data Members
+	private int[] constantOffsets;
+	private int constantPoolEndOffset;
+	private boolean containsWeaveTargets;
+	private boolean parsed;
+	private boolean[] weaveTargetConstants;
+	private int wovenClassAttributeNameIndex;
+
+	/**
+	 * Scans the constant pool of the class for the calls which are rewritten by the built-in rules (see {@link
+	 * RewriteRuleTable#getBuiltInInstance()}).
+	 *
+	 * @param  classBytes              The bytes of the class file.
+	 * @param  weaveClassLoadingCalls  If false, only calls to {@link ResourceBundle}<code>.getBundle()</code> are
+	 *                                 considered.
+	 */
+	/* package-private */ ConstantPoolScanner(byte[] classBytes, boolean weaveClassLoadingCalls) {
+		this(classBytes, weaveClassLoadingCalls, RewriteRuleTable.getBuiltInInstance());
+	}
+
+	/**
+	 * Scans the constant pool of the class for the calls which are rewritten by the rules of the table.
+	 *
+	 * @param  classBytes              The bytes of the class file.
+	 * @param  weaveClassLoadingCalls  If false, only calls which are not class loading calls (such as calls to {@link
+	 *                                 ResourceBundle}<code>.getBundle()</code>) are considered.
+	 * @param  rewriteRuleTable        The rules which the class is woven with.
+	 */
+	/* package-private */ ConstantPoolScanner(byte[] classBytes, boolean weaveClassLoadingCalls,
+		RewriteRuleTable rewriteRuleTable) {
+
+		this.classBytes = classBytes;
+		this.rewriteRuleTable = rewriteRuleTable;
+
+		ScratchArrays scratchArrays = SCRATCH_ARRAYS.get();
+
+		// Should a class be scanned while another class is being scanned by the same thread, use new arrays instead.
+		if (scratchArrays.inUse) {
+			scratchArrays = new ScratchArrays();
+		}
+
+		scratchArrays.inUse = true;
+
+		try {
+			scanConstantPool(weaveClassLoadingCalls, scratchArrays);
+		}
+		catch (ArrayIndexOutOfBoundsException e) {
+
+			// The class file is malformed, so let ASM handle (and report) it.
+			parsed = false;
+		}
+		finally {
+			scratchArrays.release();
+		}
+
+		if (!parsed) {
+			containsWeaveTargets = true;
+		}
+
+		// Only the methods of classes which contain weave targets are scanned (see getWeaveTargetMethods()), so only
+		// those classes need their own copy of the scratch arrays.
+		if (parsed && containsWeaveTargets) {
+
+			int constantPoolCount = readUnsignedShort(classBytes, CONSTANT_POOL_COUNT_OFFSET);
+			constantOffsets = Arrays.copyOf(constantOffsets, constantPoolCount);
+			weaveTargetConstants = Arrays.copyOf(weaveTargetConstants, constantPoolCount);
+		}
+		else {
+
+			constantOffsets = null;
+			weaveTargetConstants = null;
+		}
+	}
+
+	/**
+	 * Returns true if the constant pool of the class contains a Methodref constant for a method which may be rewritten
+	 * by {@link JSF_OSGiMethodVisitor}. If the constant pool cannot be parsed, true is returned so that the class is
+	 * handled by ASM as usual.
+	 *
+	 * @param  classBytes              The bytes of the class file.
+	 * @param  weaveClassLoadingCalls  If false, only calls to {@link ResourceBundle}<code>.getBundle()</code> are
+	 *                                 considered.
+	 */
+	/* package-private */ static boolean containsWeaveTargets(byte[] classBytes, boolean weaveClassLoadingCalls) {
+
+		ConstantPoolScanner constantPoolScanner = new ConstantPoolScanner(classBytes, weaveClassLoadingCalls);
+
+		return constantPoolScanner.containsWeaveTargets();
+	}
+
+	private static int readInt(byte[] classBytes, int offset) {
+		return (readUnsignedShort(classBytes, offset) << 16) | readUnsignedShort(classBytes, offset + 2);
+	}
+
+	private static int readUnsignedShort(byte[] classBytes, int offset) {
+		return ((classBytes[offset] & 0xFF) << 8) | (classBytes[offset + 1] & 0xFF);
+	}
+
+	private static byte[] toBytes(String asciiString) {
+
+		byte[] bytes = new byte[asciiString.length()];
+
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) asciiString.charAt(i);
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Returns true if the Utf8 constant at the specified offset is equal to the expected (ASCII) bytes.
+	 */
+	private static boolean utf8Equals(byte[] classBytes, int utf8Offset, byte[] expectedBytes) {
+		return (readUnsignedShort(classBytes, utf8Offset) == expectedBytes.length) &&
+			utf8StartsWith(classBytes, utf8Offset, expectedBytes);
+	}
+
+	/**
+	 * Returns true if the Utf8 constant at the specified offset starts with the expected (ASCII) bytes.
+	 */
+	private static boolean utf8StartsWith(byte[] classBytes, int utf8Offset, byte[] expectedPrefixBytes) {
+
+		boolean startsWith = readUnsignedShort(classBytes, utf8Offset) >= expectedPrefixBytes.length;
+		int bytesOffset = utf8Offset + 2;
+
+		for (int i = 0; startsWith && (i < expectedPrefixBytes.length); i++) {
+			startsWith = classBytes[bytesOffset + i] == expectedPrefixBytes[i];
+		}
+
+		return startsWith;
+	}
+
+	/* package-private */ boolean containsWeaveTargets() {
+		return containsWeaveTargets;
+	}
+
+	/**
+	 * Returns the rules which the class was scanned for.
+	 */
+	/* package-private */ RewriteRuleTable getRewriteRuleTable() {
+		return rewriteRuleTable;
+	}
+
+	/**
+	 * Returns the name and descriptor (for example <code>
+	 * getClass(Ljava/lang/String;)Ljava/lang/Class;</code>) of each method whose code contains an invokevirtual or
+	 * invokestatic instruction referencing a Methodref constant that may be rewritten, mapped to the method's
+	 * max_locals. Returns null if the class file cannot be parsed, in which case every method must be considered.
+	 */
+	/* package-private */ Map<String, Integer> getWeaveTargetMethods() {
+
+		Map<String, Integer> weaveTargetMethods = null;
+
+		if (parsed && !containsWeaveTargets) {
+			weaveTargetMethods = Collections.emptyMap();
+		}
+		else if (parsed) {
+
+			try {
+				weaveTargetMethods = scanMethods();
+			}
+			catch (ArrayIndexOutOfBoundsException e) {
+				// The class file is malformed, so let ASM handle (and report) it.
+			}
+		}
+
+		return weaveTargetMethods;
+	}
+
+	/**
+	 * Returns true if the class has been woven at build time, in other words if the class file contains the {@link
+	 * JSF_OSGiClassWeaver#WOVEN_CLASS_ATTRIBUTE_NAME} attribute. Since attributes are named by Utf8 constants, the class
+	 * attributes only need to be checked if the constant pool contains the attribute name.
+	 */
+	/* package-private */ boolean isWoven() {
+
+		boolean woven = false;
+
+		if (parsed && (wovenClassAttributeNameIndex != 0)) {
+
+			try {
+
+				int offset = skipMembers(skipMembers(skipInterfaces()));
+				int attributesCount = readUnsignedShort(classBytes, offset);
+				offset += 2;
+
+				for (int i = 0; (i < attributesCount) && !woven; i++) {
+
+					woven = readUnsignedShort(classBytes, offset) == wovenClassAttributeNameIndex;
+					offset += 6 + readInt(classBytes, offset + 2);
+				}
+			}
+			catch (ArrayIndexOutOfBoundsException e) {
+				// The class file is malformed, so let ASM handle (and report) it.
+			}
+		}
+
+		return woven;
+	}
+
+	/**
+	 * Returns true if the code at the specified offset contains an invokevirtual or invokestatic opcode followed by the
+	 * index of a weave target constant.
+	 */
+	private boolean codeContainsWeaveTargets(int codeOffset, int codeLength) {
+
+		boolean codeContainsWeaveTargets = false;
+		int codeEndOffset = codeOffset + codeLength - 2;
+
+		for (int i = codeOffset; (i < codeEndOffset) && !codeContainsWeaveTargets; i++) {
+
+			int opcode = classBytes[i] & 0xFF;
+
+			if ((opcode == INVOKEVIRTUAL) || (opcode == INVOKESTATIC)) {
+
+				int constantIndex = readUnsignedShort(classBytes, i + 1);
+				codeContainsWeaveTargets = (constantIndex < weaveTargetConstants.length) &&
+					weaveTargetConstants[constantIndex];
+			}
+		}
+
+		return codeContainsWeaveTargets;
+	}
+
+	/**
+	 * Returns true if the Methodref constant at the specified offset references a method which may be rewritten.
+	 */
+	private boolean isWeaveTarget(int methodrefOffset, boolean weaveClassLoadingCalls) {
+
+		int classOffset = constantOffsets[readUnsignedShort(classBytes, methodrefOffset)];
+		int ownerOffset = constantOffsets[readUnsignedShort(classBytes, classOffset)];
+		int nameAndTypeOffset = constantOffsets[readUnsignedShort(classBytes, methodrefOffset + 2)];
+		int nameOffset = constantOffsets[readUnsignedShort(classBytes, nameAndTypeOffset)];
+
+		return rewriteRuleTable.isWeaveTarget(classBytes, ownerOffset, nameOffset, weaveClassLoadingCalls);
+	}
+
+	/**
+	 * Decodes the (modified UTF-8) Utf8 constant with the specified index. For more details, see: <a
+	 * href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.4.7">
+	 * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.4.7</a>.
+	 */
+	private void readUTF8(int constantIndex, StringBuilder stringBuilder) {
+
+		int utf8Offset = constantOffsets[constantIndex];
+		int offset = utf8Offset + 2;
+		int endOffset = offset + readUnsignedShort(classBytes, utf8Offset);
+
+		while (offset < endOffset) {
+
+			int currentByte = classBytes[offset++] & 0xFF;
+
+			if ((currentByte & 0x80) == 0) {
+				stringBuilder.append((char) currentByte);
+			}
+			else if ((currentByte & 0xE0) == 0xC0) {
+				stringBuilder.append((char) (((currentByte & 0x1F) << 6) | (classBytes[offset++] & 0x3F)));
+			}
+			else {
+
+				int secondByte = classBytes[offset++] & 0x3F;
+				int thirdByte = classBytes[offset++] & 0x3F;
+				stringBuilder.append((char) (((currentByte & 0x0F) << 12) | (secondByte << 6) | thirdByte));
+			}
+		}
+	}
+
+	private void scanConstantPool(boolean weaveClassLoadingCalls, ScratchArrays scratchArrays) {
+
+		int constantPoolCount = readUnsignedShort(classBytes, CONSTANT_POOL_COUNT_OFFSET);
+		constantOffsets = scratchArrays.getConstantOffsets(constantPoolCount);
+
+		int offset = CONSTANT_POOL_COUNT_OFFSET + 2;
+		boolean containsMethodref = false;
+		boolean containsUnknownConstant = false;
+
+		for (int i = 1; (i < constantPoolCount) && !containsUnknownConstant; i++) {
+
+			// Store the offset of the constant's info (which follows the tag).
+			constantOffsets[i] = offset + 1;
+
+			int tag = classBytes[offset];
+
+			switch (tag) {
+
+			case CONSTANT_UTF8:
+
+				if (utf8Equals(classBytes, offset + 1, WOVEN_CLASS_ATTRIBUTE_NAME_BYTES)) {
+					wovenClassAttributeNameIndex = i;
+				}
+
+				offset += 3 + readUnsignedShort(classBytes, offset + 1);
+
+				break;
+
+			case CONSTANT_METHODREF:
+				containsMethodref = true;
+				offset += 5;
+
+				break;
+
+			case CONSTANT_INTEGER:
+			case CONSTANT_FLOAT:
+			case CONSTANT_FIELDREF:
+			case CONSTANT_INTERFACE_METHODREF:
+			case CONSTANT_NAME_AND_TYPE:
+			case CONSTANT_DYNAMIC:
+			case CONSTANT_INVOKE_DYNAMIC:
+				offset += 5;
+
+				break;
+
+			case CONSTANT_LONG:
+			case CONSTANT_DOUBLE:
+
+				// 8-byte constants take up two entries in the constant pool. Since the array may be reused, the
+				// unusable second entry must be cleared.
+				offset += 9;
+				i++;
+
+				if (i < constantPoolCount) {
+					constantOffsets[i] = 0;
+				}
+
+				break;
+
+			case CONSTANT_CLASS:
+			case CONSTANT_STRING:
+			case CONSTANT_METHOD_TYPE:
+			case CONSTANT_MODULE:
+			case CONSTANT_PACKAGE:
+				offset += 3;
+
+				break;
+
+			case CONSTANT_METHOD_HANDLE:
+				offset += 4;
+
+				break;
+
+			default:
+
+				// Unknown constant pool tag (perhaps from a newer class file format), so let ASM handle the class.
+				containsUnknownConstant = true;
+			}
+		}
+
+		constantPoolEndOffset = offset;
+		parsed = !containsUnknownConstant;
+
+		if (parsed && containsMethodref) {
+
+			weaveTargetConstants = scratchArrays.getWeaveTargetConstants(constantPoolCount);
+
+			for (int i = 1; i < constantPoolCount; i++) {
+
+				int constantOffset = constantOffsets[i];
+
+				if ((constantOffset != 0) && (classBytes[constantOffset - 1] == CONSTANT_METHODREF) &&
+						isWeaveTarget(constantOffset, weaveClassLoadingCalls)) {
+
+					weaveTargetConstants[i] = true;
+					containsWeaveTargets = true;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Walks the fields and methods which follow the constant pool (for more details, see: <a
+	 * href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.1">
+	 * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.1</a>) and returns the methods whose code
+	 * may contain weave targets along with their max_locals.
+	 */
+	private Map<String, Integer> scanMethods() {
+
+		Map<String, Integer> weaveTargetMethods = new HashMap<String, Integer>();
+
+		int offset = skipMembers(skipInterfaces());
+		int methodsCount = readUnsignedShort(classBytes, offset);
+		offset += 2;
+
+		StringBuilder stringBuilder = new StringBuilder();
+
+		for (int i = 0; i < methodsCount; i++) {
+
+			int nameIndex = readUnsignedShort(classBytes, offset + 2);
+			int descriptorIndex = readUnsignedShort(classBytes, offset + 4);
+			int attributesCount = readUnsignedShort(classBytes, offset + 6);
+			offset += 8;
+
+			for (int j = 0; j < attributesCount; j++) {
+
+				int attributeNameIndex = readUnsignedShort(classBytes, offset);
+				int attributeLength = readInt(classBytes, offset + 2);
+
+				// The Code attribute starts with max_stack, max_locals, and code_length followed by the code itself.
+				if (utf8Equals(classBytes, constantOffsets[attributeNameIndex], CODE_ATTRIBUTE_NAME_BYTES) &&
+						codeContainsWeaveTargets(offset + 14, readInt(classBytes, offset + 10))) {
+
+					stringBuilder.setLength(0);
+					readUTF8(nameIndex, stringBuilder);
+					readUTF8(descriptorIndex, stringBuilder);
+					weaveTargetMethods.put(stringBuilder.toString(), readUnsignedShort(classBytes, offset + 8));
+				}
+
+				offset += 6 + attributeLength;
+			}
+		}
+
+		return weaveTargetMethods;
+	}
+
+	/**
+	 * Skips the access flags, this_class, super_class, and interfaces which follow the constant pool and returns the
+	 * offset of fields_count.
+	 */
+	private int skipInterfaces() {
+
+		int offset = constantPoolEndOffset + 6;
+		int interfacesCount = readUnsignedShort(classBytes, offset);
+
+		return offset + 2 + (interfacesCount * 2);
+	}
+
+	/**
+	 * Skips the fields (or methods) starting with the fields_count (or methods_count) at the specified offset and
+	 * returns the offset of the next item in the class file.
+	 */
+	private int skipMembers(int membersCountOffset) {
+
+		int membersCount = readUnsignedShort(classBytes, membersCountOffset);
+		int offset = membersCountOffset + 2;
+
+		for (int i = 0; i < membersCount; i++) {
+
+			// Skip the access flags, name_index, and descriptor_index.
+			offset += 6;
+
+			int attributesCount = readUnsignedShort(classBytes, offset);
+			offset += 2;
+
+			for (int j = 0; j < attributesCount; j++) {
+				offset += 6 + readInt(classBytes, offset + 2);
+			}
+		}
+
+		return offset;
+	}
+
+	/**
+	 * The arrays which are reused by each thread to scan constant pools.
+	 */
+	private static final class ScratchArrays {
+
+		// Private Data Members
+		private int[] constantOffsets = new int[1024];
+		private boolean inUse;
+		private boolean[] weaveTargetConstants = new boolean[1024];
+
+		/**
+		 * Returns an array with at least the specified length. Only the offsets of constants which have been scanned
+		 * are read, so the array does not need to be cleared.
+		 */
+		private int[] getConstantOffsets(int constantPoolCount) {
+
+			if (constantOffsets.length < constantPoolCount) {
+				constantOffsets = new int[constantPoolCount];
+			}
+
+			return constantOffsets;
+		}
+
+		/**
+		 * Returns a cleared array with at least the specified length.
+		 */
+		private boolean[] getWeaveTargetConstants(int constantPoolCount) {
+
+			if (weaveTargetConstants.length < constantPoolCount) {
+				weaveTargetConstants = new boolean[constantPoolCount];
+			}
+			else {
+				Arrays.fill(weaveTargetConstants, 0, constantPoolCount, false);
+			}
+
+			return weaveTargetConstants;
+		}
+
+		private void release() {
+
+			inUse = false;
+
+			if (constantOffsets.length > MAX_RETAINED_CONSTANT_POOL_COUNT) {
+				constantOffsets = new int[1024];
+			}
+
+			if (weaveTargetConstants.length > MAX_RETAINED_CONSTANT_POOL_COUNT) {
+				weaveTargetConstants = new boolean[1024];
+			}
+		}
+	}
+}
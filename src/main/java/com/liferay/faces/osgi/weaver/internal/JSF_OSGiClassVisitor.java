@@ -13,30 +13,151 @@
  */
 package com.liferay.faces.osgi.weaver.internal;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 
+import com.liferay.faces.osgi.weaver.runtime.CallSiteProbes;
+
 
 /**
  * @author  Kyle Stiemann
  */
 /* package-private */ final class JSF_OSGiClassVisitor extends ClassVisitor {
 
+	// Private Constants
+	private static final String CACHED_CLASS_FIELD_NAME_PREFIX = "liferayFacesOSGiWeaver$cachedClass$";
+	private static final String CACHED_CLASS_METHOD_NAME_PREFIX = "liferayFacesOSGiWeaver$getCachedClass$";
+	private static final String CALL_SITE_PROBE_METHOD_NAME_PREFIX = "liferayFacesOSGiWeaver$probeCallSite$";
+	private static final String CURRENT_FACES_CONTEXT_METHOD_NAME = "liferayFacesOSGiWeaver$getCurrentFacesContext";
+	private static final int MAX_LOCALS = 0xFFFF;
+
 	// Private Final Data Members
+	private final String bundleSymbolicName;
+	private final String bundleVersion;
 	private final ClassLoader bundleWiringClassLoader;
+	private final Map<String, String> cachedClassMethodNames;
+	private final List<Integer> callSiteIds;
+	private final List<CallSiteProbeMethod> callSiteProbeMethods;
+	private final boolean callSiteProbes;
 	private final String currentClassType;
+	private final boolean invokeDynamicCallSitesEnabled;
+	private final boolean reuseFacesContext;
+	private final RewriteRuleTable rewriteRuleTable;
+	private final SuperTypeCache superTypeCache;
 	private final boolean weaveClassLoadingCalls;
+	private final Map<String, Integer> weaveTargetMethods;
 
 	// Private Data Members
 	private boolean classModified;
+	private boolean currentClassFinal;
+	private boolean currentClassInterface;
+	private boolean currentFacesContextMethodUsed;
+	private Boolean facesContextType;
+	private boolean invokeDynamicCallSites;
+	private String superType;
 
-	/* package-private */ JSF_OSGiClassVisitor(boolean weaveClassLoadingCalls, OSGiClassWriter osgiClassWriter, String className) {
+	/**
+	 * @param  bundleSymbolicName      The symbolic name of the bundle which contains the class.
+	 * @param  bundleVersion           The version of the bundle which contains the class.
+	 * @param  weaveTargetMethods      The name and descriptor of each method which may need to be rewritten mapped to
+	 *                                 its max_locals (see {@link ConstantPoolScanner#getWeaveTargetMethods()}) or null
+	 *                                 if every method may need to be rewritten. Other methods are passed directly to
+	 *                                 the {@link OSGiClassWriter}, so if it was created with the class's {@link
+	 *                                 org.objectweb.asm.ClassReader}, they are copied as-is without being parsed or
+	 *                                 rewritten.
+	 * @param  invokeDynamicCallSites  If true, <code>ClassLoader.loadClass(String)</code> and <code>
+	 *                                 Class.forName(String)</code> calls in Java 7+ classes are replaced with <code>
+	 *                                 invokedynamic</code> call sites which cache the classes that they resolve (see
+	 *                                 {@link com.liferay.faces.osgi.weaver.runtime.ClassLoadingCallSites}).
+	 * @param  reuseFacesContext       If true, the rewritten calls of each method share the <code>FacesContext</code>
+	 *                                 through a new local variable (see {@link #getFacesContextLocal(String, String)}).
+	 *                                 The frames of the rewritten methods must be expanded.
+	 * @param  callSiteProbes          If true, each rewritten call is counted and a sample of its calls is timed (see
+	 *                                 {@link #getCallSiteProbeMethodName(int, RewriteRuleTable.CompiledRule,
+	 *                                 boolean)}).
+	 * @param  rewriteRuleTable        The rules which describe the rewritten calls (which must be the rules that the
+	 *                                 weave target methods were found with).
+	 */
+	/* package-private */ JSF_OSGiClassVisitor(boolean weaveClassLoadingCalls, OSGiClassWriter osgiClassWriter,
+		String className, String bundleSymbolicName, String bundleVersion, Map<String, Integer> weaveTargetMethods,
+		boolean invokeDynamicCallSites, boolean reuseFacesContext, boolean callSiteProbes,
+		RewriteRuleTable rewriteRuleTable) {
 
 		super(Opcodes.ASM5, osgiClassWriter);
 		this.weaveClassLoadingCalls = weaveClassLoadingCalls;
+		this.bundleSymbolicName = bundleSymbolicName;
+		this.bundleVersion = bundleVersion;
+		this.invokeDynamicCallSitesEnabled = invokeDynamicCallSites;
+		this.reuseFacesContext = reuseFacesContext;
+		this.callSiteProbes = callSiteProbes;
+		this.rewriteRuleTable = rewriteRuleTable;
+		this.weaveTargetMethods = weaveTargetMethods;
 		this.bundleWiringClassLoader = osgiClassWriter.getBundleWiringClassLoader();
+		this.superTypeCache = osgiClassWriter.getSuperTypeCache();
 		this.currentClassType = JSF_OSGiMethodVisitor.getTypeString(className);
+		this.cachedClassMethodNames = new LinkedHashMap<String, String>();
+		this.callSiteIds = new ArrayList<Integer>();
+		this.callSiteProbeMethods = new ArrayList<CallSiteProbeMethod>();
+	}
+
+	@Override
+	public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+
+		this.superType = superName;
+		this.currentClassInterface = (access & Opcodes.ACC_INTERFACE) != 0;
+		this.currentClassFinal = (access & Opcodes.ACC_FINAL) != 0;
+
+		// invokedynamic is only available in Java 7+ class files. The minor version is stored in the upper 16 bits.
+		this.invokeDynamicCallSites = invokeDynamicCallSitesEnabled && ((version & 0xFFFF) >= Opcodes.V1_7);
+		super.visit(version, access, name, signature, superName, interfaces);
+	}
+
+	/**
+	 * Adds the fields and methods which cache the classes of folded <code>Class.forName(String)</code> calls (see
+	 * {@link #getCachedClassMethodName(String)}), the method which obtains the reused <code>FacesContext</code> (see
+	 * {@link #getCurrentFacesContextMethodName()}), and the methods which probe rewritten calls (see {@link
+	 * #getCallSiteProbeMethodName(int, RewriteRuleTable.CompiledRule, boolean)}).
+	 */
+	@Override
+	public void visitEnd() {
+
+		int index = 0;
+
+		for (Map.Entry<String, String> cachedClassMethodName : cachedClassMethodNames.entrySet()) {
+
+			if (cachedClassMethodName.getValue() != null) {
+
+				JSF_OSGiMethodVisitor.visitCachedClassMembers(cv, currentClassType, cachedClassMethodName.getKey(),
+					CACHED_CLASS_FIELD_NAME_PREFIX + index, cachedClassMethodName.getValue());
+			}
+
+			index++;
+		}
+
+		if (currentFacesContextMethodUsed) {
+			JSF_OSGiMethodVisitor.visitCurrentFacesContextMethod(cv, CURRENT_FACES_CONTEXT_METHOD_NAME);
+		}
+
+		for (CallSiteProbeMethod callSiteProbeMethod : callSiteProbeMethods) {
+
+			if (callSiteProbeMethod.cachedClassMethodName != null) {
+				JSF_OSGiMethodVisitor.visitCachedClassProbeMethod(cv, callSiteProbeMethod.methodName,
+					callSiteProbeMethod.callSiteId, currentClassType, callSiteProbeMethod.cachedClassMethodName);
+			}
+			else {
+				JSF_OSGiMethodVisitor.visitCallSiteProbeMethod(cv, callSiteProbeMethod.methodName,
+					callSiteProbeMethod.callSiteId, callSiteProbeMethod.compiledRule,
+					callSiteProbeMethod.invokeDynamic);
+			}
+		}
+
+		super.visitEnd();
 	}
 
 	@Override
@@ -46,49 +167,267 @@ import org.objectweb.asm.Opcodes;
 
 		// Since OSGiClassLoaderUtil relies on FacesContext.getInstance(), avoid calling OSGiClassLoaderUtil in
 		// FacesContext initialization to avoid circular calls.
-		if (!isFacesContextInit(name)) {
-			methodVisitor = new JSF_OSGiMethodVisitor(this, methodVisitor, access, name, desc);
+		if (isWeaveTargetMethod(name, desc) && !isFacesContextInit(name)) {
+			methodVisitor = new JSF_OSGiMethodVisitor(this, methodVisitor, access, name, desc,
+					getFacesContextLocal(name, desc));
 		}
 
 		return methodVisitor;
 	}
 
+	/**
+	 * Returns the name of the method which returns the cached class with the specified name or null if <code>
+	 * Class.forName(className)</code> cannot be folded into a cached class. Only classes which are visible through the
+	 * bundle wiring's class loader are cached, so calls for other classes (which may be provided by a different bundle
+	 * each time) keep resolving the class on every call. Interfaces cannot declare the (non-final) field which caches
+	 * the class, so their calls are not folded either. Only the calls of static methods and final classes are folded
+	 * (see {@link JSF_OSGiMethodVisitor#visitMethodInsn(int, String, String, String, boolean)}). The method and field
+	 * are added to the class when it has been visited (see {@link #visitEnd()}).
+	 *
+	 * @param  className  The binary name of the class which is passed to <code>Class.forName()</code> as a constant.
+	 */
+	/* package-private */ String getCachedClassMethodName(String className) {
+
+		String cachedClassMethodName = cachedClassMethodNames.get(className);
+
+		if ((cachedClassMethodName == null) && !cachedClassMethodNames.containsKey(className)) {
+
+			if (!currentClassInterface && isVisibleClass(className)) {
+				cachedClassMethodName = CACHED_CLASS_METHOD_NAME_PREFIX + cachedClassMethodNames.size();
+			}
+
+			cachedClassMethodNames.put(className, cachedClassMethodName);
+		}
+
+		return cachedClassMethodName;
+	}
+
+	/**
+	 * Returns the ids of the call sites which were registered while the class was visited (see {@link
+	 * #registerCallSite(String, int, int, String)}).
+	 */
+	/* package-private */ List<Integer> getCallSiteIds() {
+		return callSiteIds;
+	}
+
+	/**
+	 * Returns the binary names of the classes whose <code>Class.forName(String)</code> calls were folded into cached
+	 * classes while the class was visited (see {@link #getCachedClassMethodName(String)}).
+	 */
+	/* package-private */ List<String> getFoldedClassNames() {
+
+		List<String> foldedClassNames = new ArrayList<String>();
+
+		for (Map.Entry<String, String> cachedClassMethodName : cachedClassMethodNames.entrySet()) {
+
+			if (cachedClassMethodName.getValue() != null) {
+				foldedClassNames.add(cachedClassMethodName.getKey());
+			}
+		}
+
+		return foldedClassNames;
+	}
+
+	/**
+	 * Returns the name of a new method which calls the replacement of a rewritten call between <code>
+	 * CallSiteProbes.enter()</code> and <code>CallSiteProbes.exit()</code> (see {@link
+	 * com.liferay.faces.osgi.weaver.runtime.CallSiteProbes}) or null if the current class is an interface (which
+	 * cannot declare the private static method before Java 9). The method has the same descriptor as the replacement
+	 * (or <code>invokedynamic</code> call site), so the rewritten call invokes it instead without needing any new local
+	 * variables or branches. The method is added to the class when it has been visited (see {@link #visitEnd()}).
+	 *
+	 * @param  invokeDynamic  If true, the method calls the <code>invokedynamic</code> call site of the rule rather than
+	 *                        its replacement method.
+	 */
+	/* package-private */ String getCallSiteProbeMethodName(int callSiteId, RewriteRuleTable.CompiledRule compiledRule,
+		boolean invokeDynamic) {
+
+		String callSiteProbeMethodName = null;
+
+		if (!currentClassInterface) {
+
+			callSiteProbeMethodName = CALL_SITE_PROBE_METHOD_NAME_PREFIX + callSiteProbeMethods.size();
+			callSiteProbeMethods.add(new CallSiteProbeMethod(callSiteProbeMethodName, callSiteId, compiledRule,
+					invokeDynamic, null));
+		}
+
+		return callSiteProbeMethodName;
+	}
+
+	/**
+	 * Returns the name of a new method which calls the method that returns a cached class (see {@link
+	 * #getCachedClassMethodName(String)}) between <code>CallSiteProbes.enter()</code> and <code>
+	 * CallSiteProbes.exit()</code>, so that folded <code>Class.forName(String)</code> calls are probed like rewritten
+	 * calls. Calls are only folded in classes, so the method can always be declared. The method is added to the class
+	 * when it has been visited (see {@link #visitEnd()}).
+	 */
+	/* package-private */ String getCallSiteProbeMethodName(int callSiteId, String cachedClassMethodName) {
+
+		String callSiteProbeMethodName = CALL_SITE_PROBE_METHOD_NAME_PREFIX + callSiteProbeMethods.size();
+		callSiteProbeMethods.add(new CallSiteProbeMethod(callSiteProbeMethodName, callSiteId, null, false,
+				cachedClassMethodName));
+
+		return callSiteProbeMethodName;
+	}
+
 	/* package-private */ String getCurrentClassType() {
 		return currentClassType;
 	}
 
+	/**
+	 * Returns the name of the method which returns its <code>FacesContext</code> argument or, if the argument is null,
+	 * the current <code>FacesContext</code>. The method is added to the class when it has been visited (see {@link
+	 * #visitEnd()}).
+	 */
+	/* package-private */ String getCurrentFacesContextMethodName() {
+
+		currentFacesContextMethodUsed = true;
+
+		return CURRENT_FACES_CONTEXT_METHOD_NAME;
+	}
+
+	/* package-private */ RewriteRuleTable getRewriteRuleTable() {
+		return rewriteRuleTable;
+	}
+
+	/**
+	 * Returns true if rewritten calls are counted and timed by {@link
+	 * com.liferay.faces.osgi.weaver.runtime.CallSiteProbes}.
+	 */
+	/* package-private */ boolean isCallSiteProbes() {
+		return callSiteProbes;
+	}
+
 	/* package-private */ boolean isClassModified() {
 		return classModified;
 	}
 
+	/**
+	 * Returns true if the current class is final, so that the class of <code>this</code> is always the current class.
+	 */
+	/* package-private */ boolean isCurrentClassFinal() {
+		return currentClassFinal;
+	}
+
+	/**
+	 * Returns true if class loading calls are replaced with <code>invokedynamic</code> call sites.
+	 */
+	/* package-private */ boolean isInvokeDynamicCallSites() {
+		return invokeDynamicCallSites;
+	}
+
 	/* package-private */ boolean isWeaveClassLoadingCalls() {
 		return weaveClassLoadingCalls;
 	}
 
+	/**
+	 * Registers a probed call site of the class with {@link com.liferay.faces.osgi.weaver.runtime.CallSiteProbes}. The
+	 * call site is not reported until the class has been woven and the weaver has committed the ids returned by {@link
+	 * #getCallSiteIds()}.
+	 *
+	 * @return  The id of the call site or -1 if no more call sites can be registered.
+	 */
+	/* package-private */ int registerCallSite(String methodName, int lineNumber, int ordinal, String call) {
+
+		int callSiteId = CallSiteProbes.register(bundleSymbolicName, bundleVersion, currentClassType.replace('/', '.'),
+				methodName, lineNumber, ordinal, call);
+
+		if (callSiteId >= 0) {
+			callSiteIds.add(callSiteId);
+		}
+
+		return callSiteId;
+	}
+
 	/* package-private */ void setClassModified(boolean classModified) {
 		this.classModified = classModified;
 	}
 
-	private boolean isFacesContextInit(String methodName) {
+	/**
+	 * Returns the index of the local variable which holds the <code>FacesContext</code> that the rewritten calls of the
+	 * specified method share or -1 if each rewritten call obtains the current <code>FacesContext</code> itself. The
+	 * local variable is added after the method's existing local variables (at the method's max_locals), so none of the
+	 * existing local variables need to be remapped. The <code>FacesContext</code> is not shared in static initializers,
+	 * in methods whose max_locals is unknown, or in interfaces (which cannot declare the private static method that
+	 * obtains the <code>FacesContext</code> before Java 9).
+	 */
+	private int getFacesContextLocal(String methodName, String methodDesc) {
+
+		int facesContextLocal = -1;
+
+		if (reuseFacesContext && !currentClassInterface && (weaveTargetMethods != null) &&
+				!"<clinit>".equals(methodName)) {
 
-		boolean isFacesContextInit = false;
+			Integer maxLocals = weaveTargetMethods.get(methodName.concat(methodDesc));
 
-		if ("<clinit>".equals(methodName) || "<init>".equals(methodName)) {
+			if ((maxLocals != null) && (maxLocals < MAX_LOCALS)) {
+				facesContextLocal = maxLocals;
+			}
+		}
 
-			IterableLazyTypeHierarchy iterableLazyTypeHierarchy = new IterableLazyTypeHierarchy(currentClassType,
-					bundleWiringClassLoader);
+		return facesContextLocal;
+	}
 
-			for (String type : iterableLazyTypeHierarchy) {
+	private boolean isVisibleClass(String className) {
 
-				if (JSF_OSGiMethodVisitor.FACES_CONTEXT_TYPE_STRING.equals(type)) {
+		// Array and malformed class names never have a class file.
+		return (className.length() > 0) && (className.indexOf('/') < 0) && (className.indexOf('[') < 0) &&
+			(bundleWiringClassLoader.getResource(JSF_OSGiMethodVisitor.getTypeString(className).concat(".class")) !=
+				null);
+	}
 
-					isFacesContextInit = true;
+	private boolean isWeaveTargetMethod(String methodName, String methodDesc) {
+		return (weaveTargetMethods == null) || weaveTargetMethods.containsKey(methodName.concat(methodDesc));
+	}
 
-					break;
-				}
+	private boolean isFacesContextInit(String methodName) {
+		return ("<clinit>".equals(methodName) || "<init>".equals(methodName)) && isFacesContextType();
+	}
+
+	/**
+	 * Returns true if the current class is (or extends) <code>FacesContext</code>. The result is computed at most once
+	 * per class and only once a constructor or static initializer may need to be rewritten. The super class from
+	 * {@link #visit(int, int, String, String, String, String[])} is used directly, so the current class's own class
+	 * file is never read, and the rest of the hierarchy is shared with other classes from the same bundle wiring
+	 * through the {@link SuperTypeCache}.
+	 */
+	private boolean isFacesContextType() {
+
+		if (facesContextType == null) {
+
+			if (JSF_OSGiMethodVisitor.FACES_CONTEXT_TYPE_STRING.equals(currentClassType)) {
+				facesContextType = Boolean.TRUE;
+			}
+			else {
+				facesContextType = (superType != null) &&
+					superTypeCache.isFacesContextType(superType, bundleWiringClassLoader);
 			}
 		}
 
-		return isFacesContextInit;
+		return facesContextType;
+	}
+
+	private static final class CallSiteProbeMethod {
+
+		// Private Final Data Members
+		private final String cachedClassMethodName;
+		private final int callSiteId;
+		private final RewriteRuleTable.CompiledRule compiledRule;
+		private final boolean invokeDynamic;
+		private final String methodName;
+
+		/**
+		 * @param  cachedClassMethodName  The name of the method which returns the cached class of a folded call or
+		 *                                null if the method probes a rewritten call.
+		 */
+		private CallSiteProbeMethod(String methodName, int callSiteId, RewriteRuleTable.CompiledRule compiledRule,
+			boolean invokeDynamic, String cachedClassMethodName) {
+
+			this.methodName = methodName;
+			this.callSiteId = callSiteId;
+			this.compiledRule = compiledRule;
+			this.invokeDynamic = invokeDynamic;
+			this.cachedClassMethodName = cachedClassMethodName;
+		}
 	}
 }
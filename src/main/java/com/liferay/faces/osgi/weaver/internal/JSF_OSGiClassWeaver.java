@@ -0,0 +1,191 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.objectweb.asm.Attribute;
+import org.objectweb.asm.ByteVector;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+import com.liferay.faces.osgi.weaver.runtime.CallSiteProbes;
+
+
+/**
+ * Runs the {@link JSF_OSGiClassVisitor} over the classes of a single bundle (or jar). This class is shared by {@link
+ * JSF_OSGiWeavingHook} (which weaves classes as they are loaded) and {@link JSF_OSGiJarWeaver} (which weaves jars at
+ * build time), so that both produce the same bytecode.
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class JSF_OSGiClassWeaver {
+
+	/**
+	 * The name of the (empty) class file attribute which marks classes woven at build time. Since the JVM ignores
+	 * unknown class file attributes, the marker does not affect the class at runtime. For more details, see: <a
+	 * href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.7.1">
+	 * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.7.1</a>.
+	 */
+	/* package-private */ static final String WOVEN_CLASS_ATTRIBUTE_NAME = "com.liferay.faces.osgi.weaver.Woven";
+
+	// Private Constants
+	private static final int CLASS_MAJOR_VERSION_BYTE_OFFSET = 6;
+
+	// Private Final Data Members
+	private final String bundleSymbolicName;
+	private final String bundleVersion;
+	private final boolean callSiteProbes;
+	private final ClassLoader classLoader;
+	private final boolean invokeDynamicCallSites;
+	private final boolean markWovenClasses;
+	private final boolean reuseFacesContext;
+	private final StackMapFrameMode stackMapFrameMode;
+	private final SuperTypeCache superTypeCache;
+	private final boolean weaveClassLoadingCalls;
+
+	/**
+	 * @param  classLoader             The class loader used to resolve the type hierarchy of woven classes.
+	 * @param  bundleSymbolicName      The name of the bundle (or jar) containing the woven classes.
+	 * @param  bundleVersion           The version of the bundle (or jar) containing the woven classes.
+	 * @param  superTypeCache          The cache shared by all classes whose hierarchy is resolved through the class
+	 *                                 loader. The time spent visiting and writing classes is recorded with the cache's
+	 *                                 {@link SuperTypeCache#getBundleWeaverMetricsRecorder() metrics recorder}.
+	 * @param  weaveClassLoadingCalls  If false, only calls to {@link java.util.ResourceBundle}<code>.getBundle()</code>
+	 *                                 are woven.
+	 * @param  markWovenClasses        If true, woven classes are marked with the {@link #WOVEN_CLASS_ATTRIBUTE_NAME}
+	 *                                 attribute so that they are not woven again at runtime.
+	 * @param  invokeDynamicCallSites  If true, class loading calls in Java 7+ classes are replaced with caching
+	 *                                 <code>invokedynamic</code> call sites (see {@link
+	 *                                 com.liferay.faces.osgi.weaver.runtime.ClassLoadingCallSites}).
+	 * @param  reuseFacesContext       If true, the first rewritten call of each method invocation stores the current
+	 *                                 <code>FacesContext</code> in a new local variable which the method's later
+	 *                                 rewritten calls reuse (see {@link JSF_OSGiMethodVisitor}). Static initializers
+	 *                                 obtain the <code>FacesContext</code> at each call as usual.
+	 * @param  callSiteProbes          If true, each rewritten call is counted and a sample of its calls is timed (see
+	 *                                 {@link com.liferay.faces.osgi.weaver.runtime.CallSiteProbes}). The call sites
+	 *                                 of a class are only committed once the class has been woven.
+	 */
+	/* package-private */ JSF_OSGiClassWeaver(StackMapFrameMode stackMapFrameMode, ClassLoader classLoader,
+		String bundleSymbolicName, String bundleVersion, SuperTypeCache superTypeCache, boolean weaveClassLoadingCalls,
+		boolean markWovenClasses, boolean invokeDynamicCallSites, boolean reuseFacesContext,
+		boolean callSiteProbes) {
+
+		this.stackMapFrameMode = stackMapFrameMode;
+		this.classLoader = classLoader;
+		this.bundleSymbolicName = bundleSymbolicName;
+		this.bundleVersion = bundleVersion;
+		this.superTypeCache = superTypeCache;
+		this.weaveClassLoadingCalls = weaveClassLoadingCalls;
+		this.markWovenClasses = markWovenClasses;
+		this.invokeDynamicCallSites = invokeDynamicCallSites;
+		this.reuseFacesContext = reuseFacesContext;
+		this.callSiteProbes = callSiteProbes;
+	}
+
+	/* package-private */ boolean isWeaveClassLoadingCalls() {
+		return weaveClassLoadingCalls;
+	}
+
+	/**
+	 * Returns the woven bytes of the class or null if the class did not need to be modified.
+	 *
+	 * @param  className            The binary name of the class (for example <code>com.example.Example</code>).
+	 * @param  bytes                The bytes of the class file.
+	 * @param  constantPoolScanner  The scanner which has already determined that the class contains weave targets.
+	 *
+	 * @throws  CommonSuperClassNotFoundException  If stack map frames are computed and the type hierarchy of the class
+	 *                                             cannot be resolved.
+	 */
+	/* package-private */ byte[] weave(String className, byte[] bytes, ConstantPoolScanner constantPoolScanner)
+		throws CommonSuperClassNotFoundException {
+		return weave(className, bytes, constantPoolScanner, new ArrayList<String>());
+	}
+
+	/**
+	 * Returns the woven bytes of the class or null if the class did not need to be modified, and adds the binary names
+	 * of the classes whose <code>Class.forName(String)</code> calls were folded into cached classes to the specified
+	 * list. Since a call is only folded if its class is visible through the class loader (see {@link
+	 * JSF_OSGiClassVisitor#getCachedClassMethodName(String)}), the woven bytes of a class with folded calls depend on
+	 * the bundle's wiring as well as on its bytes.
+	 *
+	 * @param  className            The binary name of the class (for example <code>com.example.Example</code>).
+	 * @param  bytes                The bytes of the class file.
+	 * @param  constantPoolScanner  The scanner which has already determined that the class contains weave targets.
+	 * @param  foldedClassNames     The list to which the names of the folded classes are added.
+	 *
+	 * @throws  CommonSuperClassNotFoundException  If stack map frames are computed and the type hierarchy of the class
+	 *                                             cannot be resolved.
+	 */
+	/* package-private */ byte[] weave(String className, byte[] bytes, ConstantPoolScanner constantPoolScanner,
+		List<String> foldedClassNames) throws CommonSuperClassNotFoundException {
+
+		ClassReader classReader = new ClassReader(bytes);
+		int majorVersion = classReader.readUnsignedShort(CLASS_MAJOR_VERSION_BYTE_OFFSET);
+
+		// Seeding the class writer with the class reader allows methods which do not contain any calls that need to be
+		// woven to be copied as-is rather than being parsed and rebuilt.
+		OSGiClassWriter osgiClassWriter = new OSGiClassWriter(classReader, stackMapFrameMode.getClassWriterFlags(),
+				classLoader, bundleSymbolicName, superTypeCache);
+		JSF_OSGiClassVisitor jsfOSGiClassVisitor = new JSF_OSGiClassVisitor(weaveClassLoadingCalls, osgiClassWriter,
+				className, bundleSymbolicName, bundleVersion, constantPoolScanner.getWeaveTargetMethods(),
+				invokeDynamicCallSites, reuseFacesContext, callSiteProbes, constantPoolScanner.getRewriteRuleTable());
+		BundleWeaverMetricsRecorder bundleWeaverMetricsRecorder = superTypeCache.getBundleWeaverMetricsRecorder();
+		int classReaderFlags = stackMapFrameMode.getClassReaderFlags(majorVersion, reuseFacesContext);
+		long startTime = System.nanoTime();
+		classReader.accept(jsfOSGiClassVisitor, classReaderFlags);
+		bundleWeaverMetricsRecorder.recordClassReaderAccept(System.nanoTime() - startTime);
+
+		byte[] wovenBytes = null;
+
+		if (jsfOSGiClassVisitor.isClassModified()) {
+
+			// Whether the class was modified is only known once the whole class has been visited, so the marker is
+			// added directly to the class writer (which accepts attributes in any order) after the class is visited.
+			if (markWovenClasses) {
+				osgiClassWriter.visitAttribute(new WovenClassAttribute());
+			}
+
+			startTime = System.nanoTime();
+			wovenBytes = osgiClassWriter.toByteArray();
+			bundleWeaverMetricsRecorder.recordToByteArray(System.nanoTime() - startTime);
+
+			// The probed call sites are only reported once the class has been woven, so a failed weave (for example
+			// due to a CommonSuperClassNotFoundException) does not leave call sites behind which are never called.
+			for (Integer callSiteId : jsfOSGiClassVisitor.getCallSiteIds()) {
+				CallSiteProbes.commit(callSiteId);
+			}
+
+			foldedClassNames.addAll(jsfOSGiClassVisitor.getFoldedClassNames());
+		}
+
+		return wovenBytes;
+	}
+
+	private static final class WovenClassAttribute extends Attribute {
+
+		private WovenClassAttribute() {
+			super(WOVEN_CLASS_ATTRIBUTE_NAME);
+		}
+
+		@Override
+		protected ByteVector write(ClassWriter classWriter, byte[] code, int codeLength, int maxStack,
+			int maxLocals) {
+			return new ByteVector(0);
+		}
+	}
+}
@@ -0,0 +1,481 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.osgi.framework.Version;
+
+
+/**
+ * Weaves the classes of a Faces bundle jar at build time so that the work does not need to be repeated by {@link
+ * JSF_OSGiWeavingHook} every time that the bundle is installed or refreshed. The classes of the jar are woven in
+ * parallel and the type hierarchy of each class is resolved from the jar itself and the specified classpath. Woven
+ * classes are marked with the {@link JSF_OSGiClassWeaver#WOVEN_CLASS_ATTRIBUTE_NAME} attribute, so at runtime {@link
+ * JSF_OSGiWeavingHook} only adds the dynamic import required by woven classes. Since the runtime weaving policy may
+ * exclude the bundle (in which case its classes never reach the weaving hook), the dynamic import is also added to the
+ * DynamicImport-Package header of the manifest if any class was woven. All other jar entries are copied unchanged and
+ * in their original order. Classes which cannot be woven and jars which are not Faces bundles are reported to the
+ * {@link WarningListener} rather than failing the build.
+ *
+ * <p>Usage: <code>java -cp com.liferay.faces.osgi.weaver.jar:asm.jar:asm-commons.jar:org.osgi.core.jar
+ * com.liferay.faces.osgi.weaver.internal.JSF_OSGiJarWeaver [-classpath path] [-threads count] [-stackMapFrames mode]
+ * input.jar [output.jar]</code></p>
+ *
+ * <p>This class is public so that it can be used by the weaver Maven plugin.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+public final class JSF_OSGiJarWeaver {
+
+	// Private Constants
+	private static final String CLASS_FILE_EXTENSION = ".class";
+	private static final String DYNAMIC_IMPORT_PACKAGE = "DynamicImport-Package";
+	private static final String USAGE =
+		"Usage: JSF_OSGiJarWeaver [-classpath path] [-threads count] [-stackMapFrames compute|preserve|drop-java-1-6] input.jar [output.jar]";
+
+	// Private Final Data Members
+	private final List<File> classpath;
+	private final StackMapFrameMode stackMapFrameMode;
+	private final int threadCount;
+	private final WeavingPolicy weavingPolicy;
+
+	/**
+	 * @param  classpath          The jars and directories (in addition to the woven jar) from which the type hierarchy
+	 *                            of woven classes is resolved.
+	 * @param  stackMapFrameMode  The name of the stack map frame mode (<code>compute</code>, <code>preserve</code>, or
+	 *                            <code>drop-java-1-6</code>).
+	 * @param  threadCount        The number of threads used to weave classes.
+	 *
+	 * @throws  IllegalArgumentException  If the stack map frame mode or thread count is invalid.
+	 */
+	public JSF_OSGiJarWeaver(List<File> classpath, String stackMapFrameMode, int threadCount) {
+
+		if (threadCount < 1) {
+			throw new IllegalArgumentException("threadCount must be greater than 0.");
+		}
+
+		this.classpath = Collections.unmodifiableList(new ArrayList<File>(classpath));
+		this.stackMapFrameMode = StackMapFrameMode.fromString(stackMapFrameMode);
+		this.threadCount = threadCount;
+
+		// Jars are woven with the default policy, since the policy configured at runtime is not known at build time.
+		this.weavingPolicy = WeavingPolicy.getDefault();
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		List<File> classpath = new ArrayList<File>();
+		String stackMapFrameMode = StackMapFrameMode.COMPUTE.name();
+		int threadCount = Runtime.getRuntime().availableProcessors();
+		List<File> jars = new ArrayList<File>();
+
+		for (int i = 0; i < args.length; i++) {
+
+			String arg = args[i];
+
+			if (("-classpath".equals(arg) || "-cp".equals(arg)) && ((i + 1) < args.length)) {
+
+				for (String path : args[++i].split(File.pathSeparator)) {
+
+					if (path.length() > 0) {
+						classpath.add(new File(path));
+					}
+				}
+			}
+			else if ("-threads".equals(arg) && ((i + 1) < args.length)) {
+				threadCount = Integer.parseInt(args[++i]);
+			}
+			else if ("-stackMapFrames".equals(arg) && ((i + 1) < args.length)) {
+				stackMapFrameMode = args[++i];
+			}
+			else if (!arg.startsWith("-")) {
+				jars.add(new File(arg));
+			}
+			else {
+				jars.clear();
+
+				break;
+			}
+		}
+
+		if (jars.isEmpty() || (jars.size() > 2)) {
+
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+		else {
+
+			File inputJar = jars.get(0);
+			File outputJar = inputJar;
+
+			if (jars.size() > 1) {
+				outputJar = jars.get(1);
+			}
+
+			JSF_OSGiJarWeaver jsfOSGiJarWeaver = new JSF_OSGiJarWeaver(classpath, stackMapFrameMode, threadCount);
+			int wovenClassCount = jsfOSGiJarWeaver.weave(inputJar, outputJar, new WarningListener() {
+
+						@Override
+						public void warn(String message) {
+							System.err.println("WARNING: " + message);
+						}
+					});
+			System.out.println("Wove " + wovenClassCount + " classes of " + inputJar + " into " + outputJar + ".");
+		}
+	}
+
+	private static String getClassName(String entryName) {
+		return entryName.substring(0, entryName.length() - CLASS_FILE_EXTENSION.length()).replace('/', '.');
+	}
+
+	/**
+	 * Returns the bytes of the manifest with the dynamic import required by woven classes.
+	 */
+	private static byte[] getWovenManifestBytes(Manifest manifest) throws IOException {
+
+		Manifest wovenManifest = new Manifest(manifest);
+		Attributes mainAttributes = wovenManifest.getMainAttributes();
+		String dynamicImportPackage = mainAttributes.getValue(DYNAMIC_IMPORT_PACKAGE);
+
+		if ((dynamicImportPackage == null) || (dynamicImportPackage.trim().length() == 0)) {
+			dynamicImportPackage = JSF_OSGiWeavingHook.OSGI_CLASS_LOADER_DYNAMIC_IMPORT;
+		}
+		else {
+			dynamicImportPackage = dynamicImportPackage + "," + JSF_OSGiWeavingHook.OSGI_CLASS_LOADER_DYNAMIC_IMPORT;
+		}
+
+		mainAttributes.putValue(DYNAMIC_IMPORT_PACKAGE, dynamicImportPackage);
+
+		ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		wovenManifest.write(byteArrayOutputStream);
+
+		return byteArrayOutputStream.toByteArray();
+	}
+
+	private static String getManifestValue(Manifest manifest, String name) {
+
+		String value = null;
+
+		if (manifest != null) {
+
+			Attributes mainAttributes = manifest.getMainAttributes();
+			value = mainAttributes.getValue(name);
+		}
+
+		return value;
+	}
+
+	private static byte[] readBytes(JarFile jarFile, JarEntry jarEntry) throws IOException {
+
+		InputStream inputStream = jarFile.getInputStream(jarEntry);
+
+		try {
+
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int length;
+
+			while ((length = inputStream.read(buffer)) > -1) {
+				byteArrayOutputStream.write(buffer, 0, length);
+			}
+
+			return byteArrayOutputStream.toByteArray();
+		}
+		finally {
+			inputStream.close();
+		}
+	}
+
+	private static void replace(File tempFile, File file) throws IOException {
+
+		// File.renameTo() does not replace existing files on some platforms.
+		if (!tempFile.renameTo(file) && (!file.delete() || !tempFile.renameTo(file))) {
+			throw new IOException("Unable to move " + tempFile + " to " + file + ".");
+		}
+	}
+
+	/**
+	 * Weaves the classes of the input jar and writes the result to the output jar (which may be the same file as the
+	 * input jar). Jars which are not woven at runtime by {@link JSF_OSGiWeavingHook} with the default {@link
+	 * WeavingPolicy} are copied unchanged.
+	 *
+	 * @param   warningListener  The listener which is notified (on the calling thread) of each class which is left
+	 *                           unwoven because its type hierarchy cannot be resolved and of jars which are not woven.
+	 *
+	 * @return  The number of woven classes.
+	 */
+	public int weave(File inputJar, File outputJar, WarningListener warningListener) throws IOException {
+
+		int wovenClassCount = 0;
+		File outputDirectory = outputJar.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(outputJar.getName(), ".tmp", outputDirectory);
+		JarFile jarFile = new JarFile(inputJar);
+
+		try {
+
+			Manifest manifest = jarFile.getManifest();
+			String bundleSymbolicName = getManifestValue(manifest, "Bundle-SymbolicName");
+			Version bundleVersion = Version.parseVersion(getManifestValue(manifest, "Bundle-Version"));
+
+			if (bundleSymbolicName != null) {
+
+				// Remove directives such as singleton:=true.
+				bundleSymbolicName = bundleSymbolicName.split(";")[0].trim();
+			}
+
+			WeavingPolicy.BundleRule bundleRule = null;
+
+			if (bundleSymbolicName != null) {
+				bundleRule = weavingPolicy.getBundleRule(bundleSymbolicName, bundleVersion);
+			}
+
+			boolean weaveBundle = (bundleRule != null);
+
+			if (!weaveBundle) {
+				warningListener.warn(inputJar + " (" + bundleSymbolicName +
+					") is not a bundle woven by the Liferay Faces OSGi Weaver, so it will not be modified.");
+			}
+
+			List<URL> classpathURLs = new ArrayList<URL>();
+			classpathURLs.add(inputJar.toURI().toURL());
+
+			for (File file : classpath) {
+				classpathURLs.add(file.toURI().toURL());
+			}
+
+			// Only the JDK classes are visible through the bootstrap (null) parent class loader.
+			URLClassLoader urlClassLoader = new URLClassLoader(classpathURLs.toArray(new URL[classpathURLs.size()]),
+					null);
+			ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+			try {
+
+				boolean weaveClassLoadingCalls = weaveBundle && bundleRule.isWeaveClassLoadingCalls();
+
+				// Classes woven at build time neither use invokedynamic call sites, reuse the FacesContext, nor probe
+				// call sites since those options are enabled through the runtime configuration of the weaver bundle.
+				JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(stackMapFrameMode, urlClassLoader,
+						bundleSymbolicName, bundleVersion.toString(), new SuperTypeCache(), weaveClassLoadingCalls,
+						true, false, false, false);
+				List<JarEntry> jarEntries = Collections.list(jarFile.entries());
+				List<Future<byte[]>> futures = new ArrayList<Future<byte[]>>(jarEntries.size());
+
+				for (JarEntry jarEntry : jarEntries) {
+
+					Future<byte[]> future = null;
+					String entryName = jarEntry.getName();
+
+					if (weaveBundle && entryName.endsWith(CLASS_FILE_EXTENSION) && !entryName.startsWith("META-INF/")) {
+						future = executorService.submit(new WeaveClassCallable(jarFile, jarEntry, jsfOSGiClassWeaver,
+								weavingPolicy));
+					}
+
+					futures.add(future);
+				}
+
+				// Every class must be woven before the manifest (which is typically the first entry) is written.
+				List<byte[]> wovenBytesList = new ArrayList<byte[]>(jarEntries.size());
+
+				for (int i = 0; i < futures.size(); i++) {
+
+					byte[] wovenBytes = null;
+					Future<byte[]> future = futures.get(i);
+
+					if (future != null) {
+
+						String className = getClassName(jarEntries.get(i).getName());
+						wovenBytes = getWovenBytes(future, className, warningListener);
+					}
+
+					if (wovenBytes != null) {
+						wovenClassCount++;
+					}
+
+					wovenBytesList.add(wovenBytes);
+				}
+
+				JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(tempFile));
+
+				try {
+
+					for (int i = 0; i < jarEntries.size(); i++) {
+
+						JarEntry jarEntry = jarEntries.get(i);
+						byte[] bytes = wovenBytesList.get(i);
+
+						if ((bytes == null) && (wovenClassCount > 0) &&
+								JarFile.MANIFEST_NAME.equalsIgnoreCase(jarEntry.getName())) {
+							bytes = getWovenManifestBytes(manifest);
+						}
+						else if ((bytes == null) && !jarEntry.isDirectory()) {
+							bytes = readBytes(jarFile, jarEntry);
+						}
+
+						JarEntry outputJarEntry = new JarEntry(jarEntry.getName());
+						outputJarEntry.setTime(jarEntry.getTime());
+						jarOutputStream.putNextEntry(outputJarEntry);
+
+						if (bytes != null) {
+							jarOutputStream.write(bytes);
+						}
+
+						jarOutputStream.closeEntry();
+					}
+				}
+				finally {
+					jarOutputStream.close();
+				}
+			}
+			finally {
+
+				executorService.shutdownNow();
+
+				// URLClassLoader implements Closeable as of Java 7.
+				if (urlClassLoader instanceof Closeable) {
+					((Closeable) urlClassLoader).close();
+				}
+			}
+		}
+		catch (IOException e) {
+
+			tempFile.delete();
+			throw e;
+		}
+		catch (RuntimeException e) {
+
+			tempFile.delete();
+			throw e;
+		}
+		finally {
+			jarFile.close();
+		}
+
+		replace(tempFile, outputJar);
+
+		return wovenClassCount;
+	}
+
+	/**
+	 * Returns the woven bytes of a class or null if the class was not modified or could not be woven because its type
+	 * hierarchy could not be resolved (in which case the warning listener is notified).
+	 */
+	private byte[] getWovenBytes(Future<byte[]> future, String className, WarningListener warningListener)
+		throws IOException {
+
+		byte[] wovenBytes = null;
+
+		try {
+			wovenBytes = future.get();
+		}
+		catch (InterruptedException e) {
+
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while weaving.");
+		}
+		catch (ExecutionException e) {
+
+			Throwable cause = e.getCause();
+
+			if (cause instanceof CommonSuperClassNotFoundException) {
+				warningListener.warn("Unable to weave " + className + ": " + cause.getMessage());
+			}
+			else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			else {
+				throw new RuntimeException(cause);
+			}
+		}
+
+		return wovenBytes;
+	}
+
+	/**
+	 * Receives the warnings of {@link JSF_OSGiJarWeaver#weave(File, File, WarningListener)}.
+	 */
+	public interface WarningListener {
+
+		void warn(String message);
+	}
+
+	/**
+	 * Returns the woven bytes of a class entry or null if the class was not modified. A {@link
+	 * CommonSuperClassNotFoundException} is rethrown so that the class is reported by the thread which weaves the jar.
+	 */
+	private static final class WeaveClassCallable implements Callable<byte[]> {
+
+		// Private Final Data Members
+		private final JarEntry jarEntry;
+		private final JarFile jarFile;
+		private final JSF_OSGiClassWeaver jsfOSGiClassWeaver;
+		private final WeavingPolicy weavingPolicy;
+
+		private WeaveClassCallable(JarFile jarFile, JarEntry jarEntry, JSF_OSGiClassWeaver jsfOSGiClassWeaver,
+			WeavingPolicy weavingPolicy) {
+
+			this.jarFile = jarFile;
+			this.jarEntry = jarEntry;
+			this.jsfOSGiClassWeaver = jsfOSGiClassWeaver;
+			this.weavingPolicy = weavingPolicy;
+		}
+
+		@Override
+		public byte[] call() throws IOException {
+
+			byte[] wovenBytes = null;
+			String className = getClassName(jarEntry.getName());
+
+			if (weavingPolicy.isWeaveClass(className)) {
+
+				byte[] bytes = readBytes(jarFile, jarEntry);
+
+				if (JSF_OSGiWeavingHook.isCompiledWithJava_1_6_OrGreater(bytes)) {
+
+					ConstantPoolScanner constantPoolScanner = new ConstantPoolScanner(bytes,
+							jsfOSGiClassWeaver.isWeaveClassLoadingCalls());
+
+					if (!constantPoolScanner.isWoven() && constantPoolScanner.containsWeaveTargets()) {
+						wovenBytes = jsfOSGiClassWeaver.weave(className, bytes, constantPoolScanner);
+					}
+				}
+			}
+
+			return wovenBytes;
+		}
+	}
+}
@@ -13,78 +13,118 @@
  */
 package com.liferay.faces.osgi.weaver.internal;
 
-import java.io.InputStream;
-import java.net.URL;
 import java.util.Arrays;
-import java.util.Enumeration;
-import java.util.Locale;
-import java.util.ResourceBundle;
 
+import org.objectweb.asm.AnnotationVisitor;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.Type;
-import org.objectweb.asm.commons.GeneratorAdapter;
+import org.objectweb.asm.TypePath;
+
+import com.liferay.faces.osgi.weaver.rewrite.RewriteRule;
+import com.liferay.faces.osgi.weaver.rewrite.StackOperation;
+import com.liferay.faces.osgi.weaver.runtime.CallSiteProbes;
 
 
 /**
+ * Rewrites the class loading and resource bundle calls (and the calls of any extra rules) of a single method as
+ * described by the {@link RewriteRuleTable} of the class. The rewritten calls only need the stack to be reordered (with
+ * <code>swap</code> instructions) and the current <code>FacesContext</code> or class to be pushed (see {@link
+ * StackOperation}), so no local variables are added. Therefore this visitor extends {@link MethodVisitor} directly
+ * rather than {@link org.objectweb.asm.commons.GeneratorAdapter}, whose {@link
+ * org.objectweb.asm.commons.LocalVariablesSorter} would remap every local variable instruction and (expanded) stack map
+ * frame of the method. This visitor is only installed on methods which may contain weave targets (see {@link
+ * ConstantPoolScanner#getWeaveTargetMethods()}).
+ *
+ * <p>If the <code>FacesContext</code> is reused (see {@link JSF_OSGiClassVisitor#getFacesContextLocal(String,
+ * String)}), a single local variable is added after the method's existing local variables instead. It is initialized
+ * to null when the method starts, and each rewritten call passes it to a method which only obtains the current <code>
+ * FacesContext</code> while the local is null (see {@link #visitCurrentFacesContextMethod(ClassVisitor, String)}) and
+ * stores the result. Only the first rewritten call of a method invocation (including the first iteration of a loop)
+ * obtains the current <code>FacesContext</code>, and no branches are added to the method, so its frames only need the
+ * new local appended.</p>
+ *
+ * <p>If call site probes are enabled (see {@link JSF_OSGiClassVisitor#isCallSiteProbes()}), each rewritten call is
+ * registered with {@link CallSiteProbes} along with its method and line, and the rewritten call invokes a synthetic
+ * method of the class which wraps the replacement in <code>CallSiteProbes.enter()</code> and <code>
+ * CallSiteProbes.exit()</code> (see {@link #visitCallSiteProbeMethod(ClassVisitor, String, int,
+ * RewriteRuleTable.CompiledRule, boolean)}). The wrapper keeps the start time of the call in its own local variable, so
+ * the rewritten method still needs no new local variables or branches. Folded <code>Class.forName(String)</code>
+ * calls are probed the same way (see {@link #visitCachedClassProbeMethod(ClassVisitor, String, int, String,
+ * String)}).</p>
+ *
  * @author  Kyle Stiemann
  */
-/* package-private */ final class JSF_OSGiMethodVisitor extends GeneratorAdapter {
+/* package-private */ final class JSF_OSGiMethodVisitor extends MethodVisitor {
 
 	// Package-Private
 	/* package-private */ static final String FACES_CONTEXT_CLASS_NAME = "javax.faces.context.FacesContext";
 	/* package-private */ static final String FACES_CONTEXT_TYPE_STRING = getTypeString("javax.faces.context.FacesContext");
+	/* package-private */ static final String OSGI_CLASS_LOADER_UTIL_OWNER_STRING = getTypeString(
+			"com.liferay.faces.util.osgi.OSGiClassLoaderUtil");
+	/* package-private */ static final String REPLACEMENT_CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR = Type
+		.getMethodDescriptor(Type.getType(Class.class), Type.getType(String.class),
+			Type.getObjectType(FACES_CONTEXT_TYPE_STRING), Type.getType(Class.class));
 
 	// Private Constants
 	private static final Type CLASS_TYPE = Type.getType(Class.class);
+	private static final String CALL_SITE_PROBES_OWNER_STRING = getTypeString(CallSiteProbes.class);
+	private static final String CALL_SITE_PROBES_COUNT_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.VOID_TYPE,
+			Type.INT_TYPE);
+	private static final String CALL_SITE_PROBES_ENTER_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.LONG_TYPE,
+			Type.INT_TYPE);
+	private static final String CALL_SITE_PROBES_EXIT_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.VOID_TYPE,
+			Type.INT_TYPE, Type.LONG_TYPE);
+	private static final String CACHED_CLASS_METHOD_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE);
 	private static final String CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
 			Type.getType(String.class));
-	private static final String CLASS_FOR_NAME_3_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
-			Type.getType(String.class), Type.BOOLEAN_TYPE, Type.getType(ClassLoader.class));
-	private static final String CLASS_LOADER_OWNER_STRING = getTypeString(ClassLoader.class);
 	private static final String CLASS_OWNER_STRING = getTypeString(Class.class);
-	private static final String GET_BUNDLE_3_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
-				ResourceBundle.class), Type.getType(String.class), Type.getType(Locale.class),
-			Type.getType(ClassLoader.class));
-	private static final String GET_BUNDLE_4_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
-				ResourceBundle.class), Type.getType(String.class), Type.getType(Locale.class),
-			Type.getType(ClassLoader.class), Type.getType(ResourceBundle.Control.class));
-	private static final String GET_RESOURCES_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
-				Enumeration.class), Type.getType(String.class));
-	private static final String GET_RESOURCE_AS_STREAM_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
-				InputStream.class), Type.getType(String.class));
-	private static final String GET_RESOURCE_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(URL.class),
-			Type.getType(String.class));
-	private static final String LOAD_CLASS_METHOD_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
-			Type.getType(String.class));
 	private static final Type FACES_CONTEXT_TYPE = Type.getObjectType(FACES_CONTEXT_TYPE_STRING);
-	private static final String OSGI_CLASS_LOADER_UTIL_OWNER_STRING = getTypeString(
-			"com.liferay.faces.util.osgi.OSGiClassLoaderUtil");
-	private static final String REPLACEMENT_CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(
-			CLASS_TYPE, Type.getType(String.class), FACES_CONTEXT_TYPE, CLASS_TYPE);
-	private static final String REPLACEMENT_CLASS_FOR_NAME_3_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(
-			CLASS_TYPE, Type.getType(String.class), Type.BOOLEAN_TYPE, FACES_CONTEXT_TYPE,
-			Type.getType(ClassLoader.class));
-	private static final String REPLACEMENT_GET_RESOURCES_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
-				Enumeration.class), Type.getType(String.class), FACES_CONTEXT_TYPE, Type.getType(ClassLoader.class));
-	private static final String REPLACEMENT_GET_RESOURCE_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
-				URL.class), Type.getType(String.class), FACES_CONTEXT_TYPE, Type.getType(ClassLoader.class));
-	private static final String REPLACEMENT_GET_RESOURCE_AS_STREAM_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type
-			.getType(InputStream.class), Type.getType(String.class), FACES_CONTEXT_TYPE,
-			Type.getType(ClassLoader.class));
-	private static final String REPLACEMENT_LOAD_CLASS_METHOD_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
-			Type.getType(String.class), FACES_CONTEXT_TYPE, Type.getType(ClassLoader.class));
-	private static final String RESOURCE_BUNDLE_OWNER_STRING = getTypeString(ResourceBundle.class);
+	private static final String GET_CURRENT_FACES_CONTEXT_METHOD_DESCRIPTOR = Type.getMethodDescriptor(
+			FACES_CONTEXT_TYPE);
+	private static final String CURRENT_FACES_CONTEXT_METHOD_DESCRIPTOR = Type.getMethodDescriptor(
+			FACES_CONTEXT_TYPE, FACES_CONTEXT_TYPE);
+	private static final Handle GET_CURRENT_FACES_CONTEXT_HANDLE = new Handle(Opcodes.H_INVOKESTATIC,
+			FACES_CONTEXT_TYPE_STRING, "getCurrentInstance", GET_CURRENT_FACES_CONTEXT_METHOD_DESCRIPTOR, false);
+	private static final int SYNTHETIC_METHOD_ACCESS = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC |
+		Opcodes.ACC_SYNTHETIC;
+
+	// The java.lang.invoke types and ClassLoadingCallSites are referenced by name so that they are not loaded (they are
+	// not available on Java 6).
+	private static final Handle CLASS_LOADING_CALL_SITES_BOOTSTRAP_HANDLE = new Handle(Opcodes.H_INVOKESTATIC,
+			getTypeString("com.liferay.faces.osgi.weaver.runtime.ClassLoadingCallSites"), "bootstrap",
+			Type.getMethodDescriptor(Type.getObjectType("java/lang/invoke/CallSite"),
+				Type.getObjectType("java/lang/invoke/MethodHandles$Lookup"), Type.getType(String.class),
+				Type.getObjectType("java/lang/invoke/MethodType"), Type.getObjectType("java/lang/invoke/MethodHandle"),
+				Type.getObjectType("java/lang/invoke/MethodHandle")), false);
 
 	// Private Final Data Members
+	private final int facesContextLocal;
+	private final String methodName;
 	private final JSF_OSGiClassVisitor osgiClassLoaderVisitor;
 	private final boolean visitingStaticMethod;
 
-	/* package-private */ JSF_OSGiMethodVisitor(JSF_OSGiClassVisitor osgiClassLoaderVisitor, MethodVisitor mv, int access, String name,
-		String desc) {
-		super(Opcodes.ASM5, mv, access, name, desc);
+	// Private Data Members
+	private int callSiteOrdinal;
+	private int lineNumber = -1;
+	private String pendingClassNameConstant;
+
+	/**
+	 * @param  facesContextLocal  The index of the local variable which holds the reused <code>FacesContext</code> (see
+	 *                            {@link JSF_OSGiClassVisitor#getFacesContextLocal(String, String)}) or -1 if each
+	 *                            rewritten call obtains the current <code>FacesContext</code>.
+	 */
+	/* package-private */ JSF_OSGiMethodVisitor(JSF_OSGiClassVisitor osgiClassLoaderVisitor, MethodVisitor mv,
+		int access, String name, String descriptor, int facesContextLocal) {
+
+		super(Opcodes.ASM5, mv);
 		this.visitingStaticMethod = (access & Opcodes.ACC_STATIC) > 0;
+		this.methodName = name.concat(descriptor);
 		this.osgiClassLoaderVisitor = osgiClassLoaderVisitor;
+		this.facesContextLocal = facesContextLocal;
 	}
 
 	/* package-private */ static String getTypeString(Class<?> clazz) {
@@ -96,245 +136,525 @@ import org.objectweb.asm.commons.GeneratorAdapter;
 	}
 
 	/**
-	 * Converts a {@link java.util.ResourceBundle}<code>.getBundle()</code> method descriptor into a
-	 * com.liferay.faces.util.osgi.OSGiClassLoaderUtil.getResourceBundle() method descriptor by adding an argument of
-	 * type {@link Class} to the list of argument types.
+	 * Adds a private static field which caches the specified class and a private static method which returns the cached
+	 * class, initializing the field through <code>OSGiClassLoaderUtil.classForName()</code> the first time that it is
+	 * called. Concurrent first calls may both resolve the class, which is harmless since they obtain the same class.
+	 * Failures are not cached, so the method throws the same exception as the <code>Class.forName()</code> call which
+	 * it replaces.
+	 *
+	 * @param  classVisitor      The visitor which the members are added to (which must not be a {@link
+	 *                           JSF_OSGiClassVisitor} so that the new method is not rewritten).
+	 * @param  currentClassType  The internal name of the class which the members are added to.
+	 * @param  className         The binary name of the cached class.
+	 */
+	/* package-private */ static void visitCachedClassMembers(ClassVisitor classVisitor, String currentClassType,
+		String className, String fieldName, String methodName) {
+
+		int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_STATIC | Opcodes.ACC_SYNTHETIC;
+		classVisitor.visitField(access, fieldName, CLASS_TYPE.getDescriptor(), null, null).visitEnd();
+
+		MethodVisitor methodVisitor = classVisitor.visitMethod(access, methodName, CACHED_CLASS_METHOD_DESCRIPTOR, null,
+				null);
+		methodVisitor.visitCode();
+		methodVisitor.visitFieldInsn(Opcodes.GETSTATIC, currentClassType, fieldName, CLASS_TYPE.getDescriptor());
+		methodVisitor.visitInsn(Opcodes.DUP);
+
+		Label returnLabel = new Label();
+		methodVisitor.visitJumpInsn(Opcodes.IFNONNULL, returnLabel);
+		methodVisitor.visitInsn(Opcodes.POP);
+		methodVisitor.visitLdcInsn(className);
+		methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, FACES_CONTEXT_TYPE_STRING, "getCurrentInstance",
+			GET_CURRENT_FACES_CONTEXT_METHOD_DESCRIPTOR, false);
+		methodVisitor.visitLdcInsn(Type.getObjectType(currentClassType));
+		methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, OSGI_CLASS_LOADER_UTIL_OWNER_STRING, "classForName",
+			REPLACEMENT_CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR, false);
+		methodVisitor.visitInsn(Opcodes.DUP);
+		methodVisitor.visitFieldInsn(Opcodes.PUTSTATIC, currentClassType, fieldName, CLASS_TYPE.getDescriptor());
+		methodVisitor.visitLabel(returnLabel);
+
+		// The frame is ignored if frames are computed.
+		methodVisitor.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[] { CLASS_TYPE.getInternalName() });
+		methodVisitor.visitInsn(Opcodes.ARETURN);
+		methodVisitor.visitMaxs(3, 0);
+		methodVisitor.visitEnd();
+	}
+
+	/**
+	 * Adds a private static method which counts and (for a sample of the calls) times a folded <code>
+	 * Class.forName(String)</code> call through {@link CallSiteProbes} (see {@link
+	 * JSF_OSGiClassVisitor#getCachedClassMethodName(String)}). The method calls the method which returns the cached
+	 * class in place of the folded call.
+	 *
+	 * @param  classVisitor  The visitor which the method is added to (which must not be a {@link JSF_OSGiClassVisitor}
+	 *                       so that the new method is not rewritten).
+	 * @param  callSiteId    The id of the folded call (see {@link CallSiteProbes#register(String, String, int, int,
+	 *                       String)}).
+	 */
+	/* package-private */ static void visitCachedClassProbeMethod(ClassVisitor classVisitor, String methodName,
+		int callSiteId, String currentClassType, String cachedClassMethodName) {
+
+		MethodVisitor methodVisitor = visitCallSiteProbeEnter(classVisitor, methodName, CACHED_CLASS_METHOD_DESCRIPTOR,
+				callSiteId);
+		methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, currentClassType, cachedClassMethodName,
+			CACHED_CLASS_METHOD_DESCRIPTOR, false);
+		visitCallSiteProbeExit(methodVisitor, CACHED_CLASS_METHOD_DESCRIPTOR, callSiteId);
+	}
+
+	/**
+	 * Adds a private static method which counts and (for a sample of the calls) times a rewritten call through {@link
+	 * CallSiteProbes}. The method has the same descriptor as the replacement method (or <code>invokedynamic</code> call
+	 * site) of the rewritten call and passes its arguments on. Calls which throw an exception are counted but not
+	 * timed, so the method does not need any branches (or frames).
+	 *
+	 * @param  classVisitor   The visitor which the method is added to (which must not be a {@link JSF_OSGiClassVisitor}
+	 *                        so that the new method is not rewritten).
+	 * @param  callSiteId     The id of the rewritten call (see {@link CallSiteProbes#register(String, String, int, int,
+	 *                        String)}).
+	 * @param  invokeDynamic  If true, the <code>invokedynamic</code> call site of the rule is called rather than its
+	 *                        replacement method.
+	 */
+	/* package-private */ static void visitCallSiteProbeMethod(ClassVisitor classVisitor, String methodName,
+		int callSiteId, RewriteRuleTable.CompiledRule compiledRule, boolean invokeDynamic) {
+
+		String methodDescriptor = getReplacementDescriptor(compiledRule, invokeDynamic);
+		MethodVisitor methodVisitor = visitCallSiteProbeEnter(classVisitor, methodName, methodDescriptor, callSiteId);
+		visitReplacementCall(methodVisitor, compiledRule, invokeDynamic);
+		visitCallSiteProbeExit(methodVisitor, methodDescriptor, callSiteId);
+	}
+
+	/**
+	 * Adds a private static method which returns its <code>FacesContext</code> argument or, if the argument is null,
+	 * <code>FacesContext.getCurrentInstance()</code>. Keeping the null check in a separate method means that the
+	 * rewritten methods do not need any new branches (or frames).
+	 *
+	 * @param  classVisitor  The visitor which the method is added to (which must not be a {@link JSF_OSGiClassVisitor}
+	 *                       so that the new method is not rewritten).
+	 */
+	/* package-private */ static void visitCurrentFacesContextMethod(ClassVisitor classVisitor, String methodName) {
+
+		MethodVisitor methodVisitor = classVisitor.visitMethod(SYNTHETIC_METHOD_ACCESS, methodName,
+				CURRENT_FACES_CONTEXT_METHOD_DESCRIPTOR, null, null);
+		methodVisitor.visitCode();
+		methodVisitor.visitVarInsn(Opcodes.ALOAD, 0);
+		methodVisitor.visitInsn(Opcodes.DUP);
+
+		Label returnLabel = new Label();
+		methodVisitor.visitJumpInsn(Opcodes.IFNONNULL, returnLabel);
+		methodVisitor.visitInsn(Opcodes.POP);
+		methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, FACES_CONTEXT_TYPE_STRING, "getCurrentInstance",
+			GET_CURRENT_FACES_CONTEXT_METHOD_DESCRIPTOR, false);
+		methodVisitor.visitLabel(returnLabel);
+
+		// The frame is ignored if frames are computed.
+		methodVisitor.visitFrame(Opcodes.F_SAME1, 0, null, 1, new Object[] { FACES_CONTEXT_TYPE_STRING });
+		methodVisitor.visitInsn(Opcodes.ARETURN);
+		methodVisitor.visitMaxs(2, 1);
+		methodVisitor.visitEnd();
+	}
+
+	private static int getArgumentsSize(String methodDescriptor) {
+
+		int argumentsSize = 0;
+
+		for (Type argumentType : Type.getArgumentTypes(methodDescriptor)) {
+			argumentsSize += argumentType.getSize();
+		}
+
+		return argumentsSize;
+	}
+
+	private static String getReplacementDescriptor(RewriteRuleTable.CompiledRule compiledRule,
+		boolean invokeDynamic) {
+
+		String replacementDescriptor;
+
+		if (invokeDynamic) {
+			replacementDescriptor = compiledRule.getInvokeDynamicCallSiteDescriptor();
+		}
+		else {
+			replacementDescriptor = compiledRule.getRewriteRule().getReplacementDescriptor();
+		}
+
+		return replacementDescriptor;
+	}
+
+	/**
+	 * Starts a method which probes a call, calls <code>CallSiteProbes.enter()</code>, stores the start time in the
+	 * local variable after the arguments, and loads the arguments so that the probed call can be visited next.
 	 */
-	private static String toGetResourceBundleMethodDescriptor(String getBundleMethodDescriptor) {
+	private static MethodVisitor visitCallSiteProbeEnter(ClassVisitor classVisitor, String methodName,
+		String methodDescriptor, int callSiteId) {
 
-		Type returnType = Type.getReturnType(getBundleMethodDescriptor);
-		Type[] argumentTypes = Type.getArgumentTypes(getBundleMethodDescriptor);
-		argumentTypes = Arrays.copyOf(argumentTypes, argumentTypes.length + 1);
-		argumentTypes[argumentTypes.length - 1] = CLASS_TYPE;
+		MethodVisitor methodVisitor = classVisitor.visitMethod(SYNTHETIC_METHOD_ACCESS, methodName, methodDescriptor,
+				null, null);
+		methodVisitor.visitCode();
+		methodVisitor.visitLdcInsn(callSiteId);
+		methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, CALL_SITE_PROBES_OWNER_STRING, "enter",
+			CALL_SITE_PROBES_ENTER_METHOD_DESCRIPTOR, false);
+		methodVisitor.visitVarInsn(Opcodes.LSTORE, getArgumentsSize(methodDescriptor));
+
+		int local = 0;
+
+		for (Type argumentType : Type.getArgumentTypes(methodDescriptor)) {
+
+			methodVisitor.visitVarInsn(argumentType.getOpcode(Opcodes.ILOAD), local);
+			local += argumentType.getSize();
+		}
 
-		return Type.getMethodDescriptor(returnType, argumentTypes);
+		return methodVisitor;
 	}
 
+	/**
+	 * Ends a method which probes a call by calling <code>CallSiteProbes.exit()</code> with the start time and
+	 * returning the result of the probed call.
+	 */
+	private static void visitCallSiteProbeExit(MethodVisitor methodVisitor, String methodDescriptor, int callSiteId) {
+
+		int argumentsSize = getArgumentsSize(methodDescriptor);
+		methodVisitor.visitLdcInsn(callSiteId);
+		methodVisitor.visitVarInsn(Opcodes.LLOAD, argumentsSize);
+		methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, CALL_SITE_PROBES_OWNER_STRING, "exit",
+			CALL_SITE_PROBES_EXIT_METHOD_DESCRIPTOR, false);
+
+		Type returnType = Type.getReturnType(methodDescriptor);
+		methodVisitor.visitInsn(returnType.getOpcode(Opcodes.IRETURN));
+
+		// The return value stays on the stack below the call site id and the start time.
+		methodVisitor.visitMaxs(Math.max(Math.max(2, argumentsSize), returnType.getSize() + 3), argumentsSize + 2);
+		methodVisitor.visitEnd();
+	}
+
+	/**
+	 * Calls the replacement method of the rule or, if <code>invokeDynamic</code> is true, its <code>
+	 * invokedynamic</code> call site. The call site only obtains the <code>FacesContext</code> if the class is not
+	 * cached by the call site, so the <code>FacesContext</code> is not one of its arguments.
+	 */
+	private static void visitReplacementCall(MethodVisitor methodVisitor, RewriteRuleTable.CompiledRule compiledRule,
+		boolean invokeDynamic) {
+
+		if (invokeDynamic) {
+			methodVisitor.visitInvokeDynamicInsn(compiledRule.getInvokeDynamicCallSiteName(),
+				compiledRule.getInvokeDynamicCallSiteDescriptor(), CLASS_LOADING_CALL_SITES_BOOTSTRAP_HANDLE,
+				compiledRule.getReplacementHandle(), GET_CURRENT_FACES_CONTEXT_HANDLE);
+		}
+		else {
+
+			RewriteRule rewriteRule = compiledRule.getRewriteRule();
+			methodVisitor.visitMethodInsn(Opcodes.INVOKESTATIC, rewriteRule.getReplacementOwner(),
+				rewriteRule.getReplacementName(), rewriteRule.getReplacementDescriptor(), false);
+		}
+	}
+
+	/**
+	 * Initializes the reused <code>FacesContext</code> local variable (if any) to null so that it is definitely
+	 * assigned at every rewritten call.
+	 */
 	@Override
-	public void visitMethodInsn(int opcode, String owner, String name, String methodDescriptor, boolean itf) {
+	public void visitCode() {
 
-		boolean weaveClassLoadingCalls = osgiClassLoaderVisitor.isWeaveClassLoadingCalls();
-
-		if (weaveClassLoadingCalls && (opcode == Opcodes.INVOKEVIRTUAL) && owner.equals(CLASS_LOADER_OWNER_STRING) &&
-				name.equals("loadClass") && methodDescriptor.equals(LOAD_CLASS_METHOD_DESCRIPTOR)) {
-
-			// The stack has been prepared so that classLoader.loadClass(className) can be called next:
-
-			//J-
-			// TOP OF STACK
-			// className
-			// classLoader
-			// ...
-			//J+
-
-			// However, since OSGiClassLoaderUtil.loadClass(className, facesContext, classLoader) will be called
-			// instead, the stack must be reordered and include the facesContext:
-
-			//J-
-			// TOP OF STACK needed to call OSGiClassLoaderUtil.loadClass() 3-arg
-			// classLoader
-			// facesContext
-			// className
-			// ...
-			//J+
-
-			swap();
-
-			//J-
-			// TOP OF STACK
-			// classLoader
-			// className
-			// ...
-			//J+
-
-			loadCurrentFacesContext();
-
-			//J-
-			// TOP OF STACK
-			// facesContext
-			// classLoader
-			// className
-			// ...
-			//J+
-
-			swap();
-
-			//J-
-			// TOP OF STACK
-			// classLoader
-			// facesContext
-			// className
-			// ...
-			//J+
-
-			super.visitMethodInsn(Opcodes.INVOKESTATIC, OSGI_CLASS_LOADER_UTIL_OWNER_STRING, "loadClass",
-				REPLACEMENT_LOAD_CLASS_METHOD_DESCRIPTOR, false);
-			osgiClassLoaderVisitor.setClassModified(true);
+		super.visitCode();
+
+		if (facesContextLocal >= 0) {
+
+			super.visitInsn(Opcodes.ACONST_NULL);
+			super.visitVarInsn(Opcodes.ASTORE, facesContextLocal);
 		}
-		else if (weaveClassLoadingCalls && (opcode == Opcodes.INVOKESTATIC) && owner.equals(CLASS_OWNER_STRING) &&
-				name.equals("forName") &&
-				(methodDescriptor.equals(CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR) ||
-					methodDescriptor.equals(CLASS_FOR_NAME_3_ARG_METHOD_DESCRIPTOR))) {
-
-			String osgiClassLoaderMethodDescriptor = REPLACEMENT_CLASS_FOR_NAME_3_ARG_METHOD_DESCRIPTOR;
-
-			// If the 1-arg version of Class.forName() is used, provide the current class (in a static method) or
-			// this.getClass() (in a non-static method) to the OSGiClassLoaderUtil's 3-arg classForName() method so
-			// that it can obtain the correct ClassLoader. For more information, see the
-			// OSGiClassLoaderUtil.classForName(java.lang.String, javax.faces.context.FacesContext, java.lang.Class)
-			// JavaDoc and the Class.forName(java.lang.String) JavaDoc
-			// (https://docs.oracle.com/javase/8/docs/api/java/lang/Class.html#forName-java.lang.String-).
-			if (methodDescriptor.equals(CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR)) {
-
-				osgiClassLoaderMethodDescriptor = REPLACEMENT_CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR;
-				loadCurrentFacesContext();
-				loadCurrentClass();
-			}
-			else {
+	}
 
-				// The stack has been prepared so that Class.forName(className, initialize, classLoader) can be called
-				// next:
-
-				//J-
-				// TOP OF STACK
-				// classLoader
-				// initialize
-				// className
-				// ...
-				//J+
-
-				// However, since OSGiClassLoaderUtil.classForName(className, initialize, facesContext, classLoader)
-				// will be called instead, the stack must be reordered and include the facesContext:
-
-				//J-
-				// TOP OF STACK needed to call OSGiClassLoaderUtil.classForName() (4-arg)
-				// classLoader
-				// facesContext
-				// initialize
-				// className
-				// ...
-				//J+
+	@Override
+	public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
 
-				loadCurrentFacesContext();
+		visitPendingClassNameConstant();
+		super.visitFieldInsn(opcode, owner, name, descriptor);
+	}
 
-				//J-
-				// TOP OF STACK
-				// facesContext
-				// classLoader
-				// initialize
-				// className
-				// ...
-				//J+
-
-				swap();
-
-				//J-
-				// TOP OF STACK
-				// classLoader
-				// facesContext
-				// initialize
-				// className
-				// ...
-				//J+
-			}
+	/**
+	 * Appends the reused <code>FacesContext</code> local variable (if any) to the frame. Since the local variable
+	 * follows every existing local variable, the frame's local variables are padded with <code>TOP</code> up to its
+	 * index.
+	 */
+	@Override
+	public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
 
-			super.visitMethodInsn(Opcodes.INVOKESTATIC, OSGI_CLASS_LOADER_UTIL_OWNER_STRING, "classForName",
-				osgiClassLoaderMethodDescriptor, false);
-			osgiClassLoaderVisitor.setClassModified(true);
+		visitPendingClassNameConstant();
+
+		if (facesContextLocal < 0) {
+			super.visitFrame(type, nLocal, local, nStack, stack);
 		}
-		else if (weaveClassLoadingCalls && (opcode == Opcodes.INVOKEVIRTUAL) &&
-				owner.equals(CLASS_LOADER_OWNER_STRING) && name.startsWith("getResource")) {
-
-			// The stack has been prepared so that classLoader.getResource*(name) can be called next:
-
-			//J-
-			// TOP OF STACK
-			// name
-			// classLoader
-			// ...
-			//J+
-
-			// However, since OSGiClassLoaderUtil.getResource*(name, facesContext, classLoader) will be called
-			// instead, the stack must be reordered and include the facesContext:
-
-			//J-
-			// TOP OF STACK needed to call OSGiClassLoaderUtil.getResource*() (3-arg)
-			// classLoader
-			// facesContext
-			// name
-			// ...
-			//J+
-
-			swap();
-
-			//J-
-			// TOP OF STACK
-			// classLoader
-			// name
-			// ...
-			//J+
-
-			loadCurrentFacesContext();
-
-			//J-
-			// TOP OF STACK
-			// facesContext
-			// classLoader
-			// name
-			// ...
-			//J+
-
-			swap();
-
-			//J-
-			// TOP OF STACK
-			// classLoader
-			// facesContext
-			// name
-			// ...
-			//J+
-
-			String osgiClassLoaderMethodDescriptor = null;
-
-			if (methodDescriptor.equals(GET_RESOURCE_METHOD_DESCRIPTOR)) {
-				osgiClassLoaderMethodDescriptor = REPLACEMENT_GET_RESOURCE_METHOD_DESCRIPTOR;
-			}
-			else if (methodDescriptor.equals(GET_RESOURCES_METHOD_DESCRIPTOR)) {
-				osgiClassLoaderMethodDescriptor = REPLACEMENT_GET_RESOURCES_METHOD_DESCRIPTOR;
+		else if (type == Opcodes.F_NEW) {
+
+			// Long and double local variables take up two slots but only a single entry of an expanded frame.
+			int slots = 0;
+
+			for (int i = 0; i < nLocal; i++) {
+
+				if ((local[i] == Opcodes.LONG) || (local[i] == Opcodes.DOUBLE)) {
+					slots += 2;
+				}
+				else {
+					slots++;
+				}
 			}
-			else if (methodDescriptor.equals(GET_RESOURCE_AS_STREAM_METHOD_DESCRIPTOR)) {
-				osgiClassLoaderMethodDescriptor = REPLACEMENT_GET_RESOURCE_AS_STREAM_METHOD_DESCRIPTOR;
+
+			Object[] newLocal = new Object[nLocal + (facesContextLocal - slots) + 1];
+
+			if (nLocal > 0) {
+				System.arraycopy(local, 0, newLocal, 0, nLocal);
 			}
 
-			if (osgiClassLoaderMethodDescriptor != null) {
+			Arrays.fill(newLocal, nLocal, newLocal.length - 1, Opcodes.TOP);
+			newLocal[newLocal.length - 1] = FACES_CONTEXT_TYPE_STRING;
+			super.visitFrame(type, newLocal.length, newLocal, nStack, stack);
+		}
+		else {
+			throw new IllegalStateException("The frames of methods which reuse the FacesContext must be expanded.");
+		}
+	}
 
-				super.visitMethodInsn(Opcodes.INVOKESTATIC, OSGI_CLASS_LOADER_UTIL_OWNER_STRING, name,
-					osgiClassLoaderMethodDescriptor, false);
-				osgiClassLoaderVisitor.setClassModified(true);
+	@Override
+	public void visitIincInsn(int var, int increment) {
+
+		visitPendingClassNameConstant();
+		super.visitIincInsn(var, increment);
+	}
+
+	@Override
+	public void visitInsn(int opcode) {
+
+		visitPendingClassNameConstant();
+		super.visitInsn(opcode);
+	}
+
+	@Override
+	public AnnotationVisitor visitInsnAnnotation(int typeRef, TypePath typePath, String descriptor,
+		boolean visible) {
+
+		visitPendingClassNameConstant();
+
+		return super.visitInsnAnnotation(typeRef, typePath, descriptor, visible);
+	}
+
+	@Override
+	public void visitIntInsn(int opcode, int operand) {
+
+		visitPendingClassNameConstant();
+		super.visitIntInsn(opcode, operand);
+	}
+
+	@Override
+	public void visitInvokeDynamicInsn(String name, String descriptor, Handle bootstrapMethodHandle,
+		Object... bootstrapMethodArguments) {
+
+		visitPendingClassNameConstant();
+		super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle, bootstrapMethodArguments);
+	}
+
+	@Override
+	public void visitJumpInsn(int opcode, Label label) {
+
+		visitPendingClassNameConstant();
+		super.visitJumpInsn(opcode, label);
+	}
+
+	@Override
+	public void visitLabel(Label label) {
+
+		visitPendingClassNameConstant();
+		super.visitLabel(label);
+	}
+
+	/**
+	 * Defers string constants until the next instruction is visited, since a constant which is directly followed by a
+	 * <code>Class.forName(String)</code> call may be replaced along with the call (see {@link
+	 * JSF_OSGiClassVisitor#getCachedClassMethodName(String)}).
+	 */
+	@Override
+	public void visitLdcInsn(Object value) {
+
+		visitPendingClassNameConstant();
+
+		if ((value instanceof String) && osgiClassLoaderVisitor.isWeaveClassLoadingCalls() &&
+				(visitingStaticMethod || osgiClassLoaderVisitor.isCurrentClassFinal())) {
+			pendingClassNameConstant = (String) value;
+		}
+		else {
+			super.visitLdcInsn(value);
+		}
+	}
+
+	/**
+	 * Records the line of the following instructions so that probed call sites can be mapped back to their source.
+	 */
+	@Override
+	public void visitLineNumber(int line, Label start) {
+
+		visitPendingClassNameConstant();
+		this.lineNumber = line;
+		super.visitLineNumber(line, start);
+	}
+
+	@Override
+	public void visitLocalVariable(String name, String descriptor, String signature, Label start, Label end,
+		int index) {
+
+		visitPendingClassNameConstant();
+		super.visitLocalVariable(name, descriptor, signature, start, end, index);
+	}
+
+	@Override
+	public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+
+		visitPendingClassNameConstant();
+		super.visitLookupSwitchInsn(dflt, keys, labels);
+	}
+
+	@Override
+	public void visitMaxs(int maxStack, int maxLocals) {
+
+		visitPendingClassNameConstant();
+		super.visitMaxs(maxStack, maxLocals);
+	}
+
+	/**
+	 * Rewrites the instruction if the {@link RewriteRuleTable} of the class contains a rule for it. <code>
+	 * Class.forName()</code> calls on a deferred string constant are folded into cached classes first (see {@link
+	 * JSF_OSGiClassVisitor#getCachedClassMethodName(String)}) since they also replace the constant. Calls are only
+	 * folded in static methods and final classes, where the calling class which the unfolded call passes to <code>
+	 * OSGiClassLoaderUtil</code> is always the current class. Instance methods of other classes may be inherited by a
+	 * subclass from another bundle, so their calls keep passing <code>this.getClass()</code> at every call.
+	 */
+	@Override
+	public void visitMethodInsn(int opcode, String owner, String name, String methodDescriptor, boolean itf) {
+
+		String cachedClassMethodName = null;
+
+		if ((pendingClassNameConstant != null) && (opcode == Opcodes.INVOKESTATIC) &&
+				owner.equals(CLASS_OWNER_STRING) && name.equals("forName") &&
+				methodDescriptor.equals(CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR) &&
+				(visitingStaticMethod || osgiClassLoaderVisitor.isCurrentClassFinal())) {
+			cachedClassMethodName = osgiClassLoaderVisitor.getCachedClassMethodName(pendingClassNameConstant);
+		}
+
+		if (cachedClassMethodName != null) {
+
+			// Replace Class.forName("className") with a call to a method which returns the class from a field of the
+			// current class after the first call. If call site probes are enabled, the folded call is probed as well.
+			String callSiteProbeMethodName = null;
+
+			if (osgiClassLoaderVisitor.isCallSiteProbes()) {
+				callSiteProbeMethodName = visitCachedClassProbe(owner, name, cachedClassMethodName);
 			}
-			else {
-				super.visitMethodInsn(opcode, owner, name, methodDescriptor, itf);
+
+			if (callSiteProbeMethodName != null) {
+				cachedClassMethodName = callSiteProbeMethodName;
 			}
-		}
-		else if ((opcode == Opcodes.INVOKESTATIC) && owner.equals(RESOURCE_BUNDLE_OWNER_STRING) &&
-				name.equals("getBundle") &&
-				(methodDescriptor.equals(GET_BUNDLE_3_ARG_METHOD_DESCRIPTOR) ||
-					methodDescriptor.equals(GET_BUNDLE_4_ARG_METHOD_DESCRIPTOR))) {
-
-			loadCurrentClass();
-
-			// Call OSGiClassLoaderUtil.getResourceBundle() with the same arguments as ResourceBundle.getBundle(), but
-			// additionally pass the calling class.
-			String getResourceBundleMethodDescriptor = toGetResourceBundleMethodDescriptor(methodDescriptor);
-			super.visitMethodInsn(Opcodes.INVOKESTATIC, OSGI_CLASS_LOADER_UTIL_OWNER_STRING, "getResourceBundle",
-				getResourceBundleMethodDescriptor, false);
+
+			super.visitMethodInsn(Opcodes.INVOKESTATIC, osgiClassLoaderVisitor.getCurrentClassType(),
+				cachedClassMethodName, CACHED_CLASS_METHOD_DESCRIPTOR, false);
+			pendingClassNameConstant = null;
 			osgiClassLoaderVisitor.setClassModified(true);
 		}
 		else {
-			super.visitMethodInsn(opcode, owner, name, methodDescriptor, itf);
+
+			visitPendingClassNameConstant();
+
+			RewriteRuleTable.CompiledRule compiledRule = osgiClassLoaderVisitor.getRewriteRuleTable().get(opcode,
+					owner, name, methodDescriptor, osgiClassLoaderVisitor.isWeaveClassLoadingCalls());
+
+			if (compiledRule == null) {
+				super.visitMethodInsn(opcode, owner, name, methodDescriptor, itf);
+			}
+			else {
+
+				boolean invokeDynamic = osgiClassLoaderVisitor.isInvokeDynamicCallSites() &&
+					(compiledRule.getInvokeDynamicCallSiteName() != null);
+				String callSiteProbeMethodName = null;
+
+				if (osgiClassLoaderVisitor.isCallSiteProbes()) {
+					callSiteProbeMethodName = visitCallSiteProbe(owner, name, compiledRule, invokeDynamic);
+				}
+
+				if (invokeDynamic) {
+
+					// The ClassLoadingCallSites call site only obtains the facesContext if the class is not cached by
+					// the call site, so it is not pushed onto the stack.
+					visitStackOperations(compiledRule.getInvokeDynamicStackOperations());
+				}
+				else {
+
+					// For example, the stack has been prepared so that classLoader.loadClass(className) can be called
+					// next:
+
+					//J-
+					// TOP OF STACK
+					// className
+					// classLoader
+					// ...
+					//J+
+
+					// However, since OSGiClassLoaderUtil.loadClass(className, facesContext, classLoader) will be
+					// called instead, the stack operations of the rule (SWAP, LOAD_CURRENT_FACES_CONTEXT, SWAP)
+					// reorder the stack and include the facesContext:
+
+					//J-
+					// TOP OF STACK needed to call OSGiClassLoaderUtil.loadClass() 3-arg
+					// classLoader
+					// facesContext
+					// className
+					// ...
+					//J+
+
+					visitStackOperations(compiledRule.getStackOperations());
+				}
+
+				if (callSiteProbeMethodName != null) {
+					super.visitMethodInsn(Opcodes.INVOKESTATIC, osgiClassLoaderVisitor.getCurrentClassType(),
+						callSiteProbeMethodName, getReplacementDescriptor(compiledRule, invokeDynamic), false);
+				}
+				else {
+					visitReplacementCall(mv, compiledRule, invokeDynamic);
+				}
+
+				osgiClassLoaderVisitor.setClassModified(true);
+			}
 		}
 	}
 
+	@Override
+	public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+
+		visitPendingClassNameConstant();
+		super.visitMultiANewArrayInsn(descriptor, numDimensions);
+	}
+
+	@Override
+	public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+
+		visitPendingClassNameConstant();
+		super.visitTableSwitchInsn(min, max, dflt, labels);
+	}
+
+	@Override
+	public void visitTryCatchBlock(Label start, Label end, Label handler, String type) {
+
+		visitPendingClassNameConstant();
+		super.visitTryCatchBlock(start, end, handler, type);
+	}
+
+	@Override
+	public void visitTypeInsn(int opcode, String type) {
+
+		visitPendingClassNameConstant();
+		super.visitTypeInsn(opcode, type);
+	}
+
+	@Override
+	public void visitVarInsn(int opcode, int var) {
+
+		visitPendingClassNameConstant();
+		super.visitVarInsn(opcode, var);
+	}
+
 	private void loadCurrentClass() {
 
 		String currentClassType = osgiClassLoaderVisitor.getCurrentClassType();
@@ -343,12 +663,12 @@ import org.objectweb.asm.commons.GeneratorAdapter;
 
 			// Push the current class (for example MyClass.class) to the top of the stack.
 			Type currentClassObjectType = Type.getObjectType(currentClassType);
-			visitLdcInsn(currentClassObjectType);
+			super.visitLdcInsn(currentClassObjectType);
 		}
 		else {
 
 			// Push the current class (which is the return value of "this.getClass()") to the top of the stack.
-			loadThis();
+			super.visitVarInsn(Opcodes.ALOAD, 0);
 			super.visitMethodInsn(Opcodes.INVOKEVIRTUAL, currentClassType, "getClass",
 				Type.getMethodDescriptor(CLASS_TYPE), false);
 		}
@@ -356,8 +676,111 @@ import org.objectweb.asm.commons.GeneratorAdapter;
 
 	private void loadCurrentFacesContext() {
 
-		// Push the current FacesContext to the top of the stack.
-		super.visitMethodInsn(Opcodes.INVOKESTATIC, FACES_CONTEXT_TYPE_STRING, "getCurrentInstance",
-			Type.getMethodDescriptor(FACES_CONTEXT_TYPE), false);
+		if (facesContextLocal >= 0) {
+
+			// Push the FacesContext stored by an earlier rewritten call (or the current FacesContext if no earlier call
+			// has stored one) to the top of the stack and store it for the later calls.
+			super.visitVarInsn(Opcodes.ALOAD, facesContextLocal);
+			super.visitMethodInsn(Opcodes.INVOKESTATIC, osgiClassLoaderVisitor.getCurrentClassType(),
+				osgiClassLoaderVisitor.getCurrentFacesContextMethodName(), CURRENT_FACES_CONTEXT_METHOD_DESCRIPTOR,
+				false);
+			super.visitInsn(Opcodes.DUP);
+			super.visitVarInsn(Opcodes.ASTORE, facesContextLocal);
+		}
+		else {
+
+			// Push the current FacesContext to the top of the stack.
+			super.visitMethodInsn(Opcodes.INVOKESTATIC, FACES_CONTEXT_TYPE_STRING, "getCurrentInstance",
+				GET_CURRENT_FACES_CONTEXT_METHOD_DESCRIPTOR, false);
+		}
+	}
+
+	/**
+	 * Registers the rewritten (or folded) call with {@link CallSiteProbes} (see {@link
+	 * JSF_OSGiClassVisitor#registerCallSite(String, int, int, String)}). Each probed call of the method gets the
+	 * next ordinal, so identical calls on the same line get different ids.
+	 *
+	 * @return  The id of the call site or -1 if no more call sites can be registered.
+	 */
+	private int registerCallSite(String owner, String name) {
+
+		String call = owner.replace('/', '.') + "." + name;
+
+		return osgiClassLoaderVisitor.registerCallSite(methodName, lineNumber, callSiteOrdinal++, call);
+	}
+
+	/**
+	 * Registers the folded <code>Class.forName(String)</code> call with {@link CallSiteProbes} and returns the name of
+	 * the method which probes it (see {@link JSF_OSGiClassVisitor#getCallSiteProbeMethodName(int, String)}) or null if
+	 * no more call sites can be registered.
+	 */
+	private String visitCachedClassProbe(String owner, String name, String cachedClassMethodName) {
+
+		String callSiteProbeMethodName = null;
+		int callSiteId = registerCallSite(owner, name);
+
+		if (callSiteId >= 0) {
+			callSiteProbeMethodName = osgiClassLoaderVisitor.getCallSiteProbeMethodName(callSiteId,
+					cachedClassMethodName);
+		}
+
+		return callSiteProbeMethodName;
+	}
+
+	/**
+	 * Registers the rewritten call with {@link CallSiteProbes} and returns the name of the method which probes it (see
+	 * {@link JSF_OSGiClassVisitor#getCallSiteProbeMethodName(int, RewriteRuleTable.CompiledRule, boolean)}). If the
+	 * class cannot declare the method, the call is only counted (before its stack operations) and null is returned.
+	 * Null is also returned if no more call sites can be registered.
+	 */
+	private String visitCallSiteProbe(String owner, String name, RewriteRuleTable.CompiledRule compiledRule,
+		boolean invokeDynamic) {
+
+		String callSiteProbeMethodName = null;
+		int callSiteId = registerCallSite(owner, name);
+
+		if (callSiteId >= 0) {
+
+			callSiteProbeMethodName = osgiClassLoaderVisitor.getCallSiteProbeMethodName(callSiteId, compiledRule,
+					invokeDynamic);
+
+			if (callSiteProbeMethodName == null) {
+
+				super.visitLdcInsn(callSiteId);
+				super.visitMethodInsn(Opcodes.INVOKESTATIC, CALL_SITE_PROBES_OWNER_STRING, "count",
+					CALL_SITE_PROBES_COUNT_METHOD_DESCRIPTOR, false);
+			}
+		}
+
+		return callSiteProbeMethodName;
+	}
+
+	private void visitStackOperations(StackOperation[] stackOperations) {
+
+		for (StackOperation stackOperation : stackOperations) {
+
+			if (stackOperation == StackOperation.LOAD_CURRENT_CLASS) {
+				loadCurrentClass();
+			}
+			else if (stackOperation == StackOperation.LOAD_CURRENT_FACES_CONTEXT) {
+				loadCurrentFacesContext();
+			}
+			else {
+				super.visitInsn(Opcodes.SWAP);
+			}
+		}
+	}
+
+	/**
+	 * Visits the deferred string constant (if any) since it was not followed by a <code>Class.forName(String)</code>
+	 * call which could be replaced.
+	 */
+	private void visitPendingClassNameConstant() {
+
+		if (pendingClassNameConstant != null) {
+
+			super.visitLdcInsn(pendingClassNameConstant);
+			pendingClassNameConstant = null;
+		}
 	}
 }
@@ -13,42 +13,108 @@
  */
 package com.liferay.faces.osgi.weaver.internal;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Dictionary;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.BundleListener;
 import org.osgi.framework.FrameworkEvent;
 import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.ServiceReference;
 import org.osgi.framework.ServiceRegistration;
+import org.osgi.framework.SynchronousBundleListener;
 import org.osgi.framework.hooks.weaving.WeavingHook;
+import org.osgi.framework.wiring.BundleWiring;
 import org.osgi.framework.wiring.FrameworkWiring;
 
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Modified;
 import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.component.annotations.ReferencePolicyOption;
 import org.osgi.service.log.LogService;
 
+import com.liferay.faces.osgi.weaver.metrics.WeaverMetricsMXBean;
+import com.liferay.faces.osgi.weaver.rewrite.RewriteRule;
+import com.liferay.faces.osgi.weaver.rewrite.RewriteRuleProvider;
+import com.liferay.faces.osgi.weaver.runtime.ClassLoadingCallSites;
+
 
 /**
  * This class exists to work around <a href="https://issues.apache.org/jira/browse/FELIX-5570">FELIX-5570</a> and
- * refresh all Faces bundles to ensure that bytecode weaving occurs even on bundles deployed before the weaver was
- * activated.
+ * refresh the resolved Faces bundles to ensure that bytecode weaving occurs even on bundles deployed before the weaver
+ * was activated.
  *
  * @author  Kyle Stiemann
  */
-@Component(immediate = true)
+@Component(configurationPid = WeavingPolicy.CONFIGURATION_PID, immediate = true)
 public final class JSF_OSGiWeaver {
 
+	// Private Constants
+	private static final String CALL_SITE_PROBES_PROPERTY = "com.liferay.faces.osgi.weaver.call.site.probes";
+	private static final int DEFAULT_FACES_WAB_RESTART_TIMEOUT_SECONDS = 120;
+	private static final int DEFAULT_WOVEN_CLASS_CACHE_MAX_SIZE = 16 * 1024 * 1024;
+	private static final String FACES_WAB_RESTART_THREADS_PROPERTY =
+		"com.liferay.faces.osgi.weaver.wab.restart.threads";
+	private static final String FACES_WAB_RESTART_TIMEOUT_PROPERTY =
+		"com.liferay.faces.osgi.weaver.wab.restart.timeout";
+	private static final String INVOKE_DYNAMIC_CALL_SITES_PROPERTY =
+		"com.liferay.faces.osgi.weaver.invokedynamic.call.sites";
+	private static final String PRE_WEAVE_THREADS_PROPERTY = "com.liferay.faces.osgi.weaver.pre.weave.threads";
+	private static final String REUSE_FACES_CONTEXT_PROPERTY = "com.liferay.faces.osgi.weaver.reuse.faces.context";
+	private static final String STACK_MAP_FRAME_MODE_PROPERTY = "com.liferay.faces.osgi.weaver.stack.map.frames";
+	private static final String WOVEN_CLASS_CACHE_FILE_NAME = "woven-class-cache";
+	private static final String WOVEN_CLASS_CACHE_MAX_SIZE_PROPERTY =
+		"com.liferay.faces.osgi.weaver.woven.class.cache.max.size";
+
+	// Private Final Data Members
+	private final List<RewriteRuleProvider> rewriteRuleProviders = new ArrayList<RewriteRuleProvider>();
+
 	// Private Data Members
 	@Reference
 	private LogService logService;
+	private BundleContext bundleContext;
+	private BundleListener classLoadingCallSitesInvalidationListener;
+	private JSF_OSGiWeavingHook jsfOSGiWeavingHook;
+	private PreWeaver preWeaver;
+	private ObjectName weaverMetricsObjectName;
+	private ServiceRegistration weaverMetricsService;
 	private ServiceRegistration weavingHookService;
+	private WovenClassCache wovenClassCache;
+
+	public JSF_OSGiWeaver() {
+		// Instantiated by Declarative Services, which injects the log service.
+	}
+
+	/* package-private */ JSF_OSGiWeaver(LogService logService) {
+		this.logService = logService;
+	}
 
 	private static boolean isFacesWab(Bundle bundle) {
 
@@ -66,67 +132,555 @@ public final class JSF_OSGiWeaver {
 		return webContextPathHeader != null;
 	}
 
+	private static boolean isWeaveBundle(Bundle bundle, WeavingPolicy... weavingPolicies) {
+
+		boolean weaveBundle = false;
+
+		for (WeavingPolicy weavingPolicy : weavingPolicies) {
+
+			if (weavingPolicy.isWeaveBundle(bundle)) {
+
+				weaveBundle = true;
+
+				break;
+			}
+		}
+
+		return weaveBundle;
+	}
+
+	private static int getIntProperty(BundleContext bundleContext, String name, int defaultValue) {
+
+		int value = defaultValue;
+		String property = bundleContext.getProperty(name);
+
+		if (property != null) {
+
+			try {
+				value = Integer.parseInt(property.trim());
+			}
+			catch (NumberFormatException e) {
+				// Use the default value.
+			}
+		}
+
+		return value;
+	}
+
+	/**
+	 * Returns the {@link StackMapFrameMode} configured via the {@link #STACK_MAP_FRAME_MODE_PROPERTY} framework
+	 * property (for example <code>preserve</code> or <code>drop-java-1-6</code>). Defaults to {@link
+	 * StackMapFrameMode#COMPUTE}.
+	 */
+	private static StackMapFrameMode getStackMapFrameMode(BundleContext bundleContext) {
+
+		StackMapFrameMode stackMapFrameMode = StackMapFrameMode.COMPUTE;
+		String property = bundleContext.getProperty(STACK_MAP_FRAME_MODE_PROPERTY);
+
+		if (property != null) {
+
+			try {
+				stackMapFrameMode = StackMapFrameMode.fromString(property);
+			}
+			catch (IllegalArgumentException e) {
+				// Use the default value.
+			}
+		}
+
+		return stackMapFrameMode;
+	}
+
 	@Activate
-	/* package-private */ synchronized void activate(BundleContext bundleContext) throws BundleException {
+	/* package-private */ synchronized void activate(BundleContext bundleContext, Map<String, Object> properties)
+		throws BundleException {
+
+		this.bundleContext = bundleContext;
+
+		StackMapFrameMode stackMapFrameMode = getStackMapFrameMode(bundleContext);
+
+		// invokedynamic call sites are opt-in since they link woven classes against this bundle.
+		boolean invokeDynamicCallSites = Boolean.parseBoolean(bundleContext.getProperty(
+					INVOKE_DYNAMIC_CALL_SITES_PROPERTY));
+
+		// Reusing the FacesContext within a method is opt-in since a rewritten call no longer observes a FacesContext
+		// which is released or replaced after an earlier rewritten call of the same method invocation.
+		boolean reuseFacesContext = Boolean.parseBoolean(bundleContext.getProperty(REUSE_FACES_CONTEXT_PROPERTY));
+		// Call site probes are opt-in diagnostics which add a synthetic method and a counter to each rewritten call.
+		// The ids of the probed call sites are only valid while the framework runs, so woven classes are not cached.
+		boolean callSiteProbes = Boolean.parseBoolean(bundleContext.getProperty(CALL_SITE_PROBES_PROPERTY));
+		RewriteRuleTable rewriteRuleTable = newRewriteRuleTable();
+
+		if (!callSiteProbes) {
+			wovenClassCache = openWovenClassCache(bundleContext, stackMapFrameMode, invokeDynamicCallSites,
+					reuseFacesContext);
+		}
+
+		// By default, pre-weave Faces bundles with half of the available processors so that pre-weaving does not
+		// compete with the rest of the startup for every processor.
+		int defaultPreWeaveThreadCount = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+		int preWeaveThreadCount = getIntProperty(bundleContext, PRE_WEAVE_THREADS_PROPERTY,
+				defaultPreWeaveThreadCount);
+		WeaverMetrics weaverMetrics = new WeaverMetrics();
+		weaverMetricsService = bundleContext.registerService(WeaverMetricsMXBean.class, weaverMetrics, null);
+		registerWeaverMetricsMBean(weaverMetrics);
+
+		WeavingPolicy weavingPolicy = getWeavingPolicy(properties, WeavingPolicy.getDefault());
+		WeavingHookOptions weavingHookOptions = new WeavingHookOptions();
+		weavingHookOptions.setStackMapFrameMode(stackMapFrameMode);
+		weavingHookOptions.setWovenClassCache(wovenClassCache);
+		weavingHookOptions.setWeaverMetrics(weaverMetrics);
+		weavingHookOptions.setWeavingPolicy(weavingPolicy);
+		weavingHookOptions.setPreWeaveThreadCount(preWeaveThreadCount);
+		weavingHookOptions.setInvokeDynamicCallSites(invokeDynamicCallSites);
+		weavingHookOptions.setReuseFacesContext(reuseFacesContext);
+		weavingHookOptions.setCallSiteProbes(callSiteProbes);
+		weavingHookOptions.setRewriteRuleTable(rewriteRuleTable);
+		jsfOSGiWeavingHook = new JSF_OSGiWeavingHook(logService, weavingHookOptions);
+
+		if (invokeDynamicCallSites) {
+
+			classLoadingCallSitesInvalidationListener = new ClassLoadingCallSitesInvalidationListener();
+			bundleContext.addBundleListener(classLoadingCallSitesInvalidationListener);
+		}
+
+		preWeaver = jsfOSGiWeavingHook.getPreWeaver();
+
+		if (preWeaver != null) {
+			bundleContext.addBundleListener(preWeaver);
+		}
+
+		// Track the classes which are defined (and woven) through the weaving hook once it is registered so that
+		// bundles whose classes were all loaded after its registration are not refreshed.
+		jsfOSGiWeavingHook.startTrackingDefinedClasses();
 
 		// Avoid using Declarative Services to register the weaving hook to work around
 		// https://issues.apache.org/jira/browse/FELIX-5570.
-		weavingHookService = bundleContext.registerService(WeavingHook.class, new JSF_OSGiWeavingHook(logService),
-				null);
+		weavingHookService = bundleContext.registerService(WeavingHook.class, jsfOSGiWeavingHook, null);
 
 		// Refresh deployed Faces bundles to ensure that bytecode weaving occurs even on bundles deployed before the
 		// weaver was activated.
-		Bundle systemBundle = bundleContext.getBundle(0);
-		FrameworkWiring frameworkWiring = systemBundle.adapt(FrameworkWiring.class);
+		try {
+			refreshFacesBundles(bundleContext, weavingPolicy);
+		}
+		finally {
+			jsfOSGiWeavingHook.stopTrackingDefinedClasses();
+		}
+	}
+
+	/**
+	 * Adds the rules of a {@link RewriteRuleProvider}. Once the weaver is active, the rules of the weaving hook are
+	 * replaced without reactivating the weaver, and only the bundles whose weaving changed are refreshed (see {@link
+	 * #refreshRewrittenBundles(Bundle, RewriteRuleTable)}).
+	 */
+	@Reference(
+		cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC,
+		policyOption = ReferencePolicyOption.GREEDY, unbind = "removeRewriteRuleProvider"
+	)
+	/* package-private */ synchronized void addRewriteRuleProvider(
+		ServiceReference<RewriteRuleProvider> serviceReference, RewriteRuleProvider rewriteRuleProvider)
+		throws BundleException {
+
+		rewriteRuleProviders.add(rewriteRuleProvider);
+		rewriteRulesChanged(serviceReference.getBundle());
+	}
+
+	@Deactivate
+	/* package-private */ synchronized void deactivate(BundleContext bundleContext) {
+
+		weavingHookService.unregister();
+		jsfOSGiWeavingHook = null;
+		this.bundleContext = null;
+
+		if (preWeaver != null) {
+
+			bundleContext.removeBundleListener(preWeaver);
+			preWeaver.shutdown();
+			preWeaver = null;
+		}
+
+		if (classLoadingCallSitesInvalidationListener != null) {
+
+			bundleContext.removeBundleListener(classLoadingCallSitesInvalidationListener);
+			classLoadingCallSitesInvalidationListener = null;
+		}
+
+		if (wovenClassCache != null) {
+
+			try {
+				wovenClassCache.close();
+			}
+			catch (IOException e) {
+				logService.log(LogService.LOG_WARNING, "Unable to close the woven class cache:", e);
+			}
+
+			wovenClassCache = null;
+		}
+
+		if (weaverMetricsObjectName != null) {
+
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(weaverMetricsObjectName);
+			}
+			catch (JMException e) {
+				logService.log(LogService.LOG_WARNING, "Unable to unregister the weaver metrics MBean:", e);
+			}
+
+			weaverMetricsObjectName = null;
+		}
+
+		weaverMetricsService.unregister();
+	}
+
+	/**
+	 * Replaces the weaving policy (see {@link WeavingPolicy}) when its configuration changes. Since classes which have
+	 * already been loaded cannot be woven again, the bundles woven under either the previous or the new policy are
+	 * refreshed.
+	 */
+	@Modified
+	/* package-private */ synchronized void modified(BundleContext bundleContext, Map<String, Object> properties)
+		throws BundleException {
+
+		WeavingPolicy previousWeavingPolicy = jsfOSGiWeavingHook.getWeavingPolicy();
+		WeavingPolicy weavingPolicy = getWeavingPolicy(properties, previousWeavingPolicy);
+
+		if (!weavingPolicy.equals(previousWeavingPolicy)) {
+
+			logService.log(LogService.LOG_INFO, "Weaving policy changed to: " + weavingPolicy);
+			jsfOSGiWeavingHook.setWeavingPolicy(weavingPolicy);
+			refreshFacesBundles(bundleContext, previousWeavingPolicy, weavingPolicy);
+		}
+	}
+
+	/**
+	 * Removes the rules of a {@link RewriteRuleProvider} (see {@link #addRewriteRuleProvider(ServiceReference,
+	 * RewriteRuleProvider)}).
+	 */
+	/* package-private */ synchronized void removeRewriteRuleProvider(
+		ServiceReference<RewriteRuleProvider> serviceReference, RewriteRuleProvider rewriteRuleProvider)
+		throws BundleException {
+
+		rewriteRuleProviders.remove(rewriteRuleProvider);
+		rewriteRulesChanged(serviceReference.getBundle());
+	}
+
+	/**
+	 * Returns the weaving policy built from the configuration properties or the fallback policy if the configuration is
+	 * invalid.
+	 */
+	private WeavingPolicy getWeavingPolicy(Map<String, Object> properties, WeavingPolicy fallbackWeavingPolicy) {
+
+		WeavingPolicy weavingPolicy = fallbackWeavingPolicy;
+
+		try {
+			weavingPolicy = WeavingPolicy.fromProperties(properties);
+		}
+		catch (IllegalArgumentException e) {
+			logService.log(LogService.LOG_WARNING,
+				"Invalid weaving policy configuration. Using " + fallbackWeavingPolicy + " instead:", e);
+		}
+
+		return weavingPolicy;
+	}
+
+	/**
+	 * Returns true if the bundle is resolved (or starting, active, or stopping) and has loaded any class which was not
+	 * defined through the weaving hook while defined classes were tracked (see {@link
+	 * JSF_OSGiWeavingHook#getDefinedClassNames(BundleWiring)}) or if that cannot be determined (see {@link
+	 * LoadedClassDetector}). Other bundles do not need to be refreshed, since their classes are woven (or were already
+	 * woven) when they are loaded. Once tracking stops (for example when the weaving policy is modified), any loaded
+	 * class requires a refresh.
+	 */
+	private boolean isClassLoadedWithoutWeavingHook(Bundle bundle) {
+
+		boolean classLoadedWithoutWeavingHook = false;
+
+		if ((bundle.getState() & (Bundle.RESOLVED | Bundle.STARTING | Bundle.ACTIVE | Bundle.STOPPING)) != 0) {
+
+			BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+
+			if (bundleWiring == null) {
+				classLoadedWithoutWeavingHook = true;
+			}
+			else {
+
+				Boolean anyClassLoaded = LoadedClassDetector.isAnyClassLoaded(bundleWiring,
+						jsfOSGiWeavingHook.getDefinedClassNames(bundleWiring));
+
+				if (anyClassLoaded == null) {
+					logService.log(LogService.LOG_INFO,
+						"Unable to determine whether classes of " + bundle.getSymbolicName() +
+						" were loaded before the weaver was registered (the framework's class loaders do not expose their loaded classes on this Java version), so it will be refreshed.");
+				}
+
+				classLoadedWithoutWeavingHook = (anyClassLoaded == null) || anyClassLoaded;
+			}
+		}
+
+		return classLoadedWithoutWeavingHook;
+	}
+
+	/**
+	 * Returns the table of the built-in rewrite rules and the rules of the registered {@link RewriteRuleProvider}s. If
+	 * any extra rule is invalid, only the built-in rules are used.
+	 */
+	private RewriteRuleTable newRewriteRuleTable() {
+
+		RewriteRuleTable rewriteRuleTable = RewriteRuleTable.getBuiltInInstance();
+		List<RewriteRule> extraRewriteRules = new ArrayList<RewriteRule>();
+
+		for (RewriteRuleProvider rewriteRuleProvider : rewriteRuleProviders) {
+
+			List<RewriteRule> rewriteRules = rewriteRuleProvider.getRewriteRules();
+
+			if (rewriteRules != null) {
+				extraRewriteRules.addAll(rewriteRules);
+			}
+		}
+
+		if (!extraRewriteRules.isEmpty()) {
+
+			try {
+
+				rewriteRuleTable = new RewriteRuleTable(extraRewriteRules);
+				logService.log(LogService.LOG_INFO,
+					"Rewriting calls with " + extraRewriteRules.size() + " extra rewrite rule(s).");
+			}
+			catch (IllegalArgumentException e) {
+				logService.log(LogService.LOG_ERROR,
+					"Ignoring the extra rewrite rules due to the following invalid rule:", e);
+			}
+		}
+
+		return rewriteRuleTable;
+	}
+
+	/**
+	 * Opens the persistent woven class cache in this bundle's data area. The maximum size of the cache (in bytes) can
+	 * be configured via the {@link #WOVEN_CLASS_CACHE_MAX_SIZE_PROPERTY} framework property. A size of 0 disables the
+	 * cache. Classes whose frames are computed are not cached, since their frames depend on the type hierarchy provided
+	 * by other bundles (which may change without the woven bundle changing). Since the rewrite rules may change while
+	 * the cache is open, they are part of the key of each class (see {@link WovenClassCache#newKey(Bundle, String,
+	 * byte[], boolean, RewriteRuleTable)}) rather than of the fingerprint of the cache.
+	 */
+	private WovenClassCache openWovenClassCache(BundleContext bundleContext, StackMapFrameMode stackMapFrameMode,
+		boolean invokeDynamicCallSites, boolean reuseFacesContext) {
+
+		WovenClassCache wovenClassCache = null;
+		int maxSize = getIntProperty(bundleContext, WOVEN_CLASS_CACHE_MAX_SIZE_PROPERTY,
+				DEFAULT_WOVEN_CLASS_CACHE_MAX_SIZE);
+		File file = bundleContext.getDataFile(WOVEN_CLASS_CACHE_FILE_NAME);
+
+		if ((maxSize > 0) && (file != null) && (stackMapFrameMode != StackMapFrameMode.COMPUTE)) {
+
+			// Classes woven by a different build of the weaver or with different options must not be reused.
+			Bundle bundle = bundleContext.getBundle();
+			String fingerprint = bundle.getVersion() + ":" + bundle.getLastModified() + ":" + stackMapFrameMode + ":" +
+				invokeDynamicCallSites + ":" + reuseFacesContext;
+
+			try {
+				wovenClassCache = WovenClassCache.open(file, maxSize, fingerprint);
+			}
+			catch (IOException e) {
+				logService.log(LogService.LOG_WARNING, "Unable to open the woven class cache " + file + ":", e);
+			}
+			catch (IllegalArgumentException e) {
+				logService.log(LogService.LOG_WARNING, "Unable to open the woven class cache " + file + ":", e);
+			}
+		}
+
+		return wovenClassCache;
+	}
+
+	/**
+	 * Refreshes the bundles which are woven under any of the weaving policies and which have loaded classes that were
+	 * not woven by the weaving hook (see {@link #isClassLoadedWithoutWeavingHook(Bundle)} and {@link
+	 * #refreshBundles(BundleContext, long, List, WeavingPolicy...)}).
+	 */
+	/* package-private */ void refreshFacesBundles(BundleContext bundleContext, WeavingPolicy... weavingPolicies)
+		throws BundleException {
+
+		long startTime = System.nanoTime();
 		List<Bundle> facesBundles = new ArrayList<Bundle>();
-		List<Bundle> facesWabs = new ArrayList<Bundle>();
 		Bundle[] bundles = bundleContext.getBundles();
 
 		for (Bundle bundle : bundles) {
 
-			if (JSF_OSGiWeavingHook.isWeaveBundle(bundle)) {
-				facesBundles.add(bundle);
-			}
-			else if (isFacesWab(bundle)) {
-				facesWabs.add(bundle);
+			if (isWeaveBundle(bundle, weavingPolicies)) {
+
+				if (isClassLoadedWithoutWeavingHook(bundle)) {
+					facesBundles.add(bundle);
+				}
+				else {
+					logService.log(LogService.LOG_DEBUG,
+						"Skipping the refresh of " + bundle.getSymbolicName() +
+						" since it has not loaded any classes which need to be woven.");
+				}
 			}
 		}
 
+		refreshBundles(bundleContext, startTime, facesBundles, weavingPolicies);
+	}
+
+	/**
+	 * Refreshes the bundles. Only the Faces WABs which are refreshed along with the bundles (since they depend on them)
+	 * and which are not woven under any of the weaving policies are stopped before the refresh and started again
+	 * (concurrently) once the refresh completes. The number of threads which start the Faces WABs and the time (in
+	 * seconds) that they are awaited can be configured via the {@link #FACES_WAB_RESTART_THREADS_PROPERTY} and {@link
+	 * #FACES_WAB_RESTART_TIMEOUT_PROPERTY} framework properties.
+	 *
+	 * @param  startTime  The {@link System#nanoTime()} at which the bundles to refresh started being determined.
+	 */
+	private void refreshBundles(BundleContext bundleContext, long startTime, List<Bundle> facesBundles,
+		WeavingPolicy... weavingPolicies) throws BundleException {
+
 		if (!facesBundles.isEmpty()) {
 
-			Iterator<Bundle> iterator = facesWabs.iterator();
+			Bundle systemBundle = bundleContext.getBundle(0);
+			FrameworkWiring frameworkWiring = systemBundle.adapt(FrameworkWiring.class);
+			Collection<Bundle> dependencyClosure = frameworkWiring.getDependencyClosure(facesBundles);
+			List<Bundle> facesWabs = new ArrayList<Bundle>();
+
+			for (Bundle bundle : dependencyClosure) {
 
-			while (iterator.hasNext()) {
+				int bundleState = bundle.getState();
 
-				Bundle bundle = iterator.next();
-				int facesWabState = bundle.getState();
+				if (!isWeaveBundle(bundle, weavingPolicies) && isFacesWab(bundle) &&
+						((bundleState == Bundle.STARTING) || (bundleState == Bundle.ACTIVE))) {
 
-				if ((facesWabState == Bundle.STARTING) || (facesWabState == Bundle.ACTIVE)) {
 					bundle.stop();
+					facesWabs.add(bundle);
+				}
+			}
+
+			int restartThreadCount = getIntProperty(bundleContext, FACES_WAB_RESTART_THREADS_PROPERTY,
+					Runtime.getRuntime().availableProcessors());
+			int restartTimeoutSeconds = getIntProperty(bundleContext, FACES_WAB_RESTART_TIMEOUT_PROPERTY,
+					DEFAULT_FACES_WAB_RESTART_TIMEOUT_SECONDS);
+			frameworkWiring.refreshBundles(facesBundles,
+				new FacesBundlesRefreshListener(facesWabs, dependencyClosure.size(), startTime,
+					Math.max(1, restartThreadCount), restartTimeoutSeconds, logService));
+		}
+	}
+
+	/**
+	 * Refreshes the bundles which are woven under the current weaving policy, which have loaded any class (see {@link
+	 * #isClassLoadedWithoutWeavingHook(Bundle)}), and whose classes contain calls of the changed rules (see {@link
+	 * WeaveTargetDetector}). Bundles whose classes were not loaded yet are woven with the new rules when they are
+	 * loaded. The bundle of the provider whose rules changed is never stopped, since stopping it would unregister (or
+	 * register) its provider and change the rules again. Bundles whose refresh would stop it are therefore not
+	 * refreshed, and they are only woven with the new rules once they are refreshed for another reason.
+	 *
+	 * @param  providerBundle    The bundle of the provider whose rules changed or null if it is unknown.
+	 * @param  changedRuleTable  The table of the changed rules (see {@link
+	 *                           RewriteRuleTable#getChangedRuleTable(RewriteRuleTable, RewriteRuleTable)}).
+	 */
+	private void refreshRewrittenBundles(Bundle providerBundle, RewriteRuleTable changedRuleTable)
+		throws BundleException {
+
+		long startTime = System.nanoTime();
+		WeavingPolicy weavingPolicy = jsfOSGiWeavingHook.getWeavingPolicy();
+		Bundle systemBundle = bundleContext.getBundle(0);
+		FrameworkWiring frameworkWiring = systemBundle.adapt(FrameworkWiring.class);
+		List<Bundle> rewrittenBundles = new ArrayList<Bundle>();
+		Bundle[] bundles = bundleContext.getBundles();
+
+		for (Bundle bundle : bundles) {
+
+			WeavingPolicy.BundleRule bundleRule = weavingPolicy.getBundleRule(bundle);
+
+			if ((bundleRule != null) && isClassLoadedWithoutWeavingHook(bundle)) {
+
+				BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+
+				if ((bundleWiring != null) &&
+						!WeaveTargetDetector.containsWeaveTargets(bundleWiring,
+							bundleRule.isWeaveClassLoadingCalls(), changedRuleTable)) {
+					logService.log(LogService.LOG_DEBUG,
+						"Skipping the refresh of " + bundle.getSymbolicName() +
+						" since it does not contain any calls of the changed rewrite rules.");
+				}
+				else if ((providerBundle != null) &&
+						frameworkWiring.getDependencyClosure(Collections.singletonList(bundle)).contains(
+							providerBundle)) {
+					logService.log(LogService.LOG_WARNING,
+						"Skipping the refresh of " + bundle.getSymbolicName() + " since it would stop " +
+						providerBundle.getSymbolicName() +
+						", which provides the changed rewrite rules. Its loaded classes are woven with the changed rules once it is refreshed.");
 				}
 				else {
-					iterator.remove();
+					rewrittenBundles.add(bundle);
 				}
 			}
+		}
 
-			frameworkWiring.refreshBundles(facesBundles, new FacesBundlesRefreshListener(facesWabs, logService));
+		refreshBundles(bundleContext, startTime, rewrittenBundles, weavingPolicy);
+	}
+
+	/**
+	 * Registers the weaver metrics with the platform MBean server. Failing to register the metrics (for example because
+	 * another instance of the weaver has already registered its metrics) does not prevent weaving.
+	 */
+	private void registerWeaverMetricsMBean(WeaverMetricsMXBean weaverMetrics) {
+
+		try {
+
+			MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(WeaverMetricsMXBean.OBJECT_NAME);
+			mBeanServer.registerMBean(weaverMetrics, objectName);
+			weaverMetricsObjectName = objectName;
+		}
+		catch (JMException e) {
+			logService.log(LogService.LOG_WARNING, "Unable to register the weaver metrics MBean:", e);
 		}
 	}
 
-	@Deactivate
-	/* package-private */ synchronized void deactivate(BundleContext bundleContext) {
-		weavingHookService.unregister();
+	/**
+	 * Replaces the rules of the weaving hook with the built-in rules and the rules of the registered providers if the
+	 * weaver is active and the extra rules changed. Before the weaver is activated, the providers are only recorded.
+	 *
+	 * @param  providerBundle  The bundle of the provider which was added or removed.
+	 */
+	private void rewriteRulesChanged(Bundle providerBundle) throws BundleException {
+
+		if (jsfOSGiWeavingHook != null) {
+
+			RewriteRuleTable previousRewriteRuleTable = jsfOSGiWeavingHook.getRewriteRuleTable();
+			RewriteRuleTable rewriteRuleTable = newRewriteRuleTable();
+			RewriteRuleTable changedRuleTable = RewriteRuleTable.getChangedRuleTable(previousRewriteRuleTable,
+					rewriteRuleTable);
+
+			if (changedRuleTable != null) {
+
+				jsfOSGiWeavingHook.setRewriteRuleTable(rewriteRuleTable);
+				refreshRewrittenBundles(providerBundle, changedRuleTable);
+			}
+		}
 	}
 
-	private static final class FacesBundlesRefreshListener implements FrameworkListener {
+	/**
+	 * Starts the Faces WABs which were stopped before the refresh once the refresh completes and logs how long the
+	 * whole cycle (from stopping the Faces WABs to starting them again) took. The Faces WABs are started concurrently
+	 * by a bounded number of threads. Faces WABs which fail to start or do not start within the timeout are reported
+	 * (Faces WABs which time out keep starting in the background).
+	 */
+	/* package-private */ static final class FacesBundlesRefreshListener implements FrameworkListener {
 
 		// Private Final Data Members
 		private final List<Bundle> facesWabs;
 		private final LogService logService;
+		private final int refreshedBundleCount;
+		private final int restartThreadCount;
+		private final int restartTimeoutSeconds;
+		private final long startTime;
 
-		public FacesBundlesRefreshListener(List<Bundle> facesWabs, LogService logService) {
+		public FacesBundlesRefreshListener(List<Bundle> facesWabs, int refreshedBundleCount, long startTime,
+			int restartThreadCount, int restartTimeoutSeconds, LogService logService) {
 
 			this.facesWabs = Collections.unmodifiableList(facesWabs);
+			this.refreshedBundleCount = refreshedBundleCount;
+			this.startTime = startTime;
+			this.restartThreadCount = restartThreadCount;
+			this.restartTimeoutSeconds = restartTimeoutSeconds;
 			this.logService = logService;
 		}
 
@@ -137,17 +691,123 @@ public final class JSF_OSGiWeaver {
 
 			if (eventType == FrameworkEvent.PACKAGES_REFRESHED) {
 
-				for (Bundle facesWab : facesWabs) {
+				int startedFacesWabCount = startFacesWabs();
+				long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+				logService.log(LogService.LOG_INFO,
+					"Refreshed " + refreshedBundleCount + " bundle(s) and restarted " + startedFacesWabCount + " of " +
+					facesWabs.size() + " Faces WAB(s) in " + elapsedMillis + "ms.");
+			}
+		}
+
+		/**
+		 * Starts the Faces WABs and returns the number of Faces WABs which started within the timeout.
+		 */
+		private int startFacesWabs() {
+
+			int startedFacesWabCount = 0;
+
+			if (!facesWabs.isEmpty()) {
+
+				ExecutorService executorService = Executors.newFixedThreadPool(Math.min(restartThreadCount,
+							facesWabs.size()), new FacesWabStarterThreadFactory());
 
-					try {
-						facesWab.start();
+				try {
+
+					List<Future<Void>> futures = new ArrayList<Future<Void>>(facesWabs.size());
+
+					for (Bundle facesWab : facesWabs) {
+						futures.add(executorService.submit(new FacesWabStarter(facesWab)));
 					}
-					catch (BundleException e) {
-						logService.log(LogService.LOG_ERROR,
-							facesWab.getSymbolicName() + " failed to start due to the following error(s):", e);
+
+					long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(restartTimeoutSeconds);
+
+					for (int i = 0; i < futures.size(); i++) {
+
+						Bundle facesWab = facesWabs.get(i);
+
+						try {
+
+							futures.get(i).get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+							startedFacesWabCount++;
+						}
+						catch (ExecutionException e) {
+							logService.log(LogService.LOG_ERROR,
+								facesWab.getSymbolicName() + " failed to start due to the following error(s):",
+								e.getCause());
+						}
+						catch (TimeoutException e) {
+							logService.log(LogService.LOG_WARNING,
+								facesWab.getSymbolicName() + " did not start within " + restartTimeoutSeconds +
+								" seconds.");
+						}
+						catch (InterruptedException e) {
+
+							Thread.currentThread().interrupt();
+
+							break;
+						}
 					}
 				}
+				finally {
+
+					// Let Faces WABs which have not started yet finish starting.
+					executorService.shutdown();
+				}
+			}
+
+			return startedFacesWabCount;
+		}
+	}
+
+	/**
+	 * Invalidates the classes cached by the {@link ClassLoadingCallSites} whenever a bundle is resolved or unresolved,
+	 * since the class that a name resolves to may change with the wiring of the bundles. The listener is synchronous so
+	 * that classes from the previous wiring are not returned once a refreshed bundle is resolved again.
+	 */
+	private static final class ClassLoadingCallSitesInvalidationListener implements SynchronousBundleListener {
+
+		@Override
+		public void bundleChanged(BundleEvent bundleEvent) {
+
+			int eventType = bundleEvent.getType();
+
+			if ((eventType == BundleEvent.RESOLVED) || (eventType == BundleEvent.UNRESOLVED)) {
+				ClassLoadingCallSites.invalidate();
 			}
 		}
 	}
+
+	private static final class FacesWabStarter implements Callable<Void> {
+
+		// Private Final Data Members
+		private final Bundle facesWab;
+
+		public FacesWabStarter(Bundle facesWab) {
+			this.facesWab = facesWab;
+		}
+
+		@Override
+		public Void call() throws BundleException {
+
+			facesWab.start();
+
+			return null;
+		}
+	}
+
+	private static final class FacesWabStarterThreadFactory implements ThreadFactory {
+
+		// Private Final Data Members
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+
+			Thread thread = new Thread(runnable,
+					"Liferay Faces OSGi Weaver WAB Starter-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+
+			return thread;
+		}
+	}
 }
@@ -13,14 +13,15 @@
  */
 package com.liferay.faces.osgi.weaver.internal;
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
-
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassWriter;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import org.osgi.framework.Bundle;
-import org.osgi.framework.Version;
 import org.osgi.framework.hooks.weaving.WeavingHook;
 import org.osgi.framework.hooks.weaving.WovenClass;
 import org.osgi.framework.wiring.BundleWiring;
@@ -37,11 +38,15 @@ import org.osgi.service.log.LogService;
  */
 /* package-private */ final class JSF_OSGiWeavingHook implements WeavingHook {
 
+	// Package-Private Constants
+	/**
+	 * The dynamic import required by every woven class (see {@link JSF_OSGiJarWeaver}).
+	 */
+	/* package-private */ static final String OSGI_CLASS_LOADER_DYNAMIC_IMPORT =
+		"com.liferay.faces.util.osgi;version=\"[1.0.0,2.0.0)\"";
+
 	// Private Constants
 	private static final int CLASS_MAJOR_VERSION_BYTE_OFFSET = 6;
-	private static final int CLASS_MAJOR_VERSION_BYTE_SIZE = 2;
-	private static final String MOJARRA_BUNDLE_SYMBOLIC_NAME = "org.glassfish.javax.faces";
-	private static final String PRIMEFACES_BUNDLE_SYMBOLIC_NAME = "org.primefaces";
 
 	/**
 	 * For more details on Java class format/target versions see here: <a
@@ -49,21 +54,44 @@ import org.osgi.service.log.LogService;
 	 * https://blogs.oracle.com/darcy/source%2c-target%2c-class-file-version-decoder-ring</a>
 	 */
 	private static final short JAVA_1_6_MAJOR_VERSION = 50;
-	private static final String OSGI_CLASS_LOADER_DYNAMIC_IMPORT =
-		"com.liferay.faces.util.osgi;version=\"[1.0.0,2.0.0)\"";
+	private static final String CALL_SITE_PROBES_DYNAMIC_IMPORT =
+		"com.liferay.faces.osgi.weaver.runtime;version=\"[1.1.0,2.0.0)\"";
+	private static final String CLASS_LOADING_CALL_SITES_DYNAMIC_IMPORT =
+		"com.liferay.faces.osgi.weaver.runtime;version=\"[1.0.0,2.0.0)\"";
 
 	// Private Data Members
+	private boolean callSiteProbes;
+	private volatile Map<BundleWiring, Set<String>> definedClassNamesMap;
+	private boolean invokeDynamicCallSites;
 	private LogService logService;
+	private PreWeaver preWeaver;
+	private boolean reuseFacesContext;
+	private volatile RewriteRuleTable rewriteRuleTable;
+	private StackMapFrameMode stackMapFrameMode;
+	private WeaverMetrics weaverMetrics;
+	private volatile WeavingPolicy weavingPolicy;
+	private WovenClassCache wovenClassCache;
 
-	public JSF_OSGiWeavingHook(LogService logService) {
-		this.logService = logService;
-	}
-
-	/* package-private */ static boolean isWeaveBundle(Bundle bundle) {
-
-		String bundleSymbolicName = bundle.getSymbolicName();
+	/**
+	 * @param  options  The options of the hook (see {@link WeavingHookOptions}). Classes are not pre-woven while call
+	 *                  site probes are enabled, since pre-woven classes may never be defined and their call sites
+	 *                  would be registered with no calls.
+	 */
+	public JSF_OSGiWeavingHook(LogService logService, WeavingHookOptions options) {
 
-		return MOJARRA_BUNDLE_SYMBOLIC_NAME.equals(bundleSymbolicName) || isPrimeFaces_6_2_OrLower(bundle);
+		this.logService = logService;
+		this.stackMapFrameMode = options.getStackMapFrameMode();
+		this.wovenClassCache = options.getWovenClassCache();
+		this.weaverMetrics = options.getWeaverMetrics();
+		this.weavingPolicy = options.getWeavingPolicy();
+		this.invokeDynamicCallSites = options.isInvokeDynamicCallSites();
+		this.reuseFacesContext = options.isReuseFacesContext();
+		this.callSiteProbes = options.isCallSiteProbes();
+		this.rewriteRuleTable = options.getRewriteRuleTable();
+
+		if ((options.getPreWeaveThreadCount() > 0) && !callSiteProbes) {
+			this.preWeaver = new PreWeaver(this, logService, options.getPreWeaveThreadCount());
+		}
 	}
 
 	/**
@@ -72,15 +100,15 @@ import org.osgi.service.log.LogService;
 	 * details, see: <a href="https://docs.oracle.com/javase/specs/jvms/se7/html/jvms-4.html#jvms-4.1">
 	 * https://docs.oracle.com/javase/specs/jvms/se7/html/jvms-4.html#jvms-4.1</a>). The first 2 bytes are the minor
 	 * version (which can be safely ignored in this case). The second 2 bytes are the major version (see {@link
-	 * #JAVA_1_6_MAJOR_VERSION}). To obtain the major target compiler version, extract the 2 bytes (see {@link
-	 * #CLASS_MAJOR_VERSION_BYTE_SIZE) starting at offset 6 (see {@link #CLASS_MAJOR_VERSION_BYTE_OFFSET}) as a short
-	 * int. If the obtained version is greater than or equal to {@link #JAVA_1_6_MAJOR_VERSION}, then return true.
+	 * #JAVA_1_6_MAJOR_VERSION}). To obtain the major target compiler version, read the 2 bytes starting at offset 6
+	 * (see {@link #CLASS_MAJOR_VERSION_BYTE_OFFSET}) as an unsigned big-endian short directly from the class bytes
+	 * (without wrapping them in a buffer). If the obtained version is greater than or equal to {@link
+	 * #JAVA_1_6_MAJOR_VERSION}, then return true.
 	 *
 	 * @see  #JAVA_1_6_MAJOR_VERSION
 	 * @see  #CLASS_MAJOR_VERSION_BYTE_OFFSET
-	 * @see  #CLASS_MAJOR_VERSION_BYTE_SIZE
 	 */
-	private static boolean isCompiledWithJava_1_6_OrGreater(byte[] classBytes) {
+	/* package-private */ static boolean isCompiledWithJava_1_6_OrGreater(byte[] classBytes) {
 
 		// Example hexadecimal data for a Java class file compiled with a Java 1.7 compiler (or target version):
 
@@ -88,42 +116,57 @@ import org.osgi.service.log.LogService;
 		// Byte Offset: 00 01 02 03 04 05 06 07
 		// Bytes:		CA FE BA BE 00 00 00 33
 		//J+
-		ByteBuffer byteBuffer = ByteBuffer.wrap(classBytes, CLASS_MAJOR_VERSION_BYTE_OFFSET,
-				CLASS_MAJOR_VERSION_BYTE_SIZE);
-		short majorVersion = byteBuffer.getShort();
+		int majorVersion = ((classBytes[CLASS_MAJOR_VERSION_BYTE_OFFSET] & 0xFF) << 8) |
+			(classBytes[CLASS_MAJOR_VERSION_BYTE_OFFSET + 1] & 0xFF);
 
 		return majorVersion >= JAVA_1_6_MAJOR_VERSION;
 	}
 
-	private static boolean isMojarraSPIClass(String className) {
-		return className.startsWith("com.sun.faces.spi") || className.startsWith("com.sun.faces.config.configprovider");
-	}
+	private static void recordDefinedClassName(Map<BundleWiring, Set<String>> definedClassNamesMap,
+		BundleWiring bundleWiring, String className) {
 
-	private static boolean isPrimeFaces_6_2_OrLower(Bundle bundle) {
+		synchronized (definedClassNamesMap) {
 
-		boolean primeFaces_6_2_OrLower = false;
-		String bundleSymbolicName = bundle.getSymbolicName();
+			Set<String> definedClassNames = definedClassNamesMap.get(bundleWiring);
 
-		if (PRIMEFACES_BUNDLE_SYMBOLIC_NAME.equals(bundleSymbolicName)) {
+			if (definedClassNames == null) {
 
-			Version version = bundle.getVersion();
-			primeFaces_6_2_OrLower = ((version.getMajor() == 6) && (version.getMinor() <= 2)) ||
-				(version.getMajor() < 6);
-		}
+				definedClassNames = new HashSet<String>();
+				definedClassNamesMap.put(bundleWiring, definedClassNames);
+			}
 
-		return primeFaces_6_2_OrLower;
+			definedClassNames.add(className);
+		}
 	}
 
 	@Override
 	public void weave(WovenClass wovenClass) {
 
+		Object weaveEvent = WeaverEvents.beginWeave();
 		String className = wovenClass.getClassName();
 		BundleWiring bundleWiring = wovenClass.getBundleWiring();
 		Bundle bundle = bundleWiring.getBundle();
+		String outcome = WeaverEvents.OUTCOME_IGNORED;
+		int bytesIn = 0;
+		int bytesOut = 0;
+		WeavingPolicy weavingPolicy = this.weavingPolicy;
+		RewriteRuleTable rewriteRuleTable = this.rewriteRuleTable;
+		WeavingPolicy.BundleRule bundleRule = weavingPolicy.getBundleRule(bundle);
+		Map<BundleWiring, Set<String>> definedClassNamesMap = this.definedClassNamesMap;
+
+		if ((bundleRule != null) && (definedClassNamesMap != null)) {
+			recordDefinedClassName(definedClassNamesMap, bundleWiring, className);
+		}
 
-		if (!isMojarraSPIClass(className) && isWeaveBundle(bundle)) {
+		if ((bundleRule != null) && weavingPolicy.isWeaveClass(className)) {
+
+			BundleWeaverMetricsRecorder bundleWeaverMetricsRecorder = weaverMetrics.getBundleWeaverMetricsRecorder(
+					bundle.getSymbolicName());
+			bundleWeaverMetricsRecorder.recordClassInspected();
+			outcome = WeaverEvents.OUTCOME_SKIPPED;
 
 			byte[] bytes = wovenClass.getBytes();
+			bytesIn = bytes.length;
 
 			// ASM cannot handle classes compiled with Java 1.5 or lower without using JSRInlinerAdapter (TODO use
 			// JSRInlinerAdapter to support classes compiled with target 1.5 and below in the future). For more
@@ -132,28 +175,53 @@ import org.osgi.service.log.LogService;
 			// https://asm.ow2.io/javadoc/org/objectweb/asm/commons/JSRInlinerAdapter.html.
 			if (isCompiledWithJava_1_6_OrGreater(bytes)) {
 
-				ClassReader classReader = new ClassReader(bytes);
-				OSGiClassWriter osgiClassWriter = new OSGiClassWriter(ClassWriter.COMPUTE_MAXS |
-						ClassWriter.COMPUTE_FRAMES, bundleWiring);
+				boolean weaveClassLoadingCalls = bundleRule.isWeaveClassLoadingCalls();
+
+				// Classes which the pre-weaver has found not to contain weave targets are rejected with a single index
+				// probe instead of scanning their constant pool again.
+				if ((preWeaver == null) ||
+						!getClassHeaderIndex(bundleWiring).containsNoWeaveTargets(className, bytes,
+							weaveClassLoadingCalls, rewriteRuleTable)) {
+
+					// Avoid building the ASM visitor chain (and computing the cache key) for the majority of classes
+					// which do not contain any calls that need to be woven.
+					ConstantPoolScanner constantPoolScanner = new ConstantPoolScanner(bytes, weaveClassLoadingCalls,
+							rewriteRuleTable);
 
-				try {
+					// Classes woven at build time (see JSF_OSGiJarWeaver) only need the dynamic import. Their jar's
+					// manifest also declares it, since the bundle may be excluded by the runtime weaving policy.
+					if (constantPoolScanner.isWoven()) {
+						addDynamicImport(wovenClass, rewriteRuleTable);
+					}
+					else if (constantPoolScanner.containsWeaveTargets()) {
+
+						bundleWeaverMetricsRecorder.recordBytesIn(bytes.length);
+
+						byte[] wovenBytes = null;
+
+						if (preWeaver != null) {
+							wovenBytes = preWeaver.removeWovenBytes(bundleWiring, className, bytes, rewriteRuleTable);
+						}
 
-					JSF_OSGiClassVisitor jsfOSGiClassVisitor = new JSF_OSGiClassVisitor(!isPrimeFaces_6_2_OrLower(
-								bundle), osgiClassWriter, className);
-					classReader.accept(jsfOSGiClassVisitor, ClassReader.SKIP_FRAMES);
+						if (wovenBytes == null) {
+							wovenBytes = weaveClassLoad(bundleWiring, className, bytes, constantPoolScanner,
+									weaveClassLoadingCalls);
+						}
 
-					if (jsfOSGiClassVisitor.isClassModified()) {
+						if (wovenBytes == null) {
 
-						wovenClass.setBytes(osgiClassWriter.toByteArray());
+							bundleWeaverMetricsRecorder.recordClassFailed();
+							outcome = WeaverEvents.OUTCOME_FAILED;
+						}
+						else if (wovenBytes != WovenClassCache.UNMODIFIED_CLASS_BYTES) {
 
-						List<String> dynamicImports = wovenClass.getDynamicImports();
-						dynamicImports.add(OSGI_CLASS_LOADER_DYNAMIC_IMPORT);
+							setWovenBytes(wovenClass, wovenBytes, rewriteRuleTable);
+							bundleWeaverMetricsRecorder.recordClassWoven(wovenBytes.length);
+							outcome = WeaverEvents.OUTCOME_WOVEN;
+							bytesOut = wovenBytes.length;
+						}
 					}
 				}
-				catch (CommonSuperClassNotFoundException e) {
-					logService.log(LogService.LOG_DEBUG,
-						"Unable to weave " + className + " due to the following error(s):", e);
-				}
 			}
 			else {
 				logService.log(LogService.LOG_DEBUG,
@@ -161,5 +229,190 @@ import org.osgi.service.log.LogService;
 					" since it is not compiled with Java (target) 1.6+. Classes compiled for Java 1.5 and below may contain jsr and ret bytecode instructions which cannot be handled by this bytecode weaver.");
 			}
 		}
+
+		WeaverEvents.commitWeave(weaveEvent, className, bundle.getSymbolicName(), outcome, bytesIn, bytesOut);
+	}
+
+	/**
+	 * Returns the index of the class files of the bundle wiring's bundle.
+	 */
+	/* package-private */ ClassHeaderIndex getClassHeaderIndex(BundleWiring bundleWiring) {
+
+		Bundle bundle = bundleWiring.getBundle();
+		SuperTypeCache superTypeCache = SuperTypeCache.getInstance(bundleWiring,
+				weaverMetrics.getBundleWeaverMetricsRecorder(bundle.getSymbolicName()));
+
+		return superTypeCache.getClassHeaderIndex();
+	}
+
+	/**
+	 * Returns the names of the classes of the bundle wiring which have been defined through this weaving hook since
+	 * {@link #startTrackingDefinedClasses()} was called (or an empty set if defined classes are not tracked).
+	 */
+	/* package-private */ Set<String> getDefinedClassNames(BundleWiring bundleWiring) {
+
+		Set<String> definedClassNames = null;
+		Map<BundleWiring, Set<String>> definedClassNamesMap = this.definedClassNamesMap;
+
+		if (definedClassNamesMap != null) {
+
+			synchronized (definedClassNamesMap) {
+
+				Set<String> bundleWiringDefinedClassNames = definedClassNamesMap.get(bundleWiring);
+
+				if (bundleWiringDefinedClassNames != null) {
+					definedClassNames = new HashSet<String>(bundleWiringDefinedClassNames);
+				}
+			}
+		}
+
+		if (definedClassNames == null) {
+			definedClassNames = Collections.emptySet();
+		}
+
+		return definedClassNames;
+	}
+
+	/**
+	 * Returns the background pre-weaver (which must be registered as a bundle listener) or null if pre-weaving is
+	 * disabled.
+	 */
+	/* package-private */ PreWeaver getPreWeaver() {
+		return preWeaver;
+	}
+
+	/* package-private */ RewriteRuleTable getRewriteRuleTable() {
+		return rewriteRuleTable;
+	}
+
+	/* package-private */ WeavingPolicy getWeavingPolicy() {
+		return weavingPolicy;
+	}
+
+	/**
+	 * Replaces the rewrite rules. Classes which have already been woven (or not woven) are not affected until their
+	 * bundle is refreshed. Classes which were cached, indexed, or pre-woven with the previous rules are woven again.
+	 */
+	/* package-private */ void setRewriteRuleTable(RewriteRuleTable rewriteRuleTable) {
+		this.rewriteRuleTable = rewriteRuleTable;
+	}
+
+	/**
+	 * Replaces the weaving policy. Classes which have already been woven (or not woven) are not affected until their
+	 * bundle is refreshed.
+	 */
+	/* package-private */ void setWeavingPolicy(WeavingPolicy weavingPolicy) {
+		this.weavingPolicy = weavingPolicy;
+	}
+
+	/**
+	 * Starts tracking the names of the classes of woven bundles which are defined through this weaving hook, so that
+	 * bundles whose loaded classes have all been defined through this weaving hook (and are therefore already woven)
+	 * are not refreshed (see {@link #getDefinedClassNames(BundleWiring)}). Tracking should be started before this
+	 * weaving hook is registered and stopped (see {@link #stopTrackingDefinedClasses()}) once the bundles which need
+	 * to be refreshed have been determined.
+	 */
+	/* package-private */ void startTrackingDefinedClasses() {
+		definedClassNamesMap = new WeakHashMap<BundleWiring, Set<String>>();
+	}
+
+	/* package-private */ void stopTrackingDefinedClasses() {
+		definedClassNamesMap = null;
+	}
+
+	/**
+	 * Returns the woven bytes of the class, {@link WovenClassCache#UNMODIFIED_CLASS_BYTES} if the class did not need to
+	 * be modified, or null if the class could not be woven.
+	 */
+	/* package-private */ byte[] weave(BundleWiring bundleWiring, String className, byte[] bytes,
+		ConstantPoolScanner constantPoolScanner, boolean weaveClassLoadingCalls) {
+
+		Bundle bundle = bundleWiring.getBundle();
+		WovenClassCache.Key wovenClassCacheKey = null;
+		byte[] wovenBytes = null;
+
+		if (wovenClassCache != null) {
+
+			wovenClassCacheKey = wovenClassCache.newKey(bundle, className, bytes, weaveClassLoadingCalls,
+					constantPoolScanner.getRewriteRuleTable());
+			wovenBytes = wovenClassCache.get(wovenClassCacheKey);
+		}
+
+		if (wovenBytes == null) {
+
+			String bundleSymbolicName = bundle.getSymbolicName();
+			SuperTypeCache superTypeCache = SuperTypeCache.getInstance(bundleWiring,
+					weaverMetrics.getBundleWeaverMetricsRecorder(bundleSymbolicName));
+			JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(stackMapFrameMode,
+					bundleWiring.getClassLoader(), bundleSymbolicName, bundle.getVersion().toString(), superTypeCache,
+					weaveClassLoadingCalls, false, invokeDynamicCallSites, reuseFacesContext, callSiteProbes);
+
+			try {
+
+				List<String> foldedClassNames = new ArrayList<String>();
+				wovenBytes = jsfOSGiClassWeaver.weave(className, bytes, constantPoolScanner, foldedClassNames);
+
+				// Whether a Class.forName() call is folded depends on the bundle's wiring, which is not part of the
+				// cache key, so classes with folded calls are woven again each time the framework starts.
+				if ((wovenClassCacheKey != null) && foldedClassNames.isEmpty()) {
+					wovenClassCache.put(wovenClassCacheKey, wovenBytes);
+				}
+
+				if (wovenBytes == null) {
+					wovenBytes = WovenClassCache.UNMODIFIED_CLASS_BYTES;
+				}
+			}
+			catch (CommonSuperClassNotFoundException e) {
+				logService.log(LogService.LOG_DEBUG, "Unable to weave " + className + " due to the following error(s):",
+					e);
+			}
+		}
+
+		return wovenBytes;
+	}
+
+	private void addDynamicImport(WovenClass wovenClass, RewriteRuleTable rewriteRuleTable) {
+
+		List<String> dynamicImports = wovenClass.getDynamicImports();
+		dynamicImports.add(OSGI_CLASS_LOADER_DYNAMIC_IMPORT);
+
+		// CallSiteProbes was added in version 1.1.0 of the runtime package.
+		if (callSiteProbes) {
+			dynamicImports.add(CALL_SITE_PROBES_DYNAMIC_IMPORT);
+		}
+		else if (invokeDynamicCallSites) {
+			dynamicImports.add(CLASS_LOADING_CALL_SITES_DYNAMIC_IMPORT);
+		}
+
+		// The replacement methods of extra rewrite rules.
+		dynamicImports.addAll(rewriteRuleTable.getDynamicImports());
+	}
+
+	private void setWovenBytes(WovenClass wovenClass, byte[] wovenBytes, RewriteRuleTable rewriteRuleTable) {
+
+		wovenClass.setBytes(wovenBytes);
+		addDynamicImport(wovenClass, rewriteRuleTable);
+	}
+
+	/**
+	 * Weaves a class which is being loaded, notifying the pre-weaver (if any) so that pre-weaving yields to class
+	 * loading.
+	 */
+	private byte[] weaveClassLoad(BundleWiring bundleWiring, String className, byte[] bytes,
+		ConstantPoolScanner constantPoolScanner, boolean weaveClassLoadingCalls) {
+
+		if (preWeaver != null) {
+			preWeaver.classLoadStarted();
+		}
+
+		try {
+			return weave(bundleWiring, className, bytes, constantPoolScanner, weaveClassLoadingCalls);
+		}
+		finally {
+
+			if (preWeaver != null) {
+				preWeaver.classLoadFinished();
+			}
+		}
 	}
 }
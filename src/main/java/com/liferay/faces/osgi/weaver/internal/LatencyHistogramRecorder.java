@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.liferay.faces.osgi.weaver.metrics.LatencyHistogram;
+
+
+/**
+ * Records durations into power of two buckets (see {@link LatencyHistogram}). Recording a duration only requires two
+ * uncontended atomic additions, so durations can be recorded on the class loading path without locking.
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class LatencyHistogramRecorder {
+
+	// Package-Private Constants
+	/* package-private */ static final int BUCKET_COUNT = 40;
+
+	// Private Final Data Members
+	private final AtomicLongArray buckets;
+	private final AtomicLong totalNanos;
+
+	/* package-private */ LatencyHistogramRecorder() {
+
+		this.buckets = new AtomicLongArray(BUCKET_COUNT);
+		this.totalNanos = new AtomicLong();
+	}
+
+	/**
+	 * Returns the index of the bucket which counts the specified duration.
+	 */
+	/* package-private */ static int getBucketIndex(long nanos) {
+
+		int bucketIndex = 0;
+
+		if (nanos > 0) {
+			bucketIndex = Math.min(BUCKET_COUNT - 1, 63 - Long.numberOfLeadingZeros(nanos));
+		}
+
+		return bucketIndex;
+	}
+
+	/* package-private */ void record(long nanos) {
+
+		buckets.incrementAndGet(getBucketIndex(nanos));
+		totalNanos.addAndGet(nanos);
+	}
+
+	/* package-private */ void reset() {
+
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets.set(i, 0);
+		}
+
+		totalNanos.set(0);
+	}
+
+	/* package-private */ LatencyHistogramSnapshot snapshot() {
+
+		long[] bucketCounts = new long[BUCKET_COUNT];
+
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			bucketCounts[i] = buckets.get(i);
+		}
+
+		return new LatencyHistogramSnapshot(bucketCounts, totalNanos.get());
+	}
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import com.liferay.faces.osgi.weaver.metrics.LatencyHistogram;
+
+
+/**
+ * An immutable snapshot of a {@link LatencyHistogramRecorder}.
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class LatencyHistogramSnapshot implements LatencyHistogram {
+
+	// Private Final Data Members
+	private final long[] buckets;
+	private final long count;
+	private final long totalNanos;
+
+	/* package-private */ LatencyHistogramSnapshot(long[] buckets, long totalNanos) {
+
+		long count = 0;
+
+		for (long bucket : buckets) {
+			count += bucket;
+		}
+
+		this.buckets = buckets;
+		this.count = count;
+		this.totalNanos = totalNanos;
+	}
+
+	@Override
+	public long[] getBuckets() {
+		return buckets.clone();
+	}
+
+	@Override
+	public long getCount() {
+		return count;
+	}
+
+	@Override
+	public long getP50Nanos() {
+		return getPercentileNanos(50);
+	}
+
+	@Override
+	public long getP99Nanos() {
+		return getPercentileNanos(99);
+	}
+
+	@Override
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	/**
+	 * Returns a snapshot containing the durations of both this snapshot and the specified snapshot.
+	 */
+	/* package-private */ LatencyHistogramSnapshot add(LatencyHistogramSnapshot latencyHistogramSnapshot) {
+
+		long[] sumBuckets = new long[buckets.length];
+
+		for (int i = 0; i < buckets.length; i++) {
+			sumBuckets[i] = buckets[i] + latencyHistogramSnapshot.buckets[i];
+		}
+
+		return new LatencyHistogramSnapshot(sumBuckets, totalNanos + latencyHistogramSnapshot.totalNanos);
+	}
+
+	private long getPercentileNanos(int percentile) {
+
+		long percentileNanos = 0;
+
+		if (count > 0) {
+
+			// The rank of the percentile duration rounded up so that the 99th percentile of a single duration is that
+			// duration.
+			long rank = ((count * percentile) + 99) / 100;
+			long cumulativeCount = 0;
+			int i = 0;
+
+			while (cumulativeCount + buckets[i] < rank) {
+
+				cumulativeCount += buckets[i];
+				i++;
+			}
+
+			percentileNanos = (1L << (i + 1)) - 1;
+		}
+
+		return percentileNanos;
+	}
+}
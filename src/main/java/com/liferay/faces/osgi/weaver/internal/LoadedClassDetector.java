@@ -0,0 +1,158 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Set;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * Detects whether the class loader of a bundle wiring has already loaded any of the bundle's classes (for example
+ * before the weaving hook was registered) without loading any class. OSGi does not provide a way to list the classes
+ * that a bundle's class loader has defined, so each of the bundle's classes is looked up with a method which returns
+ * the class if it has already been loaded:
+ *
+ * <ul>
+ *   <li>The public <code>publicFindLoaded(String)</code> method of the bundle's class loader if it has one (as
+ *     Equinox's class loaders do). This works on every Java version.</li>
+ *   <li>Otherwise the (protected) {@link ClassLoader}<code>.findLoadedClass(String)</code> method, which is invoked
+ *     reflectively. It is only made accessible on Java 8 and below, since later versions warn about or deny reflective
+ *     access to <code>java.lang</code> members.</li>
+ * </ul>
+ *
+ * <p>If neither method can be used (for example on Java 9 and above with Felix), whether classes have been loaded
+ * cannot be determined, and the caller must assume that they have.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class LoadedClassDetector {
+
+	// Private Constants
+	private static final Method FIND_LOADED_CLASS_METHOD = getFindLoadedClassMethod();
+	private static final String PUBLIC_FIND_LOADED_METHOD_NAME = "publicFindLoaded";
+
+	private LoadedClassDetector() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Returns {@link Boolean#TRUE} if the class loader of the bundle wiring has loaded any of the classes of the bundle
+	 * wiring other than the ignored classes, {@link Boolean#FALSE} if it has not, or null if it cannot be determined.
+	 *
+	 * @param  ignoredClassNames  The binary names of the classes which are ignored even if they have been loaded.
+	 */
+	/* package-private */ static Boolean isAnyClassLoaded(BundleWiring bundleWiring, Set<String> ignoredClassNames) {
+
+		Boolean anyClassLoaded = null;
+		ClassLoader classLoader = bundleWiring.getClassLoader();
+		Collection<String> classResourceNames = bundleWiring.listResources("/", "*.class",
+				BundleWiring.LISTRESOURCES_LOCAL | BundleWiring.LISTRESOURCES_RECURSE);
+
+		if ((classLoader == null) || (classResourceNames == null)) {
+
+			// Bundle wirings without a class loader (such as the wirings of fragments) never load classes.
+			anyClassLoaded = (classLoader == null) ? Boolean.FALSE : null;
+		}
+		else {
+
+			Method findLoadedClassMethod = getFindLoadedClassMethod(classLoader);
+
+			if (findLoadedClassMethod != null) {
+
+				try {
+
+					anyClassLoaded = Boolean.FALSE;
+
+					for (String classResourceName : classResourceNames) {
+
+						String className = classResourceName.substring(0,
+								classResourceName.length() - ".class".length()).replace('/', '.');
+
+						if (!ignoredClassNames.contains(className) &&
+								(findLoadedClassMethod.invoke(classLoader, className) != null)) {
+
+							anyClassLoaded = Boolean.TRUE;
+
+							break;
+						}
+					}
+				}
+				catch (IllegalAccessException e) {
+					anyClassLoaded = null;
+				}
+				catch (InvocationTargetException e) {
+					anyClassLoaded = null;
+				}
+			}
+		}
+
+		return anyClassLoaded;
+	}
+
+	/**
+	 * Returns the method which finds the classes that the class loader has already loaded or null if there is none.
+	 */
+	private static Method getFindLoadedClassMethod(ClassLoader classLoader) {
+
+		Method findLoadedClassMethod = FIND_LOADED_CLASS_METHOD;
+
+		try {
+
+			Method publicFindLoadedMethod = classLoader.getClass().getMethod(PUBLIC_FIND_LOADED_METHOD_NAME,
+					String.class);
+
+			if (Class.class.equals(publicFindLoadedMethod.getReturnType())) {
+				findLoadedClassMethod = publicFindLoadedMethod;
+			}
+		}
+		catch (NoSuchMethodException e) {
+			// The class loader does not expose its loaded classes.
+		}
+		catch (RuntimeException e) {
+			// A security manager denied access to the method.
+		}
+
+		return findLoadedClassMethod;
+	}
+
+	private static Method getFindLoadedClassMethod() {
+
+		Method findLoadedClassMethod = null;
+
+		if (System.getProperty("java.specification.version").startsWith("1.")) {
+
+			try {
+
+				findLoadedClassMethod = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+				findLoadedClassMethod.setAccessible(true);
+			}
+			catch (NoSuchMethodException e) {
+				findLoadedClassMethod = null;
+			}
+			catch (RuntimeException e) {
+
+				// A security manager denied access to the method.
+				findLoadedClassMethod = null;
+			}
+		}
+
+		return findLoadedClassMethod;
+	}
+}
@@ -13,12 +13,9 @@
  */
 package com.liferay.faces.osgi.weaver.internal;
 
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-
+import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassWriter;
 
-import org.osgi.framework.Bundle;
 import org.osgi.framework.wiring.BundleWiring;
 
 
@@ -33,14 +30,37 @@ import org.osgi.framework.wiring.BundleWiring;
 	// Private Final Data Members
 	private final String bundleSymbolicName;
 	private final ClassLoader bundleWiringClassLoader;
+	private final SuperTypeCache superTypeCache;
 
 	public OSGiClassWriter(int flags, BundleWiring bundleWiring) {
+		this(null, flags, bundleWiring);
+	}
+
+	/**
+	 * Creates a class writer which copies the constant pool of the class read by the class reader and copies each
+	 * method which is visited without being transformed as-is (including its stack map frames and maximum stack size)
+	 * instead of rebuilding it instruction by instruction. For more details, see {@link ClassWriter#ClassWriter(
+	 * ClassReader, int)}.
+	 */
+	public OSGiClassWriter(ClassReader classReader, int flags, BundleWiring bundleWiring) {
+		this(classReader, flags, bundleWiring.getClassLoader(), bundleWiring.getBundle().getSymbolicName(),
+			SuperTypeCache.getInstance(bundleWiring));
+	}
 
-		super(flags);
-		this.bundleWiringClassLoader = bundleWiring.getClassLoader();
+	/**
+	 * Creates a class writer which resolves the type hierarchy through the specified class loader rather than through
+	 * a bundle wiring (for example when weaving a jar at build time).
+	 *
+	 * @param  bundleSymbolicName  The name of the bundle (or jar) containing the class (only used for error messages).
+	 * @param  superTypeCache      The cache shared by all classes whose hierarchy is resolved through the class loader.
+	 */
+	public OSGiClassWriter(ClassReader classReader, int flags, ClassLoader classLoader, String bundleSymbolicName,
+		SuperTypeCache superTypeCache) {
 
-		Bundle bundle = bundleWiring.getBundle();
-		this.bundleSymbolicName = bundle.getSymbolicName();
+		super(classReader, flags);
+		this.bundleWiringClassLoader = classLoader;
+		this.bundleSymbolicName = bundleSymbolicName;
+		this.superTypeCache = superTypeCache;
 	}
 
 	/**
@@ -54,43 +74,45 @@ import org.osgi.framework.wiring.BundleWiring;
 	@Override
 	protected String getCommonSuperClass(String type1, String type2) {
 
+		superTypeCache.getBundleWeaverMetricsRecorder().recordCommonSuperClassCall();
+
+		Object commonSuperClassEvent = WeaverEvents.beginCommonSuperClass();
 		String commonSuperClass = null;
 
-		if (type1.equals(type2)) {
-			commonSuperClass = type1;
+		try {
+			commonSuperClass = findCommonSuperClass(type1, type2);
 		}
-		else if (type1.equals(OBJECT_TYPE_STRING) || type2.equals(OBJECT_TYPE_STRING)) {
-			commonSuperClass = OBJECT_TYPE_STRING;
+		finally {
+			WeaverEvents.commitCommonSuperClass(commonSuperClassEvent, bundleSymbolicName, type1, type2,
+				commonSuperClass);
 		}
-		else {
 
-			IterableLazyTypeHierarchy typeHierarchy1 = new IterableLazyTypeHierarchy(type1, bundleWiringClassLoader);
-			IterableLazyTypeHierarchy typeHierarchy2 = new IterableLazyTypeHierarchy(type2, bundleWiringClassLoader);
-			Iterator<String> typeHierarchy2Iterator = typeHierarchy2.iterator();
-			LinkedHashSet<String> cachedTypeHierarchy2Values = new LinkedHashSet<String>();
-
-			for (String typeFromHierarchy1 : typeHierarchy1) {
-
-				if (cachedTypeHierarchy2Values.contains(typeFromHierarchy1)) {
-
-					commonSuperClass = typeFromHierarchy1;
+		return commonSuperClass;
+	}
 
-					break;
-				}
+	/* package-private */ ClassLoader getBundleWiringClassLoader() {
+		return bundleWiringClassLoader;
+	}
 
-				while (typeHierarchy2Iterator.hasNext()) {
+	/* package-private */ SuperTypeCache getSuperTypeCache() {
+		return superTypeCache;
+	}
 
-					String typeFromHierarchy2 = typeHierarchy2Iterator.next();
-					cachedTypeHierarchy2Values.add(typeFromHierarchy2);
+	private String findCommonSuperClass(String type1, String type2) {
 
-					if (typeFromHierarchy2.equals(typeFromHierarchy1)) {
+		String commonSuperClass = null;
 
-						commonSuperClass = typeFromHierarchy1;
+		if (type1.equals(type2)) {
+			commonSuperClass = type1;
+		}
+		else if (type1.equals(OBJECT_TYPE_STRING) || type2.equals(OBJECT_TYPE_STRING)) {
+			commonSuperClass = OBJECT_TYPE_STRING;
+		}
+		else {
 
-						break;
-					}
-				}
-			}
+			TypeGraph typeGraph = superTypeCache.getTypeGraph();
+			commonSuperClass = typeGraph.getCommonSuperType(typeGraph.getTypeId(type1, bundleWiringClassLoader),
+					typeGraph.getTypeId(type2, bundleWiringClassLoader));
 
 			if (commonSuperClass == null) {
 				throw new CommonSuperClassNotFoundException(type1 + " and " + type2 +
@@ -100,8 +122,4 @@ import org.osgi.framework.wiring.BundleWiring;
 
 		return commonSuperClass;
 	}
-
-	/* package-private */ ClassLoader getBundleWiringClassLoader() {
-		return bundleWiringClassLoader;
-	}
 }
@@ -0,0 +1,147 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+
+/**
+ * A character trie of included and excluded package prefixes. A package prefix matches the classes of the package and
+ * of its subpackages, and the longest matching prefix determines whether a class is included or excluded (a package
+ * which is both included and excluded is excluded). Matching a class name only walks the characters of its package
+ * once, without allocating, so the cost of {@link #getMatch(String)} is proportional to the length of the class name
+ * regardless of the number of prefixes.
+ *
+ * <p>This class is immutable and thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class PackageTrie {
+
+	// Package-Private Constants
+	/* package-private */ static final byte EXCLUDED = 2;
+	/* package-private */ static final byte INCLUDED = 1;
+	/* package-private */ static final byte NO_MATCH = 0;
+
+	// Private Final Data Members
+	private final Node root;
+
+	/**
+	 * @param  includedPackages  The included package prefixes (for example <code>com.sun.faces</code>).
+	 * @param  excludedPackages  The excluded package prefixes (for example <code>com.sun.faces.spi</code>).
+	 */
+	/* package-private */ PackageTrie(Collection<String> includedPackages, Collection<String> excludedPackages) {
+
+		this.root = new Node();
+
+		for (String includedPackage : includedPackages) {
+			add(includedPackage, INCLUDED);
+		}
+
+		for (String excludedPackage : excludedPackages) {
+			add(excludedPackage, EXCLUDED);
+		}
+	}
+
+	/**
+	 * Returns {@link #INCLUDED} or {@link #EXCLUDED} depending on the longest package prefix which matches the package
+	 * of the class, or {@link #NO_MATCH} if no package prefix matches.
+	 *
+	 * @param  className  The binary name of the class (for example <code>com.sun.faces.spi.InjectionProvider</code>).
+	 */
+	/* package-private */ byte getMatch(String className) {
+
+		byte match = NO_MATCH;
+		Node node = root;
+		int length = className.length();
+
+		for (int i = 0; (node != null) && (i < length); i++) {
+
+			char c = className.charAt(i);
+
+			// A package prefix only matches at the end of a package name (so com.sun.faces.spi does not match
+			// com.sun.faces.spiel.Example).
+			if ((c == '.') && (node.match != NO_MATCH)) {
+				match = node.match;
+			}
+
+			node = node.getChild(c);
+		}
+
+		return match;
+	}
+
+	private void add(String packagePrefix, byte match) {
+
+		Node node = root;
+
+		for (int i = 0; i < packagePrefix.length(); i++) {
+			node = node.getOrAddChild(packagePrefix.charAt(i));
+		}
+
+		if (node != root) {
+			node.match = (byte) Math.max(node.match, match);
+		}
+	}
+
+	/**
+	 * A node whose children are kept in arrays sorted by character, so that finding a child is a binary search of (at
+	 * most a few) characters.
+	 */
+	private static final class Node {
+
+		// Private Data Members
+		private char[] childChars = new char[0];
+		private Node[] children = new Node[0];
+		private byte match = NO_MATCH;
+
+		private Node getChild(char c) {
+
+			Node child = null;
+			int index = Arrays.binarySearch(childChars, c);
+
+			if (index >= 0) {
+				child = children[index];
+			}
+
+			return child;
+		}
+
+		private Node getOrAddChild(char c) {
+
+			int index = Arrays.binarySearch(childChars, c);
+
+			if (index < 0) {
+
+				index = -(index + 1);
+
+				char[] newChildChars = new char[childChars.length + 1];
+				System.arraycopy(childChars, 0, newChildChars, 0, index);
+				System.arraycopy(childChars, index, newChildChars, index + 1, childChars.length - index);
+				newChildChars[index] = c;
+
+				Node[] newChildren = new Node[children.length + 1];
+				System.arraycopy(children, 0, newChildren, 0, index);
+				System.arraycopy(children, index, newChildren, index + 1, children.length - index);
+				newChildren[index] = new Node();
+
+				childChars = newChildChars;
+				children = newChildren;
+			}
+
+			return children[index];
+		}
+	}
+}
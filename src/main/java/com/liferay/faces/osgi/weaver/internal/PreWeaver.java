@@ -0,0 +1,515 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.wiring.BundleWiring;
+
+import org.osgi.service.log.LogService;
+
+
+/**
+ * Weaves the classes of Faces bundles in the background as soon as the bundles are resolved, so that the cost of
+ * weaving is not paid by the threads (typically the threads serving the first requests to each Faces portlet) which
+ * load the classes. Woven classes are kept in memory until {@link JSF_OSGiWeavingHook} requests them (see {@link
+ * #removeWovenBytes(BundleWiring, String, byte[], RewriteRuleTable)}). If the hook requests a class before it has been
+ * pre-woven, the hook weaves the class itself and the class is never pre-woven.
+ *
+ * <p>Pre-weaving yields to class loading: the pre-weaving threads have the minimum priority and pause while the hook
+ * is weaving a class (see {@link #classLoadStarted()}). Only classes which contain weave targets (see {@link
+ * ConstantPoolScanner}) are kept, and at most 8 MB of classes are kept for each bundle wiring, since some classes
+ * may never be loaded. Classes which exceed the limit are woven by the hook when they are loaded. The memory is
+ * released as soon as the classes are defined or the bundle is unresolved.</p>
+ *
+ * <p>Classes are found with {@link BundleWiring#listResources(String, String, int)}, so the classes of every entry of
+ * the Bundle-ClassPath (including embedded jars) are pre-woven and named relative to their class path entry.</p>
+ *
+ * <p>While reading each class file, the pre-weaver also adds its header to the bundle's {@link ClassHeaderIndex}, which
+ * the weaving hook uses to reject classes without weave targets and to resolve super classes.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class PreWeaver implements SynchronousBundleListener {
+
+	// Private Constants
+	private static final int CLASSES_PER_TASK = 64;
+	private static final long KEEP_ALIVE_SECONDS = 30L;
+	private static final long MAX_PRE_WOVEN_BYTES = 8L * 1024L * 1024L;
+	private static final int MAX_YIELD_MILLIS = 10;
+
+	// Private Final Data Members
+	private final AtomicInteger activeClassLoads;
+	private final JSF_OSGiWeavingHook jsfOSGiWeavingHook;
+	private final LogService logService;
+	private final Map<BundleWiring, ReadyClasses> readyClassesMap;
+	private final ThreadPoolExecutor threadPoolExecutor;
+
+	/* package-private */ PreWeaver(JSF_OSGiWeavingHook jsfOSGiWeavingHook, LogService logService, int threadCount) {
+
+		this.jsfOSGiWeavingHook = jsfOSGiWeavingHook;
+		this.logService = logService;
+		this.activeClassLoads = new AtomicInteger();
+		this.readyClassesMap = new WeakHashMap<BundleWiring, ReadyClasses>();
+		this.threadPoolExecutor = new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_SECONDS,
+				TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new PreWeaverThreadFactory());
+		threadPoolExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	private static String getClassName(String classResourceName) {
+		return classResourceName.substring(0, classResourceName.length() - ".class".length()).replace('/', '.');
+	}
+
+	private static void keepPreWovenClass(ReadyClasses readyClasses, String className, PreWovenClass preWovenClass) {
+
+		// Classes which exceed the limit are left for the hook to weave when they are loaded.
+		if (readyClasses.preWovenBytes.addAndGet(preWovenClass.size) <= MAX_PRE_WOVEN_BYTES) {
+
+			readyClasses.preWovenClasses.put(className, preWovenClass);
+
+			// The class may have been requested while it was being woven, in which case it will never be requested
+			// again.
+			if (readyClasses.requestedClassNames.containsKey(className)) {
+				removePreWovenClass(readyClasses, className);
+			}
+		}
+		else {
+			readyClasses.preWovenBytes.addAndGet(-preWovenClass.size);
+		}
+	}
+
+	/* package-private */ static byte[] readBytes(URL classResourceURL) throws IOException {
+
+		InputStream inputStream = classResourceURL.openStream();
+
+		try {
+
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int length;
+
+			while ((length = inputStream.read(buffer)) > -1) {
+				byteArrayOutputStream.write(buffer, 0, length);
+			}
+
+			return byteArrayOutputStream.toByteArray();
+		}
+		finally {
+			inputStream.close();
+		}
+	}
+
+	private static PreWovenClass removePreWovenClass(ReadyClasses readyClasses, String className) {
+
+		PreWovenClass preWovenClass = readyClasses.preWovenClasses.remove(className);
+
+		if (preWovenClass != null) {
+			readyClasses.preWovenBytes.addAndGet(-preWovenClass.size);
+		}
+
+		return preWovenClass;
+	}
+
+	@Override
+	public void bundleChanged(BundleEvent bundleEvent) {
+
+		Bundle bundle = bundleEvent.getBundle();
+		int type = bundleEvent.getType();
+
+		if ((type == BundleEvent.RESOLVED) && jsfOSGiWeavingHook.getWeavingPolicy().isWeaveBundle(bundle)) {
+
+			BundleWiring bundleWiring = bundle.adapt(BundleWiring.class);
+
+			if (bundleWiring != null) {
+				preWeave(bundleWiring);
+			}
+		}
+		else if ((type == BundleEvent.UNRESOLVED) || (type == BundleEvent.UNINSTALLED)) {
+			removeReadyClasses(bundle);
+		}
+	}
+
+	/**
+	 * Notifies the pre-weaver that the calling thread has started weaving a class which is being loaded. Pre-weaving
+	 * pauses (for at most {@link #MAX_YIELD_MILLIS} per class) until {@link #classLoadFinished()} is called.
+	 */
+	/* package-private */ void classLoadStarted() {
+		activeClassLoads.incrementAndGet();
+	}
+
+	/* package-private */ void classLoadFinished() {
+		activeClassLoads.decrementAndGet();
+	}
+
+	/**
+	 * Returns true if classes of the bundle wiring are still being pre-woven.
+	 */
+	/* package-private */ boolean isPreWeaving(BundleWiring bundleWiring) {
+
+		ReadyClasses readyClasses = getReadyClasses(bundleWiring);
+
+		return (readyClasses != null) && (readyClasses.pendingTaskCount.get() > 0);
+	}
+
+	/**
+	 * Starts pre-weaving the classes of the bundle wiring in the background.
+	 */
+	/* package-private */ void preWeave(BundleWiring bundleWiring) {
+
+		ReadyClasses readyClasses = new ReadyClasses();
+
+		synchronized (readyClassesMap) {
+			readyClassesMap.put(bundleWiring, readyClasses);
+		}
+
+		// Enumerating the class entries is deferred to the pre-weaving threads to avoid delaying the resolving thread.
+		submit(new FindClassEntriesTask(bundleWiring, readyClasses));
+	}
+
+	/**
+	 * Returns the pre-woven bytes of the class ({@link WovenClassCache#UNMODIFIED_CLASS_BYTES} if the class did not
+	 * need to be modified) and releases them, or returns null if the class has not been pre-woven (or was pre-woven
+	 * from different bytes, for example because another weaving hook has modified the class, or with different rules).
+	 *
+	 * @param  rewriteRuleTable  The rules which the class is woven with.
+	 */
+	/* package-private */ byte[] removeWovenBytes(BundleWiring bundleWiring, String className, byte[] bytes,
+		RewriteRuleTable rewriteRuleTable) {
+
+		byte[] wovenBytes = null;
+		ReadyClasses readyClasses = getReadyClasses(bundleWiring);
+
+		if (readyClasses != null) {
+
+			readyClasses.requestedClassNames.put(className, Boolean.TRUE);
+
+			PreWovenClass preWovenClass = removePreWovenClass(readyClasses, className);
+
+			if ((preWovenClass != null) && (preWovenClass.rewriteRuleTable == rewriteRuleTable) &&
+					Arrays.equals(preWovenClass.bytes, bytes)) {
+				wovenBytes = preWovenClass.wovenBytes;
+			}
+
+			removeIfDone(bundleWiring, readyClasses);
+		}
+
+		return wovenBytes;
+	}
+
+	/* package-private */ void shutdown() {
+
+		threadPoolExecutor.shutdownNow();
+
+		synchronized (readyClassesMap) {
+
+			for (ReadyClasses readyClasses : readyClassesMap.values()) {
+				readyClasses.cancelled = true;
+			}
+
+			readyClassesMap.clear();
+		}
+	}
+
+	private ReadyClasses getReadyClasses(BundleWiring bundleWiring) {
+
+		synchronized (readyClassesMap) {
+			return readyClassesMap.get(bundleWiring);
+		}
+	}
+
+	private void preWeave(BundleWiring bundleWiring, ReadyClasses readyClasses, List<String> classResourceNames)
+		throws InterruptedException {
+
+		// The weaving policy may have been replaced since the bundle was resolved, in which case classes of a bundle
+		// which is no longer woven must not be pre-woven.
+		WeavingPolicy weavingPolicy = jsfOSGiWeavingHook.getWeavingPolicy();
+		WeavingPolicy.BundleRule bundleRule = weavingPolicy.getBundleRule(bundleWiring.getBundle());
+		ClassHeaderIndex classHeaderIndex = jsfOSGiWeavingHook.getClassHeaderIndex(bundleWiring);
+		ClassLoader classLoader = bundleWiring.getClassLoader();
+
+		for (String classResourceName : classResourceNames) {
+
+			if (readyClasses.cancelled || (bundleRule == null) || (classLoader == null)) {
+				break;
+			}
+
+			String className = getClassName(classResourceName);
+
+			if (!readyClasses.requestedClassNames.containsKey(className) && weavingPolicy.isWeaveClass(className)) {
+
+				URL classResourceURL = classLoader.getResource(classResourceName);
+
+				if (classResourceURL == null) {
+					continue;
+				}
+
+				yieldToClassLoads();
+
+				byte[] bytes;
+
+				try {
+					bytes = readBytes(classResourceURL);
+				}
+				catch (IOException e) {
+
+					logService.log(LogService.LOG_DEBUG, "Unable to read " + classResourceURL + " for pre-weaving:",
+						e);
+
+					continue;
+				}
+
+				boolean weaveClassLoadingCalls = bundleRule.isWeaveClassLoadingCalls();
+				ConstantPoolScanner constantPoolScanner = null;
+
+				if (JSF_OSGiWeavingHook.isCompiledWithJava_1_6_OrGreater(bytes)) {
+					constantPoolScanner = new ConstantPoolScanner(bytes, weaveClassLoadingCalls,
+							jsfOSGiWeavingHook.getRewriteRuleTable());
+				}
+
+				try {
+					classHeaderIndex.add(className, bytes, constantPoolScanner, weaveClassLoadingCalls);
+				}
+				catch (IOException e) {
+
+					logService.log(LogService.LOG_DEBUG, classResourceURL + " is not a valid class file:", e);
+
+					continue;
+				}
+
+				if ((constantPoolScanner != null) && !constantPoolScanner.isWoven() &&
+						constantPoolScanner.containsWeaveTargets()) {
+
+					byte[] wovenBytes = jsfOSGiWeavingHook.weave(bundleWiring, className, bytes,
+							constantPoolScanner, weaveClassLoadingCalls);
+
+					if (wovenBytes != null) {
+						keepPreWovenClass(readyClasses, className,
+							new PreWovenClass(bytes, wovenBytes, constantPoolScanner.getRewriteRuleTable()));
+					}
+				}
+			}
+		}
+	}
+
+	private void removeIfDone(BundleWiring bundleWiring, ReadyClasses readyClasses) {
+
+		if ((readyClasses.pendingTaskCount.get() == 0) && readyClasses.preWovenClasses.isEmpty()) {
+
+			synchronized (readyClassesMap) {
+
+				if (readyClassesMap.get(bundleWiring) == readyClasses) {
+					readyClassesMap.remove(bundleWiring);
+				}
+			}
+		}
+	}
+
+	private void removeReadyClasses(Bundle bundle) {
+
+		synchronized (readyClassesMap) {
+
+			Iterator<Map.Entry<BundleWiring, ReadyClasses>> iterator = readyClassesMap.entrySet().iterator();
+
+			while (iterator.hasNext()) {
+
+				Map.Entry<BundleWiring, ReadyClasses> entry = iterator.next();
+				BundleWiring bundleWiring = entry.getKey();
+
+				if ((bundleWiring != null) && bundle.equals(bundleWiring.getBundle())) {
+
+					entry.getValue().cancelled = true;
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	private void submit(PreWeaverTask preWeaverTask) {
+
+		preWeaverTask.readyClasses.pendingTaskCount.incrementAndGet();
+
+		try {
+			threadPoolExecutor.execute(preWeaverTask);
+		}
+		catch (RejectedExecutionException e) {
+
+			// The pre-weaver has been shut down.
+			preWeaverTask.readyClasses.pendingTaskCount.decrementAndGet();
+		}
+	}
+
+	private void yieldToClassLoads() throws InterruptedException {
+
+		for (int i = 0; (i < MAX_YIELD_MILLIS) && (activeClassLoads.get() > 0); i++) {
+			Thread.sleep(1);
+		}
+	}
+
+	private static final class PreWeaverThreadFactory implements ThreadFactory {
+
+		// Private Final Data Members
+		private final AtomicInteger threadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+
+			Thread thread = new Thread(runnable,
+					"Liferay Faces OSGi Weaver Pre-Weaver-" + threadNumber.getAndIncrement());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+
+			return thread;
+		}
+	}
+
+	private static final class PreWovenClass {
+
+		// Private Final Data Members
+		private final byte[] bytes;
+		private final RewriteRuleTable rewriteRuleTable;
+		private final long size;
+		private final byte[] wovenBytes;
+
+		private PreWovenClass(byte[] bytes, byte[] wovenBytes, RewriteRuleTable rewriteRuleTable) {
+
+			this.bytes = bytes;
+			this.wovenBytes = wovenBytes;
+			this.rewriteRuleTable = rewriteRuleTable;
+			this.size = (long) bytes.length + wovenBytes.length;
+		}
+	}
+
+	/**
+	 * The classes of a single bundle wiring which have been pre-woven. In order to avoid keeping the bundle wiring (or
+	 * its class loader) reachable from the {@link WeakHashMap} values, this class does not reference the bundle wiring.
+	 */
+	private static final class ReadyClasses {
+
+		// Private Final Data Members
+		private final AtomicInteger pendingTaskCount = new AtomicInteger();
+		private final AtomicLong preWovenBytes = new AtomicLong();
+		private final ConcurrentMap<String, PreWovenClass> preWovenClasses =
+			new ConcurrentHashMap<String, PreWovenClass>();
+		private final ConcurrentMap<String, Boolean> requestedClassNames = new ConcurrentHashMap<String, Boolean>();
+
+		// Private Data Members
+		private volatile boolean cancelled;
+	}
+
+	private final class FindClassEntriesTask extends PreWeaverTask {
+
+		private FindClassEntriesTask(BundleWiring bundleWiring, ReadyClasses readyClasses) {
+			super(bundleWiring, readyClasses);
+		}
+
+		@Override
+		protected void run(BundleWiring bundleWiring, ReadyClasses readyClasses) {
+
+			// Unlike entry paths, resource names are relative to the Bundle-ClassPath entry (such as WEB-INF/classes/
+			// or an embedded jar) which contains the class.
+			Collection<String> classResourceNames = bundleWiring.listResources("/", "*.class",
+					BundleWiring.LISTRESOURCES_LOCAL | BundleWiring.LISTRESOURCES_RECURSE);
+
+			if (classResourceNames != null) {
+
+				List<String> classResourceNameList = new ArrayList<String>(classResourceNames);
+
+				for (int i = 0; i < classResourceNameList.size(); i += CLASSES_PER_TASK) {
+
+					List<String> subList = classResourceNameList.subList(i,
+							Math.min(i + CLASSES_PER_TASK, classResourceNameList.size()));
+					submit(new PreWeaveTask(bundleWiring, readyClasses, subList));
+				}
+			}
+		}
+	}
+
+	private final class PreWeaveTask extends PreWeaverTask {
+
+		// Private Final Data Members
+		private final List<String> classResourceNames;
+
+		private PreWeaveTask(BundleWiring bundleWiring, ReadyClasses readyClasses, List<String> classResourceNames) {
+
+			super(bundleWiring, readyClasses);
+			this.classResourceNames = classResourceNames;
+		}
+
+		@Override
+		protected void run(BundleWiring bundleWiring, ReadyClasses readyClasses) throws InterruptedException {
+			preWeave(bundleWiring, readyClasses, classResourceNames);
+		}
+	}
+
+	private abstract class PreWeaverTask implements Runnable {
+
+		// Private Final Data Members
+		private final BundleWiring bundleWiring;
+		private final ReadyClasses readyClasses;
+
+		private PreWeaverTask(BundleWiring bundleWiring, ReadyClasses readyClasses) {
+
+			this.bundleWiring = bundleWiring;
+			this.readyClasses = readyClasses;
+		}
+
+		@Override
+		public final void run() {
+
+			try {
+
+				if (!readyClasses.cancelled) {
+					run(bundleWiring, readyClasses);
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (RuntimeException e) {
+				logService.log(LogService.LOG_WARNING,
+					"Unable to pre-weave classes of " + bundleWiring.getBundle().getSymbolicName() + ":", e);
+			}
+			finally {
+				readyClasses.pendingTaskCount.decrementAndGet();
+				removeIfDone(bundleWiring, readyClasses);
+			}
+		}
+
+		protected abstract void run(BundleWiring bundleWiring, ReadyClasses readyClasses) throws InterruptedException;
+	}
+}
@@ -0,0 +1,704 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+import java.util.Set;
+
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+import com.liferay.faces.osgi.weaver.rewrite.RewriteRule;
+import com.liferay.faces.osgi.weaver.rewrite.StackOperation;
+import com.liferay.faces.osgi.weaver.runtime.ClassLoadingCallSites;
+
+
+/**
+ * The rewrite rules which {@link JSF_OSGiMethodVisitor} applies, compiled into an open addressing hash table keyed on
+ * the owner and name of the rewritten methods. The table is sized so that it is at most a quarter full, so looking up
+ * the rule of a method instruction usually costs a single probe (and no allocation) whether or not the instruction is
+ * rewritten. The few rules which share an owner and name (for example the overloads of <code>Class.forName()</code>)
+ * share a slot and are distinguished by opcode and descriptor. {@link ConstantPoolScanner} probes the same table with
+ * the Utf8 constants of a class file (see {@link #isWeaveTarget(byte[], int, int, boolean)}), so the scanner and the
+ * visitor always agree on which calls are weave targets.
+ *
+ * <p>The built-in rules (see {@link #getBuiltInInstance()}) rewrite class loading calls into calls to <code>
+ * OSGiClassLoaderUtil</code>, and the <code>loadClass(String)</code> and <code>Class.forName(String)</code> rules
+ * additionally describe the <code>invokedynamic</code> call sites which replace them if enabled (see {@link
+ * ClassLoadingCallSites}). Extra rules (see {@link com.liferay.faces.osgi.weaver.rewrite.RewriteRuleProvider}) are
+ * verified by simulating the effect of their stack operations on the arguments of the rewritten call.</p>
+ *
+ * <p>This class is immutable.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class RewriteRuleTable {
+
+	// Private Constants
+	private static final Type CLASS_TYPE = Type.getType(Class.class);
+	private static final String CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
+			Type.getType(String.class));
+	private static final String CLASS_FOR_NAME_3_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
+			Type.getType(String.class), Type.BOOLEAN_TYPE, Type.getType(ClassLoader.class));
+	private static final String CLASS_LOADER_OWNER_STRING = JSF_OSGiMethodVisitor.getTypeString(ClassLoader.class);
+	private static final String CLASS_OWNER_STRING = JSF_OSGiMethodVisitor.getTypeString(Class.class);
+	private static final String FACES_CONTEXT_TYPE_STRING = JSF_OSGiMethodVisitor.FACES_CONTEXT_TYPE_STRING;
+	private static final Type FACES_CONTEXT_TYPE = Type.getObjectType(FACES_CONTEXT_TYPE_STRING);
+	private static final Charset FINGERPRINT_CHARSET = Charset.forName("UTF-8");
+	private static final String FINGERPRINT_DIGEST_ALGORITHM = "SHA-1";
+	private static final String GET_BUNDLE_3_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
+				ResourceBundle.class), Type.getType(String.class), Type.getType(Locale.class),
+			Type.getType(ClassLoader.class));
+	private static final String GET_BUNDLE_4_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
+				ResourceBundle.class), Type.getType(String.class), Type.getType(Locale.class),
+			Type.getType(ClassLoader.class), Type.getType(ResourceBundle.Control.class));
+	private static final String GET_RESOURCES_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
+				Enumeration.class), Type.getType(String.class));
+	private static final String GET_RESOURCE_AS_STREAM_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
+				InputStream.class), Type.getType(String.class));
+	private static final String GET_RESOURCE_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(URL.class),
+			Type.getType(String.class));
+	private static final String LOAD_CLASS_METHOD_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
+			Type.getType(String.class));
+	private static final int MIN_CAPACITY = 16;
+	private static final String OBJECT_TYPE_STRING = OSGiClassWriter.OBJECT_TYPE_STRING;
+	private static final String OSGI_CLASS_LOADER_UTIL_OWNER_STRING =
+		JSF_OSGiMethodVisitor.OSGI_CLASS_LOADER_UTIL_OWNER_STRING;
+	private static final String REPLACEMENT_CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR =
+		JSF_OSGiMethodVisitor.REPLACEMENT_CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR;
+	private static final String REPLACEMENT_CLASS_FOR_NAME_3_ARG_METHOD_DESCRIPTOR = Type.getMethodDescriptor(
+			CLASS_TYPE, Type.getType(String.class), Type.BOOLEAN_TYPE, FACES_CONTEXT_TYPE,
+			Type.getType(ClassLoader.class));
+	private static final String REPLACEMENT_GET_RESOURCES_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
+				Enumeration.class), Type.getType(String.class), FACES_CONTEXT_TYPE, Type.getType(ClassLoader.class));
+	private static final String REPLACEMENT_GET_RESOURCE_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type.getType(
+				URL.class), Type.getType(String.class), FACES_CONTEXT_TYPE, Type.getType(ClassLoader.class));
+	private static final String REPLACEMENT_GET_RESOURCE_AS_STREAM_METHOD_DESCRIPTOR = Type.getMethodDescriptor(Type
+			.getType(InputStream.class), Type.getType(String.class), FACES_CONTEXT_TYPE,
+			Type.getType(ClassLoader.class));
+	private static final String REPLACEMENT_LOAD_CLASS_METHOD_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
+			Type.getType(String.class), FACES_CONTEXT_TYPE, Type.getType(ClassLoader.class));
+	private static final String RESOURCE_BUNDLE_OWNER_STRING = JSF_OSGiMethodVisitor.getTypeString(
+			ResourceBundle.class);
+
+	private static final String CLASS_FOR_NAME_CALL_SITE_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
+			Type.getType(String.class), CLASS_TYPE);
+	private static final String LOAD_CLASS_CALL_SITE_DESCRIPTOR = Type.getMethodDescriptor(CLASS_TYPE,
+			Type.getType(ClassLoader.class), Type.getType(String.class));
+	private static final StackOperation[] NO_STACK_OPERATIONS = new StackOperation[0];
+
+	// The built-in rules, which must be declared after the constants that they use.
+	private static final List<CompiledRule> BUILT_IN_RULES = getBuiltInRules();
+	private static final RewriteRuleTable BUILT_IN_INSTANCE = new RewriteRuleTable(
+			Collections.<RewriteRule>emptyList());
+
+	// Private Final Data Members
+	private final List<String> dynamicImports;
+	private final List<RewriteRule> extraRewriteRules;
+	private final String fingerprint;
+	private final int mask;
+	private final boolean[] ownerLengths;
+	private final Slot[] slots;
+
+	/**
+	 * Creates a table of the built-in rules and the specified extra rules.
+	 *
+	 * @throws  IllegalArgumentException  If an extra rule is invalid or rewrites the same call as another rule.
+	 */
+	/* package-private */ RewriteRuleTable(List<RewriteRule> extraRewriteRules) {
+		this(BUILT_IN_RULES, extraRewriteRules);
+	}
+
+	private RewriteRuleTable(List<CompiledRule> builtInRules, List<RewriteRule> extraRewriteRules) {
+
+		List<CompiledRule> compiledRules = new ArrayList<CompiledRule>(builtInRules);
+		Set<String> dynamicImports = new LinkedHashSet<String>();
+
+		for (RewriteRule extraRewriteRule : extraRewriteRules) {
+
+			verify(extraRewriteRule);
+			compiledRules.add(new CompiledRule(extraRewriteRule, null, null, null));
+
+			String replacementOwner = extraRewriteRule.getReplacementOwner();
+			int packageEndIndex = replacementOwner.lastIndexOf('/');
+
+			if (packageEndIndex > 0) {
+				dynamicImports.add(replacementOwner.substring(0, packageEndIndex).replace('/', '.'));
+			}
+		}
+
+		// Group the rules by owner and name.
+		Map<String, List<CompiledRule>> rulesByOwnerAndName = new LinkedHashMap<String, List<CompiledRule>>();
+		int maxOwnerLength = 0;
+
+		for (CompiledRule compiledRule : compiledRules) {
+
+			String key = compiledRule.rewriteRule.getOwner() + "." + compiledRule.rewriteRule.getName();
+			List<CompiledRule> rules = rulesByOwnerAndName.get(key);
+
+			if (rules == null) {
+
+				rules = new ArrayList<CompiledRule>();
+				rulesByOwnerAndName.put(key, rules);
+			}
+
+			for (CompiledRule rule : rules) {
+
+				if ((rule.rewriteRule.getOpcode() == compiledRule.rewriteRule.getOpcode()) &&
+						rule.rewriteRule.getDescriptor().equals(compiledRule.rewriteRule.getDescriptor())) {
+					throw new IllegalArgumentException("The rewrite rule " + compiledRule.rewriteRule +
+						" rewrites the same call as " + rule.rewriteRule + ".");
+				}
+			}
+
+			rules.add(compiledRule);
+			maxOwnerLength = Math.max(maxOwnerLength, compiledRule.rewriteRule.getOwner().length());
+		}
+
+		int capacity = MIN_CAPACITY;
+
+		while (capacity < (rulesByOwnerAndName.size() * 4)) {
+			capacity *= 2;
+		}
+
+		this.mask = capacity - 1;
+		this.slots = new Slot[capacity];
+		this.ownerLengths = new boolean[maxOwnerLength + 1];
+
+		for (List<CompiledRule> rules : rulesByOwnerAndName.values()) {
+
+			Slot slot = new Slot(rules.toArray(new CompiledRule[rules.size()]));
+			int index = slot.hash & mask;
+
+			while (slots[index] != null) {
+				index = (index + 1) & mask;
+			}
+
+			slots[index] = slot;
+			ownerLengths[slot.ownerBytes.length] = true;
+		}
+
+		this.dynamicImports = Collections.unmodifiableList(new ArrayList<String>(dynamicImports));
+		this.extraRewriteRules = Collections.unmodifiableList(new ArrayList<RewriteRule>(extraRewriteRules));
+		this.fingerprint = getFingerprint(extraRewriteRules);
+	}
+
+	/**
+	 * Returns the table of the built-in rules.
+	 */
+	/* package-private */ static RewriteRuleTable getBuiltInInstance() {
+		return BUILT_IN_INSTANCE;
+	}
+
+	/**
+	 * Returns a table of only the extra rules which are in one of the tables but not in the other (without the built-in
+	 * rules) or null if both tables have the same extra rules. Since the table only determines which classes contain
+	 * calls whose weaving changed (see {@link ConstantPoolScanner}), a rule which rewrites the same call as another
+	 * changed rule (for example the previous and the new version of a provider's rule) is only added once.
+	 */
+	/* package-private */ static RewriteRuleTable getChangedRuleTable(RewriteRuleTable previousRewriteRuleTable,
+		RewriteRuleTable rewriteRuleTable) {
+
+		RewriteRuleTable changedRuleTable = null;
+		Map<String, RewriteRule> changedRewriteRules = new LinkedHashMap<String, RewriteRule>();
+		addChangedRewriteRules(changedRewriteRules, previousRewriteRuleTable.extraRewriteRules,
+			rewriteRuleTable.extraRewriteRules);
+		addChangedRewriteRules(changedRewriteRules, rewriteRuleTable.extraRewriteRules,
+			previousRewriteRuleTable.extraRewriteRules);
+
+		if (!changedRewriteRules.isEmpty()) {
+			changedRuleTable = new RewriteRuleTable(Collections.<CompiledRule>emptyList(),
+					new ArrayList<RewriteRule>(changedRewriteRules.values()));
+		}
+
+		return changedRuleTable;
+	}
+
+	private static void addChangedRewriteRules(Map<String, RewriteRule> changedRewriteRules,
+		List<RewriteRule> rewriteRules, List<RewriteRule> otherRewriteRules) {
+
+		for (RewriteRule rewriteRule : rewriteRules) {
+
+			if (!otherRewriteRules.contains(rewriteRule)) {
+
+				String call = rewriteRule.getOpcode() + " " + rewriteRule.getOwner() + "." + rewriteRule.getName() +
+					rewriteRule.getDescriptor();
+
+				if (!changedRewriteRules.containsKey(call)) {
+					changedRewriteRules.put(call, rewriteRule);
+				}
+			}
+		}
+	}
+
+	private static List<CompiledRule> getBuiltInRules() {
+
+		List<CompiledRule> builtInRules = new ArrayList<CompiledRule>();
+
+		// The ClassLoadingCallSites.LOAD_CLASS call site takes the same arguments in the same order as
+		// classLoader.loadClass(className) and only obtains the facesContext if the class is not cached by the call
+		// site.
+		builtInRules.add(new CompiledRule(
+				new RewriteRule(Opcodes.INVOKEVIRTUAL, CLASS_LOADER_OWNER_STRING, "loadClass",
+					LOAD_CLASS_METHOD_DESCRIPTOR, OSGI_CLASS_LOADER_UTIL_OWNER_STRING, "loadClass",
+					REPLACEMENT_LOAD_CLASS_METHOD_DESCRIPTOR, true, StackOperation.SWAP,
+					StackOperation.LOAD_CURRENT_FACES_CONTEXT, StackOperation.SWAP), ClassLoadingCallSites.LOAD_CLASS,
+				LOAD_CLASS_CALL_SITE_DESCRIPTOR, NO_STACK_OPERATIONS));
+
+		// If the 1-arg version of Class.forName() is used, provide the current class (in a static method) or
+		// this.getClass() (in a non-static method) to the OSGiClassLoaderUtil's 3-arg classForName() method so that it
+		// can obtain the correct ClassLoader. For more information, see the
+		// OSGiClassLoaderUtil.classForName(java.lang.String, javax.faces.context.FacesContext, java.lang.Class) JavaDoc
+		// and the Class.forName(java.lang.String) JavaDoc
+		// (https://docs.oracle.com/javase/8/docs/api/java/lang/Class.html#forName-java.lang.String-). The
+		// ClassLoadingCallSites.CLASS_FOR_NAME call site takes the className and the current class and only obtains
+		// the facesContext if the class is not cached by the call site.
+		builtInRules.add(new CompiledRule(
+				new RewriteRule(Opcodes.INVOKESTATIC, CLASS_OWNER_STRING, "forName",
+					CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR, OSGI_CLASS_LOADER_UTIL_OWNER_STRING, "classForName",
+					REPLACEMENT_CLASS_FOR_NAME_1_ARG_METHOD_DESCRIPTOR, true,
+					StackOperation.LOAD_CURRENT_FACES_CONTEXT, StackOperation.LOAD_CURRENT_CLASS),
+				ClassLoadingCallSites.CLASS_FOR_NAME, CLASS_FOR_NAME_CALL_SITE_DESCRIPTOR,
+				new StackOperation[] { StackOperation.LOAD_CURRENT_CLASS }));
+		builtInRules.add(new CompiledRule(
+				new RewriteRule(Opcodes.INVOKESTATIC, CLASS_OWNER_STRING, "forName",
+					CLASS_FOR_NAME_3_ARG_METHOD_DESCRIPTOR, OSGI_CLASS_LOADER_UTIL_OWNER_STRING, "classForName",
+					REPLACEMENT_CLASS_FOR_NAME_3_ARG_METHOD_DESCRIPTOR, true,
+					StackOperation.LOAD_CURRENT_FACES_CONTEXT, StackOperation.SWAP), null, null, null));
+		builtInRules.add(newResourceRule("getResource", GET_RESOURCE_METHOD_DESCRIPTOR,
+				REPLACEMENT_GET_RESOURCE_METHOD_DESCRIPTOR));
+		builtInRules.add(newResourceRule("getResources", GET_RESOURCES_METHOD_DESCRIPTOR,
+				REPLACEMENT_GET_RESOURCES_METHOD_DESCRIPTOR));
+		builtInRules.add(newResourceRule("getResourceAsStream", GET_RESOURCE_AS_STREAM_METHOD_DESCRIPTOR,
+				REPLACEMENT_GET_RESOURCE_AS_STREAM_METHOD_DESCRIPTOR));
+
+		// Call OSGiClassLoaderUtil.getResourceBundle() with the same arguments as ResourceBundle.getBundle(), but
+		// additionally pass the calling class. Resource bundle calls are rewritten even if class loading calls are not.
+		for (String getBundleMethodDescriptor :
+				Arrays.asList(GET_BUNDLE_3_ARG_METHOD_DESCRIPTOR, GET_BUNDLE_4_ARG_METHOD_DESCRIPTOR)) {
+
+			builtInRules.add(new CompiledRule(
+					new RewriteRule(Opcodes.INVOKESTATIC, RESOURCE_BUNDLE_OWNER_STRING, "getBundle",
+						getBundleMethodDescriptor, OSGI_CLASS_LOADER_UTIL_OWNER_STRING, "getResourceBundle",
+						toGetResourceBundleMethodDescriptor(getBundleMethodDescriptor), false,
+						StackOperation.LOAD_CURRENT_CLASS), null, null, null));
+		}
+
+		return Collections.unmodifiableList(builtInRules);
+	}
+
+	/**
+	 * Returns the hex encoded SHA-1 digest of the sorted extra rules, so that the fingerprint does not depend on the
+	 * order in which the rules were provided.
+	 */
+	private static String getFingerprint(List<RewriteRule> extraRewriteRules) {
+
+		List<String> rewriteRuleStrings = new ArrayList<String>(extraRewriteRules.size());
+
+		for (RewriteRule extraRewriteRule : extraRewriteRules) {
+			rewriteRuleStrings.add(extraRewriteRule.toString());
+		}
+
+		Collections.sort(rewriteRuleStrings);
+
+		String fingerprint;
+
+		try {
+
+			MessageDigest messageDigest = MessageDigest.getInstance(FINGERPRINT_DIGEST_ALGORITHM);
+
+			for (String rewriteRuleString : rewriteRuleStrings) {
+
+				messageDigest.update(rewriteRuleString.getBytes(FINGERPRINT_CHARSET));
+				messageDigest.update((byte) '\n');
+			}
+
+			StringBuilder stringBuilder = new StringBuilder();
+
+			for (byte digestByte : messageDigest.digest()) {
+
+				stringBuilder.append(Character.forDigit((digestByte >>> 4) & 0xF, 16));
+				stringBuilder.append(Character.forDigit(digestByte & 0xF, 16));
+			}
+
+			fingerprint = stringBuilder.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+
+			// Every Java platform implementation is required to support SHA-1.
+			throw new IllegalStateException(e);
+		}
+
+		return fingerprint;
+	}
+
+	private static int hash(int ownerHash, int nameHash) {
+
+		int hash = (ownerHash * 31) + nameHash;
+
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Returns the same hash code as {@link String#hashCode()} for the (ASCII) bytes of a Utf8 constant.
+	 */
+	private static int hashUtf8(byte[] classBytes, int bytesOffset, int length) {
+
+		int hash = 0;
+
+		for (int i = 0; i < length; i++) {
+			hash = (31 * hash) + (classBytes[bytesOffset + i] & 0xFF);
+		}
+
+		return hash;
+	}
+
+	/**
+	 * Returns a rule which rewrites <code>classLoader.getResource*(name)</code> into <code>
+	 * OSGiClassLoaderUtil.getResource*(name, facesContext, classLoader)</code>.
+	 */
+	private static CompiledRule newResourceRule(String name, String descriptor, String replacementDescriptor) {
+		return new CompiledRule(new RewriteRule(Opcodes.INVOKEVIRTUAL, CLASS_LOADER_OWNER_STRING, name, descriptor,
+					OSGI_CLASS_LOADER_UTIL_OWNER_STRING, name, replacementDescriptor, true, StackOperation.SWAP,
+					StackOperation.LOAD_CURRENT_FACES_CONTEXT, StackOperation.SWAP), null, null, null);
+	}
+
+	private static int readUnsignedShort(byte[] classBytes, int offset) {
+		return ((classBytes[offset] & 0xFF) << 8) | (classBytes[offset + 1] & 0xFF);
+	}
+
+	private static byte[] toASCIIBytes(String string) {
+
+		byte[] bytes = new byte[string.length()];
+
+		for (int i = 0; i < bytes.length; i++) {
+
+			char c = string.charAt(i);
+
+			if ((c == 0) || (c > 0x7F)) {
+				throw new IllegalArgumentException("The owners and names of rewritten methods must be ASCII: " +
+					string);
+			}
+
+			bytes[i] = (byte) c;
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Converts a {@link java.util.ResourceBundle}<code>.getBundle()</code> method descriptor into a
+	 * com.liferay.faces.util.osgi.OSGiClassLoaderUtil.getResourceBundle() method descriptor by adding an argument of
+	 * type {@link Class} to the list of argument types.
+	 */
+	private static String toGetResourceBundleMethodDescriptor(String getBundleMethodDescriptor) {
+
+		Type returnType = Type.getReturnType(getBundleMethodDescriptor);
+		Type[] argumentTypes = Type.getArgumentTypes(getBundleMethodDescriptor);
+		argumentTypes = Arrays.copyOf(argumentTypes, argumentTypes.length + 1);
+		argumentTypes[argumentTypes.length - 1] = CLASS_TYPE;
+
+		return Type.getMethodDescriptor(returnType, argumentTypes);
+	}
+
+	private static boolean utf8Equals(byte[] expectedBytes, byte[] classBytes, int utf8Offset) {
+
+		boolean equal = readUnsignedShort(classBytes, utf8Offset) == expectedBytes.length;
+		int bytesOffset = utf8Offset + 2;
+
+		for (int i = 0; equal && (i < expectedBytes.length); i++) {
+			equal = classBytes[bytesOffset + i] == expectedBytes[i];
+		}
+
+		return equal;
+	}
+
+	/**
+	 * Verifies that the stack operations of the rule turn the arguments of the rewritten call into the arguments of the
+	 * replacement method and that both methods return the same type.
+	 *
+	 * @throws  IllegalArgumentException  If the rule is invalid.
+	 */
+	private static void verify(RewriteRule rewriteRule) {
+
+		List<Type> stack = new ArrayList<Type>();
+		Type[] argumentTypes;
+		Type[] replacementArgumentTypes;
+		Type returnType;
+		Type replacementReturnType;
+
+		try {
+
+			argumentTypes = Type.getArgumentTypes(rewriteRule.getDescriptor());
+			returnType = Type.getReturnType(rewriteRule.getDescriptor());
+			replacementArgumentTypes = Type.getArgumentTypes(rewriteRule.getReplacementDescriptor());
+			replacementReturnType = Type.getReturnType(rewriteRule.getReplacementDescriptor());
+		}
+		catch (RuntimeException e) {
+			throw new IllegalArgumentException("The rewrite rule " + rewriteRule + " has an invalid descriptor.", e);
+		}
+
+		if (rewriteRule.getOpcode() == Opcodes.INVOKEVIRTUAL) {
+			stack.add(Type.getObjectType(rewriteRule.getOwner()));
+		}
+
+		stack.addAll(Arrays.asList(argumentTypes));
+
+		for (StackOperation stackOperation : rewriteRule.getStackOperations()) {
+
+			int size = stack.size();
+
+			if (stackOperation == StackOperation.LOAD_CURRENT_CLASS) {
+				stack.add(CLASS_TYPE);
+			}
+			else if (stackOperation == StackOperation.LOAD_CURRENT_FACES_CONTEXT) {
+				stack.add(FACES_CONTEXT_TYPE);
+			}
+			else if ((size >= 2) && (stack.get(size - 1).getSize() == 1) && (stack.get(size - 2).getSize() == 1)) {
+				stack.add(size - 2, stack.remove(size - 1));
+			}
+			else {
+				throw new IllegalArgumentException("The rewrite rule " + rewriteRule +
+					" swaps a missing, long, or double value.");
+			}
+		}
+
+		boolean valid = (stack.size() == replacementArgumentTypes.length) &&
+			returnType.equals(replacementReturnType);
+
+		for (int i = 0; valid && (i < replacementArgumentTypes.length); i++) {
+
+			Type type = stack.get(i);
+			Type replacementArgumentType = replacementArgumentTypes[i];
+			valid = type.equals(replacementArgumentType) ||
+				(OBJECT_TYPE_STRING.equals(replacementArgumentType.getInternalName()) &&
+					((type.getSort() == Type.OBJECT) || (type.getSort() == Type.ARRAY)));
+		}
+
+		if (!valid) {
+			throw new IllegalArgumentException("The stack operations of the rewrite rule " + rewriteRule +
+				" do not turn the arguments " + stack + " into the arguments of the replacement method.");
+		}
+
+		toASCIIBytes(rewriteRule.getOwner());
+		toASCIIBytes(rewriteRule.getName());
+	}
+
+	/**
+	 * Returns the rule which rewrites the specified method instruction or null if the instruction is not rewritten.
+	 *
+	 * @param  weaveClassLoadingCalls  If false, only rules which do not rewrite class loading calls are considered.
+	 */
+	/* package-private */ CompiledRule get(int opcode, String owner, String name, String descriptor,
+		boolean weaveClassLoadingCalls) {
+
+		int hash = hash(owner.hashCode(), name.hashCode());
+		int index = hash & mask;
+		Slot slot = slots[index];
+
+		while ((slot != null) && ((slot.hash != hash) || !slot.owner.equals(owner) || !slot.name.equals(name))) {
+
+			index = (index + 1) & mask;
+			slot = slots[index];
+		}
+
+		CompiledRule compiledRule = null;
+
+		if (slot != null) {
+
+			for (CompiledRule rule : slot.rules) {
+
+				if ((rule.opcode == opcode) && rule.descriptor.equals(descriptor) &&
+						(weaveClassLoadingCalls || !rule.classLoadingCall)) {
+					compiledRule = rule;
+				}
+			}
+		}
+
+		return compiledRule;
+	}
+
+	/**
+	 * Returns the packages (other than the packages of the built-in replacement methods) which woven classes must
+	 * dynamically import.
+	 */
+	/* package-private */ List<String> getDynamicImports() {
+		return dynamicImports;
+	}
+
+	/**
+	 * Returns a string which identifies the extra rules of this table.
+	 */
+	/* package-private */ String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * Returns true if a rule rewrites a method with the owner and name of the specified Utf8 constants (for any opcode
+	 * and descriptor).
+	 *
+	 * @param  classBytes              The bytes of the class file.
+	 * @param  ownerUtf8Offset         The offset of the Utf8 constant of the internal name of the method's owner.
+	 * @param  nameUtf8Offset          The offset of the Utf8 constant of the method's name.
+	 * @param  weaveClassLoadingCalls  If false, only rules which do not rewrite class loading calls are considered.
+	 */
+	/* package-private */ boolean isWeaveTarget(byte[] classBytes, int ownerUtf8Offset, int nameUtf8Offset,
+		boolean weaveClassLoadingCalls) {
+
+		boolean weaveTarget = false;
+		int ownerLength = readUnsignedShort(classBytes, ownerUtf8Offset);
+
+		// Most owners are rejected by their length without being hashed.
+		if ((ownerLength < ownerLengths.length) && ownerLengths[ownerLength]) {
+
+			int hash = hash(hashUtf8(classBytes, ownerUtf8Offset + 2, ownerLength),
+					hashUtf8(classBytes, nameUtf8Offset + 2, readUnsignedShort(classBytes, nameUtf8Offset)));
+			int index = hash & mask;
+			Slot slot = slots[index];
+
+			while ((slot != null) &&
+					((slot.hash != hash) || !utf8Equals(slot.ownerBytes, classBytes, ownerUtf8Offset) ||
+						!utf8Equals(slot.nameBytes, classBytes, nameUtf8Offset))) {
+
+				index = (index + 1) & mask;
+				slot = slots[index];
+			}
+
+			weaveTarget = (slot != null) && (weaveClassLoadingCalls || !slot.classLoadingCallsOnly);
+		}
+
+		return weaveTarget;
+	}
+
+	/**
+	 * A rewrite rule with the values which {@link JSF_OSGiMethodVisitor} needs for each rewritten instruction.
+	 */
+	/* package-private */ static final class CompiledRule {
+
+		// Private Final Data Members
+		private final boolean classLoadingCall;
+		private final String descriptor;
+		private final String invokeDynamicCallSiteDescriptor;
+		private final String invokeDynamicCallSiteName;
+		private final StackOperation[] invokeDynamicStackOperations;
+		private final int opcode;
+		private final Handle replacementHandle;
+		private final RewriteRule rewriteRule;
+		private final StackOperation[] stackOperations;
+
+		/**
+		 * @param  invokeDynamicCallSiteName  The name of the {@link ClassLoadingCallSites} call site which replaces the
+		 *                                    rewritten call if <code>invokedynamic</code> call sites are enabled or
+		 *                                    null if the call is always replaced by the replacement method.
+		 */
+		private CompiledRule(RewriteRule rewriteRule, String invokeDynamicCallSiteName,
+			String invokeDynamicCallSiteDescriptor, StackOperation[] invokeDynamicStackOperations) {
+
+			this.rewriteRule = rewriteRule;
+			this.opcode = rewriteRule.getOpcode();
+			this.descriptor = rewriteRule.getDescriptor();
+			this.classLoadingCall = rewriteRule.isClassLoadingCall();
+			this.stackOperations = rewriteRule.getStackOperations().toArray(NO_STACK_OPERATIONS);
+			this.replacementHandle = new Handle(Opcodes.H_INVOKESTATIC, rewriteRule.getReplacementOwner(),
+					rewriteRule.getReplacementName(), rewriteRule.getReplacementDescriptor(), false);
+			this.invokeDynamicCallSiteName = invokeDynamicCallSiteName;
+			this.invokeDynamicCallSiteDescriptor = invokeDynamicCallSiteDescriptor;
+			this.invokeDynamicStackOperations = invokeDynamicStackOperations;
+		}
+
+		/* package-private */ String getInvokeDynamicCallSiteDescriptor() {
+			return invokeDynamicCallSiteDescriptor;
+		}
+
+		/**
+		 * Returns the name of the {@link ClassLoadingCallSites} call site which replaces the rewritten call if
+		 * <code>invokedynamic</code> call sites are enabled or null if the call is always replaced by the replacement
+		 * method.
+		 */
+		/* package-private */ String getInvokeDynamicCallSiteName() {
+			return invokeDynamicCallSiteName;
+		}
+
+		/**
+		 * Returns the operations which are emitted before the <code>invokedynamic</code> call site.
+		 */
+		/* package-private */ StackOperation[] getInvokeDynamicStackOperations() {
+			return invokeDynamicStackOperations;
+		}
+
+		/**
+		 * Returns the handle of the replacement method (which the <code>invokedynamic</code> call site resolves
+		 * uncached classes with).
+		 */
+		/* package-private */ Handle getReplacementHandle() {
+			return replacementHandle;
+		}
+
+		/* package-private */ RewriteRule getRewriteRule() {
+			return rewriteRule;
+		}
+
+		/**
+		 * Returns the operations which are emitted before the replacement method is called.
+		 */
+		/* package-private */ StackOperation[] getStackOperations() {
+			return stackOperations;
+		}
+	}
+
+	private static final class Slot {
+
+		// Private Final Data Members
+		private final boolean classLoadingCallsOnly;
+		private final int hash;
+		private final String name;
+		private final byte[] nameBytes;
+		private final String owner;
+		private final byte[] ownerBytes;
+		private final CompiledRule[] rules;
+
+		private Slot(CompiledRule[] rules) {
+
+			this.rules = rules;
+			this.owner = rules[0].rewriteRule.getOwner();
+			this.name = rules[0].rewriteRule.getName();
+			this.ownerBytes = toASCIIBytes(owner);
+			this.nameBytes = toASCIIBytes(name);
+			this.hash = hash(owner.hashCode(), name.hashCode());
+
+			boolean classLoadingCallsOnly = true;
+
+			for (CompiledRule rule : rules) {
+				classLoadingCallsOnly &= rule.classLoadingCall;
+			}
+
+			this.classLoadingCallsOnly = classLoadingCallsOnly;
+		}
+	}
+}
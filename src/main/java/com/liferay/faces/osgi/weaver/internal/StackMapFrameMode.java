@@ -0,0 +1,111 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.Locale;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+
+
+/**
+ * Determines how the stack map frames of woven classes are produced (for more details on stack map frames, see: <a
+ * href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.7.4">
+ * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.7.4</a>).
+ *
+ * <p>{@link JSF_OSGiMethodVisitor} only inserts stack-neutral instruction sequences directly before the rewritten
+ * call instruction (or replaces a constant and the call with a single call), so the original frames remain valid
+ * (only the maximum stack size changes). When the <code>FacesContext</code> is reused within a method, the visitor
+ * also adds a local variable after the method's existing locals, so the frames of rewritten methods are expanded and
+ * the new local is appended to each frame. Methods which are added to a woven class declare their own frames.
+ * Preserving the original frames avoids re-analyzing every method and the {@link
+ * OSGiClassWriter#getCommonSuperClass(String, String)} lookups (which require reading class files through the bundle
+ * wiring's class loader) that computing frames entails, so {@link #PRESERVE} and {@link #DROP_JAVA_1_6} are opt-in
+ * optimizations.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ enum StackMapFrameMode {
+
+	/**
+	 * Discards the original frames and computes new frames for every method. This is the default mode since, unlike the
+	 * other modes, it does not rely on the woven methods keeping their original frames valid.
+	 */
+	COMPUTE,
+
+	/**
+	 * Keeps the original frames and only computes the maximum stack size and number of locals.
+	 */
+	PRESERVE,
+
+	/**
+	 * Omits the frames of Java 1.6 (major version 50) classes entirely, since the JVM falls back to the type inference
+	 * verifier for such classes, and behaves like {@link #PRESERVE} for newer classes.
+	 */
+	DROP_JAVA_1_6;
+
+	// Private Constants
+	private static final int JAVA_1_6_MAJOR_VERSION = 50;
+
+	/**
+	 * Returns the mode with the specified name, ignoring case and allowing '-' in place of '_' (for example <code>
+	 * compute</code> or <code>drop-java-1-6</code>).
+	 *
+	 * @throws  IllegalArgumentException  If there is no mode with the specified name.
+	 */
+	/* package-private */ static StackMapFrameMode fromString(String name) {
+		return valueOf(name.trim().toUpperCase(Locale.ENGLISH).replace('-', '_'));
+	}
+
+	/**
+	 * Returns the {@link ClassReader#accept(org.objectweb.asm.ClassVisitor, int)} parsing options for a class with the
+	 * specified major version.
+	 *
+	 * @param  expandFrames  True if the frames of rewritten methods need to be expanded since a local variable is added
+	 *                       to them (see {@link JSF_OSGiMethodVisitor}).
+	 */
+	/* package-private */ int getClassReaderFlags(int majorVersion, boolean expandFrames) {
+
+		int classReaderFlags;
+
+		if ((this == COMPUTE) || ((this == DROP_JAVA_1_6) && (majorVersion == JAVA_1_6_MAJOR_VERSION))) {
+			classReaderFlags = ClassReader.SKIP_FRAMES;
+		}
+		else if (expandFrames) {
+			classReaderFlags = ClassReader.EXPAND_FRAMES;
+		}
+		else {
+
+			// JSF_OSGiMethodVisitor does not add local variables, so the original (compressed) frames are copied as-is
+			// without being expanded.
+			classReaderFlags = 0;
+		}
+
+		return classReaderFlags;
+	}
+
+	/**
+	 * Returns the {@link ClassWriter} flags for this mode.
+	 */
+	/* package-private */ int getClassWriterFlags() {
+
+		int classWriterFlags = ClassWriter.COMPUTE_MAXS;
+
+		if (this == COMPUTE) {
+			classWriterFlags |= ClassWriter.COMPUTE_FRAMES;
+		}
+
+		return classWriterFlags;
+	}
+}
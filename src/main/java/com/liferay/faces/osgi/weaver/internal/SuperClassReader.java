@@ -0,0 +1,285 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+
+/**
+ * Reads the super class name of a class file while reading as little of the class file as possible. Unlike {@link
+ * org.objectweb.asm.ClassReader}, which reads the entire class file, this reader only reads the constant pool and the
+ * access_flags, this_class, and super_class items which follow it (for more details, see: <a
+ * href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.1">
+ * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.1</a>). The fields, methods, and attributes,
+ * which make up most of a large class file, are never read. Constants are only located rather than decoded, so the
+ * only Utf8 constant which is decoded is the name of the super class.
+ *
+ * <p>Each thread reuses its own buffer (see {@link #readSuperName(InputStream)}), so reading a super class name does
+ * not allocate anything other than the name itself unless the constant pool is larger than any constant pool
+ * previously read by the thread.</p>
+ *
+ * <p>This class is not thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class SuperClassReader {
+
+	// Private Constants
+	private static final int CLASS_FILE_MAGIC = 0xCAFEBABE;
+	private static final int CONSTANT_POOL_COUNT_OFFSET = 8;
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	private static final int INITIAL_CONSTANT_POOL_COUNT = 256;
+
+	// Buffers larger than this are discarded after use so that each thread does not keep the largest constant pool it
+	// has ever read in memory.
+	private static final int MAX_RETAINED_BUFFER_SIZE = 64 * 1024;
+	private static final int MIN_READ_LENGTH = 1024;
+	private static final ThreadLocal<SuperClassReader> SUPER_CLASS_READERS = new ThreadLocal<SuperClassReader>() {
+
+			@Override
+			protected SuperClassReader initialValue() {
+				return new SuperClassReader();
+			}
+		};
+
+	// Constant Pool Tags
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_DOUBLE = 6;
+	private static final int CONSTANT_DYNAMIC = 17;
+	private static final int CONSTANT_FIELDREF = 9;
+	private static final int CONSTANT_FLOAT = 4;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_INTERFACE_METHODREF = 11;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+	private static final int CONSTANT_LONG = 5;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_METHOD_TYPE = 16;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_MODULE = 19;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_PACKAGE = 20;
+	private static final int CONSTANT_STRING = 8;
+	private static final int CONSTANT_UTF8 = 1;
+
+	// Private Data Members
+	private byte[] buffer;
+	private int bufferLength;
+	private char[] chars;
+	private int[] constantOffsets;
+	private InputStream inputStream;
+
+	private SuperClassReader() {
+
+		this.buffer = new byte[INITIAL_BUFFER_SIZE];
+		this.chars = new char[128];
+		this.constantOffsets = new int[INITIAL_CONSTANT_POOL_COUNT];
+	}
+
+	/**
+	 * Returns the internal name of the super class of the class file or null if the class file has no super class (in
+	 * other words, if it is the class file of {@link Object} or of a module). The input stream is not closed.
+	 *
+	 * @throws  IOException  If the input stream cannot be read or is not a class file.
+	 */
+	/* package-private */ static String readSuperName(InputStream inputStream) throws IOException {
+
+		SuperClassReader superClassReader = SUPER_CLASS_READERS.get();
+
+		try {
+			return superClassReader.read(inputStream);
+		}
+		finally {
+			superClassReader.release();
+		}
+	}
+
+	private void fill(int requiredLength) throws IOException {
+
+		if (requiredLength > buffer.length) {
+
+			byte[] newBuffer = new byte[Math.max(requiredLength, buffer.length * 2)];
+			System.arraycopy(buffer, 0, newBuffer, 0, bufferLength);
+			buffer = newBuffer;
+		}
+
+		while (bufferLength < requiredLength) {
+
+			// Read ahead a little so that classes with many small constants do not cause a read call per constant, but
+			// never read beyond the end of the buffer.
+			int readLength = Math.min(buffer.length - bufferLength,
+					Math.max(requiredLength - bufferLength, MIN_READ_LENGTH));
+			int bytesRead = inputStream.read(buffer, bufferLength, readLength);
+
+			if (bytesRead < 0) {
+				throw new EOFException("Unexpected end of class file.");
+			}
+
+			bufferLength += bytesRead;
+		}
+	}
+
+	private String read(InputStream inputStream) throws IOException {
+
+		this.inputStream = inputStream;
+		this.bufferLength = 0;
+		fill(CONSTANT_POOL_COUNT_OFFSET + 2);
+
+		if (readInt(0) != CLASS_FILE_MAGIC) {
+			throw new IOException("Invalid class file magic number.");
+		}
+
+		int constantPoolCount = readUnsignedShort(CONSTANT_POOL_COUNT_OFFSET);
+
+		if (constantPoolCount > constantOffsets.length) {
+			constantOffsets = new int[constantPoolCount];
+		}
+
+		int offset = CONSTANT_POOL_COUNT_OFFSET + 2;
+
+		for (int i = 1; i < constantPoolCount; i++) {
+
+			// Ensure that the tag and the first two bytes of the constant's info are available. The rest of the
+			// constant is read along with the next constant.
+			fill(offset + 3);
+
+			// Store the offset of the constant's info (which follows the tag).
+			constantOffsets[i] = offset + 1;
+
+			int tag = buffer[offset];
+
+			switch (tag) {
+
+			case CONSTANT_UTF8:
+				offset += 3 + readUnsignedShort(offset + 1);
+
+				break;
+
+			case CONSTANT_INTEGER:
+			case CONSTANT_FLOAT:
+			case CONSTANT_FIELDREF:
+			case CONSTANT_METHODREF:
+			case CONSTANT_INTERFACE_METHODREF:
+			case CONSTANT_NAME_AND_TYPE:
+			case CONSTANT_DYNAMIC:
+			case CONSTANT_INVOKE_DYNAMIC:
+				offset += 5;
+
+				break;
+
+			case CONSTANT_LONG:
+			case CONSTANT_DOUBLE:
+
+				// 8-byte constants take up two entries in the constant pool.
+				offset += 9;
+				i++;
+
+				break;
+
+			case CONSTANT_CLASS:
+			case CONSTANT_STRING:
+			case CONSTANT_METHOD_TYPE:
+			case CONSTANT_MODULE:
+			case CONSTANT_PACKAGE:
+				offset += 3;
+
+				break;
+
+			case CONSTANT_METHOD_HANDLE:
+				offset += 4;
+
+				break;
+
+			default:
+				throw new IOException("Unknown constant pool tag " + tag + " at constant " + i + ".");
+			}
+		}
+
+		// Read the access_flags, this_class, and super_class and stop.
+		fill(offset + 6);
+
+		int superClassIndex = readUnsignedShort(offset + 4);
+		String superName = null;
+
+		if (superClassIndex >= constantPoolCount) {
+			throw new IOException("Invalid super_class index " + superClassIndex + ".");
+		}
+		else if (superClassIndex != 0) {
+
+			int classOffset = constantOffsets[superClassIndex];
+			superName = readUTF8(constantOffsets[readUnsignedShort(classOffset)]);
+		}
+
+		return superName;
+	}
+
+	private int readInt(int offset) {
+		return (readUnsignedShort(offset) << 16) | readUnsignedShort(offset + 2);
+	}
+
+	private int readUnsignedShort(int offset) {
+		return ((buffer[offset] & 0xFF) << 8) | (buffer[offset + 1] & 0xFF);
+	}
+
+	/**
+	 * Decodes the (modified UTF-8) Utf8 constant at the specified offset. For more details, see: <a
+	 * href="https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.4.7">
+	 * https://docs.oracle.com/javase/specs/jvms/se8/html/jvms-4.html#jvms-4.4.7</a>.
+	 */
+	private String readUTF8(int utf8Offset) {
+
+		int offset = utf8Offset + 2;
+		int endOffset = offset + readUnsignedShort(utf8Offset);
+
+		if (chars.length < (endOffset - offset)) {
+			chars = new char[endOffset - offset];
+		}
+
+		int length = 0;
+
+		while (offset < endOffset) {
+
+			int currentByte = buffer[offset++] & 0xFF;
+
+			if ((currentByte & 0x80) == 0) {
+				chars[length++] = (char) currentByte;
+			}
+			else if ((currentByte & 0xE0) == 0xC0) {
+				chars[length++] = (char) (((currentByte & 0x1F) << 6) | (buffer[offset++] & 0x3F));
+			}
+			else {
+
+				int secondByte = buffer[offset++] & 0x3F;
+				int thirdByte = buffer[offset++] & 0x3F;
+				chars[length++] = (char) (((currentByte & 0x0F) << 12) | (secondByte << 6) | thirdByte);
+			}
+		}
+
+		return new String(chars, 0, length);
+	}
+
+	private void release() {
+
+		inputStream = null;
+
+		if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+			buffer = new byte[INITIAL_BUFFER_SIZE];
+		}
+
+		if (constantOffsets.length > (MAX_RETAINED_BUFFER_SIZE / 4)) {
+			constantOffsets = new int[INITIAL_CONSTANT_POOL_COUNT];
+		}
+	}
+}
@@ -0,0 +1,334 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * Caches the super class of each type visible to a {@link BundleWiring}. A single instance is shared by all weaves of
+ * classes from the same bundle wiring, so each class file in the hierarchy is only read once. Types whose class file is
+ * not visible to the bundle wiring are cached as well. If several threads request the super class of the same
+ * uncached type concurrently, only one of them reads the class file while the others wait for the result. Only the
+ * header of each class file is read (see {@link SuperClassReader}), and the super classes of well-known JDK and
+ * <code>javax.faces</code> API types are obtained from the {@link SuperTypeIndex} without reading their class files.
+ * Likewise, the super classes of the bundle's own classes are obtained from the {@link ClassHeaderIndex} once the
+ * bundle's classes have been pre-woven.
+ *
+ * <p>Instances are weakly associated with their bundle wiring (see {@link #getInstance(BundleWiring)}), so the cached
+ * values are discarded once a refreshed bundle's old wiring is no longer in use. In order to avoid keeping the wiring
+ * (or its class loader) reachable, this class only stores type names.</p>
+ *
+ * <p>Whether each type is (or extends) <code>FacesContext</code> is cached as well (see {@link
+ * #isFacesContextType(String, ClassLoader)}), so classes from the same bundle which share super classes only walk the
+ * shared part of their hierarchy once.</p>
+ *
+ * <p>Each cache also holds the {@link TypeGraph} of the types whose super classes it caches, which is used to find
+ * common super classes, and the {@link BundleWeaverMetricsRecorder} of its bundle, both of which are shared by the
+ * weaves which use the cache.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class SuperTypeCache {
+
+	// Private Constants
+	private static final Object NOT_VISIBLE = new Object();
+	private static final Map<BundleWiring, SuperTypeCache> SUPER_TYPE_CACHES =
+		new WeakHashMap<BundleWiring, SuperTypeCache>();
+
+	// Private Final Data Members
+	private final BundleWeaverMetricsRecorder bundleWeaverMetricsRecorder;
+	private final ClassHeaderIndex classHeaderIndex;
+	private final ConcurrentMap<String, Boolean> facesContextTypes;
+	private final SuperTypeIndex superTypeIndex;
+	private final ConcurrentMap<String, Object> superTypes;
+	private final TypeGraph typeGraph;
+
+	/**
+	 * Creates a cache which only uses the {@link SuperTypeIndex} for JDK types since the <code>javax.faces</code> API
+	 * version is unknown.
+	 */
+	/* package-private */ SuperTypeCache() {
+		this(new BundleWeaverMetricsRecorder(), SuperTypeIndex.getInstance(null),
+			new ClassHeaderIndex(Collections.<String>emptySet(), false));
+	}
+
+	/**
+	 * @param  superTypeIndex    The index of well-known types which is consulted before reading class files.
+	 * @param  classHeaderIndex  The index of the bundle's own classes which is consulted before reading class files.
+	 */
+	/* package-private */ SuperTypeCache(BundleWeaverMetricsRecorder bundleWeaverMetricsRecorder,
+		SuperTypeIndex superTypeIndex, ClassHeaderIndex classHeaderIndex) {
+
+		this.bundleWeaverMetricsRecorder = bundleWeaverMetricsRecorder;
+		this.superTypeIndex = superTypeIndex;
+		this.classHeaderIndex = classHeaderIndex;
+		this.facesContextTypes = new ConcurrentHashMap<String, Boolean>();
+		this.superTypes = new ConcurrentHashMap<String, Object>();
+		this.typeGraph = new TypeGraph(this);
+	}
+
+	/**
+	 * Returns the cache shared by all weaves of classes from the specified bundle wiring.
+	 */
+	/* package-private */ static SuperTypeCache getInstance(BundleWiring bundleWiring) {
+		return getInstance(bundleWiring, null);
+	}
+
+	/**
+	 * Returns the cache shared by all weaves of classes from the specified bundle wiring.
+	 *
+	 * @param  bundleWeaverMetricsRecorder  The recorder of the bundle which is used if the cache does not exist yet or
+	 *                                      null to use a recorder which is not published.
+	 */
+	/* package-private */ static SuperTypeCache getInstance(BundleWiring bundleWiring,
+		BundleWeaverMetricsRecorder bundleWeaverMetricsRecorder) {
+
+		synchronized (SUPER_TYPE_CACHES) {
+
+			SuperTypeCache superTypeCache = SUPER_TYPE_CACHES.get(bundleWiring);
+
+			if (superTypeCache == null) {
+
+				if (bundleWeaverMetricsRecorder == null) {
+					bundleWeaverMetricsRecorder = new BundleWeaverMetricsRecorder();
+				}
+
+				SuperTypeIndex superTypeIndex = SuperTypeIndex.getInstance(SuperTypeIndex.getFacesApiVersion(
+							bundleWiring));
+				superTypeCache = new SuperTypeCache(bundleWeaverMetricsRecorder, superTypeIndex,
+						ClassHeaderIndex.newInstance(bundleWiring));
+
+				SUPER_TYPE_CACHES.put(bundleWiring, superTypeCache);
+			}
+
+			return superTypeCache;
+		}
+	}
+
+	/* package-private */ BundleWeaverMetricsRecorder getBundleWeaverMetricsRecorder() {
+		return bundleWeaverMetricsRecorder;
+	}
+
+	/* package-private */ ClassHeaderIndex getClassHeaderIndex() {
+		return classHeaderIndex;
+	}
+
+	/* package-private */ TypeGraph getTypeGraph() {
+		return typeGraph;
+	}
+
+	/**
+	 * Returns true if the specified type is <code>javax/faces/context/FacesContext</code> or one of its subclasses. The
+	 * result is cached for the type and for each super class which was visited to determine it.
+	 *
+	 * @param  type         The internal name of the type.
+	 * @param  classLoader  The class loader of the bundle wiring which this cache is associated with.
+	 */
+	/* package-private */ boolean isFacesContextType(String type, ClassLoader classLoader) {
+
+		Boolean facesContextType = facesContextTypes.get(type);
+
+		if (facesContextType == null) {
+
+			if (JSF_OSGiMethodVisitor.FACES_CONTEXT_TYPE_STRING.equals(type)) {
+				facesContextType = Boolean.TRUE;
+			}
+			else if (OSGiClassWriter.OBJECT_TYPE_STRING.equals(type)) {
+				facesContextType = Boolean.FALSE;
+			}
+			else {
+
+				String superType = getSuperType(type, classLoader);
+				facesContextType = (superType != null) && isFacesContextType(superType, classLoader);
+			}
+
+			facesContextTypes.put(type, facesContextType);
+		}
+
+		return facesContextType;
+	}
+
+	/**
+	 * Returns the internal name of the super class of the specified type or null if the class file of the type is not
+	 * visible to the class loader.
+	 *
+	 * @param  type         The internal name of the type.
+	 * @param  classLoader  The class loader of the bundle wiring which this cache is associated with.
+	 */
+	/* package-private */ String getSuperType(String type, ClassLoader classLoader) {
+
+		// Well-known types (which most type hierarchies end in) do not need to be cached or read.
+		Object superType = superTypeIndex.getSuperType(type);
+
+		if (superType == null) {
+			superType = classHeaderIndex.getSuperName(type);
+		}
+
+		if (superType == null) {
+			superType = superTypes.get(type);
+		}
+
+		if (superType == null) {
+
+			PendingSuperType pendingSuperType = new PendingSuperType();
+			superType = superTypes.putIfAbsent(type, pendingSuperType);
+
+			if (superType == null) {
+
+				try {
+
+					superType = loadSuperType(type, classLoader);
+					superTypes.put(type, superType);
+					pendingSuperType.setSuperType(superType);
+				}
+				catch (RuntimeException e) {
+
+					// Do not cache failures so that the class file is read again the next time that it is requested.
+					superTypes.remove(type, pendingSuperType);
+					pendingSuperType.setFailure(e);
+					throw e;
+				}
+			}
+		}
+
+		if (superType instanceof PendingSuperType) {
+			superType = ((PendingSuperType) superType).getSuperType();
+		}
+
+		String superTypeString = null;
+
+		if (superType != NOT_VISIBLE) {
+			superTypeString = (String) superType;
+		}
+
+		return superTypeString;
+	}
+
+	private Object loadSuperType(String type, ClassLoader classLoader) {
+
+		Object hierarchyResourceLoadEvent = WeaverEvents.beginHierarchyResourceLoad();
+		Object superType = NOT_VISIBLE;
+
+		try {
+			superType = readSuperType(type, classLoader);
+		}
+		finally {
+			WeaverEvents.commitHierarchyResourceLoad(hierarchyResourceLoadEvent, type, superType != NOT_VISIBLE);
+		}
+
+		return superType;
+	}
+
+	private Object readSuperType(String type, ClassLoader classLoader) {
+
+		Object superType = NOT_VISIBLE;
+		InputStream inputStream = classLoader.getResourceAsStream(type.concat(".class"));
+
+		if (inputStream != null) {
+
+			bundleWeaverMetricsRecorder.recordHierarchyResourceStreamOpened();
+
+			try {
+				superType = SuperClassReader.readSuperName(inputStream);
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			finally {
+
+				try {
+					inputStream.close();
+				}
+				catch (IOException e) {
+					// do nothing.
+				}
+			}
+
+			if (superType == null) {
+				superType = OSGiClassWriter.OBJECT_TYPE_STRING;
+			}
+		}
+
+		return superType;
+	}
+
+	/**
+	 * Placeholder for a super type which is currently being loaded by another thread.
+	 */
+	private static final class PendingSuperType {
+
+		// Private Final Data Members
+		private final CountDownLatch countDownLatch;
+
+		// Private Data Members
+		private volatile RuntimeException failure;
+		private volatile Object superType;
+
+		private PendingSuperType() {
+			this.countDownLatch = new CountDownLatch(1);
+		}
+
+		private Object getSuperType() {
+
+			boolean interrupted = false;
+
+			while (true) {
+
+				try {
+
+					countDownLatch.await();
+
+					break;
+				}
+				catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (failure != null) {
+				throw new RuntimeException(failure);
+			}
+
+			return superType;
+		}
+
+		private void setFailure(RuntimeException failure) {
+
+			this.failure = failure;
+			countDownLatch.countDown();
+		}
+
+		private void setSuperType(Object superType) {
+
+			this.superType = superType;
+			countDownLatch.countDown();
+		}
+	}
+}
@@ -0,0 +1,278 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * Index of the super classes of well-known JDK types (for example <code>java/lang/RuntimeException</code>) and of the
+ * <code>javax.faces</code> API types which is generated at build time (see {@link SuperTypeIndexGenerator}) and shipped
+ * inside the weaver bundle. Since most type hierarchies end in such types, {@link SuperTypeCache} consults the index
+ * before reading class files through the bundle wiring's class loader.
+ *
+ * <p>The index is only valid for the Java specification version and the <code>javax.faces</code> API (major and minor)
+ * version which it was generated from. {@link #getInstance(Version)} returns an index which ignores JDK types if the
+ * running Java specification version differs and ignores <code>javax.faces</code> types if the API version visible to
+ * the bundle differs (or is unknown), so those types are read from their class files as usual.</p>
+ *
+ * <p>Index format (see {@link DataInputStream}): the magic number, the format version, the Java specification version,
+ * the <code>javax.faces</code> API version, the package names, the JDK type count, and the <code>javax.faces</code>
+ * type count followed by each type's package index, simple name, and super class index (or -1). JDK types precede
+ * <code>javax.faces</code> types.</p>
+ *
+ * <p>This class is immutable and thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class SuperTypeIndex {
+
+	// Package-Private Constants
+	/* package-private */ static final String FACES_PACKAGE_NAME = "javax.faces";
+	/* package-private */ static final byte FORMAT_VERSION = 1;
+	/* package-private */ static final int MAGIC = 0x4C465349;
+	/* package-private */ static final String RESOURCE_NAME = "super-type-index.bin";
+
+	// Private Constants
+	private static final SuperTypeIndex EMPTY_SUPER_TYPE_INDEX = new SuperTypeIndex(new HashMap<String, Integer>(0),
+			new String[0], new int[0], 0, null, null, false, false);
+
+	// Private Final Data Members
+	private final Version facesApiVersion;
+	private final boolean facesTypesValid;
+	private final String javaSpecificationVersion;
+	private final int jdkTypeCount;
+	private final boolean jdkTypesValid;
+	private final int[] superTypeIndexes;
+	private final Map<String, Integer> typeIndexes;
+	private final String[] types;
+
+	private SuperTypeIndex(Map<String, Integer> typeIndexes, String[] types, int[] superTypeIndexes, int jdkTypeCount,
+		String javaSpecificationVersion, Version facesApiVersion, boolean jdkTypesValid, boolean facesTypesValid) {
+
+		this.typeIndexes = typeIndexes;
+		this.types = types;
+		this.superTypeIndexes = superTypeIndexes;
+		this.jdkTypeCount = jdkTypeCount;
+		this.javaSpecificationVersion = javaSpecificationVersion;
+		this.facesApiVersion = facesApiVersion;
+		this.jdkTypesValid = jdkTypesValid;
+		this.facesTypesValid = facesTypesValid;
+	}
+
+	/**
+	 * Returns the version of the <code>javax.faces</code> package imported (or exported) by the bundle wiring or null
+	 * if the bundle wiring is not wired to the <code>javax.faces</code> package.
+	 */
+	/* package-private */ static Version getFacesApiVersion(BundleWiring bundleWiring) {
+
+		Version facesApiVersion = null;
+		List<BundleWire> requiredWires = bundleWiring.getRequiredWires(PackageNamespace.PACKAGE_NAMESPACE);
+
+		if (requiredWires != null) {
+
+			for (BundleWire requiredWire : requiredWires) {
+
+				facesApiVersion = getFacesApiVersion(requiredWire.getCapability());
+
+				if (facesApiVersion != null) {
+					break;
+				}
+			}
+		}
+
+		// The javax.faces package is exported rather than imported by bundles which contain the API (such as Mojarra).
+		List<BundleCapability> capabilities = bundleWiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE);
+
+		if ((facesApiVersion == null) && (capabilities != null)) {
+
+			for (BundleCapability capability : capabilities) {
+
+				facesApiVersion = getFacesApiVersion(capability);
+
+				if (facesApiVersion != null) {
+					break;
+				}
+			}
+		}
+
+		return facesApiVersion;
+	}
+
+	/**
+	 * Returns the index which is valid for the running JVM and the specified <code>javax.faces</code> API version.
+	 *
+	 * @param  facesApiVersion  The <code>javax.faces</code> API version visible to the bundle or null if it is unknown.
+	 */
+	/* package-private */ static SuperTypeIndex getInstance(Version facesApiVersion) {
+
+		SuperTypeIndex superTypeIndex = SuperTypeIndexHolder.SUPER_TYPE_INDEX;
+		boolean facesTypesValid = (facesApiVersion != null) && (superTypeIndex.facesApiVersion != null) &&
+			(facesApiVersion.getMajor() == superTypeIndex.facesApiVersion.getMajor()) &&
+			(facesApiVersion.getMinor() == superTypeIndex.facesApiVersion.getMinor());
+		boolean jdkTypesValid = System.getProperty("java.specification.version").equals(
+				superTypeIndex.javaSpecificationVersion);
+
+		if ((facesTypesValid != superTypeIndex.facesTypesValid) || (jdkTypesValid != superTypeIndex.jdkTypesValid)) {
+			superTypeIndex = new SuperTypeIndex(superTypeIndex.typeIndexes, superTypeIndex.types,
+					superTypeIndex.superTypeIndexes, superTypeIndex.jdkTypeCount,
+					superTypeIndex.javaSpecificationVersion, superTypeIndex.facesApiVersion, jdkTypesValid,
+					facesTypesValid);
+		}
+
+		return superTypeIndex;
+	}
+
+	private static Version getFacesApiVersion(BundleCapability capability) {
+
+		Version facesApiVersion = null;
+		Map<String, Object> attributes = capability.getAttributes();
+
+		if (FACES_PACKAGE_NAME.equals(attributes.get(PackageNamespace.PACKAGE_NAMESPACE))) {
+
+			Object version = attributes.get(PackageNamespace.CAPABILITY_VERSION_ATTRIBUTE);
+
+			if (version instanceof Version) {
+				facesApiVersion = (Version) version;
+			}
+			else {
+				facesApiVersion = Version.emptyVersion;
+			}
+		}
+
+		return facesApiVersion;
+	}
+
+	private static SuperTypeIndex read(InputStream inputStream) throws IOException {
+
+		DataInputStream dataInputStream = new DataInputStream(new BufferedInputStream(inputStream));
+
+		if ((dataInputStream.readInt() != MAGIC) || (dataInputStream.readByte() != FORMAT_VERSION)) {
+			throw new IOException("Unsupported super type index format.");
+		}
+
+		String javaSpecificationVersion = dataInputStream.readUTF();
+		Version facesApiVersion = Version.parseVersion(dataInputStream.readUTF());
+		String[] packageNames = new String[dataInputStream.readUnsignedShort()];
+
+		for (int i = 0; i < packageNames.length; i++) {
+			packageNames[i] = dataInputStream.readUTF();
+		}
+
+		int jdkTypeCount = dataInputStream.readInt();
+		int typeCount = jdkTypeCount + dataInputStream.readInt();
+		String[] types = new String[typeCount];
+		int[] superTypeIndexes = new int[typeCount];
+		Map<String, Integer> typeIndexes = new HashMap<String, Integer>(typeCount * 2);
+
+		for (int i = 0; i < typeCount; i++) {
+
+			types[i] = packageNames[dataInputStream.readUnsignedShort()] + dataInputStream.readUTF();
+			superTypeIndexes[i] = dataInputStream.readInt();
+			typeIndexes.put(types[i], i);
+		}
+
+		return new SuperTypeIndex(typeIndexes, types, superTypeIndexes, jdkTypeCount, javaSpecificationVersion,
+				facesApiVersion, false, false);
+	}
+
+	/**
+	 * Returns the internal name of the super class of the specified type or null if the type is not indexed (or its
+	 * section of the index is not valid), in which case the super class must be read from the type's class file.
+	 *
+	 * @param  type  The internal name of the type.
+	 */
+	/* package-private */ String getSuperType(String type) {
+
+		String superType = null;
+		Integer typeIndex = typeIndexes.get(type);
+
+		if (typeIndex != null) {
+
+			int index = typeIndex;
+			boolean valid;
+
+			if (index < jdkTypeCount) {
+				valid = jdkTypesValid;
+			}
+			else {
+				valid = facesTypesValid;
+			}
+
+			int superTypeIndex = superTypeIndexes[index];
+
+			if (valid && (superTypeIndex >= 0)) {
+				superType = types[superTypeIndex];
+			}
+		}
+
+		return superType;
+	}
+
+	/* package-private */ boolean isFacesTypesValid() {
+		return facesTypesValid;
+	}
+
+	/* package-private */ boolean isJDKTypesValid() {
+		return jdkTypesValid;
+	}
+
+	/**
+	 * Lazily loads the index the first time that it is needed.
+	 */
+	private static final class SuperTypeIndexHolder {
+
+		// Private Constants
+		private static final SuperTypeIndex SUPER_TYPE_INDEX = load();
+
+		private static SuperTypeIndex load() {
+
+			SuperTypeIndex superTypeIndex = EMPTY_SUPER_TYPE_INDEX;
+			InputStream inputStream = SuperTypeIndex.class.getResourceAsStream(RESOURCE_NAME);
+
+			if (inputStream != null) {
+
+				try {
+					superTypeIndex = read(inputStream);
+				}
+				catch (IOException e) {
+					// Without the index, every super class is read from its class file.
+				}
+				finally {
+
+					try {
+						inputStream.close();
+					}
+					catch (IOException e) {
+						// do nothing.
+					}
+				}
+			}
+
+			return superTypeIndex;
+		}
+	}
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+
+
+/**
+ * Generates the {@link SuperTypeIndex} from the public classes of well-known JDK packages (and their super classes)
+ * and from the classes of the <code>javax.faces</code> API jar. The index is generated by the <code>
+ * generate-super-type-index</code> Maven profile with the JDK and <code>javax.faces</code> API version that the index
+ * is intended for, since {@link SuperTypeIndex} ignores it for other versions.
+ *
+ * <p>Usage: <code>java -cp com.liferay.faces.osgi.weaver.jar:asm.jar:org.osgi.core.jar
+ * com.liferay.faces.osgi.weaver.internal.SuperTypeIndexGenerator output.bin javax.faces-api.jar faces-api-version
+ * </code></p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class SuperTypeIndexGenerator {
+
+	// Private Constants
+	private static final List<String> JDK_PACKAGES = Arrays.asList("java/io/", "java/lang/", "java/lang/reflect/",
+			"java/math/", "java/net/", "java/text/", "java/util/", "java/util/concurrent/",
+			"java/util/concurrent/atomic/");
+
+	// The extension class loader, which only loads JDK classes (unlike the system class loader, whose classpath may
+	// contain other classes).
+	private static final ClassLoader JDK_CLASS_LOADER = ClassLoader.getSystemClassLoader().getParent();
+	private static final String USAGE =
+		"Usage: SuperTypeIndexGenerator output.bin javax.faces-api.jar faces-api-version";
+
+	// Private Final Data Members
+	private final Map<String, String> facesSuperTypes;
+	private final JarFile facesApiJarFile;
+	private final Map<String, String> jdkSuperTypes;
+
+	private SuperTypeIndexGenerator(JarFile facesApiJarFile) {
+
+		this.facesApiJarFile = facesApiJarFile;
+		this.facesSuperTypes = new TreeMap<String, String>();
+		this.jdkSuperTypes = new TreeMap<String, String>();
+	}
+
+	public static void main(String[] args) throws IOException {
+
+		if (args.length != 3) {
+
+			System.err.println(USAGE);
+			System.exit(1);
+		}
+
+		File rtJar = new File(System.getProperty("java.home"), "lib/rt.jar");
+
+		if (!rtJar.isFile()) {
+			throw new IOException(rtJar + " does not exist. The index must be generated with a JDK which contains " +
+				"rt.jar (Java 8 or below).");
+		}
+
+		JarFile facesApiJarFile = new JarFile(args[1]);
+		JarFile rtJarFile = new JarFile(rtJar);
+
+		try {
+
+			SuperTypeIndexGenerator superTypeIndexGenerator = new SuperTypeIndexGenerator(facesApiJarFile);
+			superTypeIndexGenerator.addJDKTypes(rtJarFile);
+			superTypeIndexGenerator.addFacesTypes();
+			superTypeIndexGenerator.write(new File(args[0]), args[2]);
+		}
+		finally {
+
+			facesApiJarFile.close();
+			rtJarFile.close();
+		}
+	}
+
+	private static String getPackageName(String type) {
+		return type.substring(0, type.lastIndexOf('/') + 1);
+	}
+
+	private static ClassReader newClassReader(InputStream inputStream) throws IOException {
+
+		try {
+			return new ClassReader(inputStream);
+		}
+		finally {
+			inputStream.close();
+		}
+	}
+
+	private void addFacesTypes() throws IOException {
+
+		Enumeration<JarEntry> jarEntries = facesApiJarFile.entries();
+
+		while (jarEntries.hasMoreElements()) {
+
+			String entryName = jarEntries.nextElement().getName();
+
+			if (entryName.startsWith("javax/faces/") && entryName.endsWith(".class")) {
+				addType(entryName.substring(0, entryName.length() - ".class".length()));
+			}
+		}
+	}
+
+	private void addJDKTypes(JarFile rtJarFile) throws IOException {
+
+		Enumeration<JarEntry> jarEntries = rtJarFile.entries();
+
+		while (jarEntries.hasMoreElements()) {
+
+			JarEntry jarEntry = jarEntries.nextElement();
+			String entryName = jarEntry.getName();
+
+			if (entryName.endsWith(".class") && JDK_PACKAGES.contains(getPackageName(entryName))) {
+
+				ClassReader classReader = newClassReader(rtJarFile.getInputStream(jarEntry));
+
+				if ((classReader.getAccess() & Opcodes.ACC_PUBLIC) != 0) {
+					addType(classReader.getClassName());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Adds the type and its super classes (which are indexed as well so that a walk through the index rarely needs to
+	 * read a class file). Super classes which are neither JDK nor <code>javax.faces</code> types (for example JSP tag
+	 * support classes) are not indexed.
+	 */
+	private void addType(String type) throws IOException {
+
+		while ((type != null) && !jdkSuperTypes.containsKey(type) && !facesSuperTypes.containsKey(type)) {
+
+			InputStream inputStream;
+			Map<String, String> superTypes;
+
+			if (type.startsWith("javax/faces/")) {
+
+				JarEntry jarEntry = facesApiJarFile.getJarEntry(type + ".class");
+
+				if (jarEntry == null) {
+					throw new IOException(type + " does not exist in " + facesApiJarFile.getName());
+				}
+
+				inputStream = facesApiJarFile.getInputStream(jarEntry);
+				superTypes = facesSuperTypes;
+			}
+			else {
+
+				inputStream = JDK_CLASS_LOADER.getResourceAsStream(type + ".class");
+				superTypes = jdkSuperTypes;
+			}
+
+			if (inputStream == null) {
+				type = null;
+			}
+			else {
+
+				String superType = newClassReader(inputStream).getSuperName();
+				superTypes.put(type, superType);
+				type = superType;
+			}
+		}
+	}
+
+	private void write(File outputFile, String facesApiVersion) throws IOException {
+
+		List<String> types = new ArrayList<String>(jdkSuperTypes.keySet());
+		types.addAll(facesSuperTypes.keySet());
+
+		Map<String, Integer> typeIndexes = new HashMap<String, Integer>();
+		Map<String, Integer> packageIndexes = new TreeMap<String, Integer>();
+
+		for (String type : types) {
+
+			typeIndexes.put(type, typeIndexes.size());
+
+			String packageName = getPackageName(type);
+
+			if (!packageIndexes.containsKey(packageName)) {
+				packageIndexes.put(packageName, packageIndexes.size());
+			}
+		}
+
+		DataOutputStream dataOutputStream = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(outputFile)));
+
+		try {
+
+			dataOutputStream.writeInt(SuperTypeIndex.MAGIC);
+			dataOutputStream.writeByte(SuperTypeIndex.FORMAT_VERSION);
+			dataOutputStream.writeUTF(System.getProperty("java.specification.version"));
+			dataOutputStream.writeUTF(facesApiVersion);
+
+			String[] packageNames = new String[packageIndexes.size()];
+
+			for (Map.Entry<String, Integer> packageIndex : packageIndexes.entrySet()) {
+				packageNames[packageIndex.getValue()] = packageIndex.getKey();
+			}
+
+			dataOutputStream.writeShort(packageNames.length);
+
+			for (String packageName : packageNames) {
+				dataOutputStream.writeUTF(packageName);
+			}
+
+			dataOutputStream.writeInt(jdkSuperTypes.size());
+			dataOutputStream.writeInt(facesSuperTypes.size());
+
+			for (String type : types) {
+
+				String packageName = getPackageName(type);
+				dataOutputStream.writeShort(packageIndexes.get(packageName));
+				dataOutputStream.writeUTF(type.substring(packageName.length()));
+
+				String superType = jdkSuperTypes.get(type);
+
+				if (superType == null) {
+					superType = facesSuperTypes.get(type);
+				}
+
+				Integer superTypeIndex = null;
+
+				if (superType != null) {
+					superTypeIndex = typeIndexes.get(superType);
+				}
+
+				if (superTypeIndex == null) {
+					superTypeIndex = -1;
+				}
+
+				dataOutputStream.writeInt(superTypeIndex);
+			}
+		}
+		finally {
+			dataOutputStream.close();
+		}
+
+		System.out.println("Wrote " + jdkSuperTypes.size() + " JDK types and " + facesSuperTypes.size() +
+			" javax.faces types to " + outputFile);
+	}
+}
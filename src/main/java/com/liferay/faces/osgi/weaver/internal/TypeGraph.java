@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+/**
+ * The class hierarchy of the types visible to a bundle wiring, which is used to find the common super class of two
+ * types (see {@link OSGiClassWriter#getCommonSuperClass(String, String)}) without comparing type names. Each type is
+ * interned to an int id once its whole hierarchy has been resolved through the {@link SuperTypeCache}. The id of each
+ * type's super class and the type's depth (its distance from the root of its hierarchy, which is {@link Object} unless
+ * a super class is not visible) are stored in arrays indexed by id. The common super class of two types is found by
+ * walking up the hierarchy of the deeper type until both types are at the same depth and then walking up both
+ * hierarchies until they meet.
+ *
+ * <p>Since the same pairs of types are merged by many frames of many methods, common super classes are memoized in a
+ * small direct-mapped table. Each entry packs both type ids and the id of their common super class into a single
+ * long, so entries are read and written without locking and a colliding pair simply replaces the previous entry.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class TypeGraph {
+
+	// Package-Private Constants
+	/* package-private */ static final int NO_TYPE_ID = -1;
+
+	// Private Constants
+	private static final int ID_BITS = 21;
+	private static final long ID_MASK = (1L << ID_BITS) - 1;
+	private static final int INITIAL_CAPACITY = 256;
+
+	// Types with larger ids (which would require over two million types in a single bundle wiring) are not memoized,
+	// since their ids do not fit in a memo entry.
+	private static final int MAX_MEMOIZED_TYPE_ID = (int) ID_MASK - 1;
+	private static final int MEMO_SIZE = 4096;
+
+	// Private Final Data Members
+	private final AtomicLongArray commonSuperTypeMemo;
+	private final SuperTypeCache superTypeCache;
+	private final ConcurrentMap<String, Integer> typeIds;
+
+	// Private Data Members
+	private int[] depths;
+	private int size;
+	private int[] superTypeIds;
+	private String[] types;
+
+	/* package-private */ TypeGraph(SuperTypeCache superTypeCache) {
+
+		this.superTypeCache = superTypeCache;
+		this.commonSuperTypeMemo = new AtomicLongArray(MEMO_SIZE);
+		this.typeIds = new ConcurrentHashMap<String, Integer>();
+		this.depths = new int[INITIAL_CAPACITY];
+		this.superTypeIds = new int[INITIAL_CAPACITY];
+		this.types = new String[INITIAL_CAPACITY];
+	}
+
+	private static int getMemoIndex(int typeId1, int typeId2) {
+
+		int hash = (typeId1 * 0x9E3779B1) ^ typeId2;
+
+		return (hash ^ (hash >>> 16)) & (MEMO_SIZE - 1);
+	}
+
+	/**
+	 * Returns the internal name of the common super class of the specified types or null if their hierarchies do not
+	 * meet (because a super class of one of the types is not visible).
+	 *
+	 * @param  typeId1  The id of the first type (see {@link #getTypeId(String, ClassLoader)}).
+	 * @param  typeId2  The id of the second type.
+	 */
+	/* package-private */ String getCommonSuperType(int typeId1, int typeId2) {
+
+		// The common super class does not depend on the order of the types, so both orders share a memo entry.
+		int lowTypeId = Math.min(typeId1, typeId2);
+		int highTypeId = Math.max(typeId1, typeId2);
+		// Empty entries never match since the ids of two different types are never both 0.
+		boolean memoizable = (lowTypeId != highTypeId) && (highTypeId <= MAX_MEMOIZED_TYPE_ID);
+		int memoIndex = getMemoIndex(lowTypeId, highTypeId);
+		long memoKey = ((long) lowTypeId << (ID_BITS * 2)) | ((long) highTypeId << ID_BITS);
+		long memoEntry = commonSuperTypeMemo.get(memoIndex);
+		int commonSuperTypeId;
+
+		if (memoizable && ((memoEntry & ~ID_MASK) == memoKey)) {
+
+			// The common super class id is stored plus one so that NO_TYPE_ID fits in the entry.
+			commonSuperTypeId = (int) (memoEntry & ID_MASK) - 1;
+		}
+		else {
+
+			synchronized (this) {
+				commonSuperTypeId = findCommonSuperTypeId(lowTypeId, highTypeId);
+			}
+
+			if (memoizable) {
+				commonSuperTypeMemo.set(memoIndex, memoKey | (commonSuperTypeId + 1));
+			}
+		}
+
+		String commonSuperType = null;
+
+		if (commonSuperTypeId != NO_TYPE_ID) {
+
+			synchronized (this) {
+				commonSuperType = types[commonSuperTypeId];
+			}
+		}
+
+		return commonSuperType;
+	}
+
+	/**
+	 * Returns the id of the specified type, resolving (and interning) the type and its super classes if necessary.
+	 *
+	 * @param  type         The internal name of the type.
+	 * @param  classLoader  The class loader of the bundle wiring which the {@link SuperTypeCache} is associated with.
+	 */
+	/* package-private */ int getTypeId(String type, ClassLoader classLoader) {
+
+		Integer typeId = typeIds.get(type);
+
+		if (typeId == null) {
+
+			// Resolve the super classes before locking since they may need to be read from their class files.
+			int superTypeId = NO_TYPE_ID;
+
+			if (!OSGiClassWriter.OBJECT_TYPE_STRING.equals(type)) {
+
+				String superType = superTypeCache.getSuperType(type, classLoader);
+
+				if (superType != null) {
+					superTypeId = getTypeId(superType, classLoader);
+				}
+			}
+
+			synchronized (this) {
+
+				// Another thread may have interned the type in the meantime.
+				typeId = typeIds.get(type);
+
+				if (typeId == null) {
+
+					typeId = intern(type, superTypeId);
+					typeIds.put(type, typeId);
+				}
+			}
+		}
+
+		return typeId;
+	}
+
+	/**
+	 * Returns the id of the common super class of the specified types or {@link #NO_TYPE_ID}. Must be called while
+	 * holding the lock of this graph.
+	 */
+	private int findCommonSuperTypeId(int typeId1, int typeId2) {
+
+		while (depths[typeId1] > depths[typeId2]) {
+			typeId1 = superTypeIds[typeId1];
+		}
+
+		while (depths[typeId2] > depths[typeId1]) {
+			typeId2 = superTypeIds[typeId2];
+		}
+
+		// Types at the same depth share their super class only if they are the same type or share the same root.
+		while ((typeId1 != typeId2) && (typeId1 != NO_TYPE_ID)) {
+
+			typeId1 = superTypeIds[typeId1];
+			typeId2 = superTypeIds[typeId2];
+		}
+
+		return typeId1;
+	}
+
+	/**
+	 * Adds the type to the arrays and returns its id. Must be called while holding the lock of this graph.
+	 */
+	private int intern(String type, int superTypeId) {
+
+		if (size == types.length) {
+
+			int capacity = size * 2;
+			depths = Arrays.copyOf(depths, capacity);
+			superTypeIds = Arrays.copyOf(superTypeIds, capacity);
+			types = Arrays.copyOf(types, capacity);
+		}
+
+		int typeId = size++;
+		types[typeId] = type;
+		superTypeIds[typeId] = superTypeId;
+
+		if (superTypeId == NO_TYPE_ID) {
+			depths[typeId] = 0;
+		}
+		else {
+			depths[typeId] = depths[superTypeId] + 1;
+		}
+
+		return typeId;
+	}
+}
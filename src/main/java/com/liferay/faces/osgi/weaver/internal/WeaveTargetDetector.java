@@ -0,0 +1,93 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.Collection;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * Detects whether any class of a bundle wiring contains calls which are rewritten by the rules of a table (see {@link
+ * ConstantPoolScanner}), so that only the bundles whose weaving is affected by changed rewrite rules (see {@link
+ * RewriteRuleTable#getChangedRuleTable(RewriteRuleTable, RewriteRuleTable)}) are refreshed. Each class file is read
+ * through the bundle wiring's class loader (without loading the class), and the scan stops at the first class which
+ * contains weave targets.
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class WeaveTargetDetector {
+
+	private WeaveTargetDetector() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Returns true if any class of the bundle wiring contains calls which are rewritten by the rules of the table or if
+	 * the classes of the bundle wiring cannot be listed or read.
+	 *
+	 * @param  weaveClassLoadingCalls  If false, only calls which are not class loading calls are considered.
+	 * @param  rewriteRuleTable        The rules whose calls are detected.
+	 */
+	/* package-private */ static boolean containsWeaveTargets(BundleWiring bundleWiring, boolean weaveClassLoadingCalls,
+		RewriteRuleTable rewriteRuleTable) {
+
+		boolean containsWeaveTargets = false;
+		ClassLoader classLoader = bundleWiring.getClassLoader();
+		Collection<String> classResourceNames = bundleWiring.listResources("/", "*.class",
+				BundleWiring.LISTRESOURCES_LOCAL | BundleWiring.LISTRESOURCES_RECURSE);
+
+		// Bundle wirings without a class loader (such as the wirings of fragments) never load classes.
+		if ((classLoader != null) && (classResourceNames == null)) {
+			containsWeaveTargets = true;
+		}
+		else if (classLoader != null) {
+
+			for (String classResourceName : classResourceNames) {
+
+				URL classResourceURL = classLoader.getResource(classResourceName);
+
+				if (classResourceURL != null) {
+
+					try {
+
+						byte[] bytes = PreWeaver.readBytes(classResourceURL);
+
+						// Classes woven at build time are not woven again at runtime.
+						if (JSF_OSGiWeavingHook.isCompiledWithJava_1_6_OrGreater(bytes)) {
+
+							ConstantPoolScanner constantPoolScanner = new ConstantPoolScanner(bytes,
+									weaveClassLoadingCalls, rewriteRuleTable);
+							containsWeaveTargets = constantPoolScanner.containsWeaveTargets() &&
+								!constantPoolScanner.isWoven();
+						}
+					}
+					catch (IOException e) {
+						containsWeaveTargets = true;
+					}
+				}
+
+				if (containsWeaveTargets) {
+					break;
+				}
+			}
+		}
+
+		return containsWeaveTargets;
+	}
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+/**
+ * Emits Java Flight Recorder events for each weave, each common super class resolution, and each class file resource
+ * loaded in order to resolve a type hierarchy. Each <code>begin*()</code> method returns an opaque event which must be
+ * passed to the corresponding <code>commit*()</code> method.
+ *
+ * <p>This is the Java 1.6 implementation, which returns null from every <code>begin*()</code> method and ignores every
+ * <code>commit*()</code> call. On Java 11 and above, this class is replaced by the implementation in <code>
+ * META-INF/versions/11</code> (see <code>src/main/java11</code>) which emits <code>jdk.jfr</code> events if the JFR API
+ * is visible to this bundle.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class WeaverEvents {
+
+	// Package-Private Constants
+	/* package-private */ static final String OUTCOME_FAILED = "failed";
+	/* package-private */ static final String OUTCOME_IGNORED = "ignored";
+	/* package-private */ static final String OUTCOME_SKIPPED = "skipped";
+	/* package-private */ static final String OUTCOME_WOVEN = "woven";
+
+	/* package-private */ static Object beginCommonSuperClass() {
+		return null;
+	}
+
+	/* package-private */ static Object beginHierarchyResourceLoad() {
+		return null;
+	}
+
+	/* package-private */ static Object beginWeave() {
+		return null;
+	}
+
+	/* package-private */ static void commitCommonSuperClass(Object commonSuperClassEvent, String bundleSymbolicName,
+		String type1, String type2, String commonSuperClass) {
+		// Java Flight Recorder events are only available on Java 11 and above.
+	}
+
+	/* package-private */ static void commitHierarchyResourceLoad(Object hierarchyResourceLoadEvent, String type,
+		boolean found) {
+		// Java Flight Recorder events are only available on Java 11 and above.
+	}
+
+	/**
+	 * @param  outcome   One of {@link #OUTCOME_IGNORED}, {@link #OUTCOME_SKIPPED}, {@link #OUTCOME_WOVEN}, or {@link
+	 *                   #OUTCOME_FAILED}.
+	 * @param  bytesIn   The size of the original class file or 0 if the class was ignored.
+	 * @param  bytesOut  The size of the woven class file or 0 if the class was not woven.
+	 */
+	/* package-private */ static void commitWeave(Object weaveEvent, String className, String bundleSymbolicName,
+		String outcome, int bytesIn, int bytesOut) {
+		// Java Flight Recorder events are only available on Java 11 and above.
+	}
+}
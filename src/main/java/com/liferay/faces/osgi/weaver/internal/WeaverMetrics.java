@@ -0,0 +1,107 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.liferay.faces.osgi.weaver.metrics.BundleWeaverMetrics;
+import com.liferay.faces.osgi.weaver.metrics.CallSiteMetrics;
+import com.liferay.faces.osgi.weaver.metrics.WeaverMetricsMXBean;
+import com.liferay.faces.osgi.weaver.runtime.CallSiteProbes;
+
+
+/**
+ * Keeps a {@link BundleWeaverMetricsRecorder} for each weaved bundle (keyed by bundle symbolic name so that the
+ * metrics of a bundle survive refreshes and updates). The metrics of probed call sites are recorded by {@link
+ * CallSiteProbes}.
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class WeaverMetrics implements WeaverMetricsMXBean {
+
+	// Private Final Data Members
+	private final ConcurrentMap<String, BundleWeaverMetricsRecorder> bundleWeaverMetricsRecorders;
+
+	/* package-private */ WeaverMetrics() {
+		this.bundleWeaverMetricsRecorders = new ConcurrentHashMap<String, BundleWeaverMetricsRecorder>();
+	}
+
+	@Override
+	public Map<String, BundleWeaverMetrics> getBundleMetrics() {
+
+		Map<String, BundleWeaverMetrics> bundleMetrics = new TreeMap<String, BundleWeaverMetrics>();
+
+		for (Map.Entry<String, BundleWeaverMetricsRecorder> entry : bundleWeaverMetricsRecorders.entrySet()) {
+			bundleMetrics.put(entry.getKey(), entry.getValue().snapshot());
+		}
+
+		return bundleMetrics;
+	}
+
+	@Override
+	public List<CallSiteMetrics> getCallSiteMetrics() {
+		return CallSiteProbes.getCallSiteMetrics();
+	}
+
+	@Override
+	public BundleWeaverMetrics getTotalMetrics() {
+
+		BundleWeaverMetricsSnapshot totalMetrics = new BundleWeaverMetricsRecorder().snapshot();
+
+		for (BundleWeaverMetricsRecorder bundleWeaverMetricsRecorder : bundleWeaverMetricsRecorders.values()) {
+			totalMetrics = totalMetrics.add(bundleWeaverMetricsRecorder.snapshot());
+		}
+
+		return totalMetrics;
+	}
+
+	@Override
+	public void reset() {
+
+		for (BundleWeaverMetricsRecorder bundleWeaverMetricsRecorder : bundleWeaverMetricsRecorders.values()) {
+			bundleWeaverMetricsRecorder.reset();
+		}
+
+		CallSiteProbes.reset();
+	}
+
+	/**
+	 * Returns the recorder of the bundle with the specified symbolic name.
+	 */
+	/* package-private */ BundleWeaverMetricsRecorder getBundleWeaverMetricsRecorder(String bundleSymbolicName) {
+
+		BundleWeaverMetricsRecorder bundleWeaverMetricsRecorder = bundleWeaverMetricsRecorders.get(
+				bundleSymbolicName);
+
+		if (bundleWeaverMetricsRecorder == null) {
+
+			bundleWeaverMetricsRecorder = new BundleWeaverMetricsRecorder();
+
+			BundleWeaverMetricsRecorder existingBundleWeaverMetricsRecorder = bundleWeaverMetricsRecorders.putIfAbsent(
+					bundleSymbolicName, bundleWeaverMetricsRecorder);
+
+			if (existingBundleWeaverMetricsRecorder != null) {
+				bundleWeaverMetricsRecorder = existingBundleWeaverMetricsRecorder;
+			}
+		}
+
+		return bundleWeaverMetricsRecorder;
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+/**
+ * The options of a {@link JSF_OSGiWeavingHook}. Each option which is not set keeps its default value: frames are
+ * computed, woven classes are not cached, pre-weaving, <code>invokedynamic</code> call sites, <code>
+ * FacesContext</code> reuse, and call site probes are disabled, and the default {@link WeavingPolicy} and the
+ * built-in {@link RewriteRuleTable} are used.
+ *
+ * <p>This class is not thread safe. The weaving hook copies the options when it is created.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class WeavingHookOptions {
+
+	// Private Data Members
+	private boolean callSiteProbes;
+	private boolean invokeDynamicCallSites;
+	private int preWeaveThreadCount;
+	private boolean reuseFacesContext;
+	private RewriteRuleTable rewriteRuleTable = RewriteRuleTable.getBuiltInInstance();
+	private StackMapFrameMode stackMapFrameMode = StackMapFrameMode.COMPUTE;
+	private WeaverMetrics weaverMetrics = new WeaverMetrics();
+	private WeavingPolicy weavingPolicy = WeavingPolicy.getDefault();
+	private WovenClassCache wovenClassCache;
+
+	/* package-private */ int getPreWeaveThreadCount() {
+		return preWeaveThreadCount;
+	}
+
+	/* package-private */ RewriteRuleTable getRewriteRuleTable() {
+		return rewriteRuleTable;
+	}
+
+	/* package-private */ StackMapFrameMode getStackMapFrameMode() {
+		return stackMapFrameMode;
+	}
+
+	/* package-private */ WeaverMetrics getWeaverMetrics() {
+		return weaverMetrics;
+	}
+
+	/* package-private */ WeavingPolicy getWeavingPolicy() {
+		return weavingPolicy;
+	}
+
+	/* package-private */ WovenClassCache getWovenClassCache() {
+		return wovenClassCache;
+	}
+
+	/* package-private */ boolean isCallSiteProbes() {
+		return callSiteProbes;
+	}
+
+	/* package-private */ boolean isInvokeDynamicCallSites() {
+		return invokeDynamicCallSites;
+	}
+
+	/* package-private */ boolean isReuseFacesContext() {
+		return reuseFacesContext;
+	}
+
+	/**
+	 * @param  callSiteProbes  If true, each rewritten call is counted and a sample of its calls is timed (see {@link
+	 *                         com.liferay.faces.osgi.weaver.runtime.CallSiteProbes}). The woven class cache must be
+	 *                         null since the ids of the call sites are only valid while the framework runs, and
+	 *                         classes are not pre-woven since pre-woven classes may never be defined.
+	 */
+	/* package-private */ void setCallSiteProbes(boolean callSiteProbes) {
+		this.callSiteProbes = callSiteProbes;
+	}
+
+	/**
+	 * @param  invokeDynamicCallSites  If true, class loading calls in Java 7+ classes are replaced with caching <code>
+	 *                                 invokedynamic</code> call sites (see {@link
+	 *                                 com.liferay.faces.osgi.weaver.runtime.ClassLoadingCallSites}).
+	 */
+	/* package-private */ void setInvokeDynamicCallSites(boolean invokeDynamicCallSites) {
+		this.invokeDynamicCallSites = invokeDynamicCallSites;
+	}
+
+	/**
+	 * @param  preWeaveThreadCount  The number of threads used to weave the classes of Faces bundles in the background
+	 *                              when the bundles are resolved (see {@link JSF_OSGiWeavingHook#getPreWeaver()}) or 0
+	 *                              to disable pre-weaving.
+	 */
+	/* package-private */ void setPreWeaveThreadCount(int preWeaveThreadCount) {
+		this.preWeaveThreadCount = preWeaveThreadCount;
+	}
+
+	/**
+	 * @param  reuseFacesContext  If true, each method obtains the current <code>FacesContext</code> for its rewritten
+	 *                            calls once (see {@link JSF_OSGiClassWeaver}).
+	 */
+	/* package-private */ void setReuseFacesContext(boolean reuseFacesContext) {
+		this.reuseFacesContext = reuseFacesContext;
+	}
+
+	/**
+	 * @param  rewriteRuleTable  The rules which describe the rewritten calls (see {@link
+	 *                           RewriteRuleTable#getBuiltInInstance()}).
+	 */
+	/* package-private */ void setRewriteRuleTable(RewriteRuleTable rewriteRuleTable) {
+		this.rewriteRuleTable = rewriteRuleTable;
+	}
+
+	/* package-private */ void setStackMapFrameMode(StackMapFrameMode stackMapFrameMode) {
+		this.stackMapFrameMode = stackMapFrameMode;
+	}
+
+	/**
+	 * @param  weaverMetrics  The metrics which are recorded for each weaved bundle.
+	 */
+	/* package-private */ void setWeaverMetrics(WeaverMetrics weaverMetrics) {
+		this.weaverMetrics = weaverMetrics;
+	}
+
+	/**
+	 * @param  weavingPolicy  The policy which determines which bundles and classes are woven (see {@link
+	 *                        JSF_OSGiWeavingHook#setWeavingPolicy(WeavingPolicy)}).
+	 */
+	/* package-private */ void setWeavingPolicy(WeavingPolicy weavingPolicy) {
+		this.weavingPolicy = weavingPolicy;
+	}
+
+	/* package-private */ void setWovenClassCache(WovenClassCache wovenClassCache) {
+		this.wovenClassCache = wovenClassCache;
+	}
+}
@@ -0,0 +1,311 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.osgi.framework.VersionRange;
+
+
+/**
+ * Determines which bundles and classes are woven. A policy consists of:
+ *
+ * <ul>
+ *   <li><code>bundles</code>: bundle rules of the form <code>symbolic.name[;version="range"]
+ *     [;weaveClassLoadingCalls=false]</code>. Classes are only woven if their bundle matches a rule. If <code>
+ *     weaveClassLoadingCalls</code> is false, only calls to {@link java.util.ResourceBundle}<code>.getBundle()</code>
+ *     are woven.</li>
+ *   <li><code>includedPackages</code> and <code>excludedPackages</code>: package prefixes (see {@link PackageTrie})
+ *     which determine which classes of the matched bundles are woven. If no included packages are specified, classes
+ *     which do not match any package prefix are woven.</li>
+ * </ul>
+ *
+ * <p>The policy is configured through Configuration Admin with the {@link #CONFIGURATION_PID} PID (see {@link
+ * #fromProperties(Map)}). Any property which is not configured defaults to the value of the {@link #getDefault()
+ * default policy}, which weaves Mojarra (except its SPI classes) and PrimeFaces 6.2 and below.</p>
+ *
+ * <p>This class is immutable and thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class WeavingPolicy {
+
+	// Package-Private Constants
+	/* package-private */ static final String BUNDLES_PROPERTY = "bundles";
+	/* package-private */ static final String CONFIGURATION_PID = "com.liferay.faces.osgi.weaver";
+	/* package-private */ static final String EXCLUDED_PACKAGES_PROPERTY = "excludedPackages";
+	/* package-private */ static final String INCLUDED_PACKAGES_PROPERTY = "includedPackages";
+
+	// Private Constants
+	private static final String[] DEFAULT_BUNDLES = new String[] {
+			"org.glassfish.javax.faces",
+
+			// PrimeFaces 6.2 and below load classes through the thread context class loader (which already
+			// delegates to the OSGi class loader), so only their ResourceBundle.getBundle() calls are woven.
+			"org.primefaces;version=\"[0,6.3)\";weaveClassLoadingCalls=false"
+		};
+	private static final String[] DEFAULT_EXCLUDED_PACKAGES = new String[] {
+			"com.sun.faces.spi", "com.sun.faces.config.configprovider"
+		};
+	private static final WeavingPolicy DEFAULT_WEAVING_POLICY = new WeavingPolicy(Arrays.asList(DEFAULT_BUNDLES),
+			Collections.<String>emptyList(), Arrays.asList(DEFAULT_EXCLUDED_PACKAGES));
+	private static final String VERSION_ATTRIBUTE = "version";
+	private static final String WEAVE_CLASS_LOADING_CALLS_ATTRIBUTE = "weaveClassLoadingCalls";
+
+	// Private Final Data Members
+	private final Map<String, List<BundleRule>> bundleRules;
+	private final List<String> bundles;
+	private final List<String> excludedPackages;
+	private final List<String> includedPackages;
+	private final PackageTrie packageTrie;
+
+	private WeavingPolicy(List<String> bundles, List<String> includedPackages, List<String> excludedPackages) {
+
+		this.bundles = Collections.unmodifiableList(new ArrayList<String>(bundles));
+		this.includedPackages = Collections.unmodifiableList(new ArrayList<String>(includedPackages));
+		this.excludedPackages = Collections.unmodifiableList(new ArrayList<String>(excludedPackages));
+		this.bundleRules = new HashMap<String, List<BundleRule>>();
+
+		for (String bundle : bundles) {
+
+			BundleRule bundleRule = BundleRule.parse(bundle);
+			List<BundleRule> bundleRulesForSymbolicName = bundleRules.get(bundleRule.bundleSymbolicName);
+
+			if (bundleRulesForSymbolicName == null) {
+
+				bundleRulesForSymbolicName = new ArrayList<BundleRule>(1);
+				bundleRules.put(bundleRule.bundleSymbolicName, bundleRulesForSymbolicName);
+			}
+
+			bundleRulesForSymbolicName.add(bundleRule);
+		}
+
+		this.packageTrie = new PackageTrie(includedPackages, excludedPackages);
+	}
+
+	/**
+	 * Returns a policy built from the configuration properties. Properties may be a single string, a string array, or
+	 * a collection of strings.
+	 *
+	 * @throws  IllegalArgumentException  If a bundle rule is malformed.
+	 */
+	/* package-private */ static WeavingPolicy fromProperties(Map<String, ?> properties) {
+
+		WeavingPolicy defaultWeavingPolicy = getDefault();
+		List<String> bundles = getStrings(properties, BUNDLES_PROPERTY, defaultWeavingPolicy.bundles);
+		List<String> includedPackages = getStrings(properties, INCLUDED_PACKAGES_PROPERTY,
+				defaultWeavingPolicy.includedPackages);
+		List<String> excludedPackages = getStrings(properties, EXCLUDED_PACKAGES_PROPERTY,
+				defaultWeavingPolicy.excludedPackages);
+
+		return new WeavingPolicy(bundles, includedPackages, excludedPackages);
+	}
+
+	/* package-private */ static WeavingPolicy getDefault() {
+		return DEFAULT_WEAVING_POLICY;
+	}
+
+	private static List<String> getStrings(Map<String, ?> properties, String name, List<String> defaultValue) {
+
+		List<String> strings = defaultValue;
+		Object value = properties.get(name);
+
+		if (value != null) {
+
+			Collection<?> values;
+
+			if (value instanceof Object[]) {
+				values = Arrays.asList((Object[]) value);
+			}
+			else if (value instanceof Collection) {
+				values = (Collection<?>) value;
+			}
+			else {
+				values = Collections.singletonList(value);
+			}
+
+			strings = new ArrayList<String>(values.size());
+
+			for (Object object : values) {
+
+				String string = String.valueOf(object).trim();
+
+				if (string.length() > 0) {
+					strings.add(string);
+				}
+			}
+		}
+
+		return strings;
+	}
+
+	@Override
+	public boolean equals(Object object) {
+
+		boolean equal = false;
+
+		if (object instanceof WeavingPolicy) {
+
+			WeavingPolicy weavingPolicy = (WeavingPolicy) object;
+			equal = bundles.equals(weavingPolicy.bundles) && includedPackages.equals(weavingPolicy.includedPackages) &&
+				excludedPackages.equals(weavingPolicy.excludedPackages);
+		}
+
+		return equal;
+	}
+
+	@Override
+	public int hashCode() {
+
+		int hashCode = bundles.hashCode();
+		hashCode = (31 * hashCode) + includedPackages.hashCode();
+
+		return (31 * hashCode) + excludedPackages.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return BUNDLES_PROPERTY + "=" + bundles + ", " + INCLUDED_PACKAGES_PROPERTY + "=" + includedPackages + ", " +
+			EXCLUDED_PACKAGES_PROPERTY + "=" + excludedPackages;
+	}
+
+	/**
+	 * Returns the first rule which matches the bundle or null if the classes of the bundle are not woven.
+	 */
+	/* package-private */ BundleRule getBundleRule(Bundle bundle) {
+		return getBundleRule(bundle.getSymbolicName(), bundle.getVersion());
+	}
+
+	/**
+	 * Returns the first rule which matches the bundle or null if the classes of the bundle are not woven.
+	 */
+	/* package-private */ BundleRule getBundleRule(String bundleSymbolicName, Version bundleVersion) {
+
+		BundleRule matchingBundleRule = null;
+		List<BundleRule> bundleRulesForSymbolicName = bundleRules.get(bundleSymbolicName);
+
+		if (bundleRulesForSymbolicName != null) {
+
+			for (BundleRule bundleRule : bundleRulesForSymbolicName) {
+
+				if ((bundleRule.versionRange == null) || bundleRule.versionRange.includes(bundleVersion)) {
+
+					matchingBundleRule = bundleRule;
+
+					break;
+				}
+			}
+		}
+
+		return matchingBundleRule;
+	}
+
+	/* package-private */ boolean isWeaveBundle(Bundle bundle) {
+		return getBundleRule(bundle) != null;
+	}
+
+	/**
+	 * Returns true if the class (of a bundle which matches a bundle rule) is woven.
+	 *
+	 * @param  className  The binary name of the class.
+	 */
+	/* package-private */ boolean isWeaveClass(String className) {
+
+		byte match = packageTrie.getMatch(className);
+
+		return (match == PackageTrie.INCLUDED) || ((match == PackageTrie.NO_MATCH) && includedPackages.isEmpty());
+	}
+
+	/**
+	 * Returns true if the classes of the bundle are woven and their class loading calls (rather than only their calls
+	 * to {@link java.util.ResourceBundle}<code>.getBundle()</code>) are woven.
+	 */
+	/* package-private */ boolean isWeaveClassLoadingCalls(Bundle bundle) {
+
+		BundleRule bundleRule = getBundleRule(bundle);
+
+		return (bundleRule != null) && bundleRule.weaveClassLoadingCalls;
+	}
+
+	/* package-private */ static final class BundleRule {
+
+		// Private Final Data Members
+		private final String bundleSymbolicName;
+		private final VersionRange versionRange;
+		private final boolean weaveClassLoadingCalls;
+
+		private BundleRule(String bundleSymbolicName, VersionRange versionRange, boolean weaveClassLoadingCalls) {
+
+			this.bundleSymbolicName = bundleSymbolicName;
+			this.versionRange = versionRange;
+			this.weaveClassLoadingCalls = weaveClassLoadingCalls;
+		}
+
+		private static BundleRule parse(String bundleRule) {
+
+			String[] clauses = bundleRule.split(";");
+			String bundleSymbolicName = clauses[0].trim();
+
+			if (bundleSymbolicName.length() == 0) {
+				throw new IllegalArgumentException("Missing bundle symbolic name in bundle rule: " + bundleRule);
+			}
+
+			VersionRange versionRange = null;
+			boolean weaveClassLoadingCalls = true;
+
+			for (int i = 1; i < clauses.length; i++) {
+
+				String clause = clauses[i];
+				int equalsIndex = clause.indexOf('=');
+
+				if (equalsIndex < 0) {
+					throw new IllegalArgumentException("Invalid attribute \"" + clause + "\" in bundle rule: " +
+						bundleRule);
+				}
+
+				String name = clause.substring(0, equalsIndex).trim();
+				String value = clause.substring(equalsIndex + 1).trim();
+
+				if ((value.length() > 1) && value.startsWith("\"") && value.endsWith("\"")) {
+					value = value.substring(1, value.length() - 1);
+				}
+
+				if (VERSION_ATTRIBUTE.equals(name)) {
+					versionRange = new VersionRange(value);
+				}
+				else if (WEAVE_CLASS_LOADING_CALLS_ATTRIBUTE.equals(name)) {
+					weaveClassLoadingCalls = Boolean.parseBoolean(value);
+				}
+				else {
+					throw new IllegalArgumentException("Unknown attribute \"" + name + "\" in bundle rule: " +
+						bundleRule);
+				}
+			}
+
+			return new BundleRule(bundleSymbolicName, versionRange, weaveClassLoadingCalls);
+		}
+
+		/* package-private */ boolean isWeaveClassLoadingCalls() {
+			return weaveClassLoadingCalls;
+		}
+	}
+}
@@ -0,0 +1,588 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import org.osgi.framework.Bundle;
+
+
+/**
+ * Persistent cache of woven class bytes which survives JVM restarts. The cache is stored in an append-only,
+ * memory-mapped file. Each record is keyed by the bundle symbolic name, the bundle version, the class name, and a SHA-1
+ * digest of the class bytes that were passed to the weaving hook (and of the weaving options and rewrite rules which
+ * affect the woven bytes). Records for classes which did not need to be modified are also stored so that subsequent
+ * weaves of those classes can be skipped entirely. Classes with folded <code>Class.forName(String)</code> calls are
+ * never stored, since whether a call is folded depends on the bundle's wiring rather than on the key (see {@link
+ * JSF_OSGiClassWeaver#weave(String, byte[], ConstantPoolScanner, java.util.List)}). Since the key contains the digest
+ * of the class bytes, the records of classes whose bundle was updated are never hit again, so they are not removed
+ * when the bundle changes but are evicted like any other record.
+ *
+ * <p>The file is laid out as a fixed size header followed by records:</p>
+ *
+ * <pre>
+ * header: int magic, int format version, int write position, short fingerprint length, byte[] fingerprint
+ * entry record: byte type, utf bundle symbolic name, utf bundle version, utf class name, byte[20] digest,
+ *               byte modified, int class bytes length, int class bytes CRC-32, byte[] class bytes
+ * </pre>
+ *
+ * <p>The write position is only updated after a record has been completely written, so a crash while writing can never
+ * expose a partial record. Before records are moved during compaction, the write position is reset (and forced to disk)
+ * so that a crash while moving records leaves an empty cache rather than half-copied records. The class bytes of each
+ * record are also checked against their CRC-32 when the file is loaded, so records which were only partially flushed to
+ * disk are discarded along with every later record. If the file was written by a different version of the weaver (see
+ * {@link #open(File, int, String)}) or is corrupt, it is reset. Once the file reaches its maximum size, the oldest
+ * records are evicted until the file is half full.</p>
+ *
+ * <p>This class is thread safe. Writes are serialized, but {@link #get(Key)} does not lock. Records are only moved by
+ * compaction, so a read which overlaps a compaction (or whose class bytes do not match their CRC-32) is treated as a
+ * miss.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class WovenClassCache {
+
+	// Package-Private Constants
+	/* package-private */ static final byte[] UNMODIFIED_CLASS_BYTES = new byte[0];
+
+	// Private Constants
+	private static final int DIGEST_LENGTH = 20;
+	private static final String DIGEST_ALGORITHM = "SHA-1";
+	private static final byte ENTRY_RECORD_TYPE = 1;
+	private static final int FORMAT_VERSION = 3;
+	private static final int HEADER_SIZE = 512;
+	private static final int MAGIC = 0x4C464F57;
+	private static final int MAX_FINGERPRINT_LENGTH = HEADER_SIZE - 14;
+	private static final int WRITE_POSITION_OFFSET = 8;
+
+	// Private Final Data Members
+	private final FileChannel fileChannel;
+	private final ConcurrentHashMap<Key, Entry> index;
+	private final MappedByteBuffer mappedByteBuffer;
+	private final int maxSize;
+	private final RandomAccessFile randomAccessFile;
+
+	// Private Data Members
+	private volatile boolean closed;
+
+	// The number of times that compaction started or finished, so the count is odd while records are moved.
+	private volatile int compactionCount;
+	private int writePosition;
+
+	private WovenClassCache(RandomAccessFile randomAccessFile, int maxSize) throws IOException {
+
+		this.randomAccessFile = randomAccessFile;
+		this.fileChannel = randomAccessFile.getChannel();
+		this.maxSize = maxSize;
+		this.mappedByteBuffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, maxSize);
+		this.index = new ConcurrentHashMap<Key, Entry>();
+	}
+
+	/**
+	 * Opens (or creates) the cache stored in the specified file.
+	 *
+	 * @param  file         The file which stores the cache.
+	 * @param  maxSize      The maximum size (in bytes) of the file.
+	 * @param  fingerprint  A string which identifies the weaver and weaving options that produced the cached classes.
+	 *                      If the fingerprint stored in an existing file differs, the file is reset.
+	 */
+	/* package-private */ static WovenClassCache open(File file, int maxSize, String fingerprint) throws IOException {
+
+		byte[] fingerprintBytes = toUTF8Bytes(fingerprint);
+
+		if (fingerprintBytes.length > MAX_FINGERPRINT_LENGTH) {
+			fingerprintBytes = Arrays.copyOf(fingerprintBytes, MAX_FINGERPRINT_LENGTH);
+		}
+
+		if (maxSize <= HEADER_SIZE) {
+			throw new IllegalArgumentException("The woven class cache size must be greater than " + HEADER_SIZE +
+				" bytes.");
+		}
+
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+		WovenClassCache wovenClassCache;
+
+		try {
+			wovenClassCache = new WovenClassCache(randomAccessFile, maxSize);
+		}
+		catch (IOException e) {
+
+			randomAccessFile.close();
+			throw e;
+		}
+
+		wovenClassCache.load(fingerprintBytes);
+
+		return wovenClassCache;
+	}
+
+	private static byte[] digest(byte[] bytes, boolean weaveClassLoadingCalls, String rewriteRuleFingerprint) {
+
+		try {
+
+			MessageDigest messageDigest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+			messageDigest.update(bytes);
+			messageDigest.update((byte) (weaveClassLoadingCalls ? 1 : 0));
+			messageDigest.update(toUTF8Bytes(rewriteRuleFingerprint));
+
+			return messageDigest.digest();
+		}
+		catch (NoSuchAlgorithmException e) {
+
+			// Every Java platform implementation is required to support SHA-1.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static int getCRC32(byte[] bytes) {
+
+		CRC32 crc32 = new CRC32();
+		crc32.update(bytes);
+
+		return (int) crc32.getValue();
+	}
+
+	private static int getUTFLength(String string) {
+		return 2 + toUTF8Bytes(string).length;
+	}
+
+	private static String readUTF(ByteBuffer byteBuffer) {
+
+		int length = byteBuffer.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		byteBuffer.get(bytes);
+
+		try {
+			return new String(bytes, "UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static byte[] toUTF8Bytes(String string) {
+
+		try {
+			return string.getBytes("UTF-8");
+		}
+		catch (UnsupportedEncodingException e) {
+
+			// Every Java platform implementation is required to support UTF-8.
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static void writeUTF(ByteBuffer byteBuffer, String string) {
+
+		byte[] bytes = toUTF8Bytes(string);
+		byteBuffer.putShort((short) bytes.length);
+		byteBuffer.put(bytes);
+	}
+
+	/**
+	 * Flushes the cache to disk and releases the underlying file.
+	 */
+	/* package-private */ synchronized void close() throws IOException {
+
+		if (!closed) {
+
+			closed = true;
+			index.clear();
+
+			try {
+				mappedByteBuffer.force();
+			}
+			finally {
+				randomAccessFile.close();
+			}
+		}
+	}
+
+	/**
+	 * Returns the cached bytes of the woven class, {@link #UNMODIFIED_CLASS_BYTES} if the class was previously found
+	 * not to need any weaving, or null if the class has not been cached.
+	 */
+	/* package-private */ byte[] get(Key key) {
+
+		byte[] bytes = null;
+		int startCompactionCount = compactionCount;
+		Entry entry = index.get(key);
+
+		if ((entry != null) && !closed && ((startCompactionCount & 1) == 0)) {
+
+			if (entry.modified) {
+
+				bytes = new byte[entry.classBytesLength];
+
+				ByteBuffer byteBuffer = mappedByteBuffer.duplicate();
+
+				// The position and limit are set through Buffer since ByteBuffer overrides those methods with
+				// covariant return types on Java 9 and above, which would not link on Java 8 if the class were
+				// compiled with a newer JDK.
+				((Buffer) byteBuffer).position(entry.classBytesOffset);
+				byteBuffer.get(bytes);
+
+				// The record may have been overwritten by a compaction while it was read.
+				if ((startCompactionCount != compactionCount) || (getCRC32(bytes) != entry.classBytesCRC32)) {
+					bytes = null;
+				}
+			}
+			else {
+				bytes = UNMODIFIED_CLASS_BYTES;
+			}
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Creates a cache key for the specified class. The digest of the class bytes is computed eagerly, so the key should
+	 * be reused for both {@link #get(Key)} and {@link #put(Key, byte[])}.
+	 *
+	 * @param  weaveClassLoadingCalls  Whether class loading calls are woven (see {@link
+	 *                                 WeavingPolicy#isWeaveClassLoadingCalls(Bundle)}), since the woven bytes depend on
+	 *                                 it.
+	 * @param  rewriteRuleTable        The rules which the class is woven with, since the rules may change while the
+	 *                                 cache is open (see {@link RewriteRuleTable#getFingerprint()}).
+	 */
+	/* package-private */ Key newKey(Bundle bundle, String className, byte[] classBytes,
+		boolean weaveClassLoadingCalls, RewriteRuleTable rewriteRuleTable) {
+		return new Key(bundle.getSymbolicName(), bundle.getVersion().toString(), className,
+				digest(classBytes, weaveClassLoadingCalls, rewriteRuleTable.getFingerprint()));
+	}
+
+	/**
+	 * Stores the woven bytes of a class.
+	 *
+	 * @param  key             The key obtained from {@link #newKey(Bundle, String, byte[], boolean,
+	 *                         RewriteRuleTable)}.
+	 * @param  wovenClassBytes The woven class bytes or null if the class did not need to be modified.
+	 */
+	/* package-private */ synchronized void put(Key key, byte[] wovenClassBytes) {
+
+		if (closed || index.containsKey(key)) {
+			return;
+		}
+
+		boolean modified = (wovenClassBytes != null);
+		int classBytesLength = modified ? wovenClassBytes.length : 0;
+		int recordLength = 1 + getUTFLength(key.bundleSymbolicName) + getUTFLength(key.bundleVersion) +
+			getUTFLength(key.className) + DIGEST_LENGTH + 1 + 4 + 4 + classBytesLength;
+
+		if (ensureCapacity(recordLength)) {
+
+			int recordOffset = writePosition;
+			ByteBuffer byteBuffer = mappedByteBuffer.duplicate();
+			((Buffer) byteBuffer).position(recordOffset);
+			byteBuffer.put(ENTRY_RECORD_TYPE);
+			writeUTF(byteBuffer, key.bundleSymbolicName);
+			writeUTF(byteBuffer, key.bundleVersion);
+			writeUTF(byteBuffer, key.className);
+			byteBuffer.put(key.digest);
+			byteBuffer.put(modified ? (byte) 1 : (byte) 0);
+			byteBuffer.putInt(classBytesLength);
+
+			int classBytesCRC32 = modified ? getCRC32(wovenClassBytes) : 0;
+			byteBuffer.putInt(classBytesCRC32);
+
+			int classBytesOffset = byteBuffer.position();
+
+			if (modified) {
+				byteBuffer.put(wovenClassBytes);
+			}
+
+			// The entry is only published once its record has been written.
+			commit(byteBuffer.position());
+			index.put(key,
+				new Entry(key, recordOffset, recordLength, classBytesOffset, classBytesLength, classBytesCRC32,
+					modified));
+		}
+	}
+
+	/* package-private */ int size() {
+		return index.size();
+	}
+
+	private void commit(int newWritePosition) {
+
+		writePosition = newWritePosition;
+		mappedByteBuffer.putInt(WRITE_POSITION_OFFSET, writePosition);
+	}
+
+	/**
+	 * Evicts the oldest entries until the cache is at most half full and moves the remaining records to the beginning
+	 * of the file.
+	 */
+	private void compact(int requiredLength) {
+
+		// Reads which overlap the compaction are treated as misses (see get(Key)).
+		compactionCount++;
+
+		List<Entry> entries = new ArrayList<Entry>(index.values());
+		Collections.sort(entries, new Comparator<Entry>() {
+
+				@Override
+				public int compare(Entry entry1, Entry entry2) {
+					return (entry1.recordOffset < entry2.recordOffset) ? -1
+																		 : ((entry1.recordOffset == entry2.recordOffset) ? 0 : 1);
+				}
+			});
+
+		int liveSize = 0;
+
+		for (Entry entry : entries) {
+			liveSize += entry.recordLength;
+		}
+
+		int targetSize = Math.min((maxSize - HEADER_SIZE) / 2, maxSize - HEADER_SIZE - requiredLength);
+		int firstRetainedEntry = 0;
+
+		while ((liveSize > targetSize) && (firstRetainedEntry < entries.size())) {
+
+			Entry evictedEntry = entries.get(firstRetainedEntry++);
+			index.remove(evictedEntry.key);
+			liveSize -= evictedEntry.recordLength;
+		}
+
+		// Since entries are sorted by offset and only move towards the beginning of the file, no record is ever
+		// overwritten before it has been moved. However, a record may be half-copied if the process crashes while it
+		// is moved, so the file is emptied on disk first and the moved records are only committed once they are all
+		// in place.
+		int newWritePosition = HEADER_SIZE;
+		commit(HEADER_SIZE);
+		mappedByteBuffer.force();
+
+		for (int i = firstRetainedEntry; i < entries.size(); i++) {
+
+			Entry entry = entries.get(i);
+
+			if (entry.recordOffset != newWritePosition) {
+
+				byte[] record = new byte[entry.recordLength];
+				ByteBuffer byteBuffer = mappedByteBuffer.duplicate();
+				((Buffer) byteBuffer).position(entry.recordOffset);
+				byteBuffer.get(record);
+				((Buffer) byteBuffer).position(newWritePosition);
+				byteBuffer.put(record);
+			}
+
+			int shift = entry.recordOffset - newWritePosition;
+			index.put(entry.key,
+				new Entry(entry.key, newWritePosition, entry.recordLength, entry.classBytesOffset - shift,
+					entry.classBytesLength, entry.classBytesCRC32, entry.modified));
+			newWritePosition += entry.recordLength;
+		}
+
+		mappedByteBuffer.force();
+		commit(newWritePosition);
+		compactionCount++;
+	}
+
+	private boolean ensureCapacity(int recordLength) {
+
+		boolean capacityAvailable = true;
+
+		if ((writePosition + recordLength) > maxSize) {
+
+			if ((HEADER_SIZE + recordLength) > maxSize) {
+				capacityAvailable = false;
+			}
+			else {
+				compact(recordLength);
+			}
+		}
+
+		return capacityAvailable;
+	}
+
+	private void load(byte[] fingerprintBytes) {
+
+		ByteBuffer byteBuffer = mappedByteBuffer.duplicate();
+		boolean valid = (byteBuffer.getInt() == MAGIC) && (byteBuffer.getInt() == FORMAT_VERSION);
+		int storedWritePosition = byteBuffer.getInt();
+
+		if (valid) {
+
+			int fingerprintLength = byteBuffer.getShort() & 0xFFFF;
+			byte[] storedFingerprintBytes = new byte[Math.min(fingerprintLength, MAX_FINGERPRINT_LENGTH)];
+			byteBuffer.get(storedFingerprintBytes);
+			valid = Arrays.equals(fingerprintBytes, storedFingerprintBytes) && (storedWritePosition >= HEADER_SIZE) &&
+				(storedWritePosition <= maxSize);
+		}
+
+		if (valid) {
+			writePosition = loadRecords(storedWritePosition);
+			commit(writePosition);
+		}
+		else {
+
+			((Buffer) byteBuffer).clear();
+			byteBuffer.putInt(MAGIC);
+			byteBuffer.putInt(FORMAT_VERSION);
+			byteBuffer.putInt(HEADER_SIZE);
+			byteBuffer.putShort((short) fingerprintBytes.length);
+			byteBuffer.put(fingerprintBytes);
+			writePosition = HEADER_SIZE;
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the records stored in the file and returns the position after the last valid record.
+	 */
+	private int loadRecords(int storedWritePosition) {
+
+		ByteBuffer byteBuffer = mappedByteBuffer.duplicate();
+		((Buffer) byteBuffer).position(HEADER_SIZE);
+		((Buffer) byteBuffer).limit(storedWritePosition);
+
+		int recordOffset = HEADER_SIZE;
+
+		try {
+
+			while (byteBuffer.hasRemaining()) {
+
+				byte recordType = byteBuffer.get();
+
+				if (recordType == ENTRY_RECORD_TYPE) {
+
+					String bundleSymbolicName = readUTF(byteBuffer);
+					String bundleVersion = readUTF(byteBuffer);
+					String className = readUTF(byteBuffer);
+					byte[] digest = new byte[DIGEST_LENGTH];
+					byteBuffer.get(digest);
+
+					boolean modified = byteBuffer.get() != 0;
+					int classBytesLength = byteBuffer.getInt();
+					int classBytesCRC32 = byteBuffer.getInt();
+					int classBytesOffset = byteBuffer.position();
+
+					if ((classBytesLength < 0) || (classBytesLength > byteBuffer.remaining())) {
+						break;
+					}
+
+					byte[] classBytes = new byte[classBytesLength];
+					byteBuffer.get(classBytes);
+
+					if (modified && (getCRC32(classBytes) != classBytesCRC32)) {
+						break;
+					}
+
+					Key key = new Key(bundleSymbolicName, bundleVersion, className, digest);
+					int recordLength = byteBuffer.position() - recordOffset;
+					index.put(key,
+						new Entry(key, recordOffset, recordLength, classBytesOffset, classBytesLength, classBytesCRC32,
+							modified));
+				}
+				else {
+					break;
+				}
+
+				recordOffset = byteBuffer.position();
+			}
+		}
+		catch (BufferUnderflowException e) {
+			// The remainder of the file is corrupt, so ignore it.
+		}
+
+		return recordOffset;
+	}
+
+	/* package-private */ static final class Key {
+
+		// Private Final Data Members
+		private final String bundleSymbolicName;
+		private final String bundleVersion;
+		private final String className;
+		private final byte[] digest;
+		private final int hashCode;
+
+		private Key(String bundleSymbolicName, String bundleVersion, String className, byte[] digest) {
+
+			this.bundleSymbolicName = bundleSymbolicName;
+			this.bundleVersion = bundleVersion;
+			this.className = className;
+			this.digest = digest;
+
+			int hashCode = className.hashCode();
+			hashCode = (31 * hashCode) + bundleSymbolicName.hashCode();
+			hashCode = (31 * hashCode) + bundleVersion.hashCode();
+			this.hashCode = (31 * hashCode) + Arrays.hashCode(digest);
+		}
+
+		@Override
+		public boolean equals(Object object) {
+
+			boolean equals = false;
+
+			if (object == this) {
+				equals = true;
+			}
+			else if (object instanceof Key) {
+
+				Key key = (Key) object;
+				equals = (hashCode == key.hashCode) && className.equals(key.className) &&
+					bundleSymbolicName.equals(key.bundleSymbolicName) && bundleVersion.equals(key.bundleVersion) &&
+					Arrays.equals(digest, key.digest);
+			}
+
+			return equals;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private static final class Entry {
+
+		// Private Final Data Members
+		private final int classBytesCRC32;
+		private final int classBytesLength;
+		private final int classBytesOffset;
+		private final Key key;
+		private final boolean modified;
+		private final int recordLength;
+		private final int recordOffset;
+
+		private Entry(Key key, int recordOffset, int recordLength, int classBytesOffset, int classBytesLength,
+			int classBytesCRC32, boolean modified) {
+
+			this.key = key;
+			this.recordOffset = recordOffset;
+			this.recordLength = recordLength;
+			this.classBytesOffset = classBytesOffset;
+			this.classBytesLength = classBytesLength;
+			this.classBytesCRC32 = classBytesCRC32;
+			this.modified = modified;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.metrics;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+
+/**
+ * A snapshot of the metrics recorded while weaving the classes of a bundle. Every class of a Faces bundle which is
+ * inspected by the weaver is counted exactly once as skipped, woven, or failed.
+ *
+ * @author  Kyle Stiemann
+ */
+@ProviderType
+public interface BundleWeaverMetrics {
+
+	/**
+	 * Returns the total size of the original class files of the inspected classes which contained calls that may need
+	 * to be woven.
+	 */
+	long getBytesIn();
+
+	/**
+	 * Returns the total size of the woven class files.
+	 */
+	long getBytesOut();
+
+	/**
+	 * Returns the number of classes which could not be woven.
+	 */
+	long getClassesFailed();
+
+	/**
+	 * Returns the number of classes inspected by the weaver.
+	 */
+	long getClassesInspected();
+
+	/**
+	 * Returns the number of inspected classes which did not need to be modified.
+	 */
+	long getClassesSkipped();
+
+	/**
+	 * Returns the number of classes which were woven.
+	 */
+	long getClassesWoven();
+
+	/**
+	 * Returns the time spent visiting classes with <code>ClassReader.accept()</code> (including classes woven in the
+	 * background when their bundle was resolved).
+	 */
+	LatencyHistogram getClassReaderAcceptLatency();
+
+	/**
+	 * Returns the number of times that the common super class of two types was resolved in order to compute stack map
+	 * frames.
+	 */
+	long getCommonSuperClassCalls();
+
+	/**
+	 * Returns the number of class file resources opened in order to resolve type hierarchies.
+	 */
+	long getHierarchyResourceStreamsOpened();
+
+	/**
+	 * Returns the time spent writing woven classes with <code>ClassWriter.toByteArray()</code>.
+	 */
+	LatencyHistogram getToByteArrayLatency();
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.metrics;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+
+/**
+ * A snapshot of the metrics recorded by the probe of a single rewritten call site. Probes are only woven into classes
+ * when call site probes are enabled. Only a sample of the calls of each call site is timed.
+ *
+ * @author  Kyle Stiemann
+ */
+@ProviderType
+public interface CallSiteMetrics {
+
+	/**
+	 * Returns the symbolic name of the bundle which contains the call site.
+	 */
+	String getBundleSymbolicName();
+
+	/**
+	 * Returns the version of the bundle which contains the call site.
+	 */
+	String getBundleVersion();
+
+	/**
+	 * Returns the owner and name of the rewritten method (for example <code>java.lang.ClassLoader.loadClass</code>).
+	 */
+	String getCall();
+
+	/**
+	 * Returns the id which was assigned to the call site when its class was woven.
+	 */
+	int getCallSiteId();
+
+	/**
+	 * Returns the binary name of the class which contains the call site.
+	 */
+	String getClassName();
+
+	/**
+	 * Returns the number of times that the call site was executed.
+	 */
+	long getCount();
+
+	/**
+	 * Returns the source line of the call site or -1 if its class has no line numbers.
+	 */
+	int getLineNumber();
+
+	/**
+	 * Returns the longest latency (in nanoseconds) of the timed calls.
+	 */
+	long getMaxSampledNanos();
+
+	/**
+	 * Returns the name and descriptor of the method which contains the call site.
+	 */
+	String getMethodName();
+
+	/**
+	 * Returns the number of calls which were timed.
+	 */
+	long getSampledCount();
+
+	/**
+	 * Returns the total latency (in nanoseconds) of the timed calls.
+	 */
+	long getSampledNanos();
+}
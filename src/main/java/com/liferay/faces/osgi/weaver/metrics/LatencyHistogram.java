@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.metrics;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+
+/**
+ * A snapshot of a latency histogram with power of two buckets: bucket <code>i</code> counts the durations of at least
+ * <code>2<sup>i</sup></code> and less than <code>2<sup>i + 1</sup></code> nanoseconds (bucket 0 also counts durations
+ * of 0 nanoseconds and the last bucket counts all longer durations). Percentiles are therefore accurate to within a
+ * factor of two.
+ *
+ * @author  Kyle Stiemann
+ */
+@ProviderType
+public interface LatencyHistogram {
+
+	/**
+	 * Returns the number of recorded durations in each bucket.
+	 */
+	long[] getBuckets();
+
+	/**
+	 * Returns the number of recorded durations.
+	 */
+	long getCount();
+
+	/**
+	 * Returns the upper bound (in nanoseconds) of the bucket containing the median duration or 0 if no durations have
+	 * been recorded.
+	 */
+	long getP50Nanos();
+
+	/**
+	 * Returns the upper bound (in nanoseconds) of the bucket containing the 99th percentile duration or 0 if no
+	 * durations have been recorded.
+	 */
+	long getP99Nanos();
+
+	/**
+	 * Returns the sum of the recorded durations in nanoseconds.
+	 */
+	long getTotalNanos();
+}
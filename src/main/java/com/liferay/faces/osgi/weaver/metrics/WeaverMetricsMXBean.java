@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.metrics;
+
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.annotation.versioning.ProviderType;
+
+
+/**
+ * Exposes the metrics recorded by the Liferay Faces OSGi Weaver. An instance is registered with the platform MBean
+ * server under {@link #OBJECT_NAME} and as an OSGi service under this interface.
+ *
+ * @author  Kyle Stiemann
+ */
+@ProviderType
+public interface WeaverMetricsMXBean {
+
+	/**
+	 * The object name under which the metrics are registered with the platform MBean server.
+	 */
+	String OBJECT_NAME = "com.liferay.faces.osgi.weaver:type=WeaverMetrics";
+
+	/**
+	 * Returns a snapshot of the metrics of each weaved bundle keyed by bundle symbolic name.
+	 */
+	Map<String, BundleWeaverMetrics> getBundleMetrics();
+
+	/**
+	 * Returns a snapshot of the metrics of each probed call site ordered by call site id. The list is empty unless call
+	 * site probes are woven into the rewritten calls.
+	 */
+	List<CallSiteMetrics> getCallSiteMetrics();
+
+	/**
+	 * Returns a snapshot of the metrics of all weaved bundles combined.
+	 */
+	BundleWeaverMetrics getTotalMetrics();
+
+	/**
+	 * Discards all recorded metrics (including the counts and latencies of the probed call sites).
+	 */
+	void reset();
+}
@@ -0,0 +1,24 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+/**
+ * Provides the metrics which the Liferay Faces OSGi Weaver records while weaving Faces bundles. The metrics are
+ * published as a {@link com.liferay.faces.osgi.weaver.metrics.WeaverMetricsMXBean} which is registered both with the
+ * platform MBean server and as an OSGi service.
+ *
+ * @author  Kyle Stiemann
+ */
+@Version("1.1.0")
+package com.liferay.faces.osgi.weaver.metrics;
+
+import org.osgi.annotation.versioning.Version;
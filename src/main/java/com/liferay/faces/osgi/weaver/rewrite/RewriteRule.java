@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.rewrite;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Describes a method call which the weaver rewrites into a call to a static replacement method. The rewritten call is
+ * identified by the opcode of its instruction and by the owner, name, and descriptor of the called method. Before the
+ * replacement method is called, the {@link StackOperation}s of the rule are emitted in order to turn the arguments of
+ * the rewritten call (including the receiver of an <code>invokevirtual</code> call) into the arguments of the
+ * replacement method. For example, <code>classLoader.loadClass(className)</code> is rewritten into <code>
+ * OSGiClassLoaderUtil.loadClass(className, facesContext, classLoader)</code> with the stack operations {@link
+ * StackOperation#SWAP}, {@link StackOperation#LOAD_CURRENT_FACES_CONTEXT}, {@link StackOperation#SWAP}.
+ *
+ * <p>The weaver verifies that the stack operations turn the arguments of the rewritten call into exactly the argument
+ * types of the replacement method (where a <code>java.lang.Object</code> argument accepts any reference) and that the
+ * replacement method returns the same type as the rewritten method. Owners, names, and descriptors are in the internal
+ * form of the class file format (for example <code>java/lang/ClassLoader</code> and <code>
+ * (Ljava/lang/String;)Ljava/lang/Class;</code>) and the owners and names of rewritten methods must be ASCII.</p>
+ *
+ * <p>This class is immutable.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+public final class RewriteRule {
+
+	// Public Constants
+	/**
+	 * The opcode of <code>invokestatic</code> instructions.
+	 */
+	public static final int INVOKESTATIC = 184;
+
+	/**
+	 * The opcode of <code>invokevirtual</code> instructions.
+	 */
+	public static final int INVOKEVIRTUAL = 182;
+
+	// Private Final Data Members
+	private final boolean classLoadingCall;
+	private final String descriptor;
+	private final String name;
+	private final int opcode;
+	private final String owner;
+	private final String replacementDescriptor;
+	private final String replacementName;
+	private final String replacementOwner;
+	private final List<StackOperation> stackOperations;
+
+	/**
+	 * @param  opcode                 The opcode of the rewritten instruction ({@link #INVOKESTATIC} or {@link
+	 *                                #INVOKEVIRTUAL}).
+	 * @param  owner                  The internal name of the class which declares the rewritten method.
+	 * @param  name                   The name of the rewritten method.
+	 * @param  descriptor             The descriptor of the rewritten method.
+	 * @param  replacementOwner       The internal name of the class which declares the static replacement method.
+	 * @param  replacementName        The name of the replacement method.
+	 * @param  replacementDescriptor  The descriptor of the replacement method.
+	 * @param  classLoadingCall       If true, the call is only rewritten in bundles whose class loading calls are
+	 *                                woven.
+	 * @param  stackOperations        The operations which turn the arguments of the rewritten call into the arguments
+	 *                                of the replacement method.
+	 *
+	 * @throws  IllegalArgumentException  If the opcode is not supported or any of the names or descriptors is null.
+	 */
+	public RewriteRule(int opcode, String owner, String name, String descriptor, String replacementOwner,
+		String replacementName, String replacementDescriptor, boolean classLoadingCall,
+		StackOperation... stackOperations) {
+
+		if ((opcode != INVOKESTATIC) && (opcode != INVOKEVIRTUAL)) {
+			throw new IllegalArgumentException("Unsupported opcode " + opcode + ".");
+		}
+
+		if ((owner == null) || (name == null) || (descriptor == null) || (replacementOwner == null) ||
+				(replacementName == null) || (replacementDescriptor == null)) {
+			throw new IllegalArgumentException("The names and descriptors of a rewrite rule must not be null.");
+		}
+
+		this.opcode = opcode;
+		this.owner = owner;
+		this.name = name;
+		this.descriptor = descriptor;
+		this.replacementOwner = replacementOwner;
+		this.replacementName = replacementName;
+		this.replacementDescriptor = replacementDescriptor;
+		this.classLoadingCall = classLoadingCall;
+		this.stackOperations = Collections.unmodifiableList(Arrays.asList(stackOperations.clone()));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+
+		boolean equal = false;
+
+		if (obj instanceof RewriteRule) {
+
+			RewriteRule rewriteRule = (RewriteRule) obj;
+			equal = (opcode == rewriteRule.opcode) && owner.equals(rewriteRule.owner) &&
+				name.equals(rewriteRule.name) && descriptor.equals(rewriteRule.descriptor) &&
+				replacementOwner.equals(rewriteRule.replacementOwner) &&
+				replacementName.equals(rewriteRule.replacementName) &&
+				replacementDescriptor.equals(rewriteRule.replacementDescriptor) &&
+				(classLoadingCall == rewriteRule.classLoadingCall) &&
+				stackOperations.equals(rewriteRule.stackOperations);
+		}
+
+		return equal;
+	}
+
+	/**
+	 * Returns the descriptor of the rewritten method.
+	 */
+	public String getDescriptor() {
+		return descriptor;
+	}
+
+	/**
+	 * Returns the name of the rewritten method.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the opcode of the rewritten instruction.
+	 */
+	public int getOpcode() {
+		return opcode;
+	}
+
+	/**
+	 * Returns the internal name of the class which declares the rewritten method.
+	 */
+	public String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Returns the descriptor of the replacement method.
+	 */
+	public String getReplacementDescriptor() {
+		return replacementDescriptor;
+	}
+
+	/**
+	 * Returns the name of the replacement method.
+	 */
+	public String getReplacementName() {
+		return replacementName;
+	}
+
+	/**
+	 * Returns the internal name of the class which declares the static replacement method.
+	 */
+	public String getReplacementOwner() {
+		return replacementOwner;
+	}
+
+	/**
+	 * Returns the (unmodifiable) operations which are emitted before the replacement method is called.
+	 */
+	public List<StackOperation> getStackOperations() {
+		return stackOperations;
+	}
+
+	@Override
+	public int hashCode() {
+		return (((31 * owner.hashCode()) + name.hashCode()) * 31) + descriptor.hashCode();
+	}
+
+	/**
+	 * Returns true if the call is only rewritten in bundles whose class loading calls are woven.
+	 */
+	public boolean isClassLoadingCall() {
+		return classLoadingCall;
+	}
+
+	@Override
+	public String toString() {
+
+		String opcodeName = (opcode == INVOKESTATIC) ? "invokestatic" : "invokevirtual";
+
+		return opcodeName + " " + owner + "." + name + descriptor + " -> " + stackOperations + " invokestatic " +
+			replacementOwner + "." + replacementName + replacementDescriptor +
+			(classLoadingCall ? " (class loading)" : "");
+	}
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.rewrite;
+
+import java.util.List;
+
+import org.osgi.annotation.versioning.ConsumerType;
+
+
+/**
+ * Provides {@link RewriteRule}s which the weaver applies in addition to its built-in rules. Providers are registered
+ * as OSGi services. The rules of every provider are read when the weaver is activated, and the weaver is reactivated
+ * (which refreshes the woven bundles again) whenever a provider is registered or unregistered.
+ *
+ * <p>Extra rules must not rewrite the same call (the same opcode, owner, name, and descriptor) as a built-in rule or
+ * a rule of another provider. If any rule is invalid, the weaver logs an error and only applies its built-in rules.
+ * The package of each replacement method is dynamically imported by the woven classes, so it must be exported by the
+ * provider (or another bundle).</p>
+ *
+ * @author  Kyle Stiemann
+ */
+@ConsumerType
+public interface RewriteRuleProvider {
+
+	/**
+	 * Returns the rewrite rules of this provider.
+	 */
+	List<RewriteRule> getRewriteRules();
+}
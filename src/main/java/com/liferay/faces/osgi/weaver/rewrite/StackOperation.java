@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.rewrite;
+
+/**
+ * An instruction which is emitted before the replacement method of a {@link RewriteRule} is called in order to turn
+ * the arguments of the rewritten call into the arguments of the replacement method.
+ *
+ * @author  Kyle Stiemann
+ */
+public enum StackOperation {
+
+	/**
+	 * Pushes the class which contains the rewritten call (the literal class in static methods and <code>
+	 * this.getClass()</code> in instance methods) onto the stack.
+	 */
+	LOAD_CURRENT_CLASS,
+
+	/**
+	 * Pushes the current <code>javax.faces.context.FacesContext</code> (which may be null) onto the stack.
+	 */
+	LOAD_CURRENT_FACES_CONTEXT,
+
+	/**
+	 * Swaps the two values on top of the stack, neither of which may be a <code>long</code> or a <code>double</code>.
+	 */
+	SWAP
+}
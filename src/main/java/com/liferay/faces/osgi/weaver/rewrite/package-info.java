@@ -0,0 +1,24 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+/**
+ * Provides the service provider interface through which other bundles register rules that rewrite additional method
+ * calls in the classes woven by the Liferay Faces OSGi Weaver (see {@link
+ * com.liferay.faces.osgi.weaver.rewrite.RewriteRuleProvider}).
+ *
+ * @author  Kyle Stiemann
+ */
+@Version("1.0.0")
+package com.liferay.faces.osgi.weaver.rewrite;
+
+import org.osgi.annotation.versioning.Version;
@@ -0,0 +1,361 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.runtime;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.liferay.faces.osgi.weaver.metrics.CallSiteMetrics;
+
+
+/**
+ * Records how often each probed call site (a call which the weaver rewrites while call site probes are enabled) is
+ * executed and how long a sample of its executions take. Each call site is registered by the weaver while its class is
+ * woven and is identified by the returned id, which the woven class passes to {@link #enter(int)} and {@link
+ * #exit(int, long)} (or to {@link #count(int)} in interfaces). Call sites are only reported once the weaver has
+ * committed them (see {@link #commit(int)}) after their class was successfully woven, so a failed weave does not leave
+ * call sites behind which are never called. The counters of each call site are kept in a slot of a
+ * table of {@link AtomicLongArray}s which are allocated in chunks as call sites are registered, so recording never
+ * locks or allocates. The first call and every {@link #SAMPLE_INTERVAL}th call of each call site is timed.
+ *
+ * <p>Ids are only valid while the framework runs, so the classes woven with probes are not stored in the woven class
+ * cache. Registering the same call site of the same bundle version again (for example when its bundle is refreshed)
+ * returns the same id.</p>
+ *
+ * <p>This class is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+public final class CallSiteProbes {
+
+	// Public Constants
+	/**
+	 * The maximum number of call sites which can be registered. Further call sites are not probed.
+	 */
+	public static final int MAX_CALL_SITES = 1 << 16;
+
+	/**
+	 * The value returned by {@link #enter(int)} when the call is not timed.
+	 */
+	public static final long NOT_SAMPLED = Long.MIN_VALUE;
+
+	/**
+	 * The number of calls of a call site per timed call.
+	 */
+	public static final int SAMPLE_INTERVAL = 16;
+
+	// Private Constants
+	private static final int CHUNK_SHIFT = 10;
+	private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final AtomicReferenceArray<AtomicLongArray> CHUNKS = new AtomicReferenceArray<AtomicLongArray>(
+			MAX_CALL_SITES / CHUNK_SIZE);
+	private static final int COUNT_OFFSET = 0;
+	private static final int MAX_SAMPLED_NANOS_OFFSET = 3;
+	private static final int SAMPLED_COUNT_OFFSET = 1;
+	private static final int SAMPLED_NANOS_OFFSET = 2;
+	private static final int SLOT_SIZE = 4;
+	private static final Map<String, Integer> CALL_SITE_IDS = new HashMap<String, Integer>();
+	private static final List<CallSite> CALL_SITES = new ArrayList<CallSite>();
+
+	private CallSiteProbes() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Reports the specified registered call site from now on (see {@link #getCallSiteMetrics()}). The weaver commits
+	 * the call sites of a class once the class has been woven.
+	 */
+	public static void commit(int callSiteId) {
+
+		synchronized (CALL_SITES) {
+			CALL_SITES.get(callSiteId).committed = true;
+		}
+	}
+
+	/**
+	 * Counts a call of the specified call site without timing it.
+	 */
+	public static void count(int callSiteId) {
+		getChunk(callSiteId).incrementAndGet(getSlotIndex(callSiteId) + COUNT_OFFSET);
+	}
+
+	/**
+	 * Counts a call of the specified call site which is about to be executed.
+	 *
+	 * @return  The current {@link System#nanoTime()} if the call is timed or {@link #NOT_SAMPLED}. The value is passed
+	 *          to {@link #exit(int, long)} once the call returns.
+	 */
+	public static long enter(int callSiteId) {
+
+		long startNanos = NOT_SAMPLED;
+		long count = getChunk(callSiteId).incrementAndGet(getSlotIndex(callSiteId) + COUNT_OFFSET);
+
+		if ((count % SAMPLE_INTERVAL) == 1) {
+			startNanos = System.nanoTime();
+		}
+
+		return startNanos;
+	}
+
+	/**
+	 * Records the latency of a timed call of the specified call site. Calls which throw an exception are counted but
+	 * never reach this method, so they are not timed.
+	 *
+	 * @param  startNanos  The value returned by {@link #enter(int)} for the call.
+	 */
+	public static void exit(int callSiteId, long startNanos) {
+
+		if (startNanos != NOT_SAMPLED) {
+
+			long nanos = System.nanoTime() - startNanos;
+			AtomicLongArray chunk = getChunk(callSiteId);
+			int slotIndex = getSlotIndex(callSiteId);
+			chunk.incrementAndGet(slotIndex + SAMPLED_COUNT_OFFSET);
+			chunk.addAndGet(slotIndex + SAMPLED_NANOS_OFFSET, nanos);
+
+			long maxNanos = chunk.get(slotIndex + MAX_SAMPLED_NANOS_OFFSET);
+
+			while ((nanos > maxNanos) &&
+					!chunk.compareAndSet(slotIndex + MAX_SAMPLED_NANOS_OFFSET, maxNanos, nanos)) {
+				maxNanos = chunk.get(slotIndex + MAX_SAMPLED_NANOS_OFFSET);
+			}
+		}
+	}
+
+	/**
+	 * Returns a snapshot of the metrics of every committed call site (see {@link #commit(int)}) ordered by id.
+	 */
+	public static List<CallSiteMetrics> getCallSiteMetrics() {
+
+		List<CallSite> callSites = new ArrayList<CallSite>();
+
+		synchronized (CALL_SITES) {
+
+			for (CallSite callSite : CALL_SITES) {
+
+				if (callSite.committed) {
+					callSites.add(callSite);
+				}
+			}
+		}
+
+		List<CallSiteMetrics> callSiteMetrics = new ArrayList<CallSiteMetrics>(callSites.size());
+
+		for (CallSite callSite : callSites) {
+
+			AtomicLongArray chunk = getChunk(callSite.callSiteId);
+			int slotIndex = getSlotIndex(callSite.callSiteId);
+			callSiteMetrics.add(new CallSiteMetricsSnapshot(callSite, chunk.get(slotIndex + COUNT_OFFSET),
+					chunk.get(slotIndex + SAMPLED_COUNT_OFFSET), chunk.get(slotIndex + SAMPLED_NANOS_OFFSET),
+					chunk.get(slotIndex + MAX_SAMPLED_NANOS_OFFSET)));
+		}
+
+		return callSiteMetrics;
+	}
+
+	/**
+	 * Registers a call site (or obtains the id of a call site which was already registered). The call site is not
+	 * reported until it is committed (see {@link #commit(int)}).
+	 *
+	 * @param  bundleSymbolicName  The symbolic name of the bundle which contains the class.
+	 * @param  bundleVersion       The version of the bundle which contains the class.
+	 * @param  className           The binary name of the class which contains the call.
+	 * @param  methodName          The name and descriptor of the method which contains the call.
+	 * @param  lineNumber          The source line of the call or -1 if the class has no line numbers.
+	 * @param  ordinal             The index of the call among the probed calls of its method, which distinguishes
+	 *                             identical calls on the same line.
+	 * @param  call                The owner and name of the rewritten method (for example <code>
+	 *                             java.lang.ClassLoader.loadClass</code>).
+	 *
+	 * @return  The id of the call site or -1 if {@link #MAX_CALL_SITES} call sites have already been registered.
+	 */
+	public static int register(String bundleSymbolicName, String bundleVersion, String className, String methodName,
+		int lineNumber, int ordinal, String call) {
+
+		int callSiteId = -1;
+		String key = bundleSymbolicName + "_" + bundleVersion + "/" + className + "." + methodName + ":" + lineNumber +
+			"#" + ordinal + ":" + call;
+
+		synchronized (CALL_SITES) {
+
+			Integer existingCallSiteId = CALL_SITE_IDS.get(key);
+
+			if (existingCallSiteId != null) {
+				callSiteId = existingCallSiteId;
+			}
+			else if (CALL_SITES.size() < MAX_CALL_SITES) {
+
+				callSiteId = CALL_SITES.size();
+
+				// Allocate the chunk before the id is published so that probes never observe a missing chunk.
+				int chunkIndex = callSiteId >>> CHUNK_SHIFT;
+
+				if (CHUNKS.get(chunkIndex) == null) {
+					CHUNKS.set(chunkIndex, new AtomicLongArray(CHUNK_SIZE * SLOT_SIZE));
+				}
+
+				CALL_SITES.add(new CallSite(callSiteId, bundleSymbolicName, bundleVersion, className, methodName,
+						lineNumber, call));
+				CALL_SITE_IDS.put(key, callSiteId);
+			}
+		}
+
+		return callSiteId;
+	}
+
+	/**
+	 * Discards the recorded counts and latencies of every call site. The call sites stay registered.
+	 */
+	public static void reset() {
+
+		int callSiteCount;
+
+		synchronized (CALL_SITES) {
+			callSiteCount = CALL_SITES.size();
+		}
+
+		for (int i = 0; i < callSiteCount; i++) {
+
+			AtomicLongArray chunk = getChunk(i);
+			int slotIndex = getSlotIndex(i);
+
+			for (int j = 0; j < SLOT_SIZE; j++) {
+				chunk.set(slotIndex + j, 0);
+			}
+		}
+	}
+
+	private static AtomicLongArray getChunk(int callSiteId) {
+		return CHUNKS.get(callSiteId >>> CHUNK_SHIFT);
+	}
+
+	private static int getSlotIndex(int callSiteId) {
+		return (callSiteId & CHUNK_MASK) * SLOT_SIZE;
+	}
+
+	private static final class CallSite {
+
+		// Private Final Data Members
+		private final String bundleSymbolicName;
+		private final String bundleVersion;
+		private final String call;
+		private final int callSiteId;
+		private final String className;
+		private final int lineNumber;
+		private final String methodName;
+
+		// Private Data Members
+		private boolean committed;
+
+		private CallSite(int callSiteId, String bundleSymbolicName, String bundleVersion, String className,
+			String methodName, int lineNumber, String call) {
+
+			this.callSiteId = callSiteId;
+			this.bundleSymbolicName = bundleSymbolicName;
+			this.bundleVersion = bundleVersion;
+			this.className = className;
+			this.methodName = methodName;
+			this.lineNumber = lineNumber;
+			this.call = call;
+		}
+	}
+
+	private static final class CallSiteMetricsSnapshot implements CallSiteMetrics {
+
+		// Private Final Data Members
+		private final CallSite callSite;
+		private final long count;
+		private final long maxSampledNanos;
+		private final long sampledCount;
+		private final long sampledNanos;
+
+		private CallSiteMetricsSnapshot(CallSite callSite, long count, long sampledCount, long sampledNanos,
+			long maxSampledNanos) {
+
+			this.callSite = callSite;
+			this.count = count;
+			this.sampledCount = sampledCount;
+			this.sampledNanos = sampledNanos;
+			this.maxSampledNanos = maxSampledNanos;
+		}
+
+		@Override
+		public String getBundleSymbolicName() {
+			return callSite.bundleSymbolicName;
+		}
+
+		@Override
+		public String getBundleVersion() {
+			return callSite.bundleVersion;
+		}
+
+		@Override
+		public String getCall() {
+			return callSite.call;
+		}
+
+		@Override
+		public int getCallSiteId() {
+			return callSite.callSiteId;
+		}
+
+		@Override
+		public String getClassName() {
+			return callSite.className;
+		}
+
+		@Override
+		public long getCount() {
+			return count;
+		}
+
+		@Override
+		public int getLineNumber() {
+			return callSite.lineNumber;
+		}
+
+		@Override
+		public long getMaxSampledNanos() {
+			return maxSampledNanos;
+		}
+
+		@Override
+		public String getMethodName() {
+			return callSite.methodName;
+		}
+
+		@Override
+		public long getSampledCount() {
+			return sampledCount;
+		}
+
+		@Override
+		public long getSampledNanos() {
+			return sampledNanos;
+		}
+
+		@Override
+		public String toString() {
+			return callSite.callSiteId + " " + callSite.bundleSymbolicName + "_" + callSite.bundleVersion + " " +
+				callSite.className + "." + callSite.methodName + ":" + callSite.lineNumber + " " + callSite.call +
+				" count=" + count + " sampledCount=" + sampledCount + " sampledNanos=" + sampledNanos +
+				" maxSampledNanos=" + maxSampledNanos;
+		}
+	}
+}
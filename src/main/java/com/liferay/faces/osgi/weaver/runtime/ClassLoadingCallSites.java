@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.ConstantCallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Bootstraps the <code>invokedynamic</code> call sites which the weaver emits (instead of static calls to <code>
+ * OSGiClassLoaderUtil</code>) for <code>ClassLoader.loadClass(String)</code> and <code>Class.forName(String)</code>
+ * calls in woven Java 7+ classes. Each call site has its own small cache of the classes which it has resolved, keyed
+ * by the requested class name, the class loader (or calling class) argument, and the thread context class loader.
+ * Cached classes are returned without obtaining the current <code>FacesContext</code> or searching the OSGi class
+ * loaders again. Resolution failures are not cached, and neither are classes which were resolved without a <code>
+ * FacesContext</code> (since <code>OSGiClassLoaderUtil</code> does not search the OSGi class loaders in that case).
+ *
+ * <p>The cached classes, class loaders, and calling classes are only weakly referenced, so that call sites (which live
+ * as long as the classes that contain them) never keep the class loaders of other bundles (or of refreshed bundles)
+ * from being garbage collected.</p>
+ *
+ * <p>The weaver calls {@link #invalidate()} whenever a bundle is resolved or unresolved (for example when it is
+ * refreshed), since the class that a name resolves to may change with the wiring of the bundles. Invalidation discards
+ * the entries of every call site.</p>
+ *
+ * <p>This class is only loaded by woven classes on Java 7 and above. It is thread safe.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+public final class ClassLoadingCallSites {
+
+	// Public Constants
+	/**
+	 * The name of call sites which replace <code>Class.forName(String)</code>. The call site's type is <code>
+	 * (String, Class)Class</code> where the second argument is the calling class.
+	 */
+	public static final String CLASS_FOR_NAME = "classForName";
+
+	/**
+	 * The name of call sites which replace <code>ClassLoader.loadClass(String)</code>. The call site's type is <code>
+	 * (ClassLoader, String)Class</code>.
+	 */
+	public static final String LOAD_CLASS = "loadClass";
+
+	// Private Constants
+	private static final AtomicInteger GENERATION = new AtomicInteger();
+	private static final int MAX_CACHED_CLASSES_PER_CALL_SITE = 8;
+
+	private ClassLoadingCallSites() {
+		throw new AssertionError();
+	}
+
+	/**
+	 * Links a call site named {@link #LOAD_CLASS} or {@link #CLASS_FOR_NAME} to a new cache.
+	 *
+	 * @param  resolveMethodHandle                 The <code>OSGiClassLoaderUtil</code> method which resolves classes
+	 *                                             which are not cached. Its arguments are the class name, the current
+	 *                                             <code>FacesContext</code>, and the call site's second argument.
+	 * @param  getCurrentFacesContextMethodHandle  <code>FacesContext.getCurrentInstance()</code>.
+	 */
+	public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType methodType,
+		MethodHandle resolveMethodHandle, MethodHandle getCurrentFacesContextMethodHandle)
+		throws IllegalAccessException, NoSuchMethodException {
+
+		MethodType cacheMethodType;
+
+		if (LOAD_CLASS.equals(name)) {
+			cacheMethodType = MethodType.methodType(Class.class, ClassLoader.class, String.class);
+		}
+		else if (CLASS_FOR_NAME.equals(name)) {
+			cacheMethodType = MethodType.methodType(Class.class, String.class, Class.class);
+		}
+		else {
+			throw new IllegalArgumentException("Unknown class loading call site " + name + ".");
+		}
+
+		CallSiteCache callSiteCache = new CallSiteCache(resolveMethodHandle, getCurrentFacesContextMethodHandle);
+		MethodHandle methodHandle = MethodHandles.lookup().findVirtual(CallSiteCache.class, name, cacheMethodType);
+
+		return new ConstantCallSite(methodHandle.bindTo(callSiteCache).asType(methodType));
+	}
+
+	/**
+	 * Discards the cached classes of every call site.
+	 */
+	public static void invalidate() {
+		GENERATION.incrementAndGet();
+	}
+
+	private static final class CachedClass {
+
+		// Private Final Data Members
+		private final WeakReference<Class<?>> classReference;
+		private final String className;
+		private final WeakReference<ClassLoader> contextClassLoaderReference;
+		private final WeakReference<Object> resolutionContextReference;
+
+		private CachedClass(String className, Object resolutionContext, ClassLoader contextClassLoader,
+			Class<?> clazz) {
+
+			this.className = className;
+			this.resolutionContextReference = new WeakReference<Object>(resolutionContext);
+			this.contextClassLoaderReference = new WeakReference<ClassLoader>(contextClassLoader);
+			this.classReference = new WeakReference<Class<?>>(clazz);
+		}
+
+		/**
+		 * Returns the cached class if it was resolved for the specified arguments and has not been garbage collected,
+		 * otherwise null.
+		 */
+		private Class<?> get(String className, Object resolutionContext, ClassLoader contextClassLoader) {
+
+			Class<?> clazz = null;
+
+			if ((resolutionContextReference.get() == resolutionContext) &&
+					(contextClassLoaderReference.get() == contextClassLoader) && this.className.equals(className)) {
+				clazz = classReference.get();
+			}
+
+			return clazz;
+		}
+	}
+
+	/**
+	 * The cached classes of a single call site. The cached classes are only valid while {@link #generation} matches
+	 * {@link ClassLoadingCallSites#GENERATION}.
+	 */
+	private static final class CachedClasses {
+
+		// Private Final Data Members
+		private final CachedClass[] cachedClasses;
+		private final int generation;
+
+		private CachedClasses(int generation, CachedClass[] cachedClasses) {
+
+			this.generation = generation;
+			this.cachedClasses = cachedClasses;
+		}
+	}
+
+	private static final class CallSiteCache {
+
+		// Private Final Data Members
+		private final MethodHandle getCurrentFacesContextMethodHandle;
+		private final MethodHandle resolveMethodHandle;
+
+		// Private Data Members
+		private volatile CachedClasses cachedClasses;
+
+		private CallSiteCache(MethodHandle resolveMethodHandle, MethodHandle getCurrentFacesContextMethodHandle) {
+
+			this.resolveMethodHandle = resolveMethodHandle;
+			this.getCurrentFacesContextMethodHandle = getCurrentFacesContextMethodHandle;
+			this.cachedClasses = new CachedClasses(GENERATION.get(), new CachedClass[0]);
+		}
+
+		/* package-private */ Class<?> classForName(String className, Class<?> callingClass)
+			throws ClassNotFoundException {
+			return getClass(className, callingClass);
+		}
+
+		/* package-private */ Class<?> loadClass(ClassLoader classLoader, String className)
+			throws ClassNotFoundException {
+			return getClass(className, classLoader);
+		}
+
+		private void cache(int generation, CachedClass cachedClass) {
+
+			synchronized (this) {
+
+				CachedClasses cachedClasses = this.cachedClasses;
+
+				// Classes resolved before an invalidation are not cached, and call sites which resolve more than a few
+				// different classes keep the classes which they resolved first.
+				if ((generation == GENERATION.get()) &&
+						((cachedClasses.generation != generation) ||
+							(cachedClasses.cachedClasses.length < MAX_CACHED_CLASSES_PER_CALL_SITE))) {
+
+					CachedClass[] newCachedClasses;
+
+					if (cachedClasses.generation != generation) {
+						newCachedClasses = new CachedClass[] { cachedClass };
+					}
+					else {
+
+						int length = cachedClasses.cachedClasses.length;
+						newCachedClasses = new CachedClass[length + 1];
+						System.arraycopy(cachedClasses.cachedClasses, 0, newCachedClasses, 0, length);
+						newCachedClasses[length] = cachedClass;
+					}
+
+					this.cachedClasses = new CachedClasses(generation, newCachedClasses);
+				}
+			}
+		}
+
+		private Class<?> getClass(String className, Object resolutionContext) throws ClassNotFoundException {
+
+			Class<?> clazz = null;
+			ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+			CachedClasses cachedClasses = this.cachedClasses;
+
+			if (cachedClasses.generation == GENERATION.get()) {
+
+				for (int i = 0; (i < cachedClasses.cachedClasses.length) && (clazz == null); i++) {
+					clazz = cachedClasses.cachedClasses[i].get(className, resolutionContext, contextClassLoader);
+				}
+			}
+
+			if (clazz == null) {
+
+				// Obtain the generation before resolving the class so that a class which is resolved while the call
+				// sites are invalidated is not cached.
+				int generation = GENERATION.get();
+				Object facesContext = invoke(getCurrentFacesContextMethodHandle);
+				clazz = (Class<?>) invoke(resolveMethodHandle, className, facesContext, resolutionContext);
+
+				if (facesContext != null) {
+					cache(generation, new CachedClass(className, resolutionContext, contextClassLoader, clazz));
+				}
+			}
+
+			return clazz;
+		}
+
+		private Object invoke(MethodHandle methodHandle, Object... arguments) throws ClassNotFoundException {
+
+			try {
+				return methodHandle.invokeWithArguments(arguments);
+			}
+			catch (ClassNotFoundException e) {
+				throw e;
+			}
+			catch (RuntimeException e) {
+				throw e;
+			}
+			catch (Error e) {
+				throw e;
+			}
+			catch (Throwable t) {
+				throw new UndeclaredThrowableException(t);
+			}
+		}
+	}
+}
@@ -0,0 +1,23 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+/**
+ * Provides the runtime support which classes woven by the Liferay Faces OSGi Weaver link against. The package is
+ * dynamically imported by woven classes and is not intended to be used directly.
+ *
+ * @author  Kyle Stiemann
+ */
+@Version("1.1.0")
+package com.liferay.faces.osgi.weaver.runtime;
+
+import org.osgi.annotation.versioning.Version;
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Recorded for each call to {@link OSGiClassWriter#getCommonSuperClass(String, String)}.
+ *
+ * @author  Kyle Stiemann
+ */
+@Category({ "Liferay Faces", "OSGi Weaver" })
+@Description("The resolution of the common super class of two types while computing stack map frames.")
+@Label("Common Super Class")
+@Name("com.liferay.faces.osgi.weaver.CommonSuperClass")
+@StackTrace(false)
+/* package-private */ final class CommonSuperClassEvent extends Event {
+
+	// Private Constants
+	private static final EventType EVENT_TYPE = EventType.getEventType(CommonSuperClassEvent.class);
+
+	// Package-Private Data Members
+	@Label("Bundle Symbolic Name")
+	/* package-private */ String bundleSymbolicName;
+	@Description("The common super class or null if the type hierarchies could not be resolved.")
+	@Label("Common Super Class")
+	/* package-private */ String commonSuperClass;
+	@Label("Type 1")
+	/* package-private */ String type1;
+	@Label("Type 2")
+	/* package-private */ String type2;
+
+	/* package-private */ static CommonSuperClassEvent beginIfEnabled() {
+
+		CommonSuperClassEvent commonSuperClassEvent = null;
+
+		if (EVENT_TYPE.isEnabled()) {
+
+			commonSuperClassEvent = new CommonSuperClassEvent();
+			commonSuperClassEvent.begin();
+		}
+
+		return commonSuperClassEvent;
+	}
+
+	/* package-private */ static void commit(Object event, String bundleSymbolicName, String type1, String type2,
+		String commonSuperClass) {
+
+		CommonSuperClassEvent commonSuperClassEvent = (CommonSuperClassEvent) event;
+		commonSuperClassEvent.end();
+
+		if (commonSuperClassEvent.shouldCommit()) {
+
+			commonSuperClassEvent.bundleSymbolicName = bundleSymbolicName;
+			commonSuperClassEvent.type1 = type1;
+			commonSuperClassEvent.type2 = type2;
+			commonSuperClassEvent.commonSuperClass = commonSuperClass;
+			commonSuperClassEvent.commit();
+		}
+	}
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Recorded each time that the class file of a type is loaded in order to resolve a type hierarchy (see {@link
+ * SuperTypeCache} and {@link TypeGraph}).
+ *
+ * @author  Kyle Stiemann
+ */
+@Category({ "Liferay Faces", "OSGi Weaver" })
+@Description("The load of a class file resource in order to resolve the super class of a type.")
+@Label("Hierarchy Resource Load")
+@Name("com.liferay.faces.osgi.weaver.HierarchyResourceLoad")
+@StackTrace(false)
+/* package-private */ final class HierarchyResourceLoadEvent extends Event {
+
+	// Private Constants
+	private static final EventType EVENT_TYPE = EventType.getEventType(HierarchyResourceLoadEvent.class);
+
+	// Package-Private Data Members
+	@Description("Whether the class file of the type is visible to the bundle.")
+	@Label("Found")
+	/* package-private */ boolean found;
+	@Label("Type")
+	/* package-private */ String type;
+
+	/* package-private */ static HierarchyResourceLoadEvent beginIfEnabled() {
+
+		HierarchyResourceLoadEvent hierarchyResourceLoadEvent = null;
+
+		if (EVENT_TYPE.isEnabled()) {
+
+			hierarchyResourceLoadEvent = new HierarchyResourceLoadEvent();
+			hierarchyResourceLoadEvent.begin();
+		}
+
+		return hierarchyResourceLoadEvent;
+	}
+
+	/* package-private */ static void commit(Object event, String type, boolean found) {
+
+		HierarchyResourceLoadEvent hierarchyResourceLoadEvent = (HierarchyResourceLoadEvent) event;
+		hierarchyResourceLoadEvent.end();
+
+		if (hierarchyResourceLoadEvent.shouldCommit()) {
+
+			hierarchyResourceLoadEvent.type = type;
+			hierarchyResourceLoadEvent.found = found;
+			hierarchyResourceLoadEvent.commit();
+		}
+	}
+}
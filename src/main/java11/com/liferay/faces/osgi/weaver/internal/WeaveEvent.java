@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+/**
+ * Recorded for each call to {@link JSF_OSGiWeavingHook#weave(org.osgi.framework.hooks.weaving.WovenClass)}.
+ *
+ * @author  Kyle Stiemann
+ */
+@Category({ "Liferay Faces", "OSGi Weaver" })
+@Description("A class passed to the Liferay Faces OSGi weaving hook.")
+@Label("Weave")
+@Name("com.liferay.faces.osgi.weaver.Weave")
+@StackTrace(false)
+/* package-private */ final class WeaveEvent extends Event {
+
+	// Private Constants
+	private static final EventType EVENT_TYPE = EventType.getEventType(WeaveEvent.class);
+
+	// Package-Private Data Members
+	@Label("Bundle Symbolic Name")
+	/* package-private */ String bundleSymbolicName;
+	@DataAmount
+	@Label("Bytes In")
+	/* package-private */ int bytesIn;
+	@DataAmount
+	@Label("Bytes Out")
+	/* package-private */ int bytesOut;
+	@Label("Class Name")
+	/* package-private */ String className;
+	@Description("One of ignored, skipped, woven, or failed.")
+	@Label("Outcome")
+	/* package-private */ String outcome;
+
+	/* package-private */ static WeaveEvent beginIfEnabled() {
+
+		WeaveEvent weaveEvent = null;
+
+		if (EVENT_TYPE.isEnabled()) {
+
+			weaveEvent = new WeaveEvent();
+			weaveEvent.begin();
+		}
+
+		return weaveEvent;
+	}
+
+	/* package-private */ static void commit(Object event, String className, String bundleSymbolicName, String outcome,
+		int bytesIn, int bytesOut) {
+
+		WeaveEvent weaveEvent = (WeaveEvent) event;
+		weaveEvent.end();
+
+		if (weaveEvent.shouldCommit()) {
+
+			weaveEvent.className = className;
+			weaveEvent.bundleSymbolicName = bundleSymbolicName;
+			weaveEvent.outcome = outcome;
+			weaveEvent.bytesIn = bytesIn;
+			weaveEvent.bytesOut = bytesOut;
+			weaveEvent.commit();
+		}
+	}
+}
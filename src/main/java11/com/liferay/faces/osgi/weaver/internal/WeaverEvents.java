@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+/**
+ * Emits Java Flight Recorder events (see {@link WeaveEvent}, {@link CommonSuperClassEvent}, and {@link
+ * HierarchyResourceLoadEvent}). This is the Java 11 implementation which replaces the Java 1.6 implementation in
+ * multi-release aware frameworks.
+ *
+ * <p>The <code>jdk.jfr</code> package is dynamically imported, so the event classes are only referenced (through
+ * static methods, so that verifying this class never loads them) once the JFR API is known to be visible to this
+ * bundle. When an event type is not enabled in any recording, <code>begin*()</code> returns null without allocating an
+ * event and <code>commit*()</code> returns immediately.</p>
+ *
+ * @author  Kyle Stiemann
+ */
+/* package-private */ final class WeaverEvents {
+
+	// Package-Private Constants
+	/* package-private */ static final String OUTCOME_FAILED = "failed";
+	/* package-private */ static final String OUTCOME_IGNORED = "ignored";
+	/* package-private */ static final String OUTCOME_SKIPPED = "skipped";
+	/* package-private */ static final String OUTCOME_WOVEN = "woven";
+
+	// Private Constants
+	private static final boolean JFR_AVAILABLE = isJFRAvailable();
+
+	/* package-private */ static Object beginCommonSuperClass() {
+
+		Object commonSuperClassEvent = null;
+
+		if (JFR_AVAILABLE) {
+			commonSuperClassEvent = CommonSuperClassEvent.beginIfEnabled();
+		}
+
+		return commonSuperClassEvent;
+	}
+
+	/* package-private */ static Object beginHierarchyResourceLoad() {
+
+		Object hierarchyResourceLoadEvent = null;
+
+		if (JFR_AVAILABLE) {
+			hierarchyResourceLoadEvent = HierarchyResourceLoadEvent.beginIfEnabled();
+		}
+
+		return hierarchyResourceLoadEvent;
+	}
+
+	/* package-private */ static Object beginWeave() {
+
+		Object weaveEvent = null;
+
+		if (JFR_AVAILABLE) {
+			weaveEvent = WeaveEvent.beginIfEnabled();
+		}
+
+		return weaveEvent;
+	}
+
+	/* package-private */ static void commitCommonSuperClass(Object commonSuperClassEvent, String bundleSymbolicName,
+		String type1, String type2, String commonSuperClass) {
+
+		if (commonSuperClassEvent != null) {
+			CommonSuperClassEvent.commit(commonSuperClassEvent, bundleSymbolicName, type1, type2, commonSuperClass);
+		}
+	}
+
+	/* package-private */ static void commitHierarchyResourceLoad(Object hierarchyResourceLoadEvent, String type,
+		boolean found) {
+
+		if (hierarchyResourceLoadEvent != null) {
+			HierarchyResourceLoadEvent.commit(hierarchyResourceLoadEvent, type, found);
+		}
+	}
+
+	/* package-private */ static void commitWeave(Object weaveEvent, String className, String bundleSymbolicName,
+		String outcome, int bytesIn, int bytesOut) {
+
+		if (weaveEvent != null) {
+			WeaveEvent.commit(weaveEvent, className, bundleSymbolicName, outcome, bytesIn, bytesOut);
+		}
+	}
+
+	private static boolean isJFRAvailable() {
+
+		boolean jfrAvailable = false;
+
+		try {
+
+			Class.forName("jdk.jfr.Event", false, WeaverEvents.class.getClassLoader());
+			jfrAvailable = true;
+		}
+		catch (ClassNotFoundException e) {
+			// The jdk.jfr package is not visible to this bundle.
+		}
+		catch (LinkageError e) {
+			// The jdk.jfr package is not visible to this bundle.
+		}
+
+		return jfrAvailable;
+	}
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class BundleContextMockImpl implements BundleContext {
+
+	// Private Final Data Members
+	private final List<Bundle> bundles;
+	private final Map<String, String> properties = new HashMap<String, String>();
+
+	/**
+	 * @param  bundles  The installed bundles. The first bundle is the system bundle (with id 0).
+	 */
+	public BundleContextMockImpl(List<Bundle> bundles) {
+		this.bundles = new ArrayList<Bundle>(bundles);
+	}
+
+	@Override
+	public void addBundleListener(BundleListener listener) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public void addFrameworkListener(FrameworkListener listener) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public void addServiceListener(ServiceListener listener) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public void addServiceListener(ServiceListener listener, String filter) throws InvalidSyntaxException {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public Filter createFilter(String filter) throws InvalidSyntaxException {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public ServiceReference<?>[] getAllServiceReferences(String clazz, String filter) throws InvalidSyntaxException {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public Bundle getBundle() {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public Bundle getBundle(long id) {
+
+		if (id != 0) {
+			throw new UnsupportedOperationException("");
+		}
+
+		return bundles.get(0);
+	}
+
+	@Override
+	public Bundle getBundle(String location) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public Bundle[] getBundles() {
+		return bundles.toArray(new Bundle[bundles.size()]);
+	}
+
+	@Override
+	public File getDataFile(String filename) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public String getProperty(String key) {
+		return properties.get(key);
+	}
+
+	@Override
+	public <S> S getService(ServiceReference<S> reference) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public ServiceReference<?> getServiceReference(String clazz) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public <S> ServiceReference<S> getServiceReference(Class<S> clazz) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public ServiceReference<?>[] getServiceReferences(String clazz, String filter) throws InvalidSyntaxException {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public <S> Collection<ServiceReference<S>> getServiceReferences(Class<S> clazz, String filter)
+		throws InvalidSyntaxException {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public Bundle installBundle(String location) throws BundleException {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public Bundle installBundle(String location, InputStream input) throws BundleException {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public ServiceRegistration<?> registerService(String[] clazzes, Object service, Dictionary<String, ?> properties) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public ServiceRegistration<?> registerService(String clazz, Object service, Dictionary<String, ?> properties) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public <S> ServiceRegistration<S> registerService(Class<S> clazz, S service, Dictionary<String, ?> properties) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public void removeBundleListener(BundleListener listener) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public void removeFrameworkListener(FrameworkListener listener) {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public void removeServiceListener(ServiceListener listener) {
+		throw new UnsupportedOperationException("");
+	}
+
+	public void setProperty(String key, String value) {
+		properties.put(key, value);
+	}
+
+	@Override
+	public boolean ungetService(ServiceReference<?> reference) {
+		throw new UnsupportedOperationException("");
+	}
+}
@@ -20,6 +20,8 @@ import java.net.URL;
 import java.security.cert.X509Certificate;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 
@@ -35,9 +37,33 @@ import org.osgi.framework.Version;
  */
 public class BundleMockImpl implements Bundle {
 
+	// Private Final Data Members
+	private final Map<Class<?>, Object> adaptations = new HashMap<Class<?>, Object>();
+	private final Hashtable<String, String> headers = new Hashtable<String, String>();
+	private final String symbolicName;
+	private final Version version;
+
+	// Private Data Members
+	private volatile int state = Bundle.RESOLVED;
+
+	public BundleMockImpl() {
+		this("test.bundle.symbolic.name", Version.emptyVersion);
+	}
+
+	public BundleMockImpl(String symbolicName, Version version) {
+
+		this.symbolicName = symbolicName;
+		this.version = version;
+	}
+
 	@Override
 	public <A> A adapt(Class<A> type) {
-		throw new UnsupportedOperationException("");
+
+		if (!adaptations.containsKey(type)) {
+			throw new UnsupportedOperationException("");
+		}
+
+		return type.cast(adaptations.get(type));
 	}
 
 	@Override
@@ -77,7 +103,7 @@ public class BundleMockImpl implements Bundle {
 
 	@Override
 	public Dictionary<String, String> getHeaders() {
-		throw new UnsupportedOperationException("");
+		return headers;
 	}
 
 	@Override
@@ -122,17 +148,17 @@ public class BundleMockImpl implements Bundle {
 
 	@Override
 	public int getState() {
-		throw new UnsupportedOperationException("");
+		return state;
 	}
 
 	@Override
 	public String getSymbolicName() {
-		return "test.bundle.symbolic.name";
+		return symbolicName;
 	}
 
 	@Override
 	public Version getVersion() {
-		throw new UnsupportedOperationException("");
+		return version;
 	}
 
 	@Override
@@ -145,9 +171,24 @@ public class BundleMockImpl implements Bundle {
 		throw new UnsupportedOperationException("");
 	}
 
+	/**
+	 * @param  adaptation  The object returned by {@link #adapt(Class)} for the type (which may be null).
+	 */
+	public <A> void setAdaptation(Class<A> type, A adaptation) {
+		adaptations.put(type, adaptation);
+	}
+
+	public void setHeader(String name, String value) {
+		headers.put(name, value);
+	}
+
+	public void setState(int state) {
+		this.state = state;
+	}
+
 	@Override
 	public void start() throws BundleException {
-		throw new UnsupportedOperationException("");
+		state = Bundle.ACTIVE;
 	}
 
 	@Override
@@ -157,7 +198,7 @@ public class BundleMockImpl implements Bundle {
 
 	@Override
 	public void stop() throws BundleException {
-		throw new UnsupportedOperationException("");
+		state = Bundle.RESOLVED;
 	}
 
 	@Override
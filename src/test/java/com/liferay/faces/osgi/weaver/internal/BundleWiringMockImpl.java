@@ -14,7 +14,9 @@
 package com.liferay.faces.osgi.weaver.internal;
 
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 
 import org.osgi.framework.Bundle;
@@ -38,25 +40,43 @@ public class BundleWiringMockImpl implements BundleWiring {
 	private static final Bundle BUNDLE = new BundleMockImpl();
 
 	// Private Final Data Members
+	private final Bundle bundle;
 	private final ClassLoader classLoader;
+	private final List<URL> entryURLs;
 
 	public BundleWiringMockImpl(ClassLoader classLoader) {
+		this(classLoader, BUNDLE, null);
+	}
+
+	/**
+	 * @param  entryURLs  The URLs returned by {@link #findEntries(String, String, int)} (and the paths of which are
+	 *                    returned by {@link #listResources(String, String, int)}) regardless of their arguments.
+	 */
+	public BundleWiringMockImpl(ClassLoader classLoader, Bundle bundle, List<URL> entryURLs) {
+
 		this.classLoader = classLoader;
+		this.bundle = bundle;
+		this.entryURLs = entryURLs;
 	}
 
 	@Override
 	public List<URL> findEntries(String path, String filePattern, int options) {
-		throw new UnsupportedOperationException("");
+
+		if (entryURLs == null) {
+			throw new UnsupportedOperationException("");
+		}
+
+		return entryURLs;
 	}
 
 	@Override
 	public Bundle getBundle() {
-		return BUNDLE;
+		return bundle;
 	}
 
 	@Override
 	public List<BundleCapability> getCapabilities(String namespace) {
-		throw new UnsupportedOperationException("");
+		return Collections.emptyList();
 	}
 
 	@Override
@@ -81,7 +101,7 @@ public class BundleWiringMockImpl implements BundleWiring {
 
 	@Override
 	public List<BundleWire> getRequiredWires(String namespace) {
-		throw new UnsupportedOperationException("");
+		return Collections.emptyList();
 	}
 
 	@Override
@@ -121,6 +141,17 @@ public class BundleWiringMockImpl implements BundleWiring {
 
 	@Override
 	public Collection<String> listResources(String path, String filePattern, int options) {
-		throw new UnsupportedOperationException("");
+
+		if (entryURLs == null) {
+			throw new UnsupportedOperationException("");
+		}
+
+		List<String> resourceNames = new ArrayList<String>();
+
+		for (URL entryURL : entryURLs) {
+			resourceNames.add(entryURL.getPath().substring(1));
+		}
+
+		return resourceNames;
 	}
 }
@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+
+/**
+ * Refreshes bundles synchronously: {@link #refreshBundles(Collection, FrameworkListener...)} records the bundles and
+ * notifies the listeners of a {@link FrameworkEvent#PACKAGES_REFRESHED} event before it returns.
+ *
+ * @author  Kyle Stiemann
+ */
+public class FrameworkWiringMockImpl implements FrameworkWiring {
+
+	// Private Final Data Members
+	private final Map<Bundle, List<Bundle>> dependentBundles = new HashMap<Bundle, List<Bundle>>();
+	private final List<Bundle> refreshedBundles = new ArrayList<Bundle>();
+	private final Bundle systemBundle;
+
+	public FrameworkWiringMockImpl(Bundle systemBundle) {
+		this.systemBundle = systemBundle;
+	}
+
+	/**
+	 * Wires the dependent bundle to the bundle, so the dependent bundle is part of the dependency closure of the bundle.
+	 */
+	public void addDependentBundle(Bundle bundle, Bundle dependentBundle) {
+
+		List<Bundle> bundles = dependentBundles.get(bundle);
+
+		if (bundles == null) {
+
+			bundles = new ArrayList<Bundle>();
+			dependentBundles.put(bundle, bundles);
+		}
+
+		bundles.add(dependentBundle);
+	}
+
+	@Override
+	public Bundle getBundle() {
+		return systemBundle;
+	}
+
+	@Override
+	public Collection<Bundle> getDependencyClosure(Collection<Bundle> bundles) {
+
+		Set<Bundle> dependencyClosure = new LinkedHashSet<Bundle>();
+		List<Bundle> unvisitedBundles = new ArrayList<Bundle>(bundles);
+
+		while (!unvisitedBundles.isEmpty()) {
+
+			Bundle bundle = unvisitedBundles.remove(unvisitedBundles.size() - 1);
+
+			if (dependencyClosure.add(bundle) && dependentBundles.containsKey(bundle)) {
+				unvisitedBundles.addAll(dependentBundles.get(bundle));
+			}
+		}
+
+		return dependencyClosure;
+	}
+
+	/**
+	 * Returns the bundles which were refreshed.
+	 */
+	public List<Bundle> getRefreshedBundles() {
+		return Collections.unmodifiableList(refreshedBundles);
+	}
+
+	@Override
+	public Collection<Bundle> getRemovalPendingBundles() {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public void refreshBundles(Collection<Bundle> bundles, FrameworkListener... listeners) {
+
+		refreshedBundles.addAll(bundles);
+
+		for (FrameworkListener listener : listeners) {
+			listener.frameworkEvent(new FrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED, systemBundle, null));
+		}
+	}
+
+	@Override
+	public boolean resolveBundles(Collection<Bundle> bundles) {
+		throw new UnsupportedOperationException("");
+	}
+}
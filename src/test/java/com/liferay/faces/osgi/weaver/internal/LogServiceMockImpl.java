@@ -0,0 +1,47 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import org.osgi.framework.ServiceReference;
+
+import org.osgi.service.log.LogService;
+
+
+/**
+ * Discards all messages.
+ *
+ * @author  Kyle Stiemann
+ */
+public class LogServiceMockImpl implements LogService {
+
+	@Override
+	public void log(int level, String message) {
+		// do nothing.
+	}
+
+	@Override
+	public void log(int level, String message, Throwable exception) {
+		// do nothing.
+	}
+
+	@Override
+	public void log(ServiceReference sr, int level, String message) {
+		// do nothing.
+	}
+
+	@Override
+	public void log(ServiceReference sr, int level, String message, Throwable exception) {
+		// do nothing.
+	}
+}
@@ -0,0 +1,180 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.liferay.faces.osgi.weaver.metrics.CallSiteMetrics;
+import com.liferay.faces.osgi.weaver.rewrite.RewriteRule;
+import com.liferay.faces.osgi.weaver.rewrite.StackOperation;
+import com.liferay.faces.osgi.weaver.runtime.CallSiteProbes;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestCallSiteProbes {
+
+	// Private Constants
+	private static final int CALLS = 40;
+
+	/**
+	 * The replacement method of the rewrite rule which is probed by {@link #testCallSiteProbes()}.
+	 */
+	public static String getProperty(String key, Class<?> callerClass) {
+		return key;
+	}
+
+	private static boolean isReported(int callSiteId) {
+
+		boolean reported = false;
+
+		for (CallSiteMetrics callSiteMetrics : CallSiteProbes.getCallSiteMetrics()) {
+
+			if (callSiteMetrics.getCallSiteId() == callSiteId) {
+				reported = true;
+			}
+		}
+
+		return reported;
+	}
+
+	@Test
+	public void testCallSiteProbes() throws Exception {
+
+		RewriteRule rewriteRule = new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/System", "getProperty",
+				"(Ljava/lang/String;)Ljava/lang/String;", "com/liferay/faces/osgi/weaver/internal/TestCallSiteProbes",
+				"getProperty", "(Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/String;", false,
+				StackOperation.LOAD_CURRENT_CLASS);
+		RewriteRuleTable rewriteRuleTable = new RewriteRuleTable(Collections.singletonList(rewriteRule));
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(ProbedCaller.class);
+		String className = ProbedCaller.class.getName();
+		JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(StackMapFrameMode.PRESERVE,
+				getClass().getClassLoader(), "test.bundle.symbolic.name", "1.0.0", new SuperTypeCache(), false, false,
+				false, false, true);
+		byte[] wovenBytes = jsfOSGiClassWeaver.weave(className, bytes,
+				new ConstantPoolScanner(bytes, false, rewriteRuleTable));
+		Class<?> wovenClass = Class.forName(className, true,
+				new TestJSF_OSGiClassWeaver.WovenClassLoader(className, wovenBytes));
+		Method getUserNameMethod = wovenClass.getDeclaredMethod("getUserName");
+		getUserNameMethod.setAccessible(true);
+
+		for (int i = 0; i < CALLS; i++) {
+			Assert.assertEquals("user.name", getUserNameMethod.invoke(null));
+		}
+
+		CallSiteMetrics probedCallSiteMetrics = null;
+
+		for (CallSiteMetrics callSiteMetrics : CallSiteProbes.getCallSiteMetrics()) {
+
+			if (className.equals(callSiteMetrics.getClassName())) {
+				probedCallSiteMetrics = callSiteMetrics;
+			}
+		}
+
+		Assert.assertNotNull(probedCallSiteMetrics);
+		Assert.assertEquals("test.bundle.symbolic.name", probedCallSiteMetrics.getBundleSymbolicName());
+		Assert.assertEquals("1.0.0", probedCallSiteMetrics.getBundleVersion());
+		Assert.assertEquals("getUserName()Ljava/lang/String;", probedCallSiteMetrics.getMethodName());
+		Assert.assertEquals("java.lang.System.getProperty", probedCallSiteMetrics.getCall());
+		Assert.assertTrue(probedCallSiteMetrics.getLineNumber() > 0);
+		Assert.assertEquals(CALLS, probedCallSiteMetrics.getCount());
+
+		// The 1st, 17th, and 33rd calls are timed.
+		Assert.assertEquals(3, probedCallSiteMetrics.getSampledCount());
+		Assert.assertTrue(probedCallSiteMetrics.getSampledNanos() >= probedCallSiteMetrics.getMaxSampledNanos());
+
+		// Weaving the same call site again reuses its id.
+		jsfOSGiClassWeaver.weave(className, bytes, new ConstantPoolScanner(bytes, false, rewriteRuleTable));
+		Assert.assertEquals(probedCallSiteMetrics.getCallSiteId(),
+			CallSiteProbes.register("test.bundle.symbolic.name", "1.0.0", className, "getUserName()Ljava/lang/String;",
+				probedCallSiteMetrics.getLineNumber(), 0, "java.lang.System.getProperty"));
+	}
+
+	@Test
+	public void testCommitCallSites() {
+
+		// The same call site of two versions of a bundle gets separate ids.
+		String className = "com.example.Example";
+		int callSiteId = CallSiteProbes.register("com.example", "1.0.0", className, "example()V", 1, 0,
+				"java.lang.Class.forName");
+		int otherVersionCallSiteId = CallSiteProbes.register("com.example", "2.0.0", className, "example()V", 1, 0,
+				"java.lang.Class.forName");
+		Assert.assertTrue(callSiteId >= 0);
+		Assert.assertTrue(callSiteId != otherVersionCallSiteId);
+
+		// Call sites are only reported once they are committed (after their class has been woven).
+		Assert.assertFalse(isReported(callSiteId));
+		CallSiteProbes.commit(callSiteId);
+		Assert.assertTrue(isReported(callSiteId));
+		Assert.assertFalse(isReported(otherVersionCallSiteId));
+	}
+
+	@Test
+	public void testFoldedCallSiteProbes() throws Exception {
+
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(FoldedProbedCaller.class);
+		String className = FoldedProbedCaller.class.getName();
+		JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(StackMapFrameMode.PRESERVE,
+				getClass().getClassLoader(), "test.bundle.symbolic.name", "1.0.0", new SuperTypeCache(), true, false,
+				false, false, true);
+		byte[] wovenBytes = jsfOSGiClassWeaver.weave(className, bytes, new ConstantPoolScanner(bytes, true));
+		TestStackMapFrameMode.verify(className, wovenBytes);
+
+		// Both folded calls are probed, and since they are on the same line, they are distinguished by their ordinal.
+		List<CallSiteMetrics> foldedCallSiteMetrics = new ArrayList<CallSiteMetrics>();
+
+		for (CallSiteMetrics callSiteMetrics : CallSiteProbes.getCallSiteMetrics()) {
+
+			if (className.equals(callSiteMetrics.getClassName())) {
+				foldedCallSiteMetrics.add(callSiteMetrics);
+			}
+		}
+
+		Assert.assertEquals(2, foldedCallSiteMetrics.size());
+
+		CallSiteMetrics firstCallSiteMetrics = foldedCallSiteMetrics.get(0);
+		CallSiteMetrics secondCallSiteMetrics = foldedCallSiteMetrics.get(1);
+		Assert.assertEquals("java.lang.Class.forName", firstCallSiteMetrics.getCall());
+		Assert.assertEquals(firstCallSiteMetrics.getLineNumber(), secondCallSiteMetrics.getLineNumber());
+		Assert.assertTrue(firstCallSiteMetrics.getCallSiteId() != secondCallSiteMetrics.getCallSiteId());
+	}
+
+	/**
+	 * Contains two identical <code>Class.forName(String)</code> calls on one line which are folded (and probed) by
+	 * {@link #testFoldedCallSiteProbes()}.
+	 */
+	/* package-private */ static final class FoldedProbedCaller {
+
+		/* package-private */ static Class<?>[] getStringClasses() throws ClassNotFoundException {
+			return new Class<?>[] { Class.forName("java.lang.String"), Class.forName("java.lang.String") };
+		}
+	}
+
+	/**
+	 * Calls a method which is rewritten (and probed) by the rewrite rule of {@link #testCallSiteProbes()}.
+	 */
+	/* package-private */ static final class ProbedCaller {
+
+		/* package-private */ static String getUserName() {
+			return System.getProperty("user.name");
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.liferay.faces.osgi.weaver.rewrite.RewriteRule;
+
+import static com.liferay.faces.osgi.weaver.internal.JSF_OSGiMethodVisitor.getTypeString;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestClassHeaderIndex {
+
+	// Private Constants
+	private static final RewriteRuleTable BUILT_IN_RULES = RewriteRuleTable.getBuiltInInstance();
+
+	private static void add(ClassHeaderIndex classHeaderIndex, Class<?> clazz, byte[] classBytes) throws IOException {
+		classHeaderIndex.add(clazz.getName(), classBytes, new ConstantPoolScanner(classBytes, true), true);
+	}
+
+	@Test
+	public void testContainsNoWeaveTargets() throws IOException {
+
+		ClassHeaderIndex classHeaderIndex = new ClassHeaderIndex(Collections.<String>emptySet(), true);
+		String noTargetCallerName = TestConstantPoolScanner.NoTargetCaller.class.getName();
+		byte[] noTargetCallerBytes = TestConstantPoolScanner.getClassBytes(
+				TestConstantPoolScanner.NoTargetCaller.class);
+		String classForNameCallerName = TestConstantPoolScanner.ClassForNameCaller.class.getName();
+		byte[] classForNameCallerBytes = TestConstantPoolScanner.getClassBytes(
+				TestConstantPoolScanner.ClassForNameCaller.class);
+
+		// Classes which have not been indexed must be scanned.
+		Assert.assertFalse(classHeaderIndex.containsNoWeaveTargets(noTargetCallerName, noTargetCallerBytes, true,
+				BUILT_IN_RULES));
+
+		add(classHeaderIndex, TestConstantPoolScanner.NoTargetCaller.class, noTargetCallerBytes);
+		add(classHeaderIndex, TestConstantPoolScanner.ClassForNameCaller.class, classForNameCallerBytes);
+		Assert.assertTrue(classHeaderIndex.containsNoWeaveTargets(noTargetCallerName, noTargetCallerBytes, true,
+				BUILT_IN_RULES));
+		Assert.assertFalse(classHeaderIndex.containsNoWeaveTargets(classForNameCallerName, classForNameCallerBytes,
+				true, BUILT_IN_RULES));
+
+		// The index only applies to the bytes, the weaving options, and the rules which it was built from.
+		byte[] modifiedBytes = noTargetCallerBytes.clone();
+		modifiedBytes[modifiedBytes.length - 1]++;
+		Assert.assertFalse(classHeaderIndex.containsNoWeaveTargets(noTargetCallerName, modifiedBytes, true,
+				BUILT_IN_RULES));
+		Assert.assertFalse(classHeaderIndex.containsNoWeaveTargets(noTargetCallerName, noTargetCallerBytes, false,
+				BUILT_IN_RULES));
+		Assert.assertFalse(classHeaderIndex.containsNoWeaveTargets(noTargetCallerName, noTargetCallerBytes, true,
+				new RewriteRuleTable(Collections.<RewriteRule>emptyList())));
+	}
+
+	@Test
+	public void testGetSuperName() throws IOException {
+
+		Class<?> clazz = OSGiClassWriter.class;
+		byte[] classBytes = TestConstantPoolScanner.getClassBytes(clazz);
+		ClassHeaderIndex classHeaderIndex = new ClassHeaderIndex(Collections.<String>emptySet(), true);
+		Assert.assertNull(classHeaderIndex.getSuperName(getTypeString(clazz)));
+
+		add(classHeaderIndex, clazz, classBytes);
+		Assert.assertEquals(getTypeString(clazz.getSuperclass()), classHeaderIndex.getSuperName(getTypeString(clazz)));
+
+		// Classes which are found in more than one class file are not resolved through the index.
+		byte[] modifiedBytes = classBytes.clone();
+		modifiedBytes[modifiedBytes.length - 1]++;
+		add(classHeaderIndex, clazz, modifiedBytes);
+		Assert.assertNull(classHeaderIndex.getSuperName(getTypeString(clazz)));
+
+		// Classes of packages which are not loaded from the bundle itself are not resolved through the index.
+		Set<String> nonLocalPackageNames = Collections.singleton(clazz.getPackage().getName());
+		classHeaderIndex = new ClassHeaderIndex(nonLocalPackageNames, true);
+		add(classHeaderIndex, clazz, classBytes);
+		Assert.assertNull(classHeaderIndex.getSuperName(getTypeString(clazz)));
+
+		classHeaderIndex = new ClassHeaderIndex(Collections.<String>emptySet(), false);
+		add(classHeaderIndex, clazz, classBytes);
+		Assert.assertNull(classHeaderIndex.getSuperName(getTypeString(clazz)));
+	}
+}
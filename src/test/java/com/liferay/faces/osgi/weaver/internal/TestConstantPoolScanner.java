@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Map;
+import java.util.ResourceBundle;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestConstantPoolScanner {
+
+	/* package-private */ static byte[] getClassBytes(Class<?> clazz) throws IOException {
+
+		String classResourceName = JSF_OSGiMethodVisitor.getTypeString(clazz) + ".class";
+		ClassLoader classLoader = clazz.getClassLoader();
+
+		return readBytes(classLoader.getResourceAsStream(classResourceName));
+	}
+
+	/* package-private */ static byte[] readBytes(InputStream inputStream) throws IOException {
+
+		try {
+
+			ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+			byte[] buffer = new byte[4096];
+			int length;
+
+			while ((length = inputStream.read(buffer)) > -1) {
+				byteArrayOutputStream.write(buffer, 0, length);
+			}
+
+			return byteArrayOutputStream.toByteArray();
+		}
+		finally {
+			inputStream.close();
+		}
+	}
+
+	@Test
+	public void testContainsWeaveTargets() throws IOException {
+
+		byte[] classForNameBytes = getClassBytes(ClassForNameCaller.class);
+		Assert.assertTrue(ConstantPoolScanner.containsWeaveTargets(classForNameBytes, true));
+		Assert.assertFalse(ConstantPoolScanner.containsWeaveTargets(classForNameBytes, false));
+
+		byte[] classLoaderBytes = getClassBytes(ClassLoaderCaller.class);
+		Assert.assertTrue(ConstantPoolScanner.containsWeaveTargets(classLoaderBytes, true));
+		Assert.assertFalse(ConstantPoolScanner.containsWeaveTargets(classLoaderBytes, false));
+
+		byte[] getBundleBytes = getClassBytes(GetBundleCaller.class);
+		Assert.assertTrue(ConstantPoolScanner.containsWeaveTargets(getBundleBytes, true));
+		Assert.assertTrue(ConstantPoolScanner.containsWeaveTargets(getBundleBytes, false));
+
+		byte[] noTargetBytes = getClassBytes(NoTargetCaller.class);
+		Assert.assertFalse(ConstantPoolScanner.containsWeaveTargets(noTargetBytes, true));
+		Assert.assertFalse(ConstantPoolScanner.containsWeaveTargets(noTargetBytes, false));
+	}
+
+	@Test
+	public void testContainsWeaveTargetsMalformed() {
+
+		// Malformed classes must be left to ASM.
+		Assert.assertTrue(ConstantPoolScanner.containsWeaveTargets(new byte[] { (byte) 0xCA, (byte) 0xFE }, true));
+	}
+
+	@Test
+	public void testGetWeaveTargetMethods() throws IOException {
+
+		byte[] mixedCallerBytes = getClassBytes(MixedCaller.class);
+		Map<String, Integer> weaveTargetMethods = new ConstantPoolScanner(mixedCallerBytes, true)
+			.getWeaveTargetMethods();
+		Assert.assertEquals(2, weaveTargetMethods.size());
+
+		// Each method is mapped to its max_locals (the arguments of these static methods).
+		Assert.assertEquals(Integer.valueOf(1),
+			weaveTargetMethods.get("forName(Ljava/lang/String;)Ljava/lang/Class;"));
+		Assert.assertEquals(Integer.valueOf(2),
+			weaveTargetMethods.get(
+				"getBundle\u00e9(Ljava/lang/String;Ljava/lang/ClassLoader;)Ljava/util/ResourceBundle;"));
+
+		weaveTargetMethods = new ConstantPoolScanner(mixedCallerBytes, false).getWeaveTargetMethods();
+		Assert.assertEquals(Collections.singletonMap(
+				"getBundle\u00e9(Ljava/lang/String;Ljava/lang/ClassLoader;)Ljava/util/ResourceBundle;", 2),
+			weaveTargetMethods);
+
+		byte[] noTargetBytes = getClassBytes(NoTargetCaller.class);
+		Assert.assertTrue(new ConstantPoolScanner(noTargetBytes, true).getWeaveTargetMethods().isEmpty());
+
+		// Malformed classes must be left to ASM, so every method must be considered.
+		Assert.assertNull(new ConstantPoolScanner(new byte[] { (byte) 0xCA, (byte) 0xFE }, true)
+			.getWeaveTargetMethods());
+	}
+
+	/* package-private */ static final class ClassForNameCaller {
+
+		/* package-private */ static Class<?> forName(String className) throws ClassNotFoundException {
+			return Class.forName(className);
+		}
+	}
+
+	/* package-private */ static final class ClassLoaderCaller {
+
+		/* package-private */ static Object getResource(ClassLoader classLoader, String name) {
+			return classLoader.getResource(name);
+		}
+	}
+
+	/* package-private */ static final class GetBundleCaller {
+
+		/* package-private */ static ResourceBundle getBundle(String baseName, ClassLoader classLoader) {
+			return ResourceBundle.getBundle(baseName, Locale.ENGLISH, classLoader);
+		}
+	}
+
+	/* package-private */ static final class MixedCaller {
+
+		// Fields must be skipped when walking the class file.
+		private static final String BASE_NAME = "base.name";
+
+		/* package-private */ static Class<?> forName(String className) throws ClassNotFoundException {
+			return Class.forName(className);
+		}
+
+		// The non-ASCII method name ensures that names are decoded as modified UTF-8.
+		/* package-private */ static ResourceBundle getBundle\u00e9(String baseName, ClassLoader classLoader) {
+			return ResourceBundle.getBundle(baseName, Locale.ENGLISH, classLoader);
+		}
+
+		/* package-private */ static String getBaseName(ClassLoader classLoader) {
+			return BASE_NAME + classLoader.getParent();
+		}
+	}
+
+	/* package-private */ static final class NoTargetCaller {
+
+		// Long and double constants occupy two constant pool entries.
+		private static final long LONG = System.nanoTime() + 1234567890123L;
+		private static final double DOUBLE = Math.random() + 1.5;
+
+		/* package-private */ static String describe(ClassLoader classLoader) {
+
+			// Reference the names of rewritten methods without calling them.
+			return "forName loadClass getResource getBundle" + classLoader.getParent() + LONG + DOUBLE;
+		}
+	}
+}
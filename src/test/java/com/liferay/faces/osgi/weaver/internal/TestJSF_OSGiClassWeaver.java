@@ -0,0 +1,258 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestJSF_OSGiClassWeaver {
+
+	@Test
+	public void testWeaveClassForNameConstants() throws IOException, CommonSuperClassNotFoundException {
+
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(ClassForNameConstantCaller.class);
+		String className = ClassForNameConstantCaller.class.getName();
+
+		for (StackMapFrameMode stackMapFrameMode : StackMapFrameMode.values()) {
+
+			JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(stackMapFrameMode,
+					getClass().getClassLoader(), "test.bundle.symbolic.name", "1.0.0", new SuperTypeCache(), true,
+					false, false, false, false);
+			byte[] wovenBytes = jsfOSGiClassWeaver.weave(className, bytes, new ConstantPoolScanner(bytes, true));
+			MemberCollector memberCollector = new MemberCollector();
+			new ClassReader(wovenBytes).accept(memberCollector, ClassReader.SKIP_CODE);
+
+			// Only the visible class (which is requested twice) is cached.
+			Assert.assertEquals(1, memberCollector.fieldNames.size());
+			Assert.assertTrue(memberCollector.fieldNames.get(0).startsWith("liferayFacesOSGiWeaver$cachedClass$"));
+			Assert.assertTrue(memberCollector.methodNames.contains("liferayFacesOSGiWeaver$getCachedClass$0"));
+		}
+	}
+
+	@Test
+	public void testWeaveClassForNameConstantsOfInheritableInstanceMethods() throws IOException,
+		CommonSuperClassNotFoundException {
+
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(InheritableClassForNameConstantCaller.class);
+		String className = InheritableClassForNameConstantCaller.class.getName();
+		JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(StackMapFrameMode.PRESERVE,
+				getClass().getClassLoader(), "test.bundle.symbolic.name", "1.0.0", new SuperTypeCache(), true, false,
+				false, false, false);
+		byte[] wovenBytes = jsfOSGiClassWeaver.weave(className, bytes, new ConstantPoolScanner(bytes, true));
+		MethodCallCollector methodCallCollector = new MethodCallCollector();
+		new ClassReader(wovenBytes).accept(methodCallCollector, 0);
+
+		// The instance method may be inherited by a subclass from another bundle, so its call still passes the class
+		// of this (rather than the current class) to OSGiClassLoaderUtil at every call.
+		String classType = JSF_OSGiMethodVisitor.getTypeString(className);
+		Assert.assertEquals(Arrays.asList("javax/faces/context/FacesContext.getCurrentInstance",
+				classType + ".getClass", "com/liferay/faces/util/osgi/OSGiClassLoaderUtil.classForName"),
+			methodCallCollector.methodCalls.get("forVisibleName"));
+
+		// The static method always passes the current class, so its call is folded.
+		Assert.assertEquals(Collections.singletonList(classType + ".liferayFacesOSGiWeaver$getCachedClass$0"),
+			methodCallCollector.methodCalls.get("forVisibleNameStatically"));
+	}
+
+	@Test
+	public void testWeaveReusedFacesContext() throws ClassNotFoundException, IOException,
+		CommonSuperClassNotFoundException {
+
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(FacesContextReuseCaller.class);
+		String className = FacesContextReuseCaller.class.getName();
+
+		// Mark the class as a Java 7 class so that the JVM verifies its stack map frames rather than falling back to
+		// type inference if the frames are invalid.
+		bytes[7] = Opcodes.V1_7;
+
+		for (StackMapFrameMode stackMapFrameMode : StackMapFrameMode.values()) {
+
+			JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(stackMapFrameMode,
+					getClass().getClassLoader(), "test.bundle.symbolic.name", "1.0.0", new SuperTypeCache(), true,
+					false, false, true, false);
+			byte[] wovenBytes = jsfOSGiClassWeaver.weave(className, bytes, new ConstantPoolScanner(bytes, true));
+			MethodCallCollector methodCallCollector = new MethodCallCollector();
+			new ClassReader(wovenBytes).accept(methodCallCollector, 0);
+
+			// Both rewritten calls obtain the FacesContext through the added method, which is the only method that
+			// calls FacesContext.getCurrentInstance().
+			List<String> methodCalls = methodCallCollector.methodCalls.get("loadAll");
+			Assert.assertFalse(methodCalls.contains("javax/faces/context/FacesContext.getCurrentInstance"));
+			Assert.assertEquals(2,
+				Collections.frequency(methodCalls,
+					JSF_OSGiMethodVisitor.getTypeString(className) + ".liferayFacesOSGiWeaver$getCurrentFacesContext"));
+			Assert.assertEquals(Collections.singletonList("javax/faces/context/FacesContext.getCurrentInstance"),
+				methodCallCollector.methodCalls.get("liferayFacesOSGiWeaver$getCurrentFacesContext"));
+
+			// Initializing the woven class verifies its (preserved or computed) stack map frames.
+			Class.forName(className, true, new WovenClassLoader(className, wovenBytes));
+		}
+	}
+
+	/* package-private */ static final class ClassForNameConstantCaller {
+
+		/* package-private */ static Class<?> forVisibleName() throws ClassNotFoundException {
+			return Class.forName("java.util.ArrayList");
+		}
+
+		/* package-private */ static Class<?> forInvisibleName() throws ClassNotFoundException {
+			return Class.forName("com.example.DoesNotExist");
+		}
+
+		/* package-private */ Class<?> forVisibleNameAgain() throws ClassNotFoundException {
+			return Class.forName("java.util.ArrayList");
+		}
+	}
+
+	/* package-private */ static class InheritableClassForNameConstantCaller {
+
+		/* package-private */ static Class<?> forVisibleNameStatically() throws ClassNotFoundException {
+			return Class.forName("java.util.ArrayList");
+		}
+
+		/* package-private */ Class<?> forVisibleName() throws ClassNotFoundException {
+			return Class.forName("java.util.ArrayList");
+		}
+	}
+
+	/* package-private */ static final class FacesContextReuseCaller {
+
+		// The long and double locals occupy two slots each, and the loop and exception handler require frames.
+		/* package-private */ long loadAll(ClassLoader classLoader, String[] classNames) {
+
+			long hashCodes = 0L;
+
+			for (String className : classNames) {
+
+				double weight = 1.5;
+
+				try {
+					hashCodes += (long) (classLoader.loadClass(className).hashCode() * weight);
+				}
+				catch (ClassNotFoundException e) {
+					hashCodes += classLoader.getResource(className).hashCode();
+				}
+			}
+
+			return hashCodes;
+		}
+	}
+
+	private static final class MemberCollector extends ClassVisitor {
+
+		// Private Final Data Members
+		private final List<String> fieldNames = new ArrayList<String>();
+		private final List<String> methodNames = new ArrayList<String>();
+
+		private MemberCollector() {
+			super(Opcodes.ASM5);
+		}
+
+		@Override
+		public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+
+			fieldNames.add(name);
+
+			return null;
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+			String[] exceptions) {
+
+			methodNames.add(name);
+
+			return null;
+		}
+	}
+
+	private static final class MethodCallCollector extends ClassVisitor {
+
+		// Private Final Data Members
+		private final Map<String, List<String>> methodCalls = new HashMap<String, List<String>>();
+
+		private MethodCallCollector() {
+			super(Opcodes.ASM5);
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String methodName, String methodDescriptor, String signature,
+			String[] exceptions) {
+
+			final List<String> calls = new ArrayList<String>();
+			methodCalls.put(methodName, calls);
+
+			return new MethodVisitor(Opcodes.ASM5) {
+
+					@Override
+					public void visitMethodInsn(int opcode, String owner, String name, String descriptor,
+						boolean itf) {
+						calls.add(owner + "." + name);
+					}
+				};
+		}
+	}
+
+	/* package-private */ static final class WovenClassLoader extends ClassLoader {
+
+		// Private Final Data Members
+		private final String className;
+		private final byte[] wovenBytes;
+
+		/* package-private */ WovenClassLoader(String className, byte[] wovenBytes) {
+
+			super(WovenClassLoader.class.getClassLoader());
+			this.className = className;
+			this.wovenBytes = wovenBytes;
+		}
+
+		@Override
+		protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+
+			Class<?> clazz;
+
+			if (name.equals(className)) {
+
+				clazz = findLoadedClass(name);
+
+				if (clazz == null) {
+					clazz = defineClass(name, wovenBytes, 0, wovenBytes.length);
+				}
+			}
+			else {
+				clazz = super.loadClass(name, resolve);
+			}
+
+			return clazz;
+		}
+	}
+}
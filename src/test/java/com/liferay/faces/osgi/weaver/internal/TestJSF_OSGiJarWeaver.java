@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestJSF_OSGiJarWeaver {
+
+	// Private Constants
+	private static final String CLASS_FOR_NAME_CALLER_ENTRY_NAME = getEntryName(
+			TestConstantPoolScanner.ClassForNameCaller.class);
+	private static final String NO_TARGET_CALLER_ENTRY_NAME = getEntryName(TestConstantPoolScanner.NoTargetCaller.class);
+
+	// Public Data Members
+	@Rule
+	public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+	private static String getEntryName(Class<?> clazz) {
+		return JSF_OSGiMethodVisitor.getTypeString(clazz) + ".class";
+	}
+
+	private static byte[] readBytes(JarFile jarFile, String entryName) throws IOException {
+
+		JarEntry jarEntry = jarFile.getJarEntry(entryName);
+		Assert.assertNotNull(jarEntry);
+
+		return TestConstantPoolScanner.readBytes(jarFile.getInputStream(jarEntry));
+	}
+
+	@Test
+	public void testWeave() throws IOException {
+
+		File inputJar = createJar("org.glassfish.javax.faces");
+		File outputJar = new File(temporaryFolder.getRoot(), "output.jar");
+		JSF_OSGiJarWeaver jsfOSGiJarWeaver = new JSF_OSGiJarWeaver(Collections.<File>emptyList(), "preserve", 2);
+		WarningCollector warningCollector = new WarningCollector();
+		Assert.assertEquals(1, jsfOSGiJarWeaver.weave(inputJar, outputJar, warningCollector));
+		Assert.assertEquals(Collections.<String>emptyList(), warningCollector.warnings);
+
+		JarFile outputJarFile = new JarFile(outputJar);
+
+		try {
+
+			Attributes mainAttributes = outputJarFile.getManifest().getMainAttributes();
+			Assert.assertEquals("org.glassfish.javax.faces", mainAttributes.getValue("Bundle-SymbolicName"));
+
+			// The dynamic import is required even if the bundle is excluded by the runtime weaving policy.
+			Assert.assertEquals("javax.el," + JSF_OSGiWeavingHook.OSGI_CLASS_LOADER_DYNAMIC_IMPORT,
+				mainAttributes.getValue("DynamicImport-Package"));
+
+			byte[] wovenBytes = readBytes(outputJarFile, CLASS_FOR_NAME_CALLER_ENTRY_NAME);
+			Assert.assertTrue(new ConstantPoolScanner(wovenBytes, true).isWoven());
+			Assert.assertFalse(Arrays.equals(TestConstantPoolScanner.getClassBytes(
+						TestConstantPoolScanner.ClassForNameCaller.class), wovenBytes));
+
+			byte[] unmodifiedBytes = readBytes(outputJarFile, NO_TARGET_CALLER_ENTRY_NAME);
+			Assert.assertFalse(new ConstantPoolScanner(unmodifiedBytes, true).isWoven());
+			Assert.assertArrayEquals(TestConstantPoolScanner.getClassBytes(
+					TestConstantPoolScanner.NoTargetCaller.class), unmodifiedBytes);
+		}
+		finally {
+			outputJarFile.close();
+		}
+
+		// Classes which have already been woven must not be woven again.
+		Assert.assertEquals(0, jsfOSGiJarWeaver.weave(outputJar, outputJar, warningCollector));
+		Assert.assertEquals(Collections.<String>emptyList(), warningCollector.warnings);
+	}
+
+	@Test
+	public void testWeaveNonFacesBundle() throws IOException {
+
+		File inputJar = createJar("com.example.bundle");
+		File outputJar = new File(temporaryFolder.getRoot(), "output.jar");
+		JSF_OSGiJarWeaver jsfOSGiJarWeaver = new JSF_OSGiJarWeaver(Collections.<File>emptyList(), "preserve", 2);
+		WarningCollector warningCollector = new WarningCollector();
+		Assert.assertEquals(0, jsfOSGiJarWeaver.weave(inputJar, outputJar, warningCollector));
+		Assert.assertEquals(1, warningCollector.warnings.size());
+		Assert.assertTrue(warningCollector.warnings.get(0).contains("com.example.bundle"));
+	}
+
+	@Test
+	public void testWeaveUnresolvableClass() throws IOException {
+
+		// The types merged by UnresolvableTypeCaller are neither in the jar nor on the classpath, so its frames cannot
+		// be computed.
+		File inputJar = createJar("org.glassfish.javax.faces", UnresolvableTypeCaller.class,
+				TestConstantPoolScanner.ClassForNameCaller.class);
+		File outputJar = new File(temporaryFolder.getRoot(), "output.jar");
+		JSF_OSGiJarWeaver jsfOSGiJarWeaver = new JSF_OSGiJarWeaver(Collections.<File>emptyList(), "compute", 2);
+		WarningCollector warningCollector = new WarningCollector();
+		Assert.assertEquals(1, jsfOSGiJarWeaver.weave(inputJar, outputJar, warningCollector));
+		Assert.assertEquals(1, warningCollector.warnings.size());
+		Assert.assertTrue(warningCollector.warnings.get(0).startsWith(
+				"Unable to weave " + UnresolvableTypeCaller.class.getName() + ":"));
+
+		JarFile outputJarFile = new JarFile(outputJar);
+
+		try {
+			Assert.assertArrayEquals(TestConstantPoolScanner.getClassBytes(UnresolvableTypeCaller.class),
+				readBytes(outputJarFile, getEntryName(UnresolvableTypeCaller.class)));
+		}
+		finally {
+			outputJarFile.close();
+		}
+	}
+
+	private File createJar(String bundleSymbolicName) throws IOException {
+		return createJar(bundleSymbolicName, TestConstantPoolScanner.ClassForNameCaller.class,
+				TestConstantPoolScanner.NoTargetCaller.class);
+	}
+
+	private File createJar(String bundleSymbolicName, Class<?>... classes) throws IOException {
+
+		Manifest manifest = new Manifest();
+		Attributes mainAttributes = manifest.getMainAttributes();
+		mainAttributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		mainAttributes.putValue("Bundle-SymbolicName", bundleSymbolicName);
+		mainAttributes.putValue("Bundle-Version", "2.2.18");
+		mainAttributes.putValue("DynamicImport-Package", "javax.el");
+
+		File jar = temporaryFolder.newFile(bundleSymbolicName + ".jar");
+		JarOutputStream jarOutputStream = new JarOutputStream(new FileOutputStream(jar), manifest);
+
+		try {
+
+			for (Class<?> clazz : classes) {
+
+				jarOutputStream.putNextEntry(new JarEntry(getEntryName(clazz)));
+				jarOutputStream.write(TestConstantPoolScanner.getClassBytes(clazz));
+				jarOutputStream.closeEntry();
+			}
+		}
+		finally {
+			jarOutputStream.close();
+		}
+
+		return jar;
+	}
+
+	public static final class UnresolvableTypeCaller {
+
+		public Object getObject(String className, boolean temporaryFolder) throws ClassNotFoundException {
+
+			Object object;
+
+			if (temporaryFolder) {
+				object = new TemporaryFolder();
+			}
+			else {
+				object = new TestJSF_OSGiJarWeaver();
+			}
+
+			Class.forName(className);
+
+			return object;
+		}
+	}
+
+	private static final class WarningCollector implements JSF_OSGiJarWeaver.WarningListener {
+
+		// Private Final Data Members
+		private final List<String> warnings = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void warn(String message) {
+			warnings.add(message);
+		}
+	}
+}
@@ -0,0 +1,313 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.framework.wiring.FrameworkWiring;
+
+import org.osgi.service.log.LogService;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestJSF_OSGiWeaver {
+
+	private static FrameworkEvent newPackagesRefreshedEvent() {
+		return new FrameworkEvent(FrameworkEvent.PACKAGES_REFRESHED, new BundleMockImpl(), null);
+	}
+
+	@Test
+	public void testRefreshFacesBundles() throws BundleException {
+
+		BundleMockImpl systemBundle = new BundleMockImpl("org.eclipse.osgi", Version.emptyVersion);
+		FrameworkWiringMockImpl frameworkWiring = new FrameworkWiringMockImpl(systemBundle);
+		systemBundle.setAdaptation(FrameworkWiring.class, frameworkWiring);
+
+		// The class loader of a bundle without a wiring is assumed to have loaded classes without being woven.
+		BundleMockImpl mojarraBundle = new BundleMockImpl("org.glassfish.javax.faces", new Version(2, 2, 18));
+		mojarraBundle.setAdaptation(BundleWiring.class, null);
+
+		// A bundle which is not resolved has not loaded any classes, so it is not refreshed.
+		BundleMockImpl primeFacesBundle = new BundleMockImpl("org.primefaces", new Version(6, 2, 0));
+		primeFacesBundle.setState(Bundle.INSTALLED);
+
+		FacesWabMockImpl dependentFacesWab = new FacesWabMockImpl("com.example.dependent.faces.wab");
+		FacesWabMockImpl resolvedFacesWab = new FacesWabMockImpl("com.example.resolved.faces.wab");
+		resolvedFacesWab.setState(Bundle.RESOLVED);
+
+		FacesWabMockImpl dependentWab = new FacesWabMockImpl("com.example.dependent.wab");
+		dependentWab.setHeader("Import-Package", "javax.servlet");
+
+		FacesWabMockImpl independentFacesWab = new FacesWabMockImpl("com.example.independent.faces.wab");
+		frameworkWiring.addDependentBundle(mojarraBundle, dependentFacesWab);
+		frameworkWiring.addDependentBundle(mojarraBundle, resolvedFacesWab);
+		frameworkWiring.addDependentBundle(mojarraBundle, dependentWab);
+		frameworkWiring.addDependentBundle(primeFacesBundle, independentFacesWab);
+
+		BundleContextMockImpl bundleContext = new BundleContextMockImpl(Arrays.<Bundle>asList(systemBundle,
+					mojarraBundle, primeFacesBundle, dependentFacesWab, resolvedFacesWab, dependentWab,
+					independentFacesWab));
+		LogServiceRecorder logServiceRecorder = new LogServiceRecorder();
+		JSF_OSGiWeaver jsfOSGiWeaver = new JSF_OSGiWeaver(logServiceRecorder);
+		jsfOSGiWeaver.refreshFacesBundles(bundleContext, WeavingPolicy.getDefault());
+		Assert.assertEquals(Collections.<Bundle>singletonList(mojarraBundle), frameworkWiring.getRefreshedBundles());
+
+		// Only the active Faces WABs which depend on the refreshed bundles are stopped and started again.
+		Assert.assertEquals(1, dependentFacesWab.stopCount.get());
+		Assert.assertEquals(1, dependentFacesWab.startCount.get());
+		Assert.assertEquals(Bundle.ACTIVE, dependentFacesWab.getState());
+
+		for (FacesWabMockImpl facesWab : Arrays.asList(resolvedFacesWab, dependentWab, independentFacesWab)) {
+
+			Assert.assertEquals(facesWab.getSymbolicName(), 0, facesWab.stopCount.get());
+			Assert.assertEquals(facesWab.getSymbolicName(), 0, facesWab.startCount.get());
+		}
+
+		Assert.assertTrue(logServiceRecorder.messages.toString(),
+			logServiceRecorder.containsMessage(LogService.LOG_INFO,
+				"Refreshed 4 bundle(s) and restarted 1 of 1 Faces WAB(s)"));
+	}
+
+	@Test
+	public void testRestartFacesWabsConcurrently() {
+
+		final int restartThreadCount = 2;
+		final CyclicBarrier cyclicBarrier = new CyclicBarrier(restartThreadCount);
+		final AtomicInteger startingCount = new AtomicInteger();
+		final AtomicInteger maxStartingCount = new AtomicInteger();
+		List<Bundle> facesWabs = new ArrayList<Bundle>();
+
+		for (int i = 0; i < 4; i++) {
+
+			facesWabs.add(new FacesWabMockImpl("com.example.faces.wab" + i) {
+
+					@Override
+					public void start() throws BundleException {
+
+						int currentStartingCount = startingCount.incrementAndGet();
+
+						synchronized (maxStartingCount) {
+							maxStartingCount.set(Math.max(maxStartingCount.get(), currentStartingCount));
+						}
+
+						try {
+
+							// Each Faces WAB waits for another to start concurrently.
+							cyclicBarrier.await(10, TimeUnit.SECONDS);
+						}
+						catch (Exception e) {
+							throw new BundleException("Faces WABs were not started concurrently.", e);
+						}
+						finally {
+							startingCount.decrementAndGet();
+						}
+
+						super.start();
+					}
+				});
+		}
+
+		LogServiceRecorder logServiceRecorder = new LogServiceRecorder();
+		JSF_OSGiWeaver.FacesBundlesRefreshListener facesBundlesRefreshListener =
+			new JSF_OSGiWeaver.FacesBundlesRefreshListener(facesWabs, facesWabs.size(), System.nanoTime(),
+				restartThreadCount, 30, logServiceRecorder);
+
+		// Faces WABs are only started once the refresh completes.
+		facesBundlesRefreshListener.frameworkEvent(new FrameworkEvent(FrameworkEvent.STARTLEVEL_CHANGED,
+				new BundleMockImpl(), null));
+		Assert.assertEquals(0, maxStartingCount.get());
+
+		facesBundlesRefreshListener.frameworkEvent(newPackagesRefreshedEvent());
+		Assert.assertEquals(restartThreadCount, maxStartingCount.get());
+
+		for (Bundle facesWab : facesWabs) {
+			Assert.assertEquals(facesWab.getSymbolicName(), Bundle.ACTIVE, facesWab.getState());
+		}
+
+		Assert.assertTrue(logServiceRecorder.messages.toString(),
+			logServiceRecorder.containsMessage(LogService.LOG_INFO, "restarted 4 of 4 Faces WAB(s)"));
+	}
+
+	@Test
+	public void testRestartFailuresAreLogged() {
+
+		final BundleException bundleException = new BundleException("Unable to start the Faces WAB.");
+		FacesWabMockImpl failingFacesWab = new FacesWabMockImpl("com.example.failing.faces.wab") {
+
+				@Override
+				public void start() throws BundleException {
+					throw bundleException;
+				}
+			};
+
+		FacesWabMockImpl facesWab = new FacesWabMockImpl("com.example.faces.wab");
+		LogServiceRecorder logServiceRecorder = new LogServiceRecorder();
+		JSF_OSGiWeaver.FacesBundlesRefreshListener facesBundlesRefreshListener =
+			new JSF_OSGiWeaver.FacesBundlesRefreshListener(Arrays.<Bundle>asList(failingFacesWab, facesWab), 3,
+				System.nanoTime(), 1, 30, logServiceRecorder);
+		facesBundlesRefreshListener.frameworkEvent(newPackagesRefreshedEvent());
+		Assert.assertEquals(Bundle.ACTIVE, facesWab.getState());
+		Assert.assertTrue(logServiceRecorder.messages.toString(),
+			logServiceRecorder.containsMessage(LogService.LOG_ERROR,
+				"com.example.failing.faces.wab failed to start due to the following error(s):"));
+		Assert.assertEquals(Collections.<Throwable>singletonList(bundleException), logServiceRecorder.exceptions);
+		Assert.assertTrue(logServiceRecorder.messages.toString(),
+			logServiceRecorder.containsMessage(LogService.LOG_INFO,
+				"Refreshed 3 bundle(s) and restarted 1 of 2 Faces WAB(s)"));
+	}
+
+	@Test
+	public void testRestartTimeoutIsShared() {
+
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		List<Bundle> facesWabs = new ArrayList<Bundle>();
+
+		for (int i = 0; i < 2; i++) {
+
+			facesWabs.add(new FacesWabMockImpl("com.example.faces.wab" + i) {
+
+					@Override
+					public void start() throws BundleException {
+
+						try {
+							startLatch.await();
+						}
+						catch (InterruptedException e) {
+							throw new BundleException("Interrupted while starting.", e);
+						}
+
+						super.start();
+					}
+				});
+		}
+
+		LogServiceRecorder logServiceRecorder = new LogServiceRecorder();
+		JSF_OSGiWeaver.FacesBundlesRefreshListener facesBundlesRefreshListener =
+			new JSF_OSGiWeaver.FacesBundlesRefreshListener(facesWabs, facesWabs.size(), System.nanoTime(), 2, 1,
+				logServiceRecorder);
+
+		try {
+
+			long startTime = System.nanoTime();
+			facesBundlesRefreshListener.frameworkEvent(newPackagesRefreshedEvent());
+
+			// Each Faces WAB is awaited until the same deadline rather than for the whole timeout.
+			long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime);
+			Assert.assertTrue(elapsedMillis + "ms", elapsedMillis < 1900L);
+		}
+		finally {
+			startLatch.countDown();
+		}
+
+		for (Bundle facesWab : facesWabs) {
+			Assert.assertTrue(logServiceRecorder.messages.toString(),
+				logServiceRecorder.containsMessage(LogService.LOG_WARNING,
+					facesWab.getSymbolicName() + " did not start within 1 seconds."));
+		}
+
+		Assert.assertTrue(logServiceRecorder.messages.toString(),
+			logServiceRecorder.containsMessage(LogService.LOG_INFO, "restarted 0 of 2 Faces WAB(s)"));
+	}
+
+	/**
+	 * An active Faces WAB which counts how often it is started and stopped.
+	 */
+	private static class FacesWabMockImpl extends BundleMockImpl {
+
+		// Private Final Data Members
+		private final AtomicInteger startCount = new AtomicInteger();
+		private final AtomicInteger stopCount = new AtomicInteger();
+
+		public FacesWabMockImpl(String symbolicName) {
+
+			super(symbolicName, new Version(1, 0, 0));
+			setHeader("Web-ContextPath", "/" + symbolicName);
+			setHeader("Import-Package", "javax.faces.context,javax.faces.webapp");
+			setState(Bundle.ACTIVE);
+		}
+
+		@Override
+		public void start() throws BundleException {
+
+			startCount.incrementAndGet();
+			super.start();
+		}
+
+		@Override
+		public void stop() throws BundleException {
+
+			stopCount.incrementAndGet();
+			super.stop();
+		}
+	}
+
+	private static final class LogServiceRecorder extends LogServiceMockImpl {
+
+		// Private Final Data Members
+		private final List<Throwable> exceptions = Collections.synchronizedList(new ArrayList<Throwable>());
+		private final List<String> messages = Collections.synchronizedList(new ArrayList<String>());
+
+		@Override
+		public void log(int level, String message) {
+			messages.add(level + ": " + message);
+		}
+
+		@Override
+		public void log(int level, String message, Throwable exception) {
+
+			log(level, message);
+			exceptions.add(exception);
+		}
+
+		/**
+		 * Returns true if a message with the level contains the text.
+		 */
+		private boolean containsMessage(int level, String text) {
+
+			boolean containsMessage = false;
+
+			synchronized (messages) {
+
+				for (String message : messages) {
+
+					if (message.startsWith(level + ": ") && message.contains(text)) {
+
+						containsMessage = true;
+
+						break;
+					}
+				}
+			}
+
+			return containsMessage;
+		}
+	}
+}
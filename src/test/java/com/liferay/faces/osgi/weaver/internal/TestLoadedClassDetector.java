@@ -0,0 +1,139 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestLoadedClassDetector {
+
+	// Private Constants
+	private static final String MOJARRA_BUNDLE_SYMBOLIC_NAME = "org.glassfish.javax.faces";
+
+	private static void assertDetectsLoadedClasses(DefiningClassLoader definingClassLoader) throws Exception {
+
+		List<URL> entryURLs = new ArrayList<URL>();
+		entryURLs.add(TestPreWeaver.getBundleEntryURL(FirstLoadedClass.class));
+		entryURLs.add(TestPreWeaver.getBundleEntryURL(SecondLoadedClass.class));
+
+		BundleWiring bundleWiring = new BundleWiringMockImpl(definingClassLoader,
+				new BundleMockImpl(MOJARRA_BUNDLE_SYMBOLIC_NAME, new Version("2.2.18")), entryURLs);
+		Set<String> noClassNames = Collections.emptySet();
+		Assert.assertEquals(Boolean.FALSE, LoadedClassDetector.isAnyClassLoaded(bundleWiring, noClassNames));
+
+		definingClassLoader.define(FirstLoadedClass.class);
+		Assert.assertEquals(Boolean.TRUE, LoadedClassDetector.isAnyClassLoaded(bundleWiring, noClassNames));
+		Assert.assertEquals(Boolean.FALSE,
+			LoadedClassDetector.isAnyClassLoaded(bundleWiring,
+				Collections.singleton(FirstLoadedClass.class.getName())));
+
+		definingClassLoader.define(SecondLoadedClass.class);
+		Assert.assertEquals(Boolean.TRUE,
+			LoadedClassDetector.isAnyClassLoaded(bundleWiring,
+				Collections.singleton(FirstLoadedClass.class.getName())));
+
+		// Bundle wirings without a class loader never load classes.
+		BundleWiring fragmentBundleWiring = new BundleWiringMockImpl(null,
+				new BundleMockImpl(MOJARRA_BUNDLE_SYMBOLIC_NAME, new Version("2.2.18")), entryURLs);
+		Assert.assertEquals(Boolean.FALSE, LoadedClassDetector.isAnyClassLoaded(fragmentBundleWiring, noClassNames));
+	}
+
+	@Test
+	public void testIsAnyClassLoaded() throws Exception {
+
+		// ClassLoader.findLoadedClass() can only be invoked on Java 8 and below.
+		Assume.assumeTrue(System.getProperty("java.specification.version").startsWith("1."));
+		assertDetectsLoadedClasses(new DefiningClassLoader());
+	}
+
+	@Test
+	public void testIsAnyClassLoadedPublicFindLoaded() throws Exception {
+
+		// Class loaders which expose their loaded classes (like Equinox's) are supported on every Java version.
+		assertDetectsLoadedClasses(new PublicFindLoadedClassLoader());
+	}
+
+	@Test
+	public void testTrackDefinedClasses() throws Exception {
+
+		BundleWiring bundleWiring = new BundleWiringMockImpl(getClass().getClassLoader(),
+				new BundleMockImpl(MOJARRA_BUNDLE_SYMBOLIC_NAME, new Version("2.2.18")), Collections.<URL>emptyList());
+		BundleWiring otherBundleWiring = new BundleWiringMockImpl(getClass().getClassLoader(),
+				new BundleMockImpl("com.example.other", new Version("1.0.0")), Collections.<URL>emptyList());
+		JSF_OSGiWeavingHook jsfOSGiWeavingHook = new JSF_OSGiWeavingHook(new LogServiceMockImpl(),
+				new WeavingHookOptions());
+		String firstLoadedClassName = FirstLoadedClass.class.getName();
+		byte[] firstLoadedClassBytes = TestConstantPoolScanner.getClassBytes(FirstLoadedClass.class);
+
+		// Classes are not tracked until tracking is started.
+		jsfOSGiWeavingHook.weave(new WovenClassMockImpl(firstLoadedClassName, firstLoadedClassBytes, bundleWiring));
+		Assert.assertTrue(jsfOSGiWeavingHook.getDefinedClassNames(bundleWiring).isEmpty());
+
+		jsfOSGiWeavingHook.startTrackingDefinedClasses();
+		jsfOSGiWeavingHook.weave(new WovenClassMockImpl(firstLoadedClassName, firstLoadedClassBytes, bundleWiring));
+		jsfOSGiWeavingHook.weave(new WovenClassMockImpl(firstLoadedClassName, firstLoadedClassBytes,
+				otherBundleWiring));
+		Assert.assertEquals(Collections.singleton(firstLoadedClassName),
+			jsfOSGiWeavingHook.getDefinedClassNames(bundleWiring));
+
+		// Classes of bundles which are not woven are not tracked.
+		Assert.assertTrue(jsfOSGiWeavingHook.getDefinedClassNames(otherBundleWiring).isEmpty());
+
+		jsfOSGiWeavingHook.stopTrackingDefinedClasses();
+		Assert.assertTrue(jsfOSGiWeavingHook.getDefinedClassNames(bundleWiring).isEmpty());
+	}
+
+	private static class DefiningClassLoader extends ClassLoader {
+
+		private DefiningClassLoader() {
+			super(null);
+		}
+
+		/* package-private */ void define(Class<?> clazz) throws Exception {
+
+			byte[] classBytes = TestConstantPoolScanner.getClassBytes(clazz);
+			defineClass(clazz.getName(), classBytes, 0, classBytes.length);
+		}
+	}
+
+	/**
+	 * Exposes its loaded classes like Equinox's <code>ModuleClassLoader</code>.
+	 */
+	public static final class PublicFindLoadedClassLoader extends DefiningClassLoader {
+
+		public Class<?> publicFindLoaded(String className) {
+			return findLoadedClass(className);
+		}
+	}
+
+	/* package-private */ static final class FirstLoadedClass {
+	}
+
+	/* package-private */ static final class SecondLoadedClass {
+	}
+}
@@ -0,0 +1,142 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleWiring;
+
+import com.liferay.faces.osgi.weaver.rewrite.RewriteRule;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestPreWeaver {
+
+	// Private Constants
+	private static final RewriteRuleTable BUILT_IN_RULES = RewriteRuleTable.getBuiltInInstance();
+
+	/* package-private */ static URL getBundleEntryURL(Class<?> clazz) throws IOException {
+
+		String entryPath = "/" + JSF_OSGiMethodVisitor.getTypeString(clazz) + ".class";
+		final URL resourceURL = clazz.getResource(entryPath);
+
+		// Mimic the bundleentry URLs returned by BundleWiring.findEntries() whose path is the path of the entry.
+		return new URL("bundleentry", "1.fwk", -1, entryPath, new URLStreamHandler() {
+
+					@Override
+					protected URLConnection openConnection(URL url) throws IOException {
+						return resourceURL.openConnection();
+					}
+				});
+	}
+
+	private static void waitForPreWeaving(PreWeaver preWeaver, BundleWiring bundleWiring) throws InterruptedException {
+
+		for (int i = 0; (i < 1000) && preWeaver.isPreWeaving(bundleWiring); i++) {
+			Thread.sleep(10);
+		}
+
+		Assert.assertFalse(preWeaver.isPreWeaving(bundleWiring));
+	}
+
+	@Test
+	public void testNoPreWeaveWithCallSiteProbes() {
+
+		// Pre-woven classes may never be defined, so their probed call sites would be registered without any calls.
+		WeavingHookOptions weavingHookOptions = new WeavingHookOptions();
+		weavingHookOptions.setPreWeaveThreadCount(1);
+		weavingHookOptions.setCallSiteProbes(true);
+		Assert.assertNull(new JSF_OSGiWeavingHook(new LogServiceMockImpl(), weavingHookOptions).getPreWeaver());
+	}
+
+	@Test
+	public void testPreWeave() throws Exception {
+
+		List<URL> entryURLs = new ArrayList<URL>();
+		entryURLs.add(getBundleEntryURL(TestConstantPoolScanner.ClassForNameCaller.class));
+		entryURLs.add(getBundleEntryURL(TestConstantPoolScanner.NoTargetCaller.class));
+
+		BundleWiring bundleWiring = new BundleWiringMockImpl(getClass().getClassLoader(),
+				new BundleMockImpl("org.glassfish.javax.faces", new Version("2.2.18")), entryURLs);
+		WeavingHookOptions weavingHookOptions = new WeavingHookOptions();
+		weavingHookOptions.setPreWeaveThreadCount(1);
+
+		JSF_OSGiWeavingHook jsfOSGiWeavingHook = new JSF_OSGiWeavingHook(new LogServiceMockImpl(),
+				weavingHookOptions);
+		PreWeaver preWeaver = jsfOSGiWeavingHook.getPreWeaver();
+
+		try {
+
+			String classForNameCallerName = TestConstantPoolScanner.ClassForNameCaller.class.getName();
+			byte[] classForNameCallerBytes = TestConstantPoolScanner.getClassBytes(
+					TestConstantPoolScanner.ClassForNameCaller.class);
+			String noTargetCallerName = TestConstantPoolScanner.NoTargetCaller.class.getName();
+			byte[] noTargetCallerBytes = TestConstantPoolScanner.getClassBytes(
+					TestConstantPoolScanner.NoTargetCaller.class);
+
+			preWeaver.preWeave(bundleWiring);
+			waitForPreWeaving(preWeaver, bundleWiring);
+
+			byte[] wovenBytes = preWeaver.removeWovenBytes(bundleWiring, classForNameCallerName,
+					classForNameCallerBytes, BUILT_IN_RULES);
+			Assert.assertNotNull(wovenBytes);
+			Assert.assertNotSame(WovenClassCache.UNMODIFIED_CLASS_BYTES, wovenBytes);
+
+			// Pre-woven classes must be released once they have been requested.
+			Assert.assertNull(preWeaver.removeWovenBytes(bundleWiring, classForNameCallerName,
+					classForNameCallerBytes, BUILT_IN_RULES));
+
+			// Classes without weave targets are never kept, but they are indexed so that the weaving hook can reject
+			// them without scanning them.
+			Assert.assertNull(preWeaver.removeWovenBytes(bundleWiring, noTargetCallerName, noTargetCallerBytes,
+					BUILT_IN_RULES));
+
+			ClassHeaderIndex classHeaderIndex = jsfOSGiWeavingHook.getClassHeaderIndex(bundleWiring);
+			Assert.assertTrue(classHeaderIndex.containsNoWeaveTargets(noTargetCallerName, noTargetCallerBytes,
+					true, BUILT_IN_RULES));
+			Assert.assertFalse(classHeaderIndex.containsNoWeaveTargets(classForNameCallerName,
+					classForNameCallerBytes, true, BUILT_IN_RULES));
+
+			// Classes which were pre-woven from different bytes must be woven again.
+			preWeaver.preWeave(bundleWiring);
+			waitForPreWeaving(preWeaver, bundleWiring);
+
+			byte[] modifiedBytes = classForNameCallerBytes.clone();
+			modifiedBytes[modifiedBytes.length - 1]++;
+			Assert.assertNull(preWeaver.removeWovenBytes(bundleWiring, classForNameCallerName, modifiedBytes,
+					BUILT_IN_RULES));
+
+			// Classes which were pre-woven with different rules (before the rules changed) must be woven again.
+			preWeaver.preWeave(bundleWiring);
+			waitForPreWeaving(preWeaver, bundleWiring);
+			Assert.assertNull(preWeaver.removeWovenBytes(bundleWiring, classForNameCallerName,
+					classForNameCallerBytes, new RewriteRuleTable(Collections.<RewriteRule>emptyList())));
+		}
+		finally {
+			preWeaver.shutdown();
+		}
+	}
+}
@@ -0,0 +1,319 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.ResourceBundle;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.util.Textifier;
+import org.objectweb.asm.util.TraceClassVisitor;
+
+import com.liferay.faces.osgi.weaver.rewrite.RewriteRule;
+import com.liferay.faces.osgi.weaver.rewrite.StackOperation;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestRewriteRuleTable {
+
+	// Private Constants
+	private static final String GOLDEN_FILE_PREFIX = "RewriteTargetCaller-";
+	private static final String GET_PROPERTY_METHOD_DESCRIPTOR = "(Ljava/lang/String;)Ljava/lang/String;";
+	private static final String TEST_OWNER_STRING = "com/liferay/faces/osgi/weaver/internal/TestRewriteRuleTable";
+
+	/**
+	 * The replacement method of the extra rewrite rule which is tested by {@link #testExtraRewriteRule()}.
+	 */
+	public static String getProperty(String key, Class<?> callerClass) {
+		return key + "@" + callerClass.getName();
+	}
+
+	/**
+	 * Returns the woven code of the {@link RewriteTargetCaller} (without debug information and frames) as text.
+	 */
+	/* package-private */ static String getWovenText(boolean weaveClassLoadingCalls, boolean invokeDynamicCallSites,
+		boolean reuseFacesContext) throws IOException, CommonSuperClassNotFoundException {
+
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(RewriteTargetCaller.class);
+
+		// Mark the class as a Java 7 class so that invokedynamic call sites may be woven.
+		bytes[7] = Opcodes.V1_7;
+
+		JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(StackMapFrameMode.PRESERVE,
+				TestRewriteRuleTable.class.getClassLoader(), "test.bundle.symbolic.name", "1.0.0", new SuperTypeCache(),
+				weaveClassLoadingCalls, false, invokeDynamicCallSites, reuseFacesContext, false);
+		byte[] wovenBytes = jsfOSGiClassWeaver.weave(RewriteTargetCaller.class.getName(), bytes,
+				new ConstantPoolScanner(bytes, weaveClassLoadingCalls));
+		StringWriter stringWriter = new StringWriter();
+		new ClassReader(wovenBytes).accept(new TraceClassVisitor(null, new Textifier(), new PrintWriter(stringWriter)),
+			ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+
+		return stringWriter.toString();
+	}
+
+	private static String getGoldenText(String variant) throws IOException {
+
+		InputStream inputStream = TestRewriteRuleTable.class.getResourceAsStream(GOLDEN_FILE_PREFIX + variant +
+				".txt");
+
+		return new String(TestConstantPoolScanner.readBytes(inputStream), "UTF-8");
+	}
+
+	@Test
+	public void testBuiltInRewriteRulesMatchGoldenBytecode() throws IOException, CommonSuperClassNotFoundException {
+
+		Assert.assertEquals(getGoldenText("default"), getWovenText(true, false, false));
+		Assert.assertEquals(getGoldenText("resource-bundles-only"), getWovenText(false, false, false));
+		Assert.assertEquals(getGoldenText("invokedynamic"), getWovenText(true, true, false));
+		Assert.assertEquals(getGoldenText("reused-faces-context"), getWovenText(true, false, true));
+	}
+
+	@Test
+	public void testBuiltInRewriteRulesProduceValidBytecode() throws ClassNotFoundException, IOException,
+		CommonSuperClassNotFoundException {
+
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(RewriteTargetCaller.class);
+		String className = RewriteTargetCaller.class.getName();
+
+		// Mark the class as a Java 7 class so that invokedynamic call sites may be woven and so that the JVM verifies
+		// its stack map frames rather than falling back to type inference if the frames are invalid.
+		bytes[7] = Opcodes.V1_7;
+
+		for (StackMapFrameMode stackMapFrameMode : StackMapFrameMode.values()) {
+
+			// Every combination of weaving class loading calls, invokedynamic call sites, and reusing the FacesContext.
+			for (int options = 0; options < 8; options++) {
+
+				boolean weaveClassLoadingCalls = (options & 1) != 0;
+				JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(stackMapFrameMode,
+						TestRewriteRuleTable.class.getClassLoader(), "test.bundle.symbolic.name", "1.0.0",
+						new SuperTypeCache(), weaveClassLoadingCalls, false, (options & 2) != 0, (options & 4) != 0,
+						false);
+				byte[] wovenBytes = jsfOSGiClassWeaver.weave(className, bytes,
+						new ConstantPoolScanner(bytes, weaveClassLoadingCalls));
+				Assert.assertNotNull(wovenBytes);
+				TestStackMapFrameMode.verify(className, wovenBytes);
+			}
+		}
+	}
+
+	@Test
+	public void testChangedRuleTable() throws IOException {
+
+		RewriteRule rewriteRule = new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/System", "getProperty",
+				GET_PROPERTY_METHOD_DESCRIPTOR, TEST_OWNER_STRING, "getProperty",
+				"(Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/String;", false, StackOperation.LOAD_CURRENT_CLASS);
+		RewriteRule getenvRewriteRule = new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/System", "getenv",
+				GET_PROPERTY_METHOD_DESCRIPTOR, TEST_OWNER_STRING, "getProperty",
+				"(Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/String;", false, StackOperation.LOAD_CURRENT_CLASS);
+		RewriteRuleTable builtInRuleTable = RewriteRuleTable.getBuiltInInstance();
+		RewriteRuleTable getenvRuleTable = new RewriteRuleTable(Collections.singletonList(getenvRewriteRule));
+		RewriteRuleTable rewriteRuleTable = new RewriteRuleTable(Arrays.asList(rewriteRule, getenvRewriteRule));
+		Assert.assertNull(RewriteRuleTable.getChangedRuleTable(builtInRuleTable, builtInRuleTable));
+		Assert.assertNull(RewriteRuleTable.getChangedRuleTable(getenvRuleTable,
+				new RewriteRuleTable(Collections.singletonList(getenvRewriteRule))));
+
+		// The changed table only contains the added (or removed) rule, so classes which only contain calls of the
+		// built-in rules or the unchanged rules do not contain weave targets of the changed table.
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(SystemPropertyCaller.class);
+		byte[] classForNameCallerBytes = TestConstantPoolScanner.getClassBytes(
+				TestConstantPoolScanner.ClassForNameCaller.class);
+
+		for (RewriteRuleTable changedRuleTable :
+				Arrays.asList(RewriteRuleTable.getChangedRuleTable(getenvRuleTable, rewriteRuleTable),
+					RewriteRuleTable.getChangedRuleTable(rewriteRuleTable, getenvRuleTable))) {
+
+			Assert.assertTrue(new ConstantPoolScanner(bytes, true, changedRuleTable).containsWeaveTargets());
+			Assert.assertFalse(new ConstantPoolScanner(classForNameCallerBytes, true, changedRuleTable)
+				.containsWeaveTargets());
+		}
+
+		// A rule which replaces another rule of the same call is only added once.
+		RewriteRule replacedRewriteRule = new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/System",
+				"getProperty", GET_PROPERTY_METHOD_DESCRIPTOR, TEST_OWNER_STRING, "getProperty",
+				"(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/String;", false, StackOperation.LOAD_CURRENT_CLASS,
+				StackOperation.SWAP);
+		RewriteRuleTable changedRuleTable = RewriteRuleTable.getChangedRuleTable(
+				new RewriteRuleTable(Collections.singletonList(rewriteRule)),
+				new RewriteRuleTable(Collections.singletonList(replacedRewriteRule)));
+		Assert.assertTrue(new ConstantPoolScanner(bytes, true, changedRuleTable).containsWeaveTargets());
+	}
+
+	@Test
+	public void testExtraRewriteRule() throws Exception {
+
+		RewriteRule rewriteRule = new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/System", "getProperty",
+				GET_PROPERTY_METHOD_DESCRIPTOR, TEST_OWNER_STRING, "getProperty",
+				"(Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/String;", false, StackOperation.LOAD_CURRENT_CLASS);
+		RewriteRuleTable rewriteRuleTable = new RewriteRuleTable(Collections.singletonList(rewriteRule));
+		Assert.assertEquals(Collections.singletonList("com.liferay.faces.osgi.weaver.internal"),
+			rewriteRuleTable.getDynamicImports());
+		Assert.assertFalse(RewriteRuleTable.getBuiltInInstance().getFingerprint().equals(
+				rewriteRuleTable.getFingerprint()));
+
+		// The fingerprint does not depend on the order in which the rules were provided.
+		RewriteRule getenvRewriteRule = new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/System", "getenv",
+				GET_PROPERTY_METHOD_DESCRIPTOR, TEST_OWNER_STRING, "getProperty",
+				"(Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/String;", false, StackOperation.LOAD_CURRENT_CLASS);
+		Assert.assertEquals(new RewriteRuleTable(Arrays.asList(rewriteRule, getenvRewriteRule)).getFingerprint(),
+			new RewriteRuleTable(Arrays.asList(getenvRewriteRule, rewriteRule)).getFingerprint());
+		Assert.assertFalse(rewriteRuleTable.getFingerprint().equals(
+				new RewriteRuleTable(Arrays.asList(rewriteRule, getenvRewriteRule)).getFingerprint()));
+
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(SystemPropertyCaller.class);
+		Assert.assertFalse(new ConstantPoolScanner(bytes, true).containsWeaveTargets());
+
+		// The extra rule is not a class loading call, so it is woven even if class loading calls are not.
+		ConstantPoolScanner constantPoolScanner = new ConstantPoolScanner(bytes, false, rewriteRuleTable);
+		Assert.assertTrue(constantPoolScanner.containsWeaveTargets());
+
+		String className = SystemPropertyCaller.class.getName();
+		JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(StackMapFrameMode.PRESERVE,
+				TestRewriteRuleTable.class.getClassLoader(), "test.bundle.symbolic.name", "1.0.0", new SuperTypeCache(),
+				false, false, false, false, false);
+		byte[] wovenBytes = jsfOSGiClassWeaver.weave(className, bytes, constantPoolScanner);
+		Class<?> wovenClass = Class.forName(className, true,
+				new TestJSF_OSGiClassWeaver.WovenClassLoader(className, wovenBytes));
+		Method getJavaVersionMethod = wovenClass.getDeclaredMethod("getJavaVersion");
+		getJavaVersionMethod.setAccessible(true);
+		Assert.assertEquals("java.version@" + className, getJavaVersionMethod.invoke(null));
+	}
+
+	@Test
+	public void testInvalidRewriteRules() {
+
+		// The replacement method expects a class argument which is never pushed.
+		assertInvalid(new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/System", "getProperty",
+				GET_PROPERTY_METHOD_DESCRIPTOR, TEST_OWNER_STRING, "getProperty",
+				"(Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/String;", false));
+
+		// The replacement method returns a different type.
+		assertInvalid(new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/System", "getProperty",
+				GET_PROPERTY_METHOD_DESCRIPTOR, TEST_OWNER_STRING, "getProperty",
+				"(Ljava/lang/String;Ljava/lang/Class;)Ljava/lang/Object;", false, StackOperation.LOAD_CURRENT_CLASS));
+
+		// A long cannot be swapped.
+		assertInvalid(new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/Long", "toString", "(J)Ljava/lang/String;",
+				TEST_OWNER_STRING, "toString", "(Ljava/lang/Class;J)Ljava/lang/String;", false,
+				StackOperation.LOAD_CURRENT_CLASS, StackOperation.SWAP));
+
+		// The call is already rewritten by a built-in rule.
+		assertInvalid(new RewriteRule(RewriteRule.INVOKEVIRTUAL, "java/lang/ClassLoader", "loadClass",
+				"(Ljava/lang/String;)Ljava/lang/Class;", TEST_OWNER_STRING, "loadClass",
+				"(Ljava/lang/ClassLoader;Ljava/lang/String;)Ljava/lang/Class;", true));
+	}
+
+	private void assertInvalid(RewriteRule rewriteRule) {
+
+		try {
+
+			new RewriteRuleTable(Arrays.asList(rewriteRule));
+			Assert.fail("The invalid rewrite rule " + rewriteRule + " was accepted.");
+		}
+		catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	/**
+	 * Calls every method which is rewritten by the built-in rewrite rules (and a few similar methods which are not).
+	 */
+	/* package-private */ static final class RewriteTargetCaller {
+
+		/* package-private */ static Class<?> forName(String className, ClassLoader classLoader)
+			throws ClassNotFoundException {
+			return Class.forName(className, false, classLoader);
+		}
+
+		/* package-private */ static Class<?> forNameConstant() throws ClassNotFoundException {
+			return Class.forName("java.util.ArrayList");
+		}
+
+		/* package-private */ static Class<?> forNameStatic(String className) throws ClassNotFoundException {
+			return Class.forName(className);
+		}
+
+		/* package-private */ static ResourceBundle getBundle(String baseName, ClassLoader classLoader,
+			ResourceBundle.Control control) {
+			return ResourceBundle.getBundle(baseName, Locale.ROOT, classLoader, control);
+		}
+
+		/* package-private */ static ResourceBundle getBundleNotRewritten(String baseName) {
+			return ResourceBundle.getBundle(baseName);
+		}
+
+		/* package-private */ static ClassLoader getParentNotRewritten(ClassLoader classLoader) {
+			return classLoader.getParent();
+		}
+
+		/* package-private */ static URL getResource(ClassLoader classLoader, String name) {
+			return classLoader.getResource(name);
+		}
+
+		/* package-private */ static InputStream getResourceAsStream(ClassLoader classLoader, String name) {
+			return classLoader.getResourceAsStream(name);
+		}
+
+		/* package-private */ static Enumeration<URL> getResources(ClassLoader classLoader, String name)
+			throws IOException {
+			return classLoader.getResources(name);
+		}
+
+		/* package-private */ static Class<?> loadClass(ClassLoader classLoader, String className)
+			throws ClassNotFoundException {
+			return classLoader.loadClass(className);
+		}
+
+		/* package-private */ Class<?> forNameInstance(String className) throws ClassNotFoundException {
+			return Class.forName(className);
+		}
+
+		/* package-private */ ResourceBundle getBundle(String baseName, ClassLoader classLoader) {
+			return ResourceBundle.getBundle(baseName, Locale.ROOT, classLoader);
+		}
+
+		/* package-private */ URL loadClassAndGetResource(ClassLoader classLoader, String name)
+			throws ClassNotFoundException {
+
+			classLoader.loadClass(name);
+
+			return classLoader.getResource(name);
+		}
+	}
+
+	/**
+	 * Calls a method which is only rewritten by the extra rewrite rule of {@link #testExtraRewriteRule()}.
+	 */
+	/* package-private */ static final class SystemPropertyCaller {
+
+		/* package-private */ static String getJavaVersion() {
+			return System.getProperty("java.version");
+		}
+	}
+}
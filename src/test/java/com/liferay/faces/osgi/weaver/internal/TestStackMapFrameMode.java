@@ -0,0 +1,163 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestStackMapFrameMode {
+
+	/**
+	 * Verifies the woven bytecode with ASM and defines the woven class (which makes the JVM verify it as well).
+	 */
+	/* package-private */ static void verify(String className, byte[] wovenBytes) throws ClassNotFoundException {
+
+		StringWriter stringWriter = new StringWriter();
+		CheckClassAdapter.verify(new ClassReader(wovenBytes), TestStackMapFrameMode.class.getClassLoader(), false,
+			new PrintWriter(stringWriter));
+		Assert.assertEquals(className + " is invalid:", "", stringWriter.toString());
+		Class.forName(className, true, new TestJSF_OSGiClassWeaver.WovenClassLoader(className, wovenBytes));
+	}
+
+	/**
+	 * Weaves the class with the specified mode and class file major version, verifies the woven bytecode with ASM,
+	 * and defines the woven class (which makes the JVM verify it as well).
+	 *
+	 * @return  The number of stack map frames of the woven class.
+	 */
+	/* package-private */ static int weaveAndVerify(Class<?> clazz, StackMapFrameMode stackMapFrameMode,
+		int majorVersion) throws ClassNotFoundException, IOException, CommonSuperClassNotFoundException {
+
+		byte[] bytes = TestConstantPoolScanner.getClassBytes(clazz);
+		bytes[6] = (byte) (majorVersion >>> 8);
+		bytes[7] = (byte) majorVersion;
+
+		String className = clazz.getName();
+		JSF_OSGiClassWeaver jsfOSGiClassWeaver = new JSF_OSGiClassWeaver(stackMapFrameMode,
+				TestStackMapFrameMode.class.getClassLoader(), "test.bundle.symbolic.name", "1.0.0",
+				new SuperTypeCache(), true, false, false, false, false);
+		byte[] wovenBytes = jsfOSGiClassWeaver.weave(className, bytes, new ConstantPoolScanner(bytes, true));
+		Assert.assertNotNull(className + " was not woven with " + stackMapFrameMode + ".", wovenBytes);
+		verify(className, wovenBytes);
+
+		FrameCounter frameCounter = new FrameCounter();
+		new ClassReader(wovenBytes).accept(frameCounter, 0);
+
+		return frameCounter.frames;
+	}
+
+	@Test
+	public void testComputeFrames() throws ClassNotFoundException, IOException, CommonSuperClassNotFoundException {
+
+		Assert.assertTrue(weaveAndVerify(FrameCaller.class, StackMapFrameMode.COMPUTE, Opcodes.V1_7) > 0);
+		Assert.assertTrue(weaveAndVerify(FrameCaller.class, StackMapFrameMode.COMPUTE, Opcodes.V1_6) > 0);
+	}
+
+	@Test
+	public void testDropJava_1_6_Frames() throws ClassNotFoundException, IOException,
+		CommonSuperClassNotFoundException {
+
+		// Java 1.6 classes are verified by type inference, so their frames are dropped.
+		Assert.assertEquals(0, weaveAndVerify(FrameCaller.class, StackMapFrameMode.DROP_JAVA_1_6, Opcodes.V1_6));
+		Assert.assertTrue(weaveAndVerify(FrameCaller.class, StackMapFrameMode.DROP_JAVA_1_6, Opcodes.V1_7) > 0);
+	}
+
+	@Test
+	public void testPreserveFrames() throws ClassNotFoundException, IOException, CommonSuperClassNotFoundException {
+
+		Assert.assertTrue(weaveAndVerify(FrameCaller.class, StackMapFrameMode.PRESERVE, Opcodes.V1_7) > 0);
+		Assert.assertTrue(weaveAndVerify(FrameCaller.class, StackMapFrameMode.PRESERVE, Opcodes.V1_6) > 0);
+	}
+
+	/**
+	 * Contains rewritten calls in branches, loops, and exception handlers, all of which require stack map frames.
+	 */
+	/* package-private */ static final class FrameCaller {
+
+		/* package-private */ static Class<?> loadFirst(ClassLoader classLoader, String[] classNames) {
+
+			Class<?> clazz = null;
+
+			for (int i = 0; (i < classNames.length) && (clazz == null); i++) {
+
+				try {
+					clazz = classLoader.loadClass(classNames[i]);
+				}
+				catch (ClassNotFoundException e) {
+
+					if (i == (classNames.length - 1)) {
+						throw new IllegalStateException(e);
+					}
+				}
+			}
+
+			return clazz;
+		}
+
+		/* package-private */ Object findResourceOrClass(ClassLoader classLoader, String name, boolean resource)
+			throws ClassNotFoundException {
+
+			Object found;
+
+			if (resource) {
+
+				URL url = classLoader.getResource(name);
+				found = (url != null) ? url : classLoader.getResourceAsStream(name);
+			}
+			else {
+				found = Class.forName(name);
+			}
+
+			return found;
+		}
+	}
+
+	private static final class FrameCounter extends ClassVisitor {
+
+		// Private Data Members
+		private int frames;
+
+		private FrameCounter() {
+			super(Opcodes.ASM5);
+		}
+
+		@Override
+		public MethodVisitor visitMethod(int access, String name, String descriptor, String signature,
+			String[] exceptions) {
+
+			return new MethodVisitor(Opcodes.ASM5) {
+
+					@Override
+					public void visitFrame(int type, int nLocal, Object[] local, int nStack, Object[] stack) {
+						frames++;
+					}
+				};
+		}
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestSuperClassReader {
+
+	private static byte[] getClassBytes(Class<?> clazz) throws IOException {
+
+		// JDK classes are loaded by the bootstrap class loader, so they must be read from the system class loader.
+		String classResourceName = JSF_OSGiMethodVisitor.getTypeString(clazz) + ".class";
+
+		return TestConstantPoolScanner.readBytes(ClassLoader.getSystemResourceAsStream(classResourceName));
+	}
+
+	private static String readSuperName(byte[] classBytes) throws IOException {
+		return SuperClassReader.readSuperName(new ByteArrayInputStream(classBytes));
+	}
+
+	@Test
+	public void testReadSuperName() throws IOException {
+
+		// Include classes with long and double constants, interfaces, inner classes, and Object itself.
+		List<Class<?>> classes = Arrays.<Class<?>>asList(Object.class, String.class, Long.class, Double.class,
+				HashMap.class, List.class, Opcodes.class, ClassWriter.class, OSGiClassWriter.class,
+				SuperClassReader.class, TestSuperClassReader.class, StackMapFrameMode.class);
+
+		for (Class<?> clazz : classes) {
+
+			byte[] classBytes = getClassBytes(clazz);
+			Assert.assertEquals(clazz.getName(), new ClassReader(classBytes).getSuperName(),
+				readSuperName(classBytes));
+		}
+
+		// The class file must be read up to the super_class item only.
+		byte[] classWriterBytes = getClassBytes(ClassWriter.class);
+		CountingInputStream countingInputStream = new CountingInputStream(classWriterBytes);
+		Assert.assertEquals(JSF_OSGiMethodVisitor.getTypeString(ClassVisitor.class),
+			SuperClassReader.readSuperName(countingInputStream));
+		Assert.assertTrue(countingInputStream.bytesRead < classWriterBytes.length);
+	}
+
+	@Test
+	public void testReadSuperNameOfInvalidClassFile() throws IOException {
+
+		byte[] classBytes = getClassBytes(String.class);
+		byte[] invalidMagicBytes = classBytes.clone();
+		invalidMagicBytes[0] = 0;
+
+		List<byte[]> invalidClassBytes = Arrays.asList(invalidMagicBytes, Arrays.copyOf(classBytes, 4),
+				Arrays.copyOf(classBytes, classBytes.length / 8));
+
+		for (byte[] invalidClassFile : invalidClassBytes) {
+
+			try {
+
+				readSuperName(invalidClassFile);
+				Assert.fail("An invalid class file was read.");
+			}
+			catch (IOException e) {
+				// Expected.
+			}
+		}
+	}
+
+	private static final class CountingInputStream extends InputStream {
+
+		// Private Final Data Members
+		private final InputStream inputStream;
+
+		// Private Data Members
+		private int bytesRead;
+
+		public CountingInputStream(byte[] bytes) {
+			this.inputStream = new ByteArrayInputStream(bytes);
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			int read = inputStream.read();
+
+			if (read >= 0) {
+				bytesRead++;
+			}
+
+			return read;
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+
+			int read = inputStream.read(bytes, offset, length);
+
+			if (read > 0) {
+				bytesRead += read;
+			}
+
+			return read;
+		}
+	}
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+import org.osgi.framework.wiring.BundleWiring;
+
+import static com.liferay.faces.osgi.weaver.internal.JSF_OSGiMethodVisitor.getTypeString;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestSuperTypeCache {
+
+	// Private Constants
+	private static final String CLASS_VISITOR_TYPE_STRING = getTypeString(ClassVisitor.class);
+	private static final String CLASS_WRITER_TYPE_STRING = getTypeString(ClassWriter.class);
+	private static final String FACES_CONTEXT_WRAPPER_TYPE_STRING = "javax/faces/context/FacesContextWrapper";
+	private static final String MY_FACES_CONTEXT_TYPE_STRING = "com/example/MyFacesContext";
+	private static final String OSGI_CLASS_WRITER_TYPE_STRING = getTypeString(OSGiClassWriter.class);
+
+	@Test
+	public void testGetInstance() {
+
+		ClassLoader classLoader = getClass().getClassLoader();
+		BundleWiring bundleWiring = new BundleWiringMockImpl(classLoader);
+		Assert.assertSame(SuperTypeCache.getInstance(bundleWiring), SuperTypeCache.getInstance(bundleWiring));
+		Assert.assertNotSame(SuperTypeCache.getInstance(bundleWiring),
+			SuperTypeCache.getInstance(new BundleWiringMockImpl(classLoader)));
+	}
+
+	@Test
+	public void testGetSuperType() {
+
+		CountingClassLoader countingClassLoader = new CountingClassLoader(new BlockTypeResourceClassLoader(
+					CLASS_VISITOR_TYPE_STRING, getClass().getClassLoader()));
+		SuperTypeCache superTypeCache = new SuperTypeCache();
+
+		for (int i = 0; i < 3; i++) {
+
+			Assert.assertEquals(CLASS_WRITER_TYPE_STRING,
+				superTypeCache.getSuperType(OSGI_CLASS_WRITER_TYPE_STRING, countingClassLoader));
+			Assert.assertNull(superTypeCache.getSuperType(CLASS_VISITOR_TYPE_STRING, countingClassLoader));
+		}
+
+		// Both the visible and the invisible type must only be requested from the class loader once.
+		Assert.assertEquals(2, countingClassLoader.getResourceAsStreamCount.get());
+	}
+
+	@Test
+	public void testGetSuperTypeConcurrently() throws Exception {
+
+		final CountingClassLoader countingClassLoader = new CountingClassLoader(getClass().getClassLoader());
+		final SuperTypeCache superTypeCache = new SuperTypeCache();
+		final int threadCount = 8;
+		final CountDownLatch startLatch = new CountDownLatch(1);
+		ExecutorService executorService = Executors.newFixedThreadPool(threadCount);
+
+		try {
+
+			List<Future<String>> futures = new ArrayList<Future<String>>();
+
+			for (int i = 0; i < threadCount; i++) {
+
+				futures.add(executorService.submit(new Callable<String>() {
+
+							@Override
+							public String call() throws Exception {
+
+								startLatch.await();
+
+								return superTypeCache.getSuperType(OSGI_CLASS_WRITER_TYPE_STRING,
+										countingClassLoader);
+							}
+						}));
+			}
+
+			startLatch.countDown();
+
+			for (Future<String> future : futures) {
+				Assert.assertEquals(CLASS_WRITER_TYPE_STRING, future.get());
+			}
+		}
+		finally {
+			executorService.shutdown();
+		}
+
+		Assert.assertEquals(1, countingClassLoader.getResourceAsStreamCount.get());
+	}
+
+	@Test
+	public void testIsFacesContextType() {
+
+		Map<String, String> superTypes = new HashMap<String, String>();
+		superTypes.put(MY_FACES_CONTEXT_TYPE_STRING, FACES_CONTEXT_WRAPPER_TYPE_STRING);
+		superTypes.put(FACES_CONTEXT_WRAPPER_TYPE_STRING, JSF_OSGiMethodVisitor.FACES_CONTEXT_TYPE_STRING);
+		superTypes.put(JSF_OSGiMethodVisitor.FACES_CONTEXT_TYPE_STRING, OSGiClassWriter.OBJECT_TYPE_STRING);
+
+		GeneratedClassLoader generatedClassLoader = new GeneratedClassLoader(superTypes, getClass().getClassLoader());
+		SuperTypeCache superTypeCache = new SuperTypeCache();
+
+		for (int i = 0; i < 3; i++) {
+
+			Assert.assertTrue(superTypeCache.isFacesContextType(MY_FACES_CONTEXT_TYPE_STRING, generatedClassLoader));
+			Assert.assertTrue(superTypeCache.isFacesContextType(FACES_CONTEXT_WRAPPER_TYPE_STRING,
+					generatedClassLoader));
+			Assert.assertTrue(superTypeCache.isFacesContextType(JSF_OSGiMethodVisitor.FACES_CONTEXT_TYPE_STRING,
+					generatedClassLoader));
+			Assert.assertFalse(superTypeCache.isFacesContextType(OSGI_CLASS_WRITER_TYPE_STRING,
+					generatedClassLoader));
+			Assert.assertFalse(superTypeCache.isFacesContextType(CLASS_WRITER_TYPE_STRING, generatedClassLoader));
+		}
+
+		// Each class file in the hierarchies (other than FacesContext's, which is never needed) must only be read once.
+		Assert.assertEquals(5, generatedClassLoader.getResourceAsStreamCount.get());
+	}
+
+	private static final class CountingClassLoader extends ClassLoader {
+
+		// Private Final Data Members
+		private final AtomicInteger getResourceAsStreamCount = new AtomicInteger();
+
+		public CountingClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		@Override
+		public InputStream getResourceAsStream(String name) {
+
+			getResourceAsStreamCount.incrementAndGet();
+
+			return super.getResourceAsStream(name);
+		}
+	}
+
+	private static final class GeneratedClassLoader extends ClassLoader {
+
+		// Private Final Data Members
+		private final AtomicInteger getResourceAsStreamCount = new AtomicInteger();
+		private final Map<String, String> superTypes;
+
+		public GeneratedClassLoader(Map<String, String> superTypes, ClassLoader parent) {
+
+			super(parent);
+			this.superTypes = superTypes;
+		}
+
+		@Override
+		public InputStream getResourceAsStream(String name) {
+
+			getResourceAsStreamCount.incrementAndGet();
+
+			InputStream inputStream;
+			String type = name.substring(0, name.length() - ".class".length());
+
+			if (superTypes.containsKey(type)) {
+
+				ClassWriter classWriter = new ClassWriter(0);
+				classWriter.visit(Opcodes.V1_6, Opcodes.ACC_PUBLIC, type, null, superTypes.get(type), null);
+				classWriter.visitEnd();
+				inputStream = new ByteArrayInputStream(classWriter.toByteArray());
+			}
+			else {
+				inputStream = super.getResourceAsStream(name);
+			}
+
+			return inputStream;
+		}
+	}
+}
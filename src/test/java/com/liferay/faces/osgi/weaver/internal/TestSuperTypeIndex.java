@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+import org.osgi.framework.Version;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestSuperTypeIndex {
+
+	// Private Constants
+	private static final String FACES_CONTEXT_TYPE_STRING = "javax/faces/context/FacesContext";
+	private static final String FACES_CONTEXT_WRAPPER_TYPE_STRING = "javax/faces/context/FacesContextWrapper";
+
+	@Test
+	public void testFacesApiVersionGuard() {
+
+		Assert.assertEquals(FACES_CONTEXT_TYPE_STRING,
+			SuperTypeIndex.getInstance(new Version("2.2.18")).getSuperType(FACES_CONTEXT_WRAPPER_TYPE_STRING));
+		Assert.assertEquals("java/lang/RuntimeException",
+			SuperTypeIndex.getInstance(new Version("2.2.0")).getSuperType("javax/faces/FacesException"));
+
+		// The index must be ignored for javax.faces types if the API version differs or is unknown.
+		Assert.assertNull(SuperTypeIndex.getInstance(new Version("2.3.0")).getSuperType(
+				FACES_CONTEXT_WRAPPER_TYPE_STRING));
+		Assert.assertNull(SuperTypeIndex.getInstance(null).getSuperType(FACES_CONTEXT_WRAPPER_TYPE_STRING));
+		Assert.assertNull(SuperTypeIndex.getFacesApiVersion(new BundleWiringMockImpl(getClass().getClassLoader())));
+	}
+
+	@Test
+	public void testGetSuperTypeOfJDKTypes() {
+
+		SuperTypeIndex superTypeIndex = SuperTypeIndex.getInstance(null);
+		Assume.assumeTrue(superTypeIndex.isJDKTypesValid());
+
+		Class<?>[] classes = new Class<?>[] {
+				RuntimeException.class, java.io.IOException.class, Integer.class, java.util.LinkedHashMap.class,
+				java.util.concurrent.ConcurrentHashMap.class, java.util.ArrayList.class, StringBuilder.class
+			};
+
+		for (Class<?> clazz : classes) {
+			Assert.assertEquals(JSF_OSGiMethodVisitor.getTypeString(clazz.getSuperclass()),
+				superTypeIndex.getSuperType(JSF_OSGiMethodVisitor.getTypeString(clazz)));
+		}
+
+		Assert.assertNull(superTypeIndex.getSuperType(OSGiClassWriter.OBJECT_TYPE_STRING));
+		Assert.assertNull(superTypeIndex.getSuperType(JSF_OSGiMethodVisitor.getTypeString(OSGiClassWriter.class)));
+
+		// Indexed types must not be read from the class loader.
+		final AtomicInteger getResourceAsStreamCount = new AtomicInteger();
+		ClassLoader countingClassLoader = new ClassLoader(getClass().getClassLoader()) {
+
+			@Override
+			public InputStream getResourceAsStream(String name) {
+
+				getResourceAsStreamCount.incrementAndGet();
+
+				return super.getResourceAsStream(name);
+			}
+		};
+
+		SuperTypeCache superTypeCache = new SuperTypeCache();
+		Assert.assertEquals("java/lang/Exception",
+			superTypeCache.getSuperType("java/lang/RuntimeException", countingClassLoader));
+		Assert.assertEquals(0, getResourceAsStreamCount.get());
+	}
+}
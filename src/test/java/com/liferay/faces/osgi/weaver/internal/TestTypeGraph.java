@@ -0,0 +1,86 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.util.CheckClassAdapter;
+
+import static com.liferay.faces.osgi.weaver.internal.JSF_OSGiMethodVisitor.getTypeString;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestTypeGraph {
+
+	@Test
+	public void testGetCommonSuperType() {
+
+		ClassLoader classLoader = getClass().getClassLoader();
+		TypeGraph typeGraph = new SuperTypeCache().getTypeGraph();
+		int arrayListTypeId = typeGraph.getTypeId(getTypeString(ArrayList.class), classLoader);
+		int linkedListTypeId = typeGraph.getTypeId(getTypeString(LinkedList.class), classLoader);
+		int osgiClassWriterTypeId = typeGraph.getTypeId(getTypeString(OSGiClassWriter.class), classLoader);
+		int testCheckClassAdapterTypeId = typeGraph.getTypeId(getTypeString(TestCheckClassAdapter.class),
+				classLoader);
+
+		// Types are interned once.
+		Assert.assertEquals(arrayListTypeId, typeGraph.getTypeId(getTypeString(ArrayList.class), classLoader));
+
+		// Repeated and reversed pairs are answered from the memo and must not change the result.
+		for (int i = 0; i < 2; i++) {
+
+			Assert.assertEquals(getTypeString(AbstractList.class),
+				typeGraph.getCommonSuperType(arrayListTypeId, linkedListTypeId));
+			Assert.assertEquals(getTypeString(AbstractList.class),
+				typeGraph.getCommonSuperType(linkedListTypeId, arrayListTypeId));
+			Assert.assertEquals(getTypeString(ClassVisitor.class),
+				typeGraph.getCommonSuperType(osgiClassWriterTypeId, testCheckClassAdapterTypeId));
+			Assert.assertEquals(getTypeString(Object.class),
+				typeGraph.getCommonSuperType(arrayListTypeId, osgiClassWriterTypeId));
+			Assert.assertEquals(getTypeString(ClassWriter.class),
+				typeGraph.getCommonSuperType(osgiClassWriterTypeId,
+					typeGraph.getTypeId(getTypeString(ClassWriter.class), classLoader)));
+		}
+	}
+
+	@Test
+	public void testGetCommonSuperTypeOfUnrelatedHierarchies() {
+
+		// The hierarchy of CheckClassAdapter ends at ClassVisitor when ClassVisitor's class file is not visible.
+		String classVisitorTypeString = getTypeString(ClassVisitor.class);
+		ClassLoader classLoader = new BlockTypeResourceClassLoader(classVisitorTypeString,
+				getClass().getClassLoader());
+		TypeGraph typeGraph = new SuperTypeCache().getTypeGraph();
+		int checkClassAdapterTypeId = typeGraph.getTypeId(getTypeString(CheckClassAdapter.class), classLoader);
+		int testCheckClassAdapterTypeId = typeGraph.getTypeId(getTypeString(TestCheckClassAdapter.class),
+				classLoader);
+		int arrayListTypeId = typeGraph.getTypeId(getTypeString(ArrayList.class), classLoader);
+
+		for (int i = 0; i < 2; i++) {
+
+			Assert.assertEquals(getTypeString(CheckClassAdapter.class),
+				typeGraph.getCommonSuperType(checkClassAdapterTypeId, testCheckClassAdapterTypeId));
+			Assert.assertNull(typeGraph.getCommonSuperType(arrayListTypeId, testCheckClassAdapterTypeId));
+		}
+	}
+}
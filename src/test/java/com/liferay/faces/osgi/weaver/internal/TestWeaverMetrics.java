@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.Collections;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleWiring;
+
+import com.liferay.faces.osgi.weaver.metrics.BundleWeaverMetrics;
+import com.liferay.faces.osgi.weaver.metrics.LatencyHistogram;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestWeaverMetrics {
+
+	// Private Constants
+	private static final String MOJARRA_BUNDLE_SYMBOLIC_NAME = "org.glassfish.javax.faces";
+
+	private static WeaverMetrics weave(Class<?>... classes) throws Exception {
+
+		BundleWiring bundleWiring = new BundleWiringMockImpl(TestWeaverMetrics.class.getClassLoader(),
+				new BundleMockImpl(MOJARRA_BUNDLE_SYMBOLIC_NAME, new Version("2.2.18")), Collections.<URL>emptyList());
+		WeaverMetrics weaverMetrics = new WeaverMetrics();
+		WeavingHookOptions weavingHookOptions = new WeavingHookOptions();
+		weavingHookOptions.setStackMapFrameMode(StackMapFrameMode.COMPUTE);
+		weavingHookOptions.setWeaverMetrics(weaverMetrics);
+
+		JSF_OSGiWeavingHook jsfOSGiWeavingHook = new JSF_OSGiWeavingHook(new LogServiceMockImpl(),
+				weavingHookOptions);
+
+		for (Class<?> clazz : classes) {
+			jsfOSGiWeavingHook.weave(new WovenClassMockImpl(clazz.getName(),
+					TestConstantPoolScanner.getClassBytes(clazz), bundleWiring));
+		}
+
+		return weaverMetrics;
+	}
+
+	@Test
+	public void testLatencyHistogram() {
+
+		Assert.assertEquals(0, LatencyHistogramRecorder.getBucketIndex(0));
+		Assert.assertEquals(0, LatencyHistogramRecorder.getBucketIndex(1));
+		Assert.assertEquals(1, LatencyHistogramRecorder.getBucketIndex(3));
+		Assert.assertEquals(10, LatencyHistogramRecorder.getBucketIndex(1024));
+		Assert.assertEquals(LatencyHistogramRecorder.BUCKET_COUNT - 1,
+			LatencyHistogramRecorder.getBucketIndex(Long.MAX_VALUE));
+
+		LatencyHistogramRecorder latencyHistogramRecorder = new LatencyHistogramRecorder();
+		Assert.assertEquals(0, latencyHistogramRecorder.snapshot().getP99Nanos());
+
+		for (int i = 0; i < 99; i++) {
+			latencyHistogramRecorder.record(1000);
+		}
+
+		latencyHistogramRecorder.record(1000000);
+
+		LatencyHistogram latencyHistogram = latencyHistogramRecorder.snapshot();
+		Assert.assertEquals(100, latencyHistogram.getCount());
+		Assert.assertEquals((99 * 1000) + 1000000, latencyHistogram.getTotalNanos());
+		Assert.assertEquals(1023, latencyHistogram.getP50Nanos());
+		Assert.assertEquals(1023, latencyHistogram.getP99Nanos());
+		Assert.assertEquals(99, latencyHistogram.getBuckets()[9]);
+		Assert.assertEquals(1, latencyHistogram.getBuckets()[19]);
+
+		latencyHistogramRecorder.record(1000000);
+		Assert.assertEquals(1048575, latencyHistogramRecorder.snapshot().getP99Nanos());
+	}
+
+	@Test
+	public void testMXBean() throws Exception {
+
+		WeaverMetrics weaverMetrics = weave(TestConstantPoolScanner.ClassForNameCaller.class);
+		MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+		ObjectName objectName = new ObjectName(
+				"com.liferay.faces.osgi.weaver:type=WeaverMetrics,name=TestWeaverMetrics");
+		mBeanServer.registerMBean(weaverMetrics, objectName);
+
+		try {
+
+			CompositeData totalMetrics = (CompositeData) mBeanServer.getAttribute(objectName, "TotalMetrics");
+			Assert.assertEquals(1L, totalMetrics.get("classesWoven"));
+
+			CompositeData classReaderAcceptLatency = (CompositeData) totalMetrics.get("classReaderAcceptLatency");
+			Assert.assertEquals(1L, classReaderAcceptLatency.get("count"));
+			Assert.assertNotNull(mBeanServer.getAttribute(objectName, "BundleMetrics"));
+
+			mBeanServer.invoke(objectName, "reset", null, null);
+			Assert.assertEquals(0, weaverMetrics.getTotalMetrics().getClassesInspected());
+		}
+		finally {
+			mBeanServer.unregisterMBean(objectName);
+		}
+	}
+
+	@Test
+	public void testWeave() throws Exception {
+
+		WeaverMetrics weaverMetrics = weave(TestConstantPoolScanner.ClassForNameCaller.class,
+				TestConstantPoolScanner.NoTargetCaller.class);
+		BundleWeaverMetrics bundleWeaverMetrics = weaverMetrics.getBundleMetrics().get(MOJARRA_BUNDLE_SYMBOLIC_NAME);
+		Assert.assertNotNull(bundleWeaverMetrics);
+		Assert.assertEquals(2, bundleWeaverMetrics.getClassesInspected());
+		Assert.assertEquals(1, bundleWeaverMetrics.getClassesSkipped());
+		Assert.assertEquals(1, bundleWeaverMetrics.getClassesWoven());
+		Assert.assertEquals(0, bundleWeaverMetrics.getClassesFailed());
+		Assert.assertEquals(TestConstantPoolScanner.getClassBytes(TestConstantPoolScanner.ClassForNameCaller.class)
+			.length, bundleWeaverMetrics.getBytesIn());
+		Assert.assertTrue(bundleWeaverMetrics.getBytesOut() > 0);
+		Assert.assertEquals(1, bundleWeaverMetrics.getClassReaderAcceptLatency().getCount());
+		Assert.assertEquals(1, bundleWeaverMetrics.getToByteArrayLatency().getCount());
+
+		// Only the Mojarra bundle was woven, so the totals are the metrics of the Mojarra bundle.
+		Assert.assertEquals(bundleWeaverMetrics.getClassesInspected(),
+			weaverMetrics.getTotalMetrics().getClassesInspected());
+	}
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.osgi.framework.Version;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestWeavingPolicy {
+
+	@Test
+	public void testDefaultWeavingPolicy() {
+
+		WeavingPolicy weavingPolicy = WeavingPolicy.getDefault();
+		WeavingPolicy.BundleRule mojarraBundleRule = weavingPolicy.getBundleRule("org.glassfish.javax.faces",
+				new Version("2.2.18"));
+		Assert.assertNotNull(mojarraBundleRule);
+		Assert.assertTrue(mojarraBundleRule.isWeaveClassLoadingCalls());
+
+		WeavingPolicy.BundleRule primeFaces_6_2_BundleRule = weavingPolicy.getBundleRule("org.primefaces",
+				new Version("6.2.0"));
+		Assert.assertNotNull(primeFaces_6_2_BundleRule);
+		Assert.assertFalse(primeFaces_6_2_BundleRule.isWeaveClassLoadingCalls());
+		Assert.assertNull(weavingPolicy.getBundleRule("org.primefaces", new Version("6.3.0")));
+		Assert.assertNull(weavingPolicy.getBundleRule("org.apache.myfaces.core.impl", new Version("2.2.12")));
+
+		Assert.assertTrue(weavingPolicy.isWeaveClass("com.sun.faces.config.ConfigManager"));
+		Assert.assertFalse(weavingPolicy.isWeaveClass("com.sun.faces.spi.InjectionProvider"));
+		Assert.assertFalse(weavingPolicy.isWeaveClass(
+				"com.sun.faces.config.configprovider.MetaInfFacesConfigResourceProvider"));
+
+		// Package prefixes only match whole package names.
+		Assert.assertTrue(weavingPolicy.isWeaveClass("com.sun.faces.spiel.Foo"));
+
+		// Configurations without any weaving policy properties must use the default policy.
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put("component.name", JSF_OSGiWeaver.class.getName());
+		Assert.assertEquals(weavingPolicy, WeavingPolicy.fromProperties(properties));
+	}
+
+	@Test
+	public void testInvalidBundleRules() {
+
+		String[] invalidBundleRules = new String[] {
+				";version=1.0", "org.primefaces;version", "org.primefaces;version=\"[1.0\"", "org.primefaces;foo=bar"
+			};
+
+		for (String invalidBundleRule : invalidBundleRules) {
+
+			try {
+
+				WeavingPolicy.fromProperties(Collections.singletonMap(WeavingPolicy.BUNDLES_PROPERTY,
+						invalidBundleRule));
+				Assert.fail("Invalid bundle rule was accepted: " + invalidBundleRule);
+			}
+			catch (IllegalArgumentException e) {
+				// Expected.
+			}
+		}
+	}
+
+	@Test
+	public void testPackageTrie() {
+
+		PackageTrie packageTrie = new PackageTrie(Arrays.asList("com.example", "com.example.a.b"),
+				Arrays.asList("com.example.a", "org"));
+		Assert.assertEquals(PackageTrie.INCLUDED, packageTrie.getMatch("com.example.Foo"));
+		Assert.assertEquals(PackageTrie.INCLUDED, packageTrie.getMatch("com.example.b.Foo"));
+		Assert.assertEquals(PackageTrie.EXCLUDED, packageTrie.getMatch("com.example.a.Foo"));
+
+		// The longest matching prefix wins.
+		Assert.assertEquals(PackageTrie.INCLUDED, packageTrie.getMatch("com.example.a.b.Foo"));
+		Assert.assertEquals(PackageTrie.EXCLUDED, packageTrie.getMatch("org.example.Foo"));
+		Assert.assertEquals(PackageTrie.NO_MATCH, packageTrie.getMatch("com.examples.Foo"));
+		Assert.assertEquals(PackageTrie.NO_MATCH, packageTrie.getMatch("com.Foo"));
+		Assert.assertEquals(PackageTrie.NO_MATCH, packageTrie.getMatch("Foo"));
+
+		// Excluded packages win over identical included packages.
+		packageTrie = new PackageTrie(Arrays.asList("com.example"), Arrays.asList("com.example"));
+		Assert.assertEquals(PackageTrie.EXCLUDED, packageTrie.getMatch("com.example.Foo"));
+	}
+
+	@Test
+	public void testWeavingPolicyFromProperties() {
+
+		Map<String, Object> properties = new HashMap<String, Object>();
+		properties.put(WeavingPolicy.BUNDLES_PROPERTY,
+			new String[] {
+				"org.primefaces;version=\"[6.3,7)\"", "org.primefaces;weaveClassLoadingCalls=false",
+				"com.example.faces"
+			});
+		properties.put(WeavingPolicy.INCLUDED_PACKAGES_PROPERTY, Arrays.asList("org.primefaces", "com.example"));
+		properties.put(WeavingPolicy.EXCLUDED_PACKAGES_PROPERTY, "org.primefaces.util");
+
+		WeavingPolicy weavingPolicy = WeavingPolicy.fromProperties(properties);
+		Assert.assertNull(weavingPolicy.getBundleRule("org.glassfish.javax.faces", new Version("2.2.18")));
+
+		// The first matching rule wins.
+		Assert.assertTrue(weavingPolicy.getBundleRule("org.primefaces", new Version("6.3.0"))
+			.isWeaveClassLoadingCalls());
+		Assert.assertFalse(weavingPolicy.getBundleRule("org.primefaces", new Version("7.0.0"))
+			.isWeaveClassLoadingCalls());
+		Assert.assertNotNull(weavingPolicy.getBundleRule("com.example.faces", Version.emptyVersion));
+
+		Assert.assertTrue(weavingPolicy.isWeaveClass("org.primefaces.application.PrimeResourceHandler"));
+		Assert.assertFalse(weavingPolicy.isWeaveClass("org.primefaces.util.Constants"));
+
+		// Only included packages are woven when included packages are configured.
+		Assert.assertFalse(weavingPolicy.isWeaveClass("org.apache.commons.fileupload.FileItem"));
+
+		Assert.assertEquals(weavingPolicy, WeavingPolicy.fromProperties(properties));
+		Assert.assertFalse(weavingPolicy.equals(WeavingPolicy.getDefault()));
+	}
+}
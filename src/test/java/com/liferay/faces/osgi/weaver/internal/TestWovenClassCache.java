@@ -0,0 +1,347 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Version;
+import org.osgi.framework.wiring.BundleWiring;
+
+import com.liferay.faces.osgi.weaver.rewrite.RewriteRule;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestWovenClassCache {
+
+	// Private Constants
+	private static final Bundle MOJARRA_BUNDLE = new BundleMockImpl("org.glassfish.javax.faces",
+			new Version(2, 2, 18));
+	private static final RewriteRuleTable BUILT_IN_RULES = RewriteRuleTable.getBuiltInInstance();
+
+	// Private Data Members
+	private File file;
+
+	@After
+	public void deleteCacheFile() {
+		file.delete();
+	}
+
+	@Before
+	public void newCacheFile() throws IOException {
+		file = File.createTempFile("woven-class-cache", null);
+	}
+
+	private static byte[] newWovenBytes(int i) {
+
+		byte[] wovenBytes = new byte[1024 + i];
+		Arrays.fill(wovenBytes, (byte) i);
+
+		return wovenBytes;
+	}
+
+	@Test
+	public void testConcurrentGetDuringCompaction() throws Exception {
+
+		final WovenClassCache wovenClassCache = WovenClassCache.open(file, 64 * 1024, "fingerprint");
+		final WovenClassCache.Key[] keys = new WovenClassCache.Key[128];
+
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Class" + i, new byte[] { (byte) i }, true,
+					BUILT_IN_RULES);
+		}
+
+		final AtomicBoolean writing = new AtomicBoolean(true);
+		final AtomicInteger hitCount = new AtomicInteger();
+		final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+		List<Thread> readers = new ArrayList<Thread>();
+
+		for (int i = 0; i < 4; i++) {
+
+			readers.add(new Thread() {
+
+					@Override
+					public void run() {
+
+						while (writing.get()) {
+
+							for (int j = 0; j < keys.length; j++) {
+
+								byte[] bytes = wovenClassCache.get(keys[j]);
+
+								if (bytes != null) {
+
+									hitCount.incrementAndGet();
+
+									if (!Arrays.equals(newWovenBytes(j), bytes)) {
+										failures.add("com.sun.faces.Class" + j);
+									}
+								}
+							}
+						}
+					}
+				});
+		}
+
+		try {
+
+			for (Thread reader : readers) {
+				reader.start();
+			}
+
+			// The cache only holds about 60 of the classes, so evicted classes are put again and the cache is
+			// compacted while it is read.
+			for (int round = 0; round < 20; round++) {
+
+				for (int i = 0; i < keys.length; i++) {
+					wovenClassCache.put(keys[i], newWovenBytes(i));
+				}
+			}
+		}
+		finally {
+
+			writing.set(false);
+
+			for (Thread reader : readers) {
+				reader.join();
+			}
+
+			wovenClassCache.close();
+		}
+
+		Assert.assertEquals(Collections.<String>emptyList(), failures);
+		Assert.assertTrue(hitCount.get() > 0);
+	}
+
+	@Test
+	public void testCorruptRecord() throws IOException {
+
+		byte[] classBytes = new byte[] { 1, 2, 3 };
+		byte[] wovenBytes = new byte[] { 4, 5, 6, 7 };
+		byte[] corruptedWovenBytes = new byte[] { 8, 8, 8, 8, 8, 8, 8, 8 };
+		WovenClassCache wovenClassCache = WovenClassCache.open(file, 64 * 1024, "fingerprint");
+		WovenClassCache.Key key = wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Woven", classBytes, true,
+				BUILT_IN_RULES);
+		WovenClassCache.Key corruptedKey = wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Corrupted",
+				classBytes, true, BUILT_IN_RULES);
+
+		try {
+
+			wovenClassCache.put(key, wovenBytes);
+			wovenClassCache.put(corruptedKey, corruptedWovenBytes);
+		}
+		finally {
+			wovenClassCache.close();
+		}
+
+		// Simulate class bytes which were only partially flushed to disk before a crash.
+		RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+
+		try {
+
+			byte[] fileBytes = new byte[(int) randomAccessFile.length()];
+			randomAccessFile.readFully(fileBytes);
+
+			int corruptedWovenBytesOffset = -1;
+
+			for (int i = 0; (i < (fileBytes.length - corruptedWovenBytes.length)) && (corruptedWovenBytesOffset < 0);
+					i++) {
+
+				if (Arrays.equals(corruptedWovenBytes,
+							Arrays.copyOfRange(fileBytes, i, i + corruptedWovenBytes.length))) {
+					corruptedWovenBytesOffset = i;
+				}
+			}
+
+			randomAccessFile.seek(corruptedWovenBytesOffset + 4);
+			randomAccessFile.write(0);
+		}
+		finally {
+			randomAccessFile.close();
+		}
+
+		wovenClassCache = WovenClassCache.open(file, 64 * 1024, "fingerprint");
+
+		try {
+
+			Assert.assertArrayEquals(wovenBytes, wovenClassCache.get(key));
+			Assert.assertNull(wovenClassCache.get(corruptedKey));
+		}
+		finally {
+			wovenClassCache.close();
+		}
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+
+		WovenClassCache wovenClassCache = WovenClassCache.open(file, 64 * 1024, "fingerprint");
+
+		try {
+
+			byte[] wovenBytes = new byte[4 * 1024];
+
+			for (int i = 0; i < 64; i++) {
+
+				WovenClassCache.Key key = wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Class" + i,
+						new byte[] { (byte) i }, true, BUILT_IN_RULES);
+				wovenClassCache.put(key, wovenBytes);
+			}
+
+			Assert.assertTrue(wovenClassCache.size() < 16);
+
+			// The newest entry must survive eviction while the oldest must not.
+			Assert.assertNotNull(wovenClassCache.get(
+					wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Class63", new byte[] { 63 }, true,
+						BUILT_IN_RULES)));
+			Assert.assertNull(wovenClassCache.get(
+					wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Class0", new byte[] { 0 }, true,
+						BUILT_IN_RULES)));
+		}
+		finally {
+			wovenClassCache.close();
+		}
+	}
+
+	@Test
+	public void testFoldedClassesAreNotCached() throws IOException {
+
+		WovenClassCache wovenClassCache = WovenClassCache.open(file, 64 * 1024, "fingerprint");
+
+		try {
+
+			WeavingHookOptions weavingHookOptions = new WeavingHookOptions();
+			weavingHookOptions.setWovenClassCache(wovenClassCache);
+
+			JSF_OSGiWeavingHook jsfOSGiWeavingHook = new JSF_OSGiWeavingHook(new LogServiceMockImpl(),
+					weavingHookOptions);
+			BundleWiring bundleWiring = new BundleWiringMockImpl(getClass().getClassLoader(), MOJARRA_BUNDLE,
+					Collections.<URL>emptyList());
+			Class<?> foldedClass = TestJSF_OSGiClassWeaver.ClassForNameConstantCaller.class;
+			byte[] foldedClassBytes = TestConstantPoolScanner.getClassBytes(foldedClass);
+			Class<?> unfoldedClass = TestConstantPoolScanner.ClassForNameCaller.class;
+			byte[] unfoldedClassBytes = TestConstantPoolScanner.getClassBytes(unfoldedClass);
+			jsfOSGiWeavingHook.weave(new WovenClassMockImpl(foldedClass.getName(), foldedClassBytes, bundleWiring));
+			jsfOSGiWeavingHook.weave(new WovenClassMockImpl(unfoldedClass.getName(), unfoldedClassBytes,
+					bundleWiring));
+
+			// Whether the Class.forName() calls are folded depends on the bundle's wiring, so only the class without
+			// folded calls is cached.
+			Assert.assertEquals(1, wovenClassCache.size());
+			Assert.assertNull(wovenClassCache.get(
+					wovenClassCache.newKey(MOJARRA_BUNDLE, foldedClass.getName(), foldedClassBytes, true,
+						BUILT_IN_RULES)));
+			Assert.assertNotNull(wovenClassCache.get(
+					wovenClassCache.newKey(MOJARRA_BUNDLE, unfoldedClass.getName(), unfoldedClassBytes, true,
+						BUILT_IN_RULES)));
+		}
+		finally {
+			wovenClassCache.close();
+		}
+	}
+
+	@Test
+	public void testGetAndPut() throws IOException {
+
+		byte[] classBytes = new byte[] { 1, 2, 3 };
+		byte[] wovenBytes = new byte[] { 4, 5, 6, 7 };
+		WovenClassCache wovenClassCache = WovenClassCache.open(file, 64 * 1024, "fingerprint");
+
+		try {
+
+			WovenClassCache.Key key = wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Woven", classBytes, true,
+				BUILT_IN_RULES);
+			Assert.assertNull(wovenClassCache.get(key));
+			wovenClassCache.put(key, wovenBytes);
+			Assert.assertArrayEquals(wovenBytes, wovenClassCache.get(key));
+
+			WovenClassCache.Key unmodifiedKey = wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Unmodified",
+					classBytes, true, BUILT_IN_RULES);
+			wovenClassCache.put(unmodifiedKey, null);
+			Assert.assertSame(WovenClassCache.UNMODIFIED_CLASS_BYTES, wovenClassCache.get(unmodifiedKey));
+
+			// Different input bytes must not hit the cache.
+			Assert.assertNull(wovenClassCache.get(
+					wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Woven", wovenBytes, true,
+						BUILT_IN_RULES)));
+
+			// Classes woven with different options must not hit the cache.
+			Assert.assertNull(wovenClassCache.get(
+					wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Woven", classBytes, false, BUILT_IN_RULES)));
+
+			// Classes woven with different rewrite rules must not hit the cache.
+			RewriteRule rewriteRule = new RewriteRule(RewriteRule.INVOKESTATIC, "java/lang/System", "getenv",
+					"(Ljava/lang/String;)Ljava/lang/String;", "com/example/Example", "getenv",
+					"(Ljava/lang/String;)Ljava/lang/String;", false);
+			Assert.assertNull(wovenClassCache.get(
+					wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Woven", classBytes, true,
+						new RewriteRuleTable(Collections.singletonList(rewriteRule)))));
+		}
+		finally {
+			wovenClassCache.close();
+		}
+	}
+
+	@Test
+	public void testReopen() throws IOException {
+
+		byte[] classBytes = new byte[] { 1, 2, 3 };
+		byte[] wovenBytes = new byte[] { 4, 5, 6, 7 };
+		WovenClassCache wovenClassCache = WovenClassCache.open(file, 64 * 1024, "fingerprint");
+		WovenClassCache.Key key = wovenClassCache.newKey(MOJARRA_BUNDLE, "com.sun.faces.Woven", classBytes, true,
+				BUILT_IN_RULES);
+
+		try {
+			wovenClassCache.put(key, wovenBytes);
+		}
+		finally {
+			wovenClassCache.close();
+		}
+
+		wovenClassCache = WovenClassCache.open(file, 64 * 1024, "fingerprint");
+
+		try {
+			Assert.assertArrayEquals(wovenBytes, wovenClassCache.get(key));
+		}
+		finally {
+			wovenClassCache.close();
+		}
+
+		// Classes cached by a different weaver must be discarded.
+		wovenClassCache = WovenClassCache.open(file, 64 * 1024, "different fingerprint");
+
+		try {
+			Assert.assertNull(wovenClassCache.get(key));
+		}
+		finally {
+			wovenClassCache.close();
+		}
+	}
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.internal;
+
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.osgi.framework.hooks.weaving.WovenClass;
+import org.osgi.framework.wiring.BundleWiring;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class WovenClassMockImpl implements WovenClass {
+
+	// Private Final Data Members
+	private final BundleWiring bundleWiring;
+	private final String className;
+	private final List<String> dynamicImports;
+
+	// Private Data Members
+	private byte[] bytes;
+
+	public WovenClassMockImpl(String className, byte[] bytes, BundleWiring bundleWiring) {
+
+		this.className = className;
+		this.bytes = bytes;
+		this.bundleWiring = bundleWiring;
+		this.dynamicImports = new ArrayList<String>();
+	}
+
+	@Override
+	public BundleWiring getBundleWiring() {
+		return bundleWiring;
+	}
+
+	@Override
+	public byte[] getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String getClassName() {
+		return className;
+	}
+
+	@Override
+	public Class<?> getDefinedClass() {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public List<String> getDynamicImports() {
+		return dynamicImports;
+	}
+
+	@Override
+	public ProtectionDomain getProtectionDomain() {
+		throw new UnsupportedOperationException("");
+	}
+
+	@Override
+	public boolean isWeavingComplete() {
+		return false;
+	}
+
+	@Override
+	public void setBytes(byte[] bytes) {
+		this.bytes = bytes;
+	}
+}
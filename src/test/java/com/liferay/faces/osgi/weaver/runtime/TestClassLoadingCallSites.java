@@ -0,0 +1,130 @@
+/**
+ * Copyright (c) 2000-2018 Liferay, Inc. All rights reserved.
+ *
+ * This library is free software; you can redistribute it and/or modify it under
+ * the terms of the GNU Lesser General Public License as published by the Free
+ * Software Foundation; either version 2.1 of the License, or (at your option)
+ * any later version.
+ *
+ * This library is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE. See the GNU Lesser General Public License for more
+ * details.
+ */
+package com.liferay.faces.osgi.weaver.runtime;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+
+/**
+ * @author  Kyle Stiemann
+ */
+public class TestClassLoadingCallSites {
+
+	// Private Constants
+	private static final AtomicInteger GET_CURRENT_FACES_CONTEXT_COUNT = new AtomicInteger();
+	private static final AtomicInteger RESOLVE_COUNT = new AtomicInteger();
+
+	// Private Data Members
+	private static volatile Object facesContext;
+
+	public static Object getCurrentFacesContext() {
+
+		GET_CURRENT_FACES_CONTEXT_COUNT.incrementAndGet();
+
+		return facesContext;
+	}
+
+	public static Class<?> loadClass(String className, Object facesContext, ClassLoader classLoader)
+		throws ClassNotFoundException {
+
+		RESOLVE_COUNT.incrementAndGet();
+
+		return classLoader.loadClass(className);
+	}
+
+	@Test
+	public void testLoadClass() throws Throwable {
+
+		MethodHandles.Lookup lookup = MethodHandles.lookup();
+		MethodHandle resolveMethodHandle = lookup.findStatic(TestClassLoadingCallSites.class, "loadClass",
+				MethodType.methodType(Class.class, String.class, Object.class, ClassLoader.class));
+		MethodHandle getCurrentFacesContextMethodHandle = lookup.findStatic(TestClassLoadingCallSites.class,
+				"getCurrentFacesContext", MethodType.methodType(Object.class));
+		CallSite callSite = ClassLoadingCallSites.bootstrap(lookup, ClassLoadingCallSites.LOAD_CLASS,
+				MethodType.methodType(Class.class, ClassLoader.class, String.class), resolveMethodHandle,
+				getCurrentFacesContextMethodHandle);
+		MethodHandle dynamicInvoker = callSite.dynamicInvoker();
+		ClassLoader classLoader = getClass().getClassLoader();
+		GET_CURRENT_FACES_CONTEXT_COUNT.set(0);
+		RESOLVE_COUNT.set(0);
+		facesContext = new Object();
+
+		for (int i = 0; i < 3; i++) {
+
+			Assert.assertSame(String.class, dynamicInvoker.invokeWithArguments(classLoader, "java.lang.String"));
+			Assert.assertSame(Integer.class, dynamicInvoker.invokeWithArguments(classLoader, "java.lang.Integer"));
+		}
+
+		// Each class must only be resolved (and the FacesContext obtained) once.
+		Assert.assertEquals(2, RESOLVE_COUNT.get());
+		Assert.assertEquals(2, GET_CURRENT_FACES_CONTEXT_COUNT.get());
+
+		ClassLoadingCallSites.invalidate();
+		Assert.assertSame(String.class, dynamicInvoker.invokeWithArguments(classLoader, "java.lang.String"));
+		Assert.assertSame(String.class, dynamicInvoker.invokeWithArguments(classLoader, "java.lang.String"));
+		Assert.assertEquals(3, RESOLVE_COUNT.get());
+
+		// Failures must be thrown as-is and must not be cached.
+		for (int i = 0; i < 2; i++) {
+
+			try {
+
+				dynamicInvoker.invokeWithArguments(classLoader, "com.example.DoesNotExist");
+				Assert.fail("ClassNotFoundException was not thrown.");
+			}
+			catch (ClassNotFoundException e) {
+				// expected.
+			}
+		}
+
+		Assert.assertEquals(5, RESOLVE_COUNT.get());
+
+		// Classes resolved without a FacesContext must not be cached.
+		facesContext = null;
+
+		for (int i = 0; i < 2; i++) {
+			Assert.assertSame(Long.class, dynamicInvoker.invokeWithArguments(classLoader, "java.lang.Long"));
+		}
+
+		Assert.assertEquals(7, RESOLVE_COUNT.get());
+
+		// Call sites must not keep the class loaders which they have been called with from being garbage collected.
+		facesContext = new Object();
+
+		ClassLoader childClassLoader = new ClassLoader(classLoader) {
+			};
+		Assert.assertSame(String.class, dynamicInvoker.invokeWithArguments(childClassLoader, "java.lang.String"));
+		Assert.assertSame(String.class, dynamicInvoker.invokeWithArguments(childClassLoader, "java.lang.String"));
+		Assert.assertEquals(8, RESOLVE_COUNT.get());
+
+		WeakReference<ClassLoader> childClassLoaderReference = new WeakReference<ClassLoader>(childClassLoader);
+		childClassLoader = null;
+
+		for (int i = 0; (i < 100) && (childClassLoaderReference.get() != null); i++) {
+
+			System.gc();
+			Thread.sleep(10);
+		}
+
+		Assert.assertNull(childClassLoaderReference.get());
+	}
+}